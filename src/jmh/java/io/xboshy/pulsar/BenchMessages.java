@@ -0,0 +1,94 @@
+package io.xboshy.pulsar;
+
+import io.xboshy.pulsar.impl.MessagesImpl;
+import org.apache.pulsar.client.api.Message;
+import org.apache.pulsar.client.api.Schema;
+import org.apache.pulsar.client.impl.BatchMessageIdImpl;
+import org.apache.pulsar.client.impl.MessageImpl;
+import org.apache.pulsar.common.api.proto.MessageMetadata;
+import org.apache.pulsar.shade.io.netty.buffer.ByteBuf;
+import org.apache.pulsar.shade.io.netty.buffer.Unpooled;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Optional;
+import java.util.Random;
+
+/* Synthetic consumer-side messages with payload sizes drawn from a log-normal distribution */
+public class BenchMessages {
+    public static final String TOPIC = "persistent://public/default/bench-partition-3";
+    public static final int BATCH_SIZE = 1000;
+
+    public enum Distribution {
+        /* median, sigma and cap of the payload size in bytes */
+        SMALL(256, 0.5, 4 * 1024),
+        TYPICAL(1600, 0.8, 64 * 1024),
+        LARGE(16 * 1024, 1.0, 512 * 1024);
+
+        final int median;
+        final double sigma;
+        final int max;
+
+        Distribution(final int median, final double sigma, final int max) {
+            this.median = median;
+            this.sigma = sigma;
+            this.max = max;
+        }
+    }
+
+    public static int[] sizes(final Distribution distribution, final int n, final long seed) {
+        final Random random = new Random(seed);
+        final int[] sizes = new int[n];
+        for (int i = 0; i < n; ++i) {
+            final double size = distribution.median * Math.exp(distribution.sigma * random.nextGaussian());
+            sizes[i] = (int) Math.max(32, Math.min(distribution.max, size));
+        }
+
+        return sizes;
+    }
+
+    public static byte[] payload(final int seq, final int size, final Random random) {
+        final StringBuilder sb = new StringBuilder(size + 64);
+        sb.append("{\"seq\":").append(seq).append(",\"@timestamp\":").append(1690000000000L + seq).append(",\"msg\":\"");
+        while (sb.length() < size - 2) {
+            sb.append((char) ('a' + random.nextInt(26)));
+        }
+        sb.append("\"}");
+
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    public static Message<byte[]> message(final int seq, final byte[] payload) {
+        final MessageMetadata metadata = new MessageMetadata()
+                .setProducerName("bench")
+                .setSequenceId(seq)
+                .setPublishTime(1690000000000L + seq)
+                .setPartitionKey("key-" + seq);
+        final ByteBuf buf = Unpooled.directBuffer(payload.length);
+        buf.writeBytes(payload);
+        /* 10 messages per entry, like a producer with batching enabled */
+        final BatchMessageIdImpl msgId = new BatchMessageIdImpl(4242L, seq / 10, 3, seq % 10);
+
+        return MessageImpl.create(BenchMessages.TOPIC, msgId, metadata, buf, Optional.empty(), null, Schema.BYTES, 0, false, -1L);
+    }
+
+    public static Message<byte[]>[] messages(final Distribution distribution, final int n, final long seed) {
+        final Random random = new Random(seed);
+        final int[] sizes = BenchMessages.sizes(distribution, n, seed);
+        @SuppressWarnings("unchecked")
+        final Message<byte[]>[] msgs = new Message[n];
+        for (int i = 0; i < n; ++i) {
+            msgs[i] = BenchMessages.message(i, BenchMessages.payload(i, sizes[i], random));
+        }
+
+        return msgs;
+    }
+
+    public static MessagesImpl<byte[]> batch(final Message<byte[]>[] msgs) throws Exception {
+        final MessagesImpl<byte[]> batch = new MessagesImpl<>(msgs.length, 0L);
+        for (final Message<byte[]> msg : msgs) {
+            batch.add(msg);
+        }
+
+        return batch;
+    }
+}
@@ -0,0 +1,46 @@
+package io.xboshy.pulsar;
+
+import io.xboshy.pulsar.bulk.BulkBufferPool;
+import io.xboshy.pulsar.config.GlobalConfig;
+import io.xboshy.pulsar.impl.MessagesImpl;
+import org.apache.pulsar.client.api.Schema;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/* Bulk body construction in BatchHandler, one operation is one message */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BulkBodyBenchmark {
+    @Param({"SMALL", "TYPICAL", "LARGE"})
+    public BenchMessages.Distribution distribution;
+
+    @Param({"NONE", "HASH"})
+    public GlobalConfig.IdModes idMode;
+
+    private MessagesImpl<byte[]> batch;
+    private BulkBufferPool bufferPool;
+    private BatchHandler<byte[]> handler;
+
+    @Setup
+    public void setup() throws Exception {
+        this.batch = BenchMessages.batch(BenchMessages.messages(this.distribution, BenchMessages.BATCH_SIZE, 42L));
+        this.bufferPool = new BulkBufferPool(1, 2 * 1024 * 1024);
+        this.handler = new BatchHandler<>("", this.idMode, GlobalConfig.WriteModes.CREATE, Schema.BYTES, "bench", "bench/_bulk", null, GlobalConfig.DispatchModes.SYNC, null, this.bufferPool, Long.MAX_VALUE, null, null, null, null, null, null, null, new Tracer("", 0));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BenchMessages.BATCH_SIZE)
+    public int prepare() throws Exception {
+        int length = 0;
+        for (final PendingBulk<byte[]> bulk : this.handler.prepare(null, null, this.batch, 0)) {
+            length += bulk.getBuffer().length();
+            this.bufferPool.release(bulk.getBuffer());
+        }
+        return length;
+    }
+}
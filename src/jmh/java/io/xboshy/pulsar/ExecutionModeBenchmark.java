@@ -0,0 +1,122 @@
+package io.xboshy.pulsar;
+
+import com.lmax.disruptor.ExceptionHandler;
+import com.lmax.disruptor.WorkHandler;
+import com.lmax.disruptor.dsl.Disruptor;
+import com.lmax.disruptor.dsl.ProducerType;
+import io.xboshy.pulsar.bulk.BulkBufferPool;
+import io.xboshy.pulsar.config.GlobalConfig;
+import io.xboshy.pulsar.impl.MessagesImpl;
+import org.apache.pulsar.client.api.Schema;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/* Disruptor worker pool against virtual threads when every batch blocks on a simulated bulk round trip,
+   one operation is one batch */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ExecutionModeBenchmark {
+    private static final int BATCHES = 1024;
+    private static final int MESSAGES = 100;
+
+    @Param({"DISRUPTOR", "VIRTUAL"})
+    public GlobalConfig.ExecutionModes executionMode;
+
+    @Param({"8", "64", "512"})
+    public int inflightBatches;
+
+    @Param({"2000"})
+    public long roundTripMicros;
+
+    /* only used by the Disruptor */
+    @Param({"BLOCKING"})
+    public GlobalConfig.LatencyProfiles latencyProfile;
+
+    private MessagesImpl<byte[]> batch;
+    private Semaphore completed;
+    private Disruptor<Batch<byte[]>> disruptor;
+    private BatchSink<byte[]> sink;
+
+    @Setup
+    public void setup() throws Exception {
+        this.batch = BenchMessages.batch(BenchMessages.messages(BenchMessages.Distribution.TYPICAL, ExecutionModeBenchmark.MESSAGES, 42L));
+        this.completed = new Semaphore(0);
+        final BulkBufferPool bufferPool = new BulkBufferPool(this.inflightBatches, 256 * 1024);
+        final long roundTripNanos = TimeUnit.MICROSECONDS.toNanos(this.roundTripMicros);
+        final Callable<WorkHandler<Batch<byte[]>>> handlerFactory = () -> {
+            final BatchHandler<byte[]> handler = new BatchHandler<>("", GlobalConfig.IdModes.NONE, GlobalConfig.WriteModes.CREATE, Schema.BYTES, "bench", "bench/_bulk", null, GlobalConfig.DispatchModes.SYNC, null, bufferPool, Long.MAX_VALUE, null, null, null, null, null, null, null, new Tracer("", 0));
+            return event -> {
+                try {
+                    for (final PendingBulk<byte[]> bulk : handler.prepare(null, null, event.getMessages(), 0)) {
+                        /* the worker is blocked on the bulk request */
+                        LockSupport.parkNanos(roundTripNanos);
+                        bufferPool.release(bulk.getBuffer());
+                    }
+                } finally {
+                    event.clear();
+                    this.completed.release();
+                }
+            };
+        };
+        final ExceptionHandler<Batch<byte[]>> exceptionHandler = new ExceptionHandler<>() {
+            @Override
+            public void handleEventException(Throwable e, long sequence, Batch<byte[]> event) {
+                e.printStackTrace();
+            }
+
+            @Override
+            public void handleOnStartException(Throwable e) {
+                e.printStackTrace();
+            }
+
+            @Override
+            public void handleOnShutdownException(Throwable e) {
+                e.printStackTrace();
+            }
+        };
+
+        if (this.executionMode == GlobalConfig.ExecutionModes.VIRTUAL) {
+            this.sink = new VirtualThreadSink<>("", this.inflightBatches, handlerFactory, exceptionHandler);
+            return;
+        }
+
+        this.disruptor = new Disruptor<>(
+                Batch::new,
+                Integer.highestOneBit(this.inflightBatches * 2 - 1) << 1,
+                new CustomThreadFactory("disruptor-worker"),
+                ProducerType.SINGLE,
+                App.waitStrategy(this.latencyProfile)
+        );
+        final WorkHandler<Batch<byte[]>>[] workers = new WorkHandler[this.inflightBatches];
+        for (int i = 0; i < workers.length; ++i) {
+            workers[i] = handlerFactory.call();
+        }
+        this.disruptor.handleEventsWithWorkerPool(workers);
+        this.disruptor.setDefaultExceptionHandler(exceptionHandler);
+        this.sink = new RingBufferSink<>("", this.disruptor.start(), this.latencyProfile.name().toLowerCase());
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (this.disruptor != null) {
+            this.disruptor.shutdown();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ExecutionModeBenchmark.BATCHES)
+    public void dispatch() throws Exception {
+        for (int i = 0; i < ExecutionModeBenchmark.BATCHES; ++i) {
+            this.sink.publish(this.sink.claim(), null, this.batch, null, 0);
+        }
+        this.completed.acquire(ExecutionModeBenchmark.BATCHES);
+    }
+}
@@ -0,0 +1,35 @@
+package io.xboshy.pulsar;
+
+import org.apache.pulsar.client.api.Message;
+import org.apache.pulsar.client.api.MessageId;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class IdBenchmark {
+    private MessageId[] ids;
+
+    @Setup
+    public void setup() {
+        final Message<byte[]>[] msgs = BenchMessages.messages(BenchMessages.Distribution.SMALL, BenchMessages.BATCH_SIZE, 42L);
+        this.ids = new MessageId[msgs.length];
+        for (int i = 0; i < msgs.length; ++i) {
+            this.ids[i] = msgs[i].getMessageId();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BenchMessages.BATCH_SIZE)
+    public void messageIdToElasticId(final Blackhole bh) {
+        for (final MessageId id : this.ids) {
+            bh.consume(Id.messageIdToElasticId(id));
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package io.xboshy.pulsar;
+
+import io.xboshy.pulsar.bulk.BulkBuffer;
+import io.xboshy.pulsar.config.GlobalConfig;
+import io.xboshy.pulsar.id.IdWriter;
+import io.xboshy.pulsar.id.IdWriters;
+import org.apache.pulsar.client.api.Message;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/* Document id generation for every GlobalConfig.IdModes, one operation is one message */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class IdModesBenchmark {
+    @Param({"NONE", "MSGID", "MSGIDFIXED", "HASH", "HASH128", "KEY", "KEYHASH", "KEYHASH128"})
+    public GlobalConfig.IdModes idMode;
+
+    @Param({"TYPICAL"})
+    public BenchMessages.Distribution distribution;
+
+    private Message<byte[]>[] msgs;
+    private IdWriter idWriter;
+    private BulkBuffer buffer;
+
+    @Setup
+    public void setup() throws Exception {
+        this.msgs = BenchMessages.messages(this.distribution, BenchMessages.BATCH_SIZE, 42L);
+        this.idWriter = IdWriters.create(this.idMode);
+        this.buffer = new BulkBuffer(256 * 1024);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BenchMessages.BATCH_SIZE)
+    public int write() {
+        this.buffer.reset();
+        for (final Message<byte[]> msg : this.msgs) {
+            this.idWriter.write(msg, this.buffer);
+        }
+
+        return this.buffer.length();
+    }
+}
@@ -0,0 +1,47 @@
+package io.xboshy.pulsar.bulk;
+
+import io.xboshy.pulsar.BenchMessages;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/* Bulk response parsing for a 1000 item bulk, one operation is one item */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BulkResponseParserBenchmark {
+    /* percentage of items rejected by elasticsearch */
+    @Param({"0", "1", "100"})
+    public int failedPercent;
+
+    private byte[] response;
+
+    @Setup
+    public void setup() {
+        final StringBuilder sb = new StringBuilder();
+        sb.append("{\"errors\":").append(this.failedPercent > 0).append(",\"items\":[");
+        for (int i = 0; i < BenchMessages.BATCH_SIZE; ++i) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            if (i * 100 < this.failedPercent * BenchMessages.BATCH_SIZE) {
+                sb.append("{\"create\":{\"status\":429,\"error\":{\"type\":\"es_rejected_execution_exception\"}}}");
+            } else {
+                sb.append("{\"create\":{\"status\":201}}");
+            }
+        }
+        sb.append("]}");
+        this.response = sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BenchMessages.BATCH_SIZE)
+    public BulkResult parse() throws Exception {
+        return BulkResponseParser.parse(new ByteArrayInputStream(this.response));
+    }
+}
@@ -0,0 +1,44 @@
+package io.xboshy.pulsar.impl;
+
+import io.xboshy.pulsar.BenchMessages;
+import org.apache.pulsar.client.api.Message;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/* Batch assembly as done by BatchReceiver, one operation is one message */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MessagesImplBenchmark {
+    @Param({"TYPICAL"})
+    public BenchMessages.Distribution distribution;
+
+    private Message<byte[]>[] msgs;
+    private MessagesImpl<byte[]> batch;
+
+    @Setup
+    public void setup() {
+        this.msgs = BenchMessages.messages(this.distribution, BenchMessages.BATCH_SIZE, 42L);
+        this.batch = new MessagesImpl<>(BenchMessages.BATCH_SIZE, 1638400L);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BenchMessages.BATCH_SIZE)
+    public int canAddAdd() throws Exception {
+        this.batch.clear();
+        int overflow = 0;
+        for (final Message<byte[]> msg : this.msgs) {
+            if (this.batch.canAdd(msg)) {
+                this.batch.add(msg);
+            } else {
+                ++overflow;
+            }
+        }
+
+        return overflow;
+    }
+}
@@ -0,0 +1,65 @@
+package io.xboshy.pulsar.load;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/* Lock free log-linear histogram of microsecond values: 32 sub-buckets per power of 2, so a percentile is read
+   within about 3% of the recorded value, up to about 2^40 us */
+public class LatencyRecorder {
+    private static final int SUB_BITS = 5;
+    private static final int SUB = 1 << LatencyRecorder.SUB_BITS;
+    private static final int MAX_EXPONENT = 40;
+
+    private final AtomicLongArray counts;
+
+    public LatencyRecorder() {
+        this.counts = new AtomicLongArray((LatencyRecorder.MAX_EXPONENT + 1) * LatencyRecorder.SUB);
+    }
+
+    private static int index(final long micros) {
+        if (micros < LatencyRecorder.SUB) {
+            return (int) Math.max(0, micros);
+        }
+        final int exponent = Math.min(63 - Long.numberOfLeadingZeros(micros) - LatencyRecorder.SUB_BITS + 1, LatencyRecorder.MAX_EXPONENT);
+        final int sub = (int) (micros >>> (exponent - 1)) & (LatencyRecorder.SUB - 1);
+        return exponent * LatencyRecorder.SUB + sub;
+    }
+
+    /* highest value counted in bucket index */
+    private static long upper(final int index) {
+        final int exponent = index / LatencyRecorder.SUB;
+        final int sub = index % LatencyRecorder.SUB;
+        if (exponent == 0) {
+            return sub;
+        }
+        return ((long) (LatencyRecorder.SUB + sub + 1) << (exponent - 1)) - 1;
+    }
+
+    public void record(final long micros) {
+        this.counts.incrementAndGet(LatencyRecorder.index(micros));
+    }
+
+    public long count() {
+        long n = 0;
+        for (int i = 0; i < this.counts.length(); ++i) {
+            n += this.counts.get(i);
+        }
+        return n;
+    }
+
+    /* q from 0 to 1, in us */
+    public long percentile(final double q) {
+        final long n = this.count();
+        if (n == 0) {
+            return 0;
+        }
+        final long rank = Math.max(1, (long) Math.ceil(q * n));
+        long seen = 0;
+        for (int i = 0; i < this.counts.length(); ++i) {
+            seen += this.counts.get(i);
+            if (seen >= rank) {
+                return LatencyRecorder.upper(i);
+            }
+        }
+        return LatencyRecorder.upper(this.counts.length() - 1);
+    }
+}
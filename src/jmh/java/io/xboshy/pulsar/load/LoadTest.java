@@ -0,0 +1,111 @@
+package io.xboshy.pulsar.load;
+
+import io.xboshy.pulsar.App;
+import io.xboshy.pulsar.BenchMessages;
+import org.apache.pulsar.client.api.Message;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/* Drives the real pipeline from a synthetic consumer to a mock _bulk server, both in process, and reports the
+   throughput, the latency from a message being received to it being acked and the allocation per message.
+   Arguments are key=value: the keys below shape the load, any other one is App configuration, on top of the
+   environment, e.g.
+   java -cp target/benchmarks.jar io.xboshy.pulsar.load.LoadTest messages=2000000 latency=20 GLOBAL_inflightBatches=8 */
+public class LoadTest {
+    private static final Set<String> KEYS = Set.of(
+            "messages", "distribution", "keys", "entries", "rate", "seed", "timeout",
+            "latency", "jitter", "rejectRate", "itemFailureRate", "itemErrorRate", "fullResponse"
+    );
+    private static final int CALIBRATION_MESSAGES = 20000;
+
+    public static void main(final String[] args) throws Exception {
+        final Map<String, String> load = new HashMap<>();
+        final Map<String, String> config = new HashMap<>(System.getenv());
+        for (final String arg : args) {
+            final int eq = arg.indexOf('=');
+            if (eq <= 0) {
+                throw new Exception("expected key=value: " + arg);
+            }
+            (LoadTest.KEYS.contains(arg.substring(0, eq)) ? load : config).put(arg.substring(0, eq), arg.substring(eq + 1));
+        }
+
+        final int messages = Integer.parseInt(load.getOrDefault("messages", "1000000"));
+        final BenchMessages.Distribution distribution = BenchMessages.Distribution.valueOf(load.getOrDefault("distribution", "TYPICAL"));
+        final int keys = Integer.parseInt(load.getOrDefault("keys", "0"));
+        final int entries = Integer.parseInt(load.getOrDefault("entries", "1"));
+        final int rate = Integer.parseInt(load.getOrDefault("rate", "0"));
+        final long seed = Long.parseLong(load.getOrDefault("seed", "42"));
+        final long timeoutSeconds = Long.parseLong(load.getOrDefault("timeout", "300"));
+
+        try (final MockBulkServer server = new MockBulkServer(
+                Long.parseLong(load.getOrDefault("latency", "5")),
+                Long.parseLong(load.getOrDefault("jitter", "0")),
+                Double.parseDouble(load.getOrDefault("rejectRate", "0")),
+                Double.parseDouble(load.getOrDefault("itemFailureRate", "0")),
+                Double.parseDouble(load.getOrDefault("itemErrorRate", "0")),
+                Boolean.parseBoolean(load.getOrDefault("fullResponse", "false"))
+        )) {
+            config.put("ELASTICSEARCH_hosts", server.getHost());
+            config.putIfAbsent("PULSAR_CLIENT_clusterName", "load");
+            config.putIfAbsent("PULSAR_CONSUMER_topicNames", BenchMessages.TOPIC);
+            config.putIfAbsent("ELASTICSEARCH_indexName", "load");
+            config.putIfAbsent("ELASTICSEARCH_username", "load");
+            config.putIfAbsent("ELASTICSEARCH_password", "load");
+
+            final double sourceBytesPerMessage = LoadTest.calibrate(distribution, keys, entries, seed);
+            final SyntheticSource source = new SyntheticSource(messages, distribution, keys, entries, rate, seed);
+            final App app = new App(config, new SyntheticConsumerFactory(source));
+            final Thread thread = new Thread(app, "load-app");
+
+            final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+            final long startAllocated = threads.getTotalThreadAllocatedBytes();
+            final long startNanos = System.nanoTime();
+            thread.start();
+
+            final long deadline = startNanos + TimeUnit.SECONDS.toNanos(timeoutSeconds);
+            int lastAcked = 0;
+            while (source.getAcked() < messages && System.nanoTime() - deadline < 0 && thread.isAlive()) {
+                Thread.sleep(1000);
+                final int acked = source.getAcked();
+                System.out.printf("%,d acked, %,d msgs/s%n", acked, acked - lastAcked);
+                lastAcked = acked;
+            }
+            final long elapsedNanos = System.nanoTime() - startNanos;
+            final long allocated = threads.getTotalThreadAllocatedBytes() - startAllocated;
+
+            app.stop();
+            thread.join();
+            app.close();
+
+            final double seconds = elapsedNanos / 1e9;
+            final int acked = source.getAcked();
+            final LatencyRecorder latency = source.getLatency();
+            final double allocatedPerMessage = acked == 0 ? 0 : (double) (allocated - server.getAllocatedBytes()) / acked - sourceBytesPerMessage;
+            System.out.println();
+            System.out.printf("acked        %,d of %,d in %.1f s%s%n", acked, messages, seconds, acked < messages ? " (timed out)" : "");
+            System.out.printf("throughput   %,.0f msgs/s, %.1f MB/s of payload%n", acked / seconds, source.getAckedBytes() / seconds / 1e6);
+            System.out.printf("latency us   p50 %,d  p90 %,d  p99 %,d  p99.9 %,d  max %,d%n",
+                    latency.percentile(0.5), latency.percentile(0.9), latency.percentile(0.99), latency.percentile(0.999), latency.percentile(1.0));
+            System.out.printf("allocation   %,.0f B/msg, %,.0f B/msg left out for the stand-ins%n", allocatedPerMessage, sourceBytesPerMessage + (acked == 0 ? 0 : (double) server.getAllocatedBytes() / acked));
+            System.out.printf("bulk server  %,d requests (%,d rejected), %,d items (%,d failed), %.1f MB in, %.1f MB out%n",
+                    server.getRequests(), server.getRejected(), server.getItems(), server.getFailedItems(), server.getRequestBytes() / 1e6, server.getResponseBytes() / 1e6);
+            System.out.printf("redelivered  %,d%n", source.getRedelivered());
+        }
+        System.exit(0);
+    }
+
+    /* what the source allocates per message, handing it out and taking its ack */
+    private static double calibrate(final BenchMessages.Distribution distribution, final int keys, final int entries, final long seed) {
+        final SyntheticSource source = new SyntheticSource(LoadTest.CALIBRATION_MESSAGES, distribution, keys, entries, 0, seed);
+        final long start = MockBulkServer.allocated();
+        Message<byte[]> msg;
+        while ((msg = source.poll()) != null) {
+            source.ack(msg.getMessageId());
+        }
+        return (double) (MockBulkServer.allocated() - start) / LoadTest.CALIBRATION_MESSAGES;
+    }
+}
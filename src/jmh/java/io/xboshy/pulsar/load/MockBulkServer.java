@@ -0,0 +1,261 @@
+package io.xboshy.pulsar.load;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+/* An elasticsearch stand-in answering _bulk requests on localhost. Each response is held for latency +- jitter
+   millis; a request is rejected as a whole with a 429 at rejectRate, otherwise each item fails with a retriable
+   429 at itemFailureRate and with a 400 at itemErrorRate. Responses are filtered like filter_path asks, or full
+   elasticsearch items when full is set, to weigh the parsing of larger responses */
+public class MockBulkServer implements AutoCloseable {
+    private static final byte[] REJECTED = "{\"error\":{\"type\":\"es_rejected_execution_exception\",\"reason\":\"rejected execution\"},\"status\":429}".getBytes(StandardCharsets.UTF_8);
+
+    private final long latencyMillis;
+    private final long jitterMillis;
+    private final double rejectRate;
+    private final double itemFailureRate;
+    private final double itemErrorRate;
+    private final boolean full;
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final ScheduledExecutorService delayer;
+    private final AtomicLong requests;
+    private final AtomicLong rejected;
+    private final AtomicLong items;
+    private final AtomicLong failedItems;
+    private final AtomicLong requestBytes;
+    private final AtomicLong responseBytes;
+    /* by the server itself, for the load test to leave it out */
+    private final AtomicLong allocatedBytes;
+
+    public MockBulkServer(final long latencyMillis, final long jitterMillis, final double rejectRate, final double itemFailureRate, final double itemErrorRate, final boolean full) throws IOException {
+        this.latencyMillis = latencyMillis;
+        this.jitterMillis = jitterMillis;
+        this.rejectRate = rejectRate;
+        this.itemFailureRate = itemFailureRate;
+        this.itemErrorRate = itemErrorRate;
+        this.full = full;
+        this.requests = new AtomicLong(0);
+        this.rejected = new AtomicLong(0);
+        this.items = new AtomicLong(0);
+        this.failedItems = new AtomicLong(0);
+        this.requestBytes = new AtomicLong(0);
+        this.responseBytes = new AtomicLong(0);
+        this.allocatedBytes = new AtomicLong(0);
+
+        this.executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        this.delayer = Executors.newSingleThreadScheduledExecutor();
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 1024);
+        this.server.setExecutor(this.executor);
+        this.server.createContext("/", exchange -> {
+            final long allocated = MockBulkServer.allocated();
+            try {
+                this.handle(exchange);
+            } finally {
+                this.allocatedBytes.addAndGet(MockBulkServer.allocated() - allocated);
+            }
+        });
+        this.server.start();
+    }
+
+    public String getHost() {
+        return "http://127.0.0.1:" + this.server.getAddress().getPort();
+    }
+
+    private void handle(final HttpExchange exchange) throws IOException {
+        final byte[] body = MockBulkServer.read(exchange);
+        if (!exchange.getRequestURI().getPath().endsWith("/_bulk")) {
+            this.respond(exchange, 200, "{}".getBytes(StandardCharsets.UTF_8));
+            return;
+        }
+
+        this.requests.incrementAndGet();
+        this.requestBytes.addAndGet(body.length);
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        final int status;
+        final byte[] response;
+        if (random.nextDouble() < this.rejectRate) {
+            this.rejected.incrementAndGet();
+            status = 429;
+            response = MockBulkServer.REJECTED;
+        } else {
+            status = 200;
+            response = this.response(body, exchange.getRequestURI().getQuery(), random);
+        }
+
+        final long delay = this.latencyMillis + (this.jitterMillis > 0 ? random.nextLong(-this.jitterMillis, this.jitterMillis + 1) : 0);
+        if (delay <= 0) {
+            this.respond(exchange, status, response);
+            return;
+        }
+        this.delayer.schedule(() -> {
+            /* on the server threads, the delayer only keeps time */
+            this.executor.execute(() -> {
+                final long allocated = MockBulkServer.allocated();
+                try {
+                    this.respond(exchange, status, response);
+                } catch (IOException e) {
+                    /* client gone */
+                } finally {
+                    this.allocatedBytes.addAndGet(MockBulkServer.allocated() - allocated);
+                }
+            });
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    static long allocated() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getCurrentThreadAllocatedBytes();
+    }
+
+    private static byte[] read(final HttpExchange exchange) throws IOException {
+        final String encoding = exchange.getRequestHeaders().getFirst("Content-Encoding");
+        try (final InputStream in = "gzip".equalsIgnoreCase(encoding) ? new GZIPInputStream(exchange.getRequestBody()) : exchange.getRequestBody()) {
+            return in.readAllBytes();
+        }
+    }
+
+    private void respond(final HttpExchange exchange, final int status, final byte[] response) throws IOException {
+        this.responseBytes.addAndGet(response.length);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, response.length);
+        try (final OutputStream out = exchange.getResponseBody()) {
+            out.write(response);
+        }
+    }
+
+    /* one item per action line, an action other than delete is followed by its source line */
+    private byte[] response(final byte[] body, final String query, final ThreadLocalRandom random) {
+        final boolean filtered = !this.full && query != null && query.contains("filter_path");
+        final StringBuilder items = new StringBuilder(body.length / 8);
+        boolean errors = false;
+        int n = 0;
+        int pos = 0;
+        while (pos < body.length) {
+            int end = pos;
+            while (end < body.length && body[end] != '\n') {
+                ++end;
+            }
+            if (end == pos) {
+                ++pos;
+                continue;
+            }
+
+            final String action = MockBulkServer.action(body, pos, end);
+            pos = end + 1;
+            if (!"delete".equals(action)) {
+                while (pos < body.length && body[pos] != '\n') {
+                    ++pos;
+                }
+                ++pos;
+            }
+
+            final double draw = random.nextDouble();
+            final int status;
+            final String errorType;
+            if (draw < this.itemFailureRate) {
+                status = 429;
+                errorType = "es_rejected_execution_exception";
+            } else if (draw < this.itemFailureRate + this.itemErrorRate) {
+                status = 400;
+                errorType = "mapper_parsing_exception";
+            } else {
+                status = "create".equals(action) || "index".equals(action) ? 201 : 200;
+                errorType = null;
+            }
+            if (errorType != null) {
+                errors = true;
+                this.failedItems.incrementAndGet();
+            }
+
+            if (n++ > 0) {
+                items.append(',');
+            }
+            items.append("{\"").append(action).append("\":{");
+            if (!filtered) {
+                items.append("\"_index\":\"load\",\"_id\":\"").append(n).append("\",");
+            }
+            items.append("\"status\":").append(status);
+            if (errorType != null) {
+                items.append(",\"error\":{\"type\":\"").append(errorType).append('"');
+                if (!filtered) {
+                    items.append(",\"reason\":\"mock failure of item ").append(n).append('"');
+                }
+                items.append('}');
+            } else if (!filtered) {
+                items.append(",\"_version\":1,\"result\":\"created\",\"_shards\":{\"total\":2,\"successful\":2,\"failed\":0},\"_seq_no\":").append(n).append(",\"_primary_term\":1");
+            }
+            items.append("}}");
+        }
+
+        this.items.addAndGet(n);
+        final StringBuilder sb = new StringBuilder(items.length() + 48);
+        sb.append('{');
+        if (!filtered) {
+            sb.append("\"took\":").append(this.latencyMillis).append(',');
+        }
+        sb.append("\"errors\":").append(errors).append(",\"items\":[").append(items).append("]}");
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /* the first key of the action line, e.g. index in {"index":{...}} */
+    private static String action(final byte[] body, final int from, final int to) {
+        int start = from;
+        while (start < to && body[start] != '"') {
+            ++start;
+        }
+        int end = start + 1;
+        while (end < to && body[end] != '"') {
+            ++end;
+        }
+        return new String(body, start + 1, Math.max(0, end - start - 1), StandardCharsets.US_ASCII);
+    }
+
+    public long getRequests() {
+        return this.requests.get();
+    }
+
+    public long getRejected() {
+        return this.rejected.get();
+    }
+
+    public long getItems() {
+        return this.items.get();
+    }
+
+    public long getFailedItems() {
+        return this.failedItems.get();
+    }
+
+    public long getRequestBytes() {
+        return this.requestBytes.get();
+    }
+
+    public long getResponseBytes() {
+        return this.responseBytes.get();
+    }
+
+    public long getAllocatedBytes() {
+        return this.allocatedBytes.get();
+    }
+
+    @Override
+    public void close() {
+        this.server.stop(0);
+        this.delayer.shutdownNow();
+        this.executor.shutdownNow();
+    }
+}
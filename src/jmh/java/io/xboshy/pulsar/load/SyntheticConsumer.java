@@ -0,0 +1,140 @@
+package io.xboshy.pulsar.load;
+
+import io.xboshy.pulsar.impl.MessagesImpl;
+import org.apache.pulsar.client.api.BatchReceivePolicy;
+import org.apache.pulsar.client.api.Consumer;
+import org.apache.pulsar.client.api.Message;
+import org.apache.pulsar.client.api.MessageId;
+import org.apache.pulsar.client.api.Messages;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/* A consumer reading from a SyntheticSource, without a broker. Only what the pipeline calls is implemented, the
+   rest throws so a new call shows up in the first run */
+public class SyntheticConsumer implements InvocationHandler {
+    private static final int DEFAULT_MAX_MESSAGES = 1000;
+
+    private final SyntheticSource source;
+    private final String name;
+    private final int maxMessages;
+    private final long maxBytes;
+    private final long timeoutNanos;
+    /* the message that didn't fit the last batch */
+    private Message<byte[]> held;
+
+    private SyntheticConsumer(final SyntheticSource source, final String name, final BatchReceivePolicy policy) {
+        this.source = source;
+        this.name = name;
+        this.maxMessages = policy.getMaxNumMessages() > 0 ? policy.getMaxNumMessages() : SyntheticConsumer.DEFAULT_MAX_MESSAGES;
+        this.maxBytes = policy.getMaxNumBytes();
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(policy.getTimeoutMs());
+        this.held = null;
+    }
+
+    @SuppressWarnings("unchecked")
+    public static Consumer<byte[]> create(final SyntheticSource source, final String name, final BatchReceivePolicy policy) {
+        return (Consumer<byte[]>) Proxy.newProxyInstance(
+                Consumer.class.getClassLoader(),
+                new Class<?>[]{Consumer.class},
+                new SyntheticConsumer(source, name, policy)
+        );
+    }
+
+    @Override
+    public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+        final int n = args == null ? 0 : args.length;
+        return switch (method.getName()) {
+            case "receive" -> n == 0 ? this.source.poll(Long.MAX_VALUE) : this.source.poll(((TimeUnit) args[1]).toNanos((int) args[0]));
+            case "batchReceive" -> this.batchReceive();
+            case "acknowledge" -> {
+                this.ack(args[0]);
+                yield null;
+            }
+            case "acknowledgeAsync" -> {
+                this.ack(args[0]);
+                yield CompletableFuture.completedFuture(null);
+            }
+            case "acknowledgeCumulative" -> {
+                this.source.ackCumulative(SyntheticConsumer.id(args[0]));
+                yield null;
+            }
+            case "acknowledgeCumulativeAsync" -> {
+                this.source.ackCumulative(SyntheticConsumer.id(args[0]));
+                yield CompletableFuture.completedFuture(null);
+            }
+            case "negativeAcknowledge" -> {
+                this.nack(args[0]);
+                yield null;
+            }
+            /* unacked messages aren't tracked per consumer, the run reports what never got acked */
+            case "redeliverUnacknowledgedMessages" -> null;
+            case "close", "unsubscribe" -> null;
+            case "closeAsync", "unsubscribeAsync" -> CompletableFuture.completedFuture(null);
+            case "getTopic" -> this.source.getTopic();
+            case "getSubscription" -> "load";
+            case "getConsumerName", "toString" -> this.name;
+            case "isConnected" -> true;
+            case "hashCode" -> System.identityHashCode(proxy);
+            case "equals" -> proxy == args[0];
+            default -> throw new UnsupportedOperationException(method.getName());
+        };
+    }
+
+    private Messages<byte[]> batchReceive() throws Exception {
+        final MessagesImpl<byte[]> msgs = new MessagesImpl<>(this.maxMessages, this.maxBytes);
+        if (this.held != null) {
+            msgs.add(this.held);
+            this.held = null;
+        }
+
+        final long deadline = System.nanoTime() + this.timeoutNanos;
+        while (msgs.size() < this.maxMessages) {
+            final Message<byte[]> msg = msgs.size() == 0 ? this.source.poll(deadline - System.nanoTime()) : this.source.poll();
+            if (msg == null) {
+                if (msgs.size() > 0 || System.nanoTime() >= deadline) {
+                    break;
+                }
+                continue;
+            }
+            if (!msgs.canAdd(msg)) {
+                this.held = msg;
+                break;
+            }
+            msgs.add(msg);
+        }
+        return msgs;
+    }
+
+    private static MessageId id(final Object arg) {
+        return arg instanceof Message<?> msg ? msg.getMessageId() : (MessageId) arg;
+    }
+
+    private void ack(final Object arg) {
+        if (arg instanceof List<?> ids) {
+            for (final Object id : ids) {
+                this.source.ack((MessageId) id);
+            }
+        } else if (arg instanceof Messages<?> msgs) {
+            for (final Message<?> msg : msgs) {
+                this.source.ack(msg.getMessageId());
+            }
+        } else {
+            this.source.ack(SyntheticConsumer.id(arg));
+        }
+    }
+
+    private void nack(final Object arg) {
+        if (arg instanceof Messages<?> msgs) {
+            for (final Message<?> msg : msgs) {
+                this.source.nack(msg.getMessageId());
+            }
+        } else {
+            this.source.nack(SyntheticConsumer.id(arg));
+        }
+    }
+}
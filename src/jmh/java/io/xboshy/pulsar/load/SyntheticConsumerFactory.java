@@ -0,0 +1,21 @@
+package io.xboshy.pulsar.load;
+
+import io.xboshy.pulsar.ConsumerFactory;
+import io.xboshy.pulsar.config.GlobalConfig;
+import io.xboshy.pulsar.config.PulsarConsumerConfig;
+import org.apache.pulsar.client.api.Consumer;
+import org.apache.pulsar.client.api.Schema;
+
+/* Gives every receiver a consumer of the same synthetic source, as a shared subscription would */
+public class SyntheticConsumerFactory extends ConsumerFactory<byte[]> {
+    private final SyntheticSource source;
+
+    public SyntheticConsumerFactory(final SyntheticSource source) {
+        this.source = source;
+    }
+
+    @Override
+    public Consumer<byte[]> getConsumer(GlobalConfig globalConfig, PulsarConsumerConfig pulsarConsumerConfig, Schema<byte[]> schema, int receiver) {
+        return SyntheticConsumer.create(this.source, "load-" + receiver, pulsarConsumerConfig.getBatchReceivePolicy());
+    }
+}
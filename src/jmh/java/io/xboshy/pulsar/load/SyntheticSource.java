@@ -0,0 +1,231 @@
+package io.xboshy.pulsar.load;
+
+import io.xboshy.pulsar.BenchMessages;
+import org.apache.pulsar.client.api.Message;
+import org.apache.pulsar.client.api.MessageId;
+import org.apache.pulsar.client.api.MessageIdAdv;
+import org.apache.pulsar.client.api.Schema;
+import org.apache.pulsar.client.impl.BatchMessageIdImpl;
+import org.apache.pulsar.client.impl.MessageIdImpl;
+import org.apache.pulsar.client.impl.MessageImpl;
+import org.apache.pulsar.common.api.proto.MessageMetadata;
+import org.apache.pulsar.shade.io.netty.buffer.Unpooled;
+
+import java.nio.charset.StandardCharsets;
+import java.util.BitSet;
+import java.util.Optional;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/* The messages of a synthetic topic shared by all the consumers of a load test, like a shared subscription: each
+   message is made when a consumer asks for it, nacked ones are handed out again. Acks are tracked per message,
+   the first one records the latency from when it was handed out */
+public class SyntheticSource {
+    private static final long LEDGER = 4242L;
+    private static final int PARTITION = 0;
+    private static final int TEMPLATES = 1024;
+    private static final byte[] SEQ_PREFIX = "{\"seq\":".getBytes(StandardCharsets.US_ASCII);
+    private static final int SEQ_DIGITS = 10;
+
+    private final int messages;
+    /* messages per entry, like a producer batching them */
+    private final int entries;
+    private final String[] keys;
+    /* payloads differ by their sequence only, patched into a copy */
+    private final byte[][] templates;
+    private final long nanosPerMessage;
+    private final AtomicInteger next;
+    private final ConcurrentLinkedQueue<Integer> redeliveries;
+    private final AtomicLongArray acked;
+    private final AtomicInteger ackedCount;
+    private final AtomicLong ackedBytes;
+    private final AtomicLong redelivered;
+    private final int[] handedOutMicros;
+    private final LatencyRecorder latency;
+    private final long startNanos;
+    private volatile int cumulativeMark;
+
+    /* rate in messages per second, 0 for as fast as they are asked for; keys distinct keys, 0 for none */
+    public SyntheticSource(final int messages, final BenchMessages.Distribution distribution, final int keys, final int entries, final int rate, final long seed) {
+        this.messages = messages;
+        this.entries = Math.max(1, entries);
+        this.keys = new String[keys];
+        for (int i = 0; i < keys; ++i) {
+            this.keys[i] = "key-" + i;
+        }
+
+        final Random random = new Random(seed);
+        final int[] sizes = BenchMessages.sizes(distribution, SyntheticSource.TEMPLATES, seed);
+        this.templates = new byte[SyntheticSource.TEMPLATES][];
+        for (int i = 0; i < SyntheticSource.TEMPLATES; ++i) {
+            this.templates[i] = SyntheticSource.template(sizes[i], random);
+        }
+
+        this.nanosPerMessage = rate <= 0 ? 0 : 1_000_000_000L / rate;
+        this.next = new AtomicInteger(0);
+        this.redeliveries = new ConcurrentLinkedQueue<>();
+        this.acked = new AtomicLongArray((messages + 63) >>> 6);
+        this.ackedCount = new AtomicInteger(0);
+        this.ackedBytes = new AtomicLong(0);
+        this.redelivered = new AtomicLong(0);
+        this.handedOutMicros = new int[messages];
+        this.latency = new LatencyRecorder();
+        this.startNanos = System.nanoTime();
+        this.cumulativeMark = 0;
+    }
+
+    /* {"seq":0000000000,"msg":"..."} of about size bytes */
+    private static byte[] template(final int size, final Random random) {
+        final StringBuilder sb = new StringBuilder(size + 32);
+        sb.append("{\"seq\":").append("0".repeat(SyntheticSource.SEQ_DIGITS)).append(",\"msg\":\"");
+        while (sb.length() < size - 2) {
+            sb.append((char) ('a' + random.nextInt(26)));
+        }
+        sb.append("\"}");
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private int micros() {
+        return (int) ((System.nanoTime() - this.startNanos) / 1000);
+    }
+
+    /* the next message to hand out, null when there are none left for now */
+    public Message<byte[]> poll() {
+        final Integer redelivery = this.redeliveries.poll();
+        if (redelivery != null) {
+            this.redelivered.incrementAndGet();
+            return this.message(redelivery);
+        }
+
+        int seq;
+        do {
+            seq = this.next.get();
+            if (seq >= this.messages) {
+                return null;
+            }
+            if (this.nanosPerMessage > 0 && System.nanoTime() - this.startNanos < seq * this.nanosPerMessage) {
+                return null;
+            }
+        } while (!this.next.compareAndSet(seq, seq + 1));
+        this.handedOutMicros[seq] = this.micros();
+        return this.message(seq);
+    }
+
+    /* waits up to timeoutNanos for a message */
+    public Message<byte[]> poll(final long timeoutNanos) {
+        final long deadline = System.nanoTime() + timeoutNanos;
+        Message<byte[]> msg;
+        while ((msg = this.poll()) == null && System.nanoTime() - deadline < 0) {
+            LockSupport.parkNanos(Math.min(100_000L, timeoutNanos));
+        }
+        return msg;
+    }
+
+    public int payloadSize(final int seq) {
+        return this.templates[seq % SyntheticSource.TEMPLATES].length;
+    }
+
+    private Message<byte[]> message(final int seq) {
+        final byte[] template = this.templates[seq % SyntheticSource.TEMPLATES];
+        final byte[] payload = template.clone();
+        int v = seq;
+        for (int i = SyntheticSource.SEQ_PREFIX.length + SyntheticSource.SEQ_DIGITS - 1; i >= SyntheticSource.SEQ_PREFIX.length; --i) {
+            payload[i] = (byte) ('0' + v % 10);
+            v /= 10;
+        }
+
+        final MessageMetadata metadata = new MessageMetadata()
+                .setProducerName("load")
+                .setSequenceId(seq)
+                .setPublishTime(System.currentTimeMillis());
+        if (this.keys.length > 0) {
+            metadata.setPartitionKey(this.keys[seq % this.keys.length]);
+        }
+        final MessageId id = this.entries == 1
+                ? new MessageIdImpl(SyntheticSource.LEDGER, seq, SyntheticSource.PARTITION)
+                : new BatchMessageIdImpl(SyntheticSource.LEDGER, seq / this.entries, SyntheticSource.PARTITION, seq % this.entries, this.entries, (BitSet) null);
+        return MessageImpl.create(BenchMessages.TOPIC, (MessageIdImpl) id, metadata, Unpooled.wrappedBuffer(payload), Optional.empty(), null, Schema.BYTES, 0, false, -1L);
+    }
+
+    /* the first message an id stands for and how many: a whole entry when acked without its batch index */
+    private int first(final MessageId id) {
+        final MessageIdAdv adv = (MessageIdAdv) id;
+        return (int) adv.getEntryId() * this.entries + Math.max(0, adv.getBatchIndex());
+    }
+
+    private int count(final MessageId id) {
+        final MessageIdAdv adv = (MessageIdAdv) id;
+        return adv.getBatchIndex() < 0 ? this.entries : 1;
+    }
+
+    public void ack(final MessageId id) {
+        final int first = this.first(id);
+        final int end = Math.min(this.messages, first + this.count(id));
+        for (int seq = first; seq < end; ++seq) {
+            this.ack(seq);
+        }
+    }
+
+    private void ack(final int seq) {
+        final long bit = 1L << (seq & 63);
+        final int word = seq >>> 6;
+        long bits;
+        do {
+            bits = this.acked.get(word);
+            if ((bits & bit) != 0) {
+                return;
+            }
+        } while (!this.acked.compareAndSet(word, bits, bits | bit));
+
+        this.latency.record(this.micros() - this.handedOutMicros[seq]);
+        this.ackedBytes.addAndGet(this.payloadSize(seq));
+        this.ackedCount.incrementAndGet();
+    }
+
+    /* everything up to id included */
+    public synchronized void ackCumulative(final MessageId id) {
+        final int end = Math.min(this.messages, this.first(id) + this.count(id));
+        for (int seq = this.cumulativeMark; seq < end; ++seq) {
+            this.ack(seq);
+        }
+        this.cumulativeMark = Math.max(this.cumulativeMark, end);
+    }
+
+    public void nack(final MessageId id) {
+        final int first = this.first(id);
+        final int end = Math.min(this.messages, first + this.count(id));
+        for (int seq = first; seq < end; ++seq) {
+            if ((this.acked.get(seq >>> 6) & (1L << (seq & 63))) == 0) {
+                this.redeliveries.offer(seq);
+            }
+        }
+    }
+
+    public String getTopic() {
+        return BenchMessages.TOPIC;
+    }
+
+    public int getMessages() {
+        return this.messages;
+    }
+
+    public int getAcked() {
+        return this.ackedCount.get();
+    }
+
+    public long getAckedBytes() {
+        return this.ackedBytes.get();
+    }
+
+    public long getRedelivered() {
+        return this.redelivered.get();
+    }
+
+    public LatencyRecorder getLatency() {
+        return this.latency;
+    }
+}
@@ -0,0 +1,48 @@
+package io.xboshy.pulsar.utils;
+
+import io.xboshy.pulsar.BenchMessages;
+import org.openjdk.jmh.annotations.*;
+
+import java.security.MessageDigest;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HashutilsBenchmark {
+    @Param({"SMALL", "TYPICAL", "LARGE"})
+    public BenchMessages.Distribution distribution;
+
+    private byte[][] payloads;
+    private byte[] digest;
+    private MessageDigest sha1;
+    private int next;
+
+    @Setup
+    public void setup() throws Exception {
+        final Random random = new Random(42L);
+        final int[] sizes = BenchMessages.sizes(this.distribution, 256, 42L);
+        this.payloads = new byte[sizes.length][];
+        for (int i = 0; i < sizes.length; ++i) {
+            this.payloads[i] = BenchMessages.payload(i, sizes[i], random);
+        }
+        this.sha1 = Hashutils.getMessageDigestSHA1();
+        this.digest = this.sha1.digest(this.payloads[0]);
+    }
+
+    @Benchmark
+    public String sha1() {
+        final byte[] payload = this.payloads[this.next];
+        this.next = (this.next + 1) & (this.payloads.length - 1);
+        return Hashutils.SHA1(this.sha1, payload);
+    }
+
+    @Benchmark
+    public String byteArray2Hex() {
+        return Hashutils.byteArray2Hex(this.digest);
+    }
+}
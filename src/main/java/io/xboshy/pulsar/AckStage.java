@@ -0,0 +1,407 @@
+package io.xboshy.pulsar;
+
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.pulsar.client.api.Consumer;
+import org.apache.pulsar.client.api.Message;
+import org.apache.pulsar.client.api.MessageId;
+import org.apache.pulsar.client.api.MessageIdAdv;
+import org.apache.pulsar.client.api.Messages;
+import org.apache.pulsar.client.api.TopicMessageId;
+import org.apache.pulsar.client.impl.MessageIdImpl;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/* Acknowledges on its own thread so workers don't wait for the consumer: completed ids are queued by the workers
+   and sent every interval with one acknowledgeAsync per consumer. An entry holding a batch of messages is acked
+   once, when all its indexes are done.
+   When cumulative, received batches are registered in order and acked with one cumulative ack per partition once
+   they and all batches before them are done. A nack leaves a hole in its partition cumulative acks can't step over,
+   the partition's batches are then acked one id at a time until the nacked message comes back and gets acked, a
+   cumulative ack of the partition covers it, or it has been waited for holeTimeout (dead lettered, or the partition
+   moved to another consumer) */
+public class AckStage<T> implements Runnable, AutoCloseable {
+    private static final Logger logger = LogManager.getLogger(AckStage.class);
+    /* batched entries waiting for their other indexes, beyond that the oldest are acked index by index and the client
+       acks the entry once it has seen all of them */
+    private static final int MAX_TRACKED_ENTRIES = 65536;
+    private static final Counter acksSent = Counter.build()
+            .name("acks_sent")
+            .help("acks_sent")
+            .labelNames("pipeline", "type")
+            .register();
+    private static final Counter ackFailures = Counter.build()
+            .name("ack_failures")
+            .help("ack_failures")
+            .labelNames("pipeline")
+            .register();
+    private static final Counter ackHolesExpired = Counter.build()
+            .name("ack_holes_expired")
+            .help("ack_holes_expired")
+            .labelNames("pipeline")
+            .register();
+    private static final Gauge ackTrackedEntries = Gauge.build()
+            .name("ack_tracked_entries")
+            .help("ack_tracked_entries")
+            .labelNames("pipeline")
+            .register();
+
+    private final long intervalNanos;
+    private final long holeTimeoutNanos;
+    private final boolean cumulative;
+    private final ConcurrentLinkedQueue<Completion<T>> completions;
+    private final ConcurrentHashMap<Consumer<T>, ConcurrentLinkedQueue<Ticket<T>>> tickets;
+    private final Thread thread;
+    private final Counter.Child cumulativeAcks;
+    private final Counter.Child individualAcks;
+    private final Counter.Child failures;
+    private final Counter.Child holesExpired;
+    private final Gauge.Child trackedEntries;
+    private volatile boolean running;
+    /* owned by the stage thread */
+    private final HashMap<Consumer<T>, ArrayList<MessageId>> pending;
+    private final LinkedHashMap<MessageId, EntryAcks<T>> entries;
+    /* per consumer and partition, the nacked ids not acked since with the nanoTime they stop holding acks back at */
+    private final HashMap<Consumer<T>, HashMap<Object, HashMap<MessageId, Long>>> holes;
+    /* per consumer and partition, the last id acked cumulatively */
+    private final HashMap<Consumer<T>, HashMap<Object, MessageId>> cursors;
+
+    /* state of one received batch, only the stage thread touches it once registered */
+    public static class Ticket<T> {
+        private final Consumer<T> consumer;
+        /* highest id of each partition in the batch */
+        private final HashMap<Object, MessageId> last;
+        private final ArrayList<MessageId> acked;
+        private int remaining;
+
+        private Ticket(final Consumer<T> consumer, final Messages<T> msgs) {
+            this.consumer = consumer;
+            this.last = new HashMap<>();
+            this.acked = new ArrayList<>(msgs.size());
+            this.remaining = msgs.size();
+            for (final Message<T> msg : msgs) {
+                final MessageId id = msg.getMessageId();
+                this.last.merge(AckStage.partition(id), id, (a, b) -> a.compareTo(b) >= 0 ? a : b);
+            }
+        }
+    }
+
+    private static class Completion<T> {
+        private final Consumer<T> consumer;
+        private final Ticket<T> ticket;
+        private final MessageId id;
+        private final List<MessageId> ids;
+        private final boolean ok;
+
+        private Completion(final Consumer<T> consumer, final Ticket<T> ticket, final MessageId id, final List<MessageId> ids, final boolean ok) {
+            this.consumer = consumer;
+            this.ticket = ticket;
+            this.id = id;
+            this.ids = ids;
+            this.ok = ok;
+        }
+    }
+
+    private static class EntryAcks<T> {
+        private final Consumer<T> consumer;
+        private final MessageId entryId;
+        private final BitSet done;
+        /* the acked indexes, sent one by one if the entry is evicted */
+        private final ArrayList<MessageId> ids;
+
+        private EntryAcks(final Consumer<T> consumer, final MessageId entryId) {
+            this.consumer = consumer;
+            this.entryId = entryId;
+            this.done = new BitSet();
+            this.ids = new ArrayList<>();
+        }
+    }
+
+    public AckStage(final String pipeline, final long intervalMillis, final long holeTimeoutMillis, final boolean cumulative) {
+        this(pipeline, intervalMillis, holeTimeoutMillis, cumulative, AckStage.MAX_TRACKED_ENTRIES);
+    }
+
+    AckStage(final String pipeline, final long intervalMillis, final long holeTimeoutMillis, final boolean cumulative, final int maxTrackedEntries) {
+        this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+        this.holeTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(holeTimeoutMillis);
+        this.cumulative = cumulative;
+        this.completions = new ConcurrentLinkedQueue<>();
+        this.tickets = new ConcurrentHashMap<>();
+        this.pending = new HashMap<>();
+        this.entries = new LinkedHashMap<>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<MessageId, EntryAcks<T>> eldest) {
+                if (this.size() <= maxTrackedEntries) {
+                    return false;
+                }
+                final EntryAcks<T> entry = eldest.getValue();
+                AckStage.this.pending(entry.consumer).addAll(entry.ids);
+                return true;
+            }
+        };
+        this.holes = new HashMap<>();
+        this.cursors = new HashMap<>();
+        this.cumulativeAcks = AckStage.acksSent.labels(pipeline, "cumulative");
+        this.individualAcks = AckStage.acksSent.labels(pipeline, "individual");
+        this.failures = AckStage.ackFailures.labels(pipeline);
+        this.holesExpired = AckStage.ackHolesExpired.labels(pipeline);
+        this.trackedEntries = AckStage.ackTrackedEntries.labels(pipeline);
+        this.running = true;
+        this.thread = new CustomThreadFactory(Pipeline.threadName(pipeline, "pulsar-acker")).newThread(this);
+    }
+
+    public void start() {
+        this.thread.start();
+    }
+
+    public boolean isCumulative() {
+        return this.cumulative;
+    }
+
+    /* called by the receiver before handing msgs over, null when acks are not cumulative */
+    public Ticket<T> register(final Consumer<T> consumer, final Messages<T> msgs) {
+        if (!this.cumulative || msgs == null || msgs.size() <= 0) {
+            return null;
+        }
+
+        final Ticket<T> ticket = new Ticket<>(consumer, msgs);
+        this.tickets.computeIfAbsent(consumer, c -> new ConcurrentLinkedQueue<>()).offer(ticket);
+        return ticket;
+    }
+
+    public void ack(final Consumer<T> consumer, final Ticket<T> ticket, final MessageId id) {
+        this.completions.offer(new Completion<>(consumer, ticket, id, null, true));
+    }
+
+    /* ids must not change once handed over */
+    public void ack(final Consumer<T> consumer, final Ticket<T> ticket, final List<MessageId> ids) {
+        this.completions.offer(new Completion<>(consumer, ticket, null, ids, true));
+    }
+
+    /* only accounts for the nack, the caller nacks the message itself */
+    public void nacked(final Consumer<T> consumer, final Ticket<T> ticket, final MessageId id) {
+        if (ticket != null) {
+            this.completions.offer(new Completion<>(consumer, ticket, id, null, false));
+        }
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            final boolean stopping = !this.running;
+            try {
+                this.round();
+            } catch (Exception e) {
+                AckStage.logger.error("exception caught", e);
+            }
+            if (stopping) {
+                return;
+            }
+            LockSupport.parkNanos(this.intervalNanos);
+        }
+    }
+
+    /* on the stage thread */
+    void round() {
+        Completion<T> completion;
+        while ((completion = this.completions.poll()) != null) {
+            this.apply(completion);
+        }
+        if (this.cumulative) {
+            this.advance();
+        }
+        this.flush();
+    }
+
+    private void apply(final Completion<T> completion) {
+        final Ticket<T> ticket = completion.ticket;
+        if (ticket == null) {
+            if (completion.ids == null) {
+                this.individual(completion.consumer, completion.id);
+            } else {
+                for (final MessageId id : completion.ids) {
+                    this.individual(completion.consumer, id);
+                }
+            }
+            return;
+        }
+
+        if (!completion.ok) {
+            /* a hole until the redelivery gets acked, nacked again it is waited for from now */
+            this.holes.computeIfAbsent(ticket.consumer, c -> new HashMap<>())
+                    .computeIfAbsent(AckStage.partition(completion.id), p -> new HashMap<>())
+                    .put(completion.id, System.nanoTime() + this.holeTimeoutNanos);
+            --ticket.remaining;
+        } else if (completion.ids == null) {
+            ticket.acked.add(completion.id);
+            --ticket.remaining;
+        } else {
+            ticket.acked.addAll(completion.ids);
+            ticket.remaining -= completion.ids.size();
+        }
+    }
+
+    /* acks the batches at the head of each consumer that are done, in receive order */
+    private void advance() {
+        this.purge(System.nanoTime());
+        for (final ConcurrentLinkedQueue<Ticket<T>> queue : this.tickets.values()) {
+            Ticket<T> ticket;
+            while ((ticket = queue.peek()) != null && ticket.remaining <= 0) {
+                queue.poll();
+                final HashMap<Object, HashMap<MessageId, Long>> consumerHoles = this.holes.get(ticket.consumer);
+                if (consumerHoles != null) {
+                    for (final MessageId id : ticket.acked) {
+                        final HashMap<MessageId, Long> partitionHoles = consumerHoles.get(AckStage.partition(id));
+                        if (partitionHoles != null) {
+                            partitionHoles.remove(id);
+                        }
+                    }
+                }
+
+                final HashMap<Object, MessageId> consumerCursors = this.cursors.computeIfAbsent(ticket.consumer, c -> new HashMap<>());
+                ArrayList<Object> blocked = null;
+                for (final Map.Entry<Object, MessageId> last : ticket.last.entrySet()) {
+                    if (consumerHoles != null && AckStage.blocks(consumerHoles.get(last.getKey()), last.getValue())) {
+                        if (blocked == null) {
+                            blocked = new ArrayList<>(ticket.last.size());
+                        }
+                        blocked.add(last.getKey());
+                        continue;
+                    }
+                    ticket.consumer.acknowledgeCumulativeAsync(last.getValue()).exceptionally(this::onFailure);
+                    this.cumulativeAcks.inc();
+                    consumerCursors.merge(last.getKey(), last.getValue(), (a, b) -> a.compareTo(b) >= 0 ? a : b);
+                }
+                if (blocked == null) {
+                    continue;
+                }
+
+                for (final MessageId id : ticket.acked) {
+                    if (blocked.contains(AckStage.partition(id))) {
+                        this.individual(ticket.consumer, id);
+                    }
+                }
+            }
+        }
+    }
+
+    /* a cumulative ack up to last would step over one of the holes */
+    private static boolean blocks(final HashMap<MessageId, Long> partitionHoles, final MessageId last) {
+        if (partitionHoles != null) {
+            for (final MessageId hole : partitionHoles.keySet()) {
+                if (hole.compareTo(last) <= 0) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /* drops the holes a cumulative ack already covers and the ones waited for holeTimeout */
+    private void purge(final long now) {
+        for (final Map.Entry<Consumer<T>, HashMap<Object, HashMap<MessageId, Long>>> consumerHoles : this.holes.entrySet()) {
+            final HashMap<Object, MessageId> consumerCursors = this.cursors.get(consumerHoles.getKey());
+            final Iterator<Map.Entry<Object, HashMap<MessageId, Long>>> partitions = consumerHoles.getValue().entrySet().iterator();
+            while (partitions.hasNext()) {
+                final Map.Entry<Object, HashMap<MessageId, Long>> partition = partitions.next();
+                final MessageId cursor = consumerCursors == null ? null : consumerCursors.get(partition.getKey());
+                partition.getValue().entrySet().removeIf(hole -> {
+                    if (cursor != null && hole.getKey().compareTo(cursor) <= 0) {
+                        return true;
+                    }
+                    if (hole.getValue() - now > 0) {
+                        return false;
+                    }
+                    AckStage.logger.warn("nacked message {} of {} did not come back, cumulative acks step over it", hole.getKey(), consumerHoles.getKey());
+                    this.holesExpired.inc();
+                    return true;
+                });
+                if (partition.getValue().isEmpty()) {
+                    partitions.remove();
+                }
+            }
+        }
+    }
+
+    private void individual(final Consumer<T> consumer, final MessageId id) {
+        if (id instanceof MessageIdAdv adv && adv.getBatchIndex() >= 0 && adv.getBatchSize() > 1) {
+            final MessageId key = new MessageIdImpl(adv.getLedgerId(), adv.getEntryId(), adv.getPartitionIndex());
+            EntryAcks<T> entry = this.entries.get(key);
+            if (entry == null) {
+                entry = new EntryAcks<>(consumer, id instanceof TopicMessageId topicId ? TopicMessageId.create(topicId.getOwnerTopic(), key) : key);
+                this.entries.put(key, entry);
+            }
+            if (entry.done.get(adv.getBatchIndex())) {
+                return;
+            }
+            entry.done.set(adv.getBatchIndex());
+            if (entry.done.cardinality() < adv.getBatchSize()) {
+                entry.ids.add(id);
+                return;
+            }
+            this.entries.remove(key);
+            this.pending(consumer).add(entry.entryId);
+            return;
+        }
+
+        this.pending(consumer).add(id);
+    }
+
+    private ArrayList<MessageId> pending(final Consumer<T> consumer) {
+        return this.pending.computeIfAbsent(consumer, c -> new ArrayList<>());
+    }
+
+    private void flush() {
+        for (final Map.Entry<Consumer<T>, ArrayList<MessageId>> entry : this.pending.entrySet()) {
+            final ArrayList<MessageId> ids = entry.getValue();
+            if (ids.isEmpty()) {
+                continue;
+            }
+            /* the list is handed over to the client */
+            entry.setValue(new ArrayList<>(ids.size()));
+            entry.getKey().acknowledgeAsync(ids).exceptionally(this::onFailure);
+            this.individualAcks.inc(ids.size());
+        }
+        this.trackedEntries.set(this.entries.size());
+    }
+
+    private Void onFailure(final Throwable e) {
+        /* the messages get redelivered */
+        AckStage.logger.warn("ack failed", e);
+        this.failures.inc();
+        return null;
+    }
+
+    /* single topic consumers give partition indexes, multi topic ones give topic names */
+    private static Object partition(final MessageId id) {
+        if (id instanceof TopicMessageId topicId) {
+            return topicId.getOwnerTopic();
+        }
+        return id instanceof MessageIdAdv adv ? adv.getPartitionIndex() : -1;
+    }
+
+    /* sends what was completed so far, to be called once the workers are done */
+    @Override
+    public void close() {
+        this.running = false;
+        LockSupport.unpark(this.thread);
+        try {
+            this.thread.join();
+        } catch (InterruptedException e) {
+            /* the ack thread still sends what it has, the caller is told of the interrupt */
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package io.xboshy.pulsar;
+
+import io.prometheus.client.Gauge;
+
+/* AIMD controller for the batch receive limits, fed by the outcome of every bulk. When not adaptive the limits just
+   stay at their max, which the admin api may move */
+public class AdaptiveBatchSizer {
+    private static final double DECREASE_FACTOR = 0.7;
+    private static final int INCREASE_STEPS = 20;
+    private final long targetLatencyNanos;
+    private final boolean adaptive;
+    private final int minNumMessagesConf;
+    private final long minNumBytesConf;
+    private int minNumMessages;
+    private int maxNumMessages;
+    private long minNumBytes;
+    private long maxNumBytes;
+    private int stepMessages;
+    private long stepBytes;
+    private volatile int numMessages;
+    private volatile long numBytes;
+    private final Gauge.Child maxMessagesGauge;
+    private final Gauge.Child maxBytesGauge;
+    private static final Gauge batchMaxMessages = Gauge.build()
+            .name("adaptive_batch_max_messages")
+            .help("adaptive_batch_max_messages")
+            .labelNames("pipeline")
+            .register();
+    private static final Gauge batchMaxBytes = Gauge.build()
+            .name("adaptive_batch_max_bytes")
+            .help("adaptive_batch_max_bytes")
+            .labelNames("pipeline")
+            .register();
+
+    /* max <= 0 leaves that dimension unbounded, as in BatchReceivePolicy */
+    public AdaptiveBatchSizer(final String pipeline, final long targetLatencyMillis, final int minNumMessages, final int maxNumMessages, final long minNumBytes, final long maxNumBytes) {
+        this(pipeline, targetLatencyMillis, minNumMessages, maxNumMessages, minNumBytes, maxNumBytes, true);
+    }
+
+    public AdaptiveBatchSizer(final String pipeline, final long targetLatencyMillis, final int minNumMessages, final int maxNumMessages, final long minNumBytes, final long maxNumBytes, final boolean adaptive) {
+        this.targetLatencyNanos = targetLatencyMillis * 1_000_000L;
+        this.adaptive = adaptive;
+        this.minNumMessagesConf = minNumMessages;
+        this.minNumBytesConf = minNumBytes;
+        this.maxMessagesGauge = AdaptiveBatchSizer.batchMaxMessages.labels(pipeline);
+        this.maxBytesGauge = AdaptiveBatchSizer.batchMaxBytes.labels(pipeline);
+        this.numMessages = maxNumMessages;
+        this.numBytes = maxNumBytes;
+        this.setMax(maxNumMessages, maxNumBytes);
+    }
+
+    /* the current limits are brought within the new bounds, an unbounded one starts at its new max */
+    public synchronized void setMax(final int maxNumMessages, final long maxNumBytes) {
+        this.maxNumMessages = maxNumMessages;
+        this.maxNumBytes = maxNumBytes;
+        this.minNumMessages = maxNumMessages > 0 ? Math.min(this.minNumMessagesConf, maxNumMessages) : this.minNumMessagesConf;
+        this.minNumBytes = maxNumBytes > 0 ? Math.min(this.minNumBytesConf, maxNumBytes) : this.minNumBytesConf;
+        this.stepMessages = Math.max(1, maxNumMessages / AdaptiveBatchSizer.INCREASE_STEPS);
+        this.stepBytes = Math.max(1L, maxNumBytes / AdaptiveBatchSizer.INCREASE_STEPS);
+        this.numMessages = this.adaptive && maxNumMessages > 0 && this.numMessages > 0
+                ? Math.max(this.minNumMessages, Math.min(maxNumMessages, this.numMessages))
+                : maxNumMessages;
+        this.numBytes = this.adaptive && maxNumBytes > 0 && this.numBytes > 0
+                ? Math.max(this.minNumBytes, Math.min(maxNumBytes, this.numBytes))
+                : maxNumBytes;
+        this.publish();
+    }
+
+    public int getMaxNumMessages() {
+        return this.numMessages;
+    }
+
+    public long getMaxNumBytes() {
+        return this.numBytes;
+    }
+
+    /* a bulk came back, rejectedItems counts the 429 items */
+    public synchronized void onBulk(final long latencyNanos, final int rejectedItems) {
+        if (!this.adaptive) {
+            return;
+        }
+        if (rejectedItems > 0 || latencyNanos > this.targetLatencyNanos) {
+            this.decrease();
+        } else {
+            this.increase();
+        }
+    }
+
+    /* the whole bulk was refused, with a 429 or a 413 */
+    public synchronized void onRejected() {
+        if (this.adaptive) {
+            this.decrease();
+        }
+    }
+
+    private void increase() {
+        if (this.maxNumMessages > 0) {
+            this.numMessages = Math.min(this.maxNumMessages, this.numMessages + this.stepMessages);
+        }
+        if (this.maxNumBytes > 0) {
+            this.numBytes = Math.min(this.maxNumBytes, this.numBytes + this.stepBytes);
+        }
+        this.publish();
+    }
+
+    private void decrease() {
+        if (this.maxNumMessages > 0) {
+            this.numMessages = Math.max(this.minNumMessages, (int) (this.numMessages * AdaptiveBatchSizer.DECREASE_FACTOR));
+        }
+        if (this.maxNumBytes > 0) {
+            this.numBytes = Math.max(this.minNumBytes, (long) (this.numBytes * AdaptiveBatchSizer.DECREASE_FACTOR));
+        }
+        this.publish();
+    }
+
+    private void publish() {
+        this.maxMessagesGauge.set(this.numMessages);
+        this.maxBytesGauge.set(this.numBytes);
+    }
+}
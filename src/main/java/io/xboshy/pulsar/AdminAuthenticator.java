@@ -0,0 +1,40 @@
+package io.xboshy.pulsar;
+
+import com.sun.net.httpserver.Authenticator;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpPrincipal;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+
+/* Guards the admin api: with PROMETHEUS_admin.token a request needs "Authorization: Bearer <token>", without one
+   only requests from the host itself are let in, as the metrics port is usually reachable from elsewhere */
+public class AdminAuthenticator extends Authenticator {
+    private static final String BEARER = "Bearer ";
+    private static final HttpPrincipal ADMIN = new HttpPrincipal("admin", "admin");
+
+    /* null when only loopback requests are let in */
+    private final byte[] token;
+
+    public AdminAuthenticator(final String token) {
+        this.token = token == null || token.isEmpty() ? null : token.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public Result authenticate(final HttpExchange exchange) {
+        if (this.token == null) {
+            return exchange.getRemoteAddress().getAddress().isLoopbackAddress()
+                    ? new Success(AdminAuthenticator.ADMIN)
+                    : new Failure(403);
+        }
+
+        final String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+        if (authorization == null || !authorization.regionMatches(true, 0, AdminAuthenticator.BEARER, 0, AdminAuthenticator.BEARER.length())) {
+            exchange.getResponseHeaders().set("WWW-Authenticate", "Bearer");
+            return new Retry(401);
+        }
+        /* in constant time, not to tell how much of it matched */
+        final byte[] given = authorization.substring(AdminAuthenticator.BEARER.length()).trim().getBytes(StandardCharsets.UTF_8);
+        return MessageDigest.isEqual(given, this.token) ? new Success(AdminAuthenticator.ADMIN) : new Failure(401);
+    }
+}
@@ -0,0 +1,145 @@
+package io.xboshy.pulsar;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+
+/* The admin api, served next to the metrics when PROMETHEUS_admin is set, behind an AdminAuthenticator:
+   GET /admin/config reports the variables each pipeline was made from, secrets masked, and its live settings.
+   POST /admin/tuning changes live settings from key=value pairs, in the query or a form body; pipeline=<name> picks
+   one pipeline, all of them otherwise. Elasticsearch timeouts belong to the shared clients and change for all.
+   Every pipeline is checked before any changes, a 400 leaves them as they were */
+public class AdminHandler implements HttpHandler {
+    private static final Logger logger = LogManager.getLogger(AdminHandler.class);
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final List<String> PREFIXES = List.of("GLOBAL_", "PULSAR_", "ELASTICSEARCH_", "PROMETHEUS_", "PIPELINES");
+    private static final Pattern SECRET = Pattern.compile("(?i).*(password|secret|token|auth|credential).*");
+    private static final String SHARED_PREFIX = "ELASTICSEARCH_";
+
+    private final List<Pipeline> pipelines;
+
+    public AdminHandler(final List<Pipeline> pipelines) {
+        this.pipelines = pipelines;
+    }
+
+    @Override
+    public void handle(final HttpExchange exchange) throws IOException {
+        try (exchange) {
+            final String method = exchange.getRequestMethod();
+            switch (exchange.getRequestURI().getPath()) {
+                case "/admin/config" -> {
+                    if (!method.equals("GET")) {
+                        AdminHandler.respond(exchange, 405, AdminHandler.error("use GET"));
+                        return;
+                    }
+                    AdminHandler.respond(exchange, 200, this.report());
+                }
+                case "/admin/tuning" -> {
+                    if (!method.equals("POST")) {
+                        AdminHandler.respond(exchange, 405, AdminHandler.error("use POST"));
+                        return;
+                    }
+                    try {
+                        this.tune(exchange);
+                    } catch (Exception e) {
+                        AdminHandler.respond(exchange, 400, AdminHandler.error(e.getMessage()));
+                        return;
+                    }
+                    AdminHandler.respond(exchange, 200, this.report());
+                }
+                default -> AdminHandler.respond(exchange, 404, AdminHandler.error("no such path"));
+            }
+        } catch (Exception e) {
+            AdminHandler.logger.warn("admin request failed", e);
+        }
+    }
+
+    private void tune(final HttpExchange exchange) throws Exception {
+        final Map<String, String> params = new LinkedHashMap<>();
+        AdminHandler.parse(exchange.getRequestURI().getRawQuery(), params);
+        AdminHandler.parse(new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8), params);
+        final String target = params.remove("pipeline");
+        if (params.isEmpty()) {
+            throw new Exception("nothing to change, settings are " + String.join(", ", Tuning.KEYS));
+        }
+        if (target != null && this.pipelines.stream().noneMatch(pipeline -> pipeline.getName().equals(target))) {
+            throw new Exception("no pipeline " + target);
+        }
+
+        final List<Map<String, String>> changes = this.pipelines.stream().map(pipeline -> {
+            if (target == null || pipeline.getName().equals(target)) {
+                return params;
+            }
+            final Map<String, String> shared = new LinkedHashMap<>();
+            params.forEach((key, value) -> {
+                if (key.startsWith(AdminHandler.SHARED_PREFIX)) {
+                    shared.put(key, value);
+                }
+            });
+            return shared;
+        }).toList();
+
+        for (int i = 0; i < this.pipelines.size(); ++i) {
+            this.pipelines.get(i).getTuning().check(changes.get(i));
+        }
+        for (int i = 0; i < this.pipelines.size(); ++i) {
+            if (changes.get(i).isEmpty()) {
+                continue;
+            }
+            this.pipelines.get(i).getTuning().apply(changes.get(i));
+            AdminHandler.logger.info("tuned" + (this.pipelines.get(i).getName().isEmpty() ? "" : " pipeline " + this.pipelines.get(i).getName()) + ": " + changes.get(i));
+        }
+    }
+
+    private static void parse(final String encoded, final Map<String, String> params) throws Exception {
+        if (encoded == null || encoded.isBlank()) {
+            return;
+        }
+        for (final String pair : encoded.trim().split("&")) {
+            final int eq = pair.indexOf('=');
+            if (eq <= 0) {
+                throw new Exception("expected key=value pairs, got '" + pair + "'");
+            }
+            params.put(URLDecoder.decode(pair.substring(0, eq), StandardCharsets.UTF_8), URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8));
+        }
+    }
+
+    private Map<String, Object> report() {
+        final Map<String, Object> pipelines = new LinkedHashMap<>();
+        for (final Pipeline pipeline : this.pipelines) {
+            final Map<String, String> config = new TreeMap<>();
+            pipeline.getConfig().forEach((key, value) -> {
+                if (AdminHandler.PREFIXES.stream().anyMatch(key::startsWith)) {
+                    config.put(key, AdminHandler.SECRET.matcher(key).matches() ? "***" : value);
+                }
+            });
+            final Map<String, Object> report = new LinkedHashMap<>();
+            report.put("config", config);
+            report.put("tuning", pipeline.getTuning().get());
+            pipelines.put(pipeline.getName(), report);
+        }
+        return Map.of("pipelines", pipelines);
+    }
+
+    private static Map<String, Object> error(final String message) {
+        return Map.of("error", message == null ? "" : message);
+    }
+
+    private static void respond(final HttpExchange exchange, final int status, final Object body) throws IOException {
+        final byte[] bytes = AdminHandler.MAPPER.writeValueAsBytes(body);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        exchange.getResponseBody().write(bytes);
+    }
+}
@@ -2,160 +2,219 @@ package io.xboshy.pulsar;
 
 import io.xboshy.pulsar.config.*;
 import com.lmax.disruptor.*;
-import com.lmax.disruptor.dsl.Disruptor;
-import com.lmax.disruptor.dsl.ProducerType;
-import io.prometheus.client.Summary;
 import io.prometheus.client.exporter.HTTPServer;
 import io.prometheus.client.hotspot.DefaultExports;
+import com.sun.net.httpserver.HttpServer;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
-import org.apache.pulsar.client.api.Consumer;
-import org.apache.pulsar.client.api.Messages;
-import org.apache.pulsar.client.api.Producer;
-import org.apache.pulsar.client.api.Schema;
 import org.elasticsearch.client.RestClient;
 
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ThreadFactory;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
 
 public class App implements Runnable {
     private static final Logger logger = LogManager.getLogger(App.class);
-    private static final Schema<byte[]> SCHEMA = Schema.BYTES;
-    private static final EventFactory<Batch<byte[]>> EVENT_FACTORY = Batch::new;
     private final GlobalConfig globalConfig;
     private final PulsarClientConfig pulsarClientConfig;
-    private final PulsarConsumerConfig pulsarConsumerConfig;
     private final ElasticsearchConfig elasticsearchConfig;
-    private final ConsumerFactory<byte[]> consumerFactory;
+    /* only an own factory is made again on restarts, null until the next run then */
+    private final boolean ownConsumerFactory;
+    private ConsumerFactory<byte[]> consumerFactory;
     private final ProducerFactory producerFactory;
-    private final Disruptor<Batch<byte[]>> disruptor;
-    private final AtomicBoolean error;
-    private static final Summary dispatchWaitTime = Summary.build()
-            .name("dispatch_wait_time_millis")
-            .help("dispatch_wait_time_millis")
-            .quantile(0.50, 0.005)
-            .quantile(0.80, 0.005)
-            .quantile(0.90, 0.005)
-            .quantile(0.95, 0.005)
-            .quantile(0.99, 0.005)
-            .register();
+    private final List<Pipeline> pipelines;
+    private final Supervisor supervisor;
+    private final boolean shardRouting;
+    /* kept across runs unless a failure points at them */
+    private RestClient producer;
+    private RestClient[] nodeProducers;
 
     public App(final Map<String, String> config) throws Exception {
-        this.error = new AtomicBoolean(false);
+        this(config, null);
+    }
+
+    /* consumerFactory stands in for the pulsar client when not null, e.g. in load tests */
+    public App(final Map<String, String> config, final ConsumerFactory<byte[]> consumerFactory) throws Exception {
+        this.supervisor = new Supervisor();
+        /* the clients are built from the base configuration and shared by all pipelines */
         this.globalConfig = new GlobalConfig(config);
         this.pulsarClientConfig = new PulsarClientConfig(config);
-        this.pulsarConsumerConfig = new PulsarConsumerConfig(config);
         this.elasticsearchConfig = new ElasticsearchConfig(config);
 
-        this.consumerFactory = new ConsumerFactory<>(this.globalConfig, this.pulsarClientConfig);
-        this.producerFactory = new ProducerFactory(this.globalConfig, this.elasticsearchConfig);
-
-        final ThreadFactory threadFactory = new CustomThreadFactory("disruptor-worker");
-        final WaitStrategy waitStrategy = new BlockingWaitStrategy();
-        this.disruptor = new Disruptor<>(
-                App.EVENT_FACTORY,
-                this.globalConfig.getRingBuffer(),
-                threadFactory,
-                ProducerType.SINGLE,
-                waitStrategy
-        );
+        final PipelinesConfig pipelinesConfig = new PipelinesConfig(config);
+        this.pipelines = new ArrayList<>();
+        for (final String name : pipelinesConfig.getNames()) {
+            try {
+                this.pipelines.add(new Pipeline(name, pipelinesConfig.getConfig(name), this.supervisor));
+            } catch (Exception e) {
+                if (name.isEmpty()) {
+                    throw e;
+                }
+                throw new Exception("pipeline " + name + ": " + e.getMessage(), e);
+            }
+        }
+
+        boolean shardRouting = false;
+        int maxConnections = 0;
+        for (final Pipeline pipeline : this.pipelines) {
+            shardRouting |= pipeline.getShardRouting();
+            maxConnections += pipeline.getMaxInflightRequests();
+        }
+        this.shardRouting = shardRouting;
+
+        this.ownConsumerFactory = consumerFactory == null;
+        this.consumerFactory = consumerFactory != null ? consumerFactory : new ConsumerFactory<>(this.globalConfig, this.pulsarClientConfig);
+        this.producerFactory = new ProducerFactory(this.globalConfig, this.elasticsearchConfig, maxConnections);
+    }
+
+    /* how idle workers wait for the next batch, from cheapest on cpu to lowest latency */
+    static WaitStrategy waitStrategy(final GlobalConfig.LatencyProfiles latencyProfile) {
+        return switch (latencyProfile) {
+            case BLOCKING -> new BlockingWaitStrategy();
+            case SLEEPING -> new SleepingWaitStrategy();
+            case YIELDING -> new YieldingWaitStrategy();
+            case BUSYSPIN -> new BusySpinWaitStrategy();
+            /* spins 100us, yields up to 1ms, then blocks */
+            case PHASED -> PhasedBackoffWaitStrategy.withLiteLock(100, 1000, TimeUnit.MICROSECONDS);
+        };
     }
 
+    /* runs the pipelines until stopped, until a failure that isn't about connectivity, or until they failed
+       restart.maxAttempts times in a row: each failure drains them, then after a backoff they run again on the
+       clients the failure left standing */
     public void run() {
-        RestClient producerRef = null;
-        Consumer<byte[]> consumerRef = null;
+        int attempts = 0;
+        long backoff = this.globalConfig.getRestartInitialBackoff();
         try {
-            final RestClient producer = this.producerFactory.getClient();
-            producerRef = producer;
-
-            final Consumer<byte[]> consumer = this.consumerFactory.getConsumer(this.globalConfig, this.pulsarConsumerConfig, App.SCHEMA);
-            consumerRef = consumer;
+            while (true) {
+                final long startNanos = System.nanoTime();
+                this.runPipelines();
 
-            final String indexName = this.elasticsearchConfig.getIndexName();
-            final String endpoint = String.format("%s/_bulk", indexName);
-
-            final int nWorkers = this.globalConfig.getInflightBatches();
-            final WorkHandler<Batch<byte[]>>[] workers = new WorkHandler[nWorkers];
-            final String clusterName = this.pulsarClientConfig.getClusterName();
-            for (int i = 0; i < nWorkers; ++i) {
-                final WorkHandler<Batch<byte[]>> worker = new BatchHandler<>(this.globalConfig.getIdMode(), App.SCHEMA, clusterName, endpoint, consumer, producer);
-                workers[i] = worker;
-            }
-            final Thread appThread = Thread.currentThread();
-            this.disruptor.handleEventsWithWorkerPool(workers);
-            this.disruptor.setDefaultExceptionHandler(new ExceptionHandler<>() {
-                @Override
-                public void handleEventException(Throwable e, long l, Batch<byte[]> batch) {
-                    App.logger.warn("exception caught", e);
-                    e.printStackTrace();
-                    error.set(true);
-                    //appThread.interrupt();
+                final Throwable failure = this.supervisor.getFailure();
+                if (failure == null || this.supervisor.isStopRequested()) {
+                    return;
                 }
-
-                @Override
-                public void handleOnStartException(Throwable e) {
-                    App.logger.warn("exception caught", e);
-                    e.printStackTrace();
-                    error.set(true);
-                    //appThread.interrupt();
+                /* a run that outlasted the longest backoff starts the count over */
+                if (System.nanoTime() - startNanos > TimeUnit.MILLISECONDS.toNanos(this.globalConfig.getRestartMaxBackoff())) {
+                    attempts = 0;
+                    backoff = this.globalConfig.getRestartInitialBackoff();
                 }
-
-                @Override
-                public void handleOnShutdownException(Throwable e) {
-                    App.logger.warn("exception caught", e);
-                    e.printStackTrace();
-                    error.set(true);
-                    //appThread.interrupt();
+                final Supervisor.Causes cause = Supervisor.cause(failure);
+                if (cause == Supervisor.Causes.OTHER) {
+                    App.logger.error("not restarting after a failure a restart wouldn't fix", failure);
+                    return;
                 }
-            });
-            final RingBuffer<Batch<byte[]>> ringBuffer = this.disruptor.start();
-
-            while (!this.error.get()) {
-                final long seq;
-                final Batch<byte[]> batch;
-                try (final Summary.Timer ignored = App.dispatchWaitTime.startTimer()) {
-                    seq = ringBuffer.next();
-                    batch = ringBuffer.get(seq);
+                if (attempts >= this.globalConfig.getRestartMaxAttempts()) {
+                    App.logger.error("giving up after " + attempts + " restarts", failure);
+                    return;
                 }
+                ++attempts;
 
-                Messages<byte[]> msgs = null;
-                String logmsg = String.format("{\"step\": \"getbatch\", \"sequence\": %d}", seq);
-                App.logger.info(logmsg);
-                while (msgs == null || msgs.size() == 0) {
-                    msgs = consumer.batchReceive();
+                App.logger.warn("restart " + attempts + " in " + backoff + "ms, " + cause.name().toLowerCase() + " failure: " + failure);
+                if (!this.supervisor.backoff(backoff)) {
+                    return;
                 }
-                logmsg = String.format("{\"step\": \"batchreceived\", \"sequence\": %d, \"msgs\": %d}", seq, msgs.size());
-                App.logger.info(logmsg);
+                backoff = Math.min(backoff << 1, this.globalConfig.getRestartMaxBackoff());
+                this.rebuild(cause, failure);
+                this.supervisor.restarting(cause);
+            }
+        } catch (InterruptedException e) {
+            /* stopping */
+        } finally {
+            this.closeProducers();
+        }
+    }
+
+    private void runPipelines() {
+        try {
+            if (this.consumerFactory == null) {
+                this.consumerFactory = new ConsumerFactory<>(this.globalConfig, this.pulsarClientConfig);
+            }
+            if (this.producer == null) {
+                this.producer = this.producerFactory.getClient();
+                this.nodeProducers = this.shardRouting ? this.producerFactory.getNodeClients() : null;
+            }
+            final ConsumerFactory<byte[]> consumerFactory = this.consumerFactory;
+            final RestClient producer = this.producer;
+            final RestClient[] nodeProducers = this.nodeProducers;
+
+            if (this.pipelines.size() == 1) {
+                this.pipelines.get(0).run(consumerFactory, producer, nodeProducers);
+                return;
+            }
 
-                batch.setMessages(msgs);
-                ringBuffer.publish(seq);
+            final ThreadFactory pipelineThreadFactory = new CustomThreadFactory("pipeline");
+            final List<Thread> threads = new ArrayList<>(this.pipelines.size());
+            for (final Pipeline pipeline : this.pipelines) {
+                App.logger.info("starting pipeline " + pipeline.getName());
+                final Thread thread = pipelineThreadFactory.newThread(() -> pipeline.run(consumerFactory, producer, nodeProducers));
+                threads.add(thread);
+                thread.start();
+            }
+            for (final Thread thread : threads) {
+                thread.join();
             }
         } catch (Exception e) {
             App.logger.error("exception caught", e);
-        } finally {
-            if (consumerRef != null) {
+            this.supervisor.fail(e);
+        }
+    }
+
+    /* the consumers are made again on every run anyway, the clients only when the failure points at them */
+    private void rebuild(final Supervisor.Causes cause, final Throwable failure) {
+        if (cause == Supervisor.Causes.ELASTICSEARCH) {
+            App.logger.info("rebuilding elasticsearch clients");
+            this.closeProducers();
+        }
+        if (this.ownConsumerFactory && Supervisor.isClientClosed(failure)) {
+            App.logger.info("rebuilding pulsar client");
+            this.consumerFactory.close();
+            this.consumerFactory = null;
+        }
+    }
+
+    private void closeProducers() {
+        if (this.nodeProducers != null) {
+            for (final RestClient nodeProducer : this.nodeProducers) {
                 try {
-                    App.logger.info("closing consumer...");
-                    consumerRef.close();
-                    App.logger.info("consumer closed");
+                    nodeProducer.close();
                 } catch (Exception e) {
                     /* skip */
                 }
             }
-            if (producerRef != null) {
-                try {
-                    App.logger.info("closing producer...");
-                    producerRef.close();
-                    App.logger.info("producer closed");
-                } catch (Exception e) {
-                    /* skip */
-                }
+            this.nodeProducers = null;
+        }
+        if (this.producer != null) {
+            try {
+                App.logger.info("closing producer...");
+                this.producer.close();
+                App.logger.info("producer closed");
+            } catch (Exception e) {
+                /* skip */
             }
+            this.producer = null;
         }
     }
 
+    public List<Pipeline> getPipelines() {
+        return this.pipelines;
+    }
+
+    /* makes run return: receivers stop taking batches and what is in flight is drained, no restart follows */
+    public void stop() {
+        this.supervisor.stop();
+    }
+
+    /* whether run gave up on a failure rather than being stopped */
+    public boolean isFailed() {
+        return this.supervisor.getFailure() != null && !this.supervisor.isStopRequested();
+    }
+
     public void close() {
         if (this.producerFactory != null) {
             this.producerFactory.close();
@@ -163,41 +222,73 @@ public class App implements Runnable {
         if (this.consumerFactory != null) {
             this.consumerFactory.close();
         }
-        this.disruptor.shutdown();
     }
 
     public static void main(final String[] args) {
+        final int status = App.launch();
+        if (status != 0) {
+            /* the pipelines are drained and the app closed by now, the shutdown hook this runs has nothing left to
+               wait for */
+            System.exit(status);
+        }
+    }
+
+    /* the exit status of the process: 0 once stopped, 1 when it gave up on a failure */
+    static int launch() {
         App app = null;
         final PrometheusConfig prometheusConfig = new PrometheusConfig(System.getenv());
 
         AtomicReference<HTTPServer> httpServer = new AtomicReference<>();
+        final CountDownLatch closed = new CountDownLatch(1);
         boolean dieFast = false;
         try {
             App.logger.info("creating app");
             DefaultExports.initialize();
+            HttpServer server = null;
             if (prometheusConfig.getPort() != 0) {
-                httpServer.set(new HTTPServer(prometheusConfig.getPort(), true));
+                /* made here so that the admin api can be served next to the metrics */
+                server = HttpServer.create(new InetSocketAddress(prometheusConfig.getPort()), 3);
+                httpServer.set(new HTTPServer.Builder().withHttpServer(server).withDaemonThreads(true).build());
             }
             app = new App(System.getenv());
+            if (server != null && prometheusConfig.getAdmin()) {
+                server.createContext("/admin", new AdminHandler(app.getPipelines()))
+                        .setAuthenticator(new AdminAuthenticator(prometheusConfig.getAdminToken()));
+            }
+            /* on SIGTERM the pipelines are drained, the hook holds the jvm until then */
+            final App stoppable = app;
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                stoppable.stop();
+                try {
+                    closed.await();
+                } catch (InterruptedException e) {
+                    /* skip */
+                }
+            }, "shutdown"));
             App.logger.info("starting app");
             app.run();
+            dieFast = app.isFailed();
         } catch (Exception e) {
             App.logger.error("app stopped", e);
             dieFast = true;
         } finally {
             App.logger.info("closing app");
 
-            if (dieFast) {
-                App.logger.error("shiiiiet, i r dead");
-                System.exit(19840206);
-            }
             if (httpServer.get() != null) {
                 httpServer.get().close();
             }
             if (app != null) {
                 app.close();
             }
+            closed.countDown();
+        }
+
+        if (dieFast) {
+            /* out of restarts or not worth one, left to whatever supervises the process */
+            App.logger.error("shiiiiet, i r dead");
+            return 1;
         }
         App.logger.info("bye");
+        return 0;
     }
 }
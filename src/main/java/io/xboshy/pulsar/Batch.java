@@ -1,19 +1,97 @@
 package io.xboshy.pulsar;
 
+import io.xboshy.pulsar.utils.Buckets;
+import io.prometheus.client.Histogram;
+import org.apache.pulsar.client.api.Consumer;
+import org.apache.pulsar.client.api.Message;
 import org.apache.pulsar.client.api.Messages;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
 public class Batch<T> {
+    private Consumer<T> consumer;
     private Messages<T> msgs;
+    private AckStage.Ticket<T> ticket;
+    private long trace;
+    private Histogram.Child handoff;
+    private long publishNanos;
+    private final AtomicInteger lanesDone = new AtomicInteger();
+    private static final Histogram handoffTime = Histogram.build()
+            .name("dispatch_handoff_time_micros")
+            .help("dispatch_handoff_time_micros")
+            .labelNames("pipeline", "profile")
+            .buckets(Buckets.MICROS)
+            .register();
+
+    public Consumer<T> getConsumer() {
+        return consumer;
+    }
 
     public Messages<T> getMessages() {
         return msgs;
     }
 
-    public void setMessages(final Messages<T> msgs) {
+    /* null when acks are not cumulative */
+    public AckStage.Ticket<T> getTicket() {
+        return ticket;
+    }
+
+    /* 0 when the batch is not traced */
+    public long getTrace() {
+        return trace;
+    }
+
+    public void setMessages(final Consumer<T> consumer, final Messages<T> msgs, final AckStage.Ticket<T> ticket, final long trace) {
+        this.consumer = consumer;
         this.msgs = msgs;
+        this.ticket = ticket;
+        this.trace = trace;
+    }
+
+    /* the series a sink stamps its batches with, profile labels the wait strategy or execution mode doing it */
+    public static Histogram.Child handoff(final String pipeline, final String profile) {
+        return Batch.handoffTime.labels(pipeline, profile);
+    }
+
+    /* stamps the handoff to a worker */
+    public void markPublished(final Histogram.Child handoff) {
+        this.handoff = handoff;
+        this.publishNanos = System.nanoTime();
+    }
+
+    /* called by the worker once it picked the batch up */
+    public void observeHandoff() {
+        if (this.handoff != null) {
+            this.handoff.observe((System.nanoTime() - this.publishNanos) / 1e3);
+        }
+    }
+
+    /* once the bulk bodies hold a copy of the payloads, only the message ids are needed to ack: the messages go
+       back to pulsar before the round trip rather than after it. The ring then bounds the pooled buffers held */
+    public void releaseMessages() {
+        if (this.msgs != null) {
+            Batch.release(this.msgs);
+            this.msgs = null;
+        }
+    }
+
+    /* gives pooled payload buffers back, a no-op unless the consumer pools messages */
+    public static <T> void release(final Messages<T> msgs) {
+        for (final Message<T> msg : msgs) {
+            msg.release();
+        }
+    }
+
+    /* every lane sees the whole batch and handles its share of the keys, true for the last one done with it */
+    public boolean leaveLane(final int lanes) {
+        return this.lanesDone.incrementAndGet() == lanes;
     }
 
     public void clear() {
-        this.msgs = null;
+        this.lanesDone.set(0);
+        this.releaseMessages();
+        this.consumer = null;
+        this.ticket = null;
+        this.trace = 0;
     }
 }
@@ -1,124 +1,240 @@
 package io.xboshy.pulsar;
 
-import co.elastic.clients.elasticsearch.core.BulkResponse;
-import co.elastic.clients.elasticsearch.core.bulk.BulkResponseItem;
-import co.elastic.clients.json.JsonpMapper;
-import co.elastic.clients.json.jackson.JacksonJsonpMapper;
+import io.xboshy.pulsar.bulk.BulkBodyWriter;
+import io.xboshy.pulsar.bulk.BulkBuffer;
+import io.xboshy.pulsar.bulk.BulkBufferPool;
+import io.xboshy.pulsar.bulk.BulkResponseParser;
+import io.xboshy.pulsar.bulk.BulkResult;
+import io.xboshy.pulsar.bulk.DocIdSet;
+import io.xboshy.pulsar.bulk.FingerprintSet;
+import io.xboshy.pulsar.bulk.IndexedIdCache;
 import io.xboshy.pulsar.config.GlobalConfig;
-import io.xboshy.pulsar.utils.Hashutils;
+import io.xboshy.pulsar.id.IdWriter;
+import io.xboshy.pulsar.id.IdWriters;
+import io.xboshy.pulsar.index.IndexWriter;
+import io.xboshy.pulsar.routing.ShardLayout;
+import io.xboshy.pulsar.routing.ShardRouter;
+import io.xboshy.pulsar.source.DecodeException;
+import io.xboshy.pulsar.source.SourceWriter;
+import io.xboshy.pulsar.utils.Buckets;
 import com.lmax.disruptor.EventHandler;
+import com.lmax.disruptor.ExceptionHandler;
 import com.lmax.disruptor.WorkHandler;
 import io.prometheus.client.Counter;
-import io.prometheus.client.Summary;
-import jakarta.json.stream.JsonParser;
-import org.apache.http.HttpEntity;
+import io.prometheus.client.Histogram;
 import org.apache.http.HttpStatus;
-import org.apache.http.entity.ContentType;
-import org.apache.http.nio.entity.NStringEntity;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 import org.apache.pulsar.client.api.*;
 import org.elasticsearch.client.Request;
 import org.elasticsearch.client.Response;
-import org.elasticsearch.client.RestClient;
+import org.elasticsearch.client.ResponseException;
+import org.elasticsearch.client.ResponseListener;
 
-import java.security.MessageDigest;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.function.Function;
-import java.util.function.Predicate;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Objects;
 
 public class BatchHandler<T> implements EventHandler<Batch<T>>, WorkHandler<Batch<T>> {
+    private static final Logger logger = LogManager.getLogger(BatchHandler.class);
     private final Schema<T> schema;
     private final String clusterName;
     private final String endpoint;
-    private final Consumer<T> consumer;
-    private final RestClient producer;
-    private final JsonpMapper mapper;
-    private final Function<Message<T>, String> idFunction;
-    private final MessageDigest sha1;
-    private static final Summary batchProcessing = Summary.build()
+    private final BulkDispatcher dispatcher;
+    private final GlobalConfig.DispatchModes dispatchMode;
+    private final ExceptionHandler<Batch<T>> exceptionHandler;
+    private final BulkBufferPool bufferPool;
+    private final BulkBodyWriter bodyWriter;
+    private final BulkBodyWriter.Actions action;
+    /* when writes change documents, each key is kept in order */
+    private final boolean ordered;
+    /* when writes replace documents, only the last write of a key in a batch is sent. Partial updates all are */
+    private final boolean compacting;
+    private final IdWriter idWriter;
+    private final IndexWriter indexWriter;
+    private final SourceWriter sourceWriter;
+    private final Tracer tracer;
+    private final long maxContentLength;
+    private final AdaptiveBatchSizer sizer;
+    private final ShardRouter router;
+    private final RetryQueue retryQueue;
+    private final AckStage<T> ackStage;
+    private final IndexedIdCache idCache;
+    private final BulkBuffer staging;
+    private final ArrayList<Message<T>> share;
+    private final FingerprintSet written;
+    private final ArrayDeque<PendingBulk<T>> retries;
+    private final String pipeline;
+    private final Histogram.Child processingTime;
+    private final Histogram.Child serializeTime;
+    private final Histogram.Child httpTime;
+    private final Histogram.Child parseTime;
+    private final Histogram.Child ackTime;
+    private final Counter.Child okBatches;
+    private final Counter.Child routedItems;
+    private final Counter.Child unroutedItems;
+    private final Counter.Child unrolled;
+    private final Counter.Child ok;
+    private final Counter.Child ko;
+    private final Counter.Child createdEvents;
+    private final Counter.Child compacted;
+    private PendingBulk<T>[] slots;
+    private DocIdSet[] docIds;
+    private int lane;
+    private int lanes;
+    private static final Histogram batchProcessing = Histogram.build()
             .name("batch_processing_time")
             .help("batch_processing_time")
-            .quantile(0.50, 0.005)
-            .quantile(0.80, 0.005)
-            .quantile(0.90, 0.005)
-            .quantile(0.95, 0.005)
-            .quantile(0.99, 0.005)
-            .register();
-    private static final Summary ackingTime = Summary.build()
-            .name("acking_time")
-            .help("acking_time")
-            .quantile(0.50, 0.005)
-            .quantile(0.80, 0.005)
-            .quantile(0.90, 0.005)
-            .quantile(0.95, 0.005)
-            .quantile(0.99, 0.005)
+            .labelNames("pipeline")
+            .buckets(Buckets.SECONDS)
             .register();
     private static final Counter unrolledBatches = Counter.build()
             .name("unrolled_batches")
             .help("unrolled_batches")
+            .labelNames("pipeline")
             .register();
     private static final Counter eventsOk = Counter.build()
             .name("events_ok")
             .help("events_ok")
+            .labelNames("pipeline")
             .register();
     private static final Counter eventsKo = Counter.build()
             .name("events_ko")
             .help("events_ko")
+            .labelNames("pipeline")
             .register();
     private static final Counter elasticsearchEventsResult = Counter.build()
             .name("elasticsearch_events")
             .help("elasticsearch_events")
-            .labelNames("status", "reason")
+            .labelNames("pipeline", "status", "reason")
+            .register();
+    private static final Counter compactedItems = Counter.build()
+            .name("compacted_items")
+            .help("compacted_items")
+            .labelNames("pipeline")
+            .register();
+    private static final Counter shardRoutedItems = Counter.build()
+            .name("shard_routed_items")
+            .help("shard_routed_items")
+            .labelNames("pipeline", "routed")
             .register();
     private static final Counter elasticsearchBatchResult = Counter.build()
             .name("elasticsearch_batch")
             .help("elasticsearch_batch")
-            .labelNames("status", "reason")
+            .labelNames("pipeline", "status", "reason")
             .register();
 
-    private static final Predicate<BulkResponseItem> okRule = (item) -> item.error() == null || (item.error().type() != null && item.error().type().equals("version_conflict_engine_exception"));
+    private static final String CREATED = String.valueOf(HttpStatus.SC_CREATED);
+    private static final String OK = String.valueOf(HttpStatus.SC_OK);
+    private static final int SC_TOO_MANY_REQUESTS = 429;
 
-    public BatchHandler(GlobalConfig.IdModes idMode, Schema<T> schema, String clusterName, String endpoint, Consumer<T> consumer, RestClient producer) throws Exception {
+    /* the item results of a bulk by status and error, so their series are looked up once per bulk */
+    private static class ResultCounts {
+        private int size;
+        private int[] statuses = new int[4];
+        private String[] errorTypes = new String[4];
+        private int[] counts = new int[4];
+
+        private void add(final int status, final String errorType) {
+            for (int i = 0; i < this.size; ++i) {
+                if (this.statuses[i] == status && Objects.equals(this.errorTypes[i], errorType)) {
+                    ++this.counts[i];
+                    return;
+                }
+            }
+            if (this.size == this.statuses.length) {
+                this.statuses = Arrays.copyOf(this.statuses, this.size << 1);
+                this.errorTypes = Arrays.copyOf(this.errorTypes, this.size << 1);
+                this.counts = Arrays.copyOf(this.counts, this.size << 1);
+            }
+            this.statuses[this.size] = status;
+            this.errorTypes[this.size] = errorType;
+            this.counts[this.size++] = 1;
+        }
+
+        private void flush(final String pipeline) {
+            for (int i = 0; i < this.size; ++i) {
+                BatchHandler.elasticsearchEventsResult.labels(
+                        pipeline,
+                        String.valueOf(this.statuses[i]),
+                        this.errorTypes[i] == null ? "" : this.errorTypes[i]
+                ).inc(this.counts[i]);
+            }
+        }
+    }
+
+    private static boolean isOk(final String errorType) {
+        return errorType == null || errorType.equals("version_conflict_engine_exception");
+    }
+
+    /* failures worth resending as they are once elasticsearch has caught up */
+    private static boolean isRetriable(final int status, final String errorType) {
+        return status == BatchHandler.SC_TOO_MANY_REQUESTS
+                || status == HttpStatus.SC_SERVICE_UNAVAILABLE
+                || "es_rejected_execution_exception".equals(errorType);
+    }
+
+    public BatchHandler(String pipeline, GlobalConfig.IdModes idMode, GlobalConfig.WriteModes writeMode, Schema<T> schema, String clusterName, String endpoint, BulkDispatcher dispatcher, GlobalConfig.DispatchModes dispatchMode, ExceptionHandler<Batch<T>> exceptionHandler, BulkBufferPool bufferPool, long maxContentLength, AdaptiveBatchSizer sizer, ShardRouter router, RetryQueue retryQueue, AckStage<T> ackStage, IndexedIdCache idCache, IndexWriter indexWriter, SourceWriter sourceWriter, Tracer tracer) throws Exception {
         this.schema = schema;
         this.clusterName = clusterName;
         this.endpoint = endpoint;
-        this.consumer = consumer;
-        this.mapper = new JacksonJsonpMapper();
-        this.producer = producer;
-        this.sha1 = Hashutils.getMessageDigestSHA1();
-
-        this.idFunction = switch(idMode) {
-            case NONE -> msg -> null;
-            case MSGID -> msg -> {
-                final String msgId = Id.messageIdToElasticId(msg.getMessageId());
-                final String ts = Long.toString(msg.getPublishTime());
-                return String.format("%s-%s", msgId, ts);
-            };
-            case HASH -> msg -> {
-                if (msg.getData() == null) {
-                    return "";
-                }
-                return Hashutils.SHA1(this.sha1, msg.getData());
-            };
-            case KEY -> msg -> {
-                final String key = msg.getKey();
-                if (key == null || key.isEmpty()) {
-                    return null;
-                }
-                return key;
-            };
-            case KEYHASH -> msg -> {
-                final String key = msg.getKey();
-                if (key == null || key.isEmpty()) {
-                    return null;
-                }
-                if (msg.getData() == null) {
-                    return String.format("%s", key);
-                }
-                String hash = Hashutils.SHA1(this.sha1, msg.getData());
-                return String.format("%s-%s", key, hash);
-            };
+        this.dispatcher = dispatcher;
+        this.dispatchMode = dispatchMode;
+        this.exceptionHandler = exceptionHandler;
+        this.bufferPool = bufferPool;
+        this.bodyWriter = new BulkBodyWriter(writeMode == GlobalConfig.WriteModes.INDEX);
+        this.action = switch (writeMode) {
+            case CREATE -> BulkBodyWriter.Actions.CREATE;
+            case INDEX -> BulkBodyWriter.Actions.INDEX;
+            case UPDATE -> BulkBodyWriter.Actions.UPDATE;
         };
+        this.ordered = this.action != BulkBodyWriter.Actions.CREATE;
+        this.compacting = this.action == BulkBodyWriter.Actions.INDEX;
+
+        this.idWriter = IdWriters.create(idMode);
+        /* null when the index is part of the endpoint */
+        this.indexWriter = indexWriter;
+        /* null when payloads are copied as they are */
+        this.sourceWriter = sourceWriter;
+        this.tracer = tracer;
+        this.maxContentLength = maxContentLength;
+        this.sizer = sizer;
+        this.router = router;
+        this.retryQueue = retryQueue;
+        this.ackStage = ackStage;
+        this.idCache = idCache;
+        this.staging = new BulkBuffer(256);
+        this.share = new ArrayList<>();
+        this.written = new FingerprintSet(1024);
+        this.retries = new ArrayDeque<>();
+        this.pipeline = pipeline;
+        this.processingTime = BatchHandler.batchProcessing.labels(pipeline);
+        this.serializeTime = Stages.timer(pipeline, Stages.SERIALIZE);
+        this.httpTime = Stages.timer(pipeline, Stages.HTTP);
+        this.parseTime = Stages.timer(pipeline, Stages.PARSE);
+        this.ackTime = Stages.timer(pipeline, Stages.ACK);
+        this.okBatches = BatchHandler.elasticsearchBatchResult.labels(pipeline, BatchHandler.OK, "OK");
+        this.routedItems = router == null ? null : BatchHandler.shardRoutedItems.labels(pipeline, "true");
+        this.unroutedItems = router == null ? null : BatchHandler.shardRoutedItems.labels(pipeline, "false");
+        this.unrolled = BatchHandler.unrolledBatches.labels(pipeline);
+        this.ok = BatchHandler.eventsOk.labels(pipeline);
+        this.ko = BatchHandler.eventsKo.labels(pipeline);
+        this.createdEvents = BatchHandler.elasticsearchEventsResult.labels(pipeline, BatchHandler.CREATED, "");
+        this.compacted = BatchHandler.compactedItems.labels(pipeline);
+        this.slots = PendingBulk.array(1);
+        this.docIds = new DocIdSet[1];
+        this.lane = 0;
+        this.lanes = 1;
+    }
+
+    /* makes this handler lane of lanes handlers that all see every batch, each one taking the messages whose key
+       hashes to it: the writes of a key are then done by one thread in the order they were received */
+    BatchHandler<T> lane(final int lane, final int lanes) {
+        this.lane = lane;
+        this.lanes = lanes;
+        return this;
     }
 
     @Override
@@ -129,100 +245,527 @@ public class BatchHandler<T> implements EventHandler<Batch<T>>, WorkHandler<Batc
     @Override
     public void onEvent(Batch<T> event) throws Exception {
         final Messages<T> msgs = event.getMessages();
+        ArrayList<PendingBulk<T>> bulks = null;
+        int sent = 0;
+        boolean left = false;
         try {
-            if (msgs.size() <= 0) {
+            if (msgs == null || msgs.size() <= 0) {
                 return;
             }
+            event.observeHandoff();
 
-            try (Summary.Timer ignored = BatchHandler.batchProcessing.startTimer()) {
-                final HashMap<String, MessageId> idMap = new HashMap<>();
-                final ArrayList<MessageId> nullIDsList = new ArrayList<>();
-                final StringBuilder bulkRequestBody = new StringBuilder();
-                for (final Message<T> msg : msgs) {
-                    final String _id = this.idFunction.apply(msg);
-                    final String actionMetadata;
-                    if (_id != null) {
-                        if (idMap.containsKey(_id)) {
-                            this.consumer.acknowledge(msg);
-                            continue;
-                        }
-                        idMap.put(_id, msg.getMessageId());
-                        actionMetadata = String.format("{ \"create\": { \"_id\": \"%s\" } }%n", _id);
-                    } else {
-                        nullIDsList.add(msg.getMessageId());
-                        actionMetadata = String.format("{ \"create\": { } }%n");
+            bulks = this.prepare(event.getConsumer(), event.getTicket(), msgs, event.getTrace());
+            this.leave(event);
+            left = true;
+            for (final PendingBulk<T> bulk : bulks) {
+                if (this.dispatchMode == GlobalConfig.DispatchModes.ASYNC) {
+                    this.dispatchAsync(bulk, this.request(bulk));
+                    /* the completion callback owns the bulk from here on */
+                    ++sent;
+                    continue;
+                }
+
+                ++sent;
+                this.perform(bulk);
+                this.sendRetries();
+            }
+        } finally {
+            if (bulks != null) {
+                for (int i = sent; i < bulks.size(); ++i) {
+                    this.bufferPool.release(bulks.get(i).getBuffer());
+                }
+            }
+            /* left over by a failure, their messages get redelivered */
+            for (PendingBulk<T> retry; (retry = this.retries.poll()) != null; ) {
+                this.finish(retry);
+            }
+            if (this.lanes == 1) {
+                event.clear();
+            } else if (!left) {
+                this.leave(event);
+            }
+        }
+    }
+
+    /* the messages are given back once every lane wrote its share of them */
+    private void leave(final Batch<T> event) {
+        if (this.lanes == 1) {
+            event.releaseMessages();
+        } else if (event.leaveLane(this.lanes)) {
+            event.clear();
+        }
+    }
+
+    private void perform(final PendingBulk<T> bulk) throws Exception {
+        try {
+            this.complete(bulk, this.dispatcher.perform(bulk.getNode(), this.request(bulk)));
+        } catch (ResponseException e) {
+            if (!this.reject(bulk, e)) {
+                throw e;
+            }
+        } finally {
+            this.finish(bulk);
+        }
+    }
+
+    /* in ordered mode, retries are resent by the lane itself before it writes anything newer */
+    private void sendRetries() throws Exception {
+        for (PendingBulk<T> retry; (retry = this.retries.poll()) != null; ) {
+            Thread.sleep(this.retryQueue.delay(retry.getAttempt()));
+            this.perform(retry);
+        }
+    }
+
+    /* the messages of this lane, newest first when the last write of a key wins */
+    private ArrayList<Message<T>> share(final Messages<T> msgs) {
+        this.share.clear();
+        int i = 0;
+        for (final Message<T> msg : msgs) {
+            if (this.lanes == 1 || this.laneOf(msg, i) == this.lane) {
+                this.share.add(msg);
+            }
+            ++i;
+        }
+        if (this.compacting) {
+            Collections.reverse(this.share);
+        }
+        return this.share;
+    }
+
+    private int laneOf(final Message<T> msg, final int i) {
+        final String key = msg.getKey();
+        /* no order to keep without a key, spread by position */
+        return ((key == null ? i : key.hashCode()) & Integer.MAX_VALUE) % this.lanes;
+    }
+
+    /* null when there is nothing to write: a tombstone without a key */
+    private BulkBodyWriter.Actions action(final Message<T> msg) {
+        if (!this.ordered) {
+            return this.action;
+        }
+
+        final String key = msg.getKey();
+        final boolean tombstone = BulkBodyWriter.isTombstone(msg);
+        if (key == null || key.isEmpty()) {
+            /* can only be a new document */
+            return tombstone ? null : BulkBodyWriter.Actions.INDEX;
+        }
+        return tombstone ? BulkBodyWriter.Actions.DELETE : this.action;
+    }
+
+    /* splits the batch into bulks of at most maxContentLength bytes, a single larger item goes alone;
+       with a shard layout there are also separate bulks for the items of each node holding primaries */
+    ArrayList<PendingBulk<T>> prepare(final Consumer<T> consumer, final AckStage.Ticket<T> ticket, final Messages<T> msgs, final long trace) throws Exception {
+        final long startNanos = System.nanoTime();
+        final ArrayList<Message<T>> share = this.share(msgs);
+        this.tracer.dispatched(trace, share.size());
+        final ShardLayout layout = this.router == null ? null : this.router.getLayout();
+        /* slot 0 takes the items that can't be routed, slot n + 1 the ones for node n */
+        final int nSlots = layout == null ? 1 : layout.size() + 1;
+        this.resetSlots(nSlots);
+        final ArrayList<PendingBulk<T>> bulks = new ArrayList<>(nSlots);
+        int skipped = 0;
+        this.written.clear();
+        for (final Message<T> msg : share) {
+            final BulkBodyWriter.Actions action = this.action(msg);
+            if (action == null) {
+                this.ack(consumer, ticket, msg.getMessageId());
+                ++skipped;
+                continue;
+            }
+
+            final int slot;
+            final int mark;
+            final boolean hasId;
+            if (layout == null) {
+                slot = 0;
+                this.bodyWriter.begin(this.openSlot(slot, consumer, ticket, bulks).getBuffer());
+                mark = this.bodyWriter.mark();
+                hasId = this.bodyWriter.writeAction(action, this.indexWriter, this.idWriter, msg);
+            } else {
+                /* the node is known once the id is written, stage the action line until then */
+                this.staging.reset();
+                this.bodyWriter.begin(this.staging);
+                hasId = this.bodyWriter.writeAction(action, this.indexWriter, this.idWriter, msg);
+                slot = !hasId ? 0 : layout.node(this.staging.array(), this.bodyWriter.idOffset(), this.bodyWriter.idLength()) + 1;
+                mark = this.bodyWriter.transferTo(this.openSlot(slot, consumer, ticket, bulks).getBuffer());
+            }
+
+            PendingBulk<T> bulk = this.slots[slot];
+            final DocIdSet docIds = this.docIds[slot];
+            long key = 0;
+            if (hasId && this.idCache != null) {
+                key = IndexedIdCache.key(bulk.getBuffer().array(), this.bodyWriter.keyOffset(), this.bodyWriter.keyLength());
+                if (this.idCache.contains(key)) {
+                    /* indexed by an earlier batch, a redelivery elasticsearch would reject anyway */
+                    this.bodyWriter.rewind(mark);
+                    this.ack(consumer, ticket, msg.getMessageId());
+                    ++skipped;
+                    continue;
+                }
+            }
+            boolean repeated = false;
+            if (hasId && this.compacting) {
+                /* across the bulks of the batch, a newer write of the document was already written */
+                if (!this.written.add(IndexedIdCache.key(bulk.getBuffer().array(), this.bodyWriter.keyOffset(), this.bodyWriter.keyLength()))) {
+                    this.bodyWriter.rewind(mark);
+                    this.ack(consumer, ticket, msg.getMessageId());
+                    this.compacted.inc();
+                    ++skipped;
+                    continue;
+                }
+            } else if (hasId && this.ordered) {
+                /* a later write of the document goes to a later bulk, so that a retry of the earlier one can't
+                   land after it */
+                repeated = !docIds.add(this.bodyWriter.keyOffset(), this.bodyWriter.keyLength());
+            } else if (hasId && !docIds.add(this.bodyWriter.keyOffset(), this.bodyWriter.keyLength())) {
+                this.bodyWriter.rewind(mark);
+                this.ack(consumer, ticket, msg.getMessageId());
+                ++skipped;
+                continue;
+            }
+            try {
+                this.bodyWriter.writeSource(action, this.sourceWriter, msg);
+            } catch (DecodeException e) {
+                /* a payload its schema can't read, redelivery takes it to the dead letter topic when there is one.
+                   In index mode its older writes still count as superseded, redelivery brings the newest back.
+                   Other failures, like a schema lookup, fail the whole batch */
+                this.bodyWriter.rewind(mark);
+                if (hasId && !this.compacting && !repeated) {
+                    docIds.removeLast();
+                }
+                BatchHandler.logger.warn("can't write message " + msg.getMessageId() + ": " + e.getMessage());
+                this.nack(consumer, ticket, msg.getMessageId());
+                continue;
+            }
+
+            int itemOffset = mark;
+            if ((repeated || this.bodyWriter.mark() > this.maxContentLength) && !bulk.getItemIds().isEmpty()) {
+                /* move the item that did not fit, or that repeats a document, to a new bulk */
+                final BulkBuffer full = bulk.getBuffer();
+                bulk = new PendingBulk<>(consumer, ticket, this.bufferPool.acquire(), bulk.getNode());
+                bulks.add(bulk);
+                this.slots[slot] = bulk;
+                bulk.getBuffer().write(full.array(), mark, full.length() - mark);
+                full.truncate(mark);
+                docIds.clear(bulk.getBuffer());
+                if (hasId) {
+                    docIds.add(this.bodyWriter.keyOffset() - mark, this.bodyWriter.keyLength());
+                }
+                itemOffset = 0;
+            }
+            bulk.addItem(msg.getMessageId(), itemOffset, key);
+        }
+        share.clear();
+
+        /* all the items of a bulk may have been skipped or nacked */
+        bulks.removeIf(bulk -> {
+            if (!bulk.getItemIds().isEmpty()) {
+                bulk.setTrace(trace);
+                return false;
+            }
+            this.bufferPool.release(bulk.getBuffer());
+            return true;
+        });
+        this.ok.inc(skipped);
+        Stages.observe(this.serializeTime, startNanos);
+        return bulks;
+    }
+
+    private void resetSlots(final int nSlots) {
+        if (this.slots.length < nSlots) {
+            this.slots = Arrays.copyOf(this.slots, nSlots);
+            this.docIds = Arrays.copyOf(this.docIds, nSlots);
+        }
+        Arrays.fill(this.slots, null);
+    }
+
+    private PendingBulk<T> openSlot(final int slot, final Consumer<T> consumer, final AckStage.Ticket<T> ticket, final ArrayList<PendingBulk<T>> bulks) {
+        PendingBulk<T> bulk = this.slots[slot];
+        if (bulk != null) {
+            return bulk;
+        }
+
+        bulk = new PendingBulk<>(consumer, ticket, this.bufferPool.acquire(), slot - 1);
+        bulks.add(bulk);
+        this.slots[slot] = bulk;
+        if (this.docIds[slot] == null) {
+            this.docIds[slot] = new DocIdSet(1024);
+        }
+        this.docIds[slot].clear(bulk.getBuffer());
+        return bulk;
+    }
+
+    private Request request(final PendingBulk<T> bulk) {
+        final Request request = new Request("PUT", this.endpoint);
+        request.addParameter("filter_path", BulkResponseParser.FILTER_PATH);
+        request.setEntity(BulkBodyWriter.toEntity(bulk.getBuffer()));
+        if (this.router != null) {
+            (bulk.getNode() >= 0 ? this.routedItems : this.unroutedItems).inc(bulk.getItemIds().size());
+        }
+        bulk.markSent();
+        this.tracer.sent(bulk.getTrace(), bulk.getNode(), bulk.getItemIds().size(), bulk.getBuffer().length(), bulk.getAttempt());
+        return request;
+    }
+
+    private void dispatchAsync(final PendingBulk<T> bulk, final Request request) throws Exception {
+        this.dispatcher.performAsync(bulk.getNode(), request, new ResponseListener() {
+            @Override
+            public void onSuccess(Response response) {
+                try {
+                    BatchHandler.this.complete(bulk, response);
+                } catch (Exception e) {
+                    BatchHandler.this.exceptionHandler.handleEventException(e, -1L, null);
+                } finally {
+                    BatchHandler.this.finish(bulk);
+                }
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                try {
+                    if (!(e instanceof ResponseException re && BatchHandler.this.reject(bulk, re))) {
+                        BatchHandler.this.exceptionHandler.handleEventException(e, -1L, null);
                     }
+                } finally {
+                    BatchHandler.this.finish(bulk);
+                }
+            }
+        });
+    }
+
+    private void finish(final PendingBulk<T> bulk) {
+        if (bulk.getRetryBytes() > 0) {
+            /* retry buffers are sized to their items, not worth pooling */
+            this.retryQueue.release(bulk.getRetryBytes());
+        } else {
+            this.bufferPool.release(bulk.getBuffer());
+        }
+        this.processingTime.observe((System.nanoTime() - bulk.getStartNanos()) / 1e9);
+    }
+
+    /* retries or nacks the whole bulk when elasticsearch refused it for its size or load, returns false for other errors */
+    private boolean reject(final PendingBulk<T> bulk, final ResponseException e) {
+        final int status = e.getResponse().getStatusLine().getStatusCode();
+        final long latencyNanos = System.nanoTime() - bulk.getSentNanos();
+        this.httpTime.observe(latencyNanos / 1e9);
+        BatchHandler.elasticsearchBatchResult.labels(
+                this.pipeline,
+                String.valueOf(status),
+                e.getResponse().getStatusLine().getReasonPhrase()
+        ).inc();
+
+        if (status != HttpStatus.SC_REQUEST_TOO_LONG && !BatchHandler.isRetriable(status, null)) {
+            return false;
+        }
+        final int n = bulk.getItemIds().size();
+        this.tracer.parsed(bulk.getTrace(), status, n, true, latencyNanos);
+
+        if (this.sizer != null) {
+            this.sizer.onRejected();
+        }
+        if (status != HttpStatus.SC_REQUEST_TOO_LONG) {
+            this.dispatcher.onResponse(latencyNanos, true);
+        }
+        if (status != HttpStatus.SC_REQUEST_TOO_LONG) {
+            final int[] items = new int[n];
+            for (int i = 0; i < n; ++i) {
+                items[i] = i;
+            }
+            if (this.retry(bulk, items, n)) {
+                this.tracer.acked(bulk.getTrace(), 0, 0, n);
+                return true;
+            }
+        }
+        for (final MessageId id : bulk.getItemIds()) {
+            this.nack(bulk, id);
+        }
+        this.tracer.acked(bulk.getTrace(), 0, n, 0);
+        return true;
+    }
+
+    /* resends the given items of bulk after a backoff, false when they are out of attempts or retry memory */
+    private boolean retry(final PendingBulk<T> bulk, final int[] items, final int n) {
+        if (this.retryQueue == null) {
+            return false;
+        }
+        if (bulk.getAttempt() >= this.retryQueue.getMaxAttempts()) {
+            this.retryQueue.exhausted(n);
+            return false;
+        }
+
+        long bytes = 0;
+        for (int i = 0; i < n; ++i) {
+            bytes += bulk.itemLength(items[i]);
+        }
+        if (!this.retryQueue.tryReserve(bytes, n)) {
+            return false;
+        }
+
+        /* the failed items are copied out, the original buffer goes back to the pool */
+        final PendingBulk<T> retry = new PendingBulk<>(bulk.getConsumer(), bulk.getTicket(), new BulkBuffer((int) bytes), bulk.getNode(), bulk.getAttempt() + 1, bytes);
+        retry.setTrace(bulk.getTrace());
+        final byte[] src = bulk.getBuffer().array();
+        for (int i = 0; i < n; ++i) {
+            retry.addItem(bulk.getItemIds().get(items[i]), retry.getBuffer().length(), bulk.itemKey(items[i]));
+            retry.getBuffer().write(src, bulk.itemOffset(items[i]), bulk.itemLength(items[i]));
+        }
+        if (this.ordered) {
+            this.retries.add(retry);
+        } else if (!this.retryQueue.schedule(retry.getAttempt(), () -> this.send(retry))) {
+            /* the pipeline is stopping, the items are nacked */
+            this.retryQueue.release(bytes);
+            return false;
+        }
+        return true;
+    }
+
+    /* sends a bulk prepared earlier, always asynchronously */
+    void send(final PendingBulk<T> bulk) {
+        try {
+            this.dispatchAsync(bulk, this.request(bulk));
+        } catch (Exception e) {
+            this.finish(bulk);
+            this.exceptionHandler.handleEventException(e, -1L, null);
+        }
+    }
+
+    /* adds the ids of items [from, to) elasticsearch now has to the cross batch cache */
+    private void remember(final PendingBulk<T> bulk, final int from, final int to) {
+        if (this.idCache == null) {
+            return;
+        }
+        for (int i = from; i < to; ++i) {
+            if (bulk.itemKey(i) != 0) {
+                this.idCache.add(bulk.itemKey(i));
+            }
+        }
+    }
+
+    /* through the ack stage when there is one, blocking on the consumer otherwise */
+    private void ack(final Consumer<T> consumer, final AckStage.Ticket<T> ticket, final MessageId id) throws PulsarClientException {
+        if (this.ackStage != null) {
+            this.ackStage.ack(consumer, ticket, id);
+        } else {
+            consumer.acknowledge(id);
+        }
+    }
+
+    private void nack(final PendingBulk<T> bulk, final MessageId id) {
+        this.nack(bulk.getConsumer(), bulk.getTicket(), id);
+    }
+
+    private void nack(final Consumer<T> consumer, final AckStage.Ticket<T> ticket, final MessageId id) {
+        consumer.negativeAcknowledge(id);
+        MessageId idB = Id.messageIdBatchFix(id);
+        if (!id.equals(idB)) {
+            consumer.negativeAcknowledge(idB);
+        }
+        if (this.ackStage != null) {
+            this.ackStage.nacked(consumer, ticket, id);
+        }
+        this.ko.inc();
+    }
+
+    private void complete(final PendingBulk<T> bulk, final Response response) throws Exception {
+        final int status = response.getStatusLine().getStatusCode();
+        final long latencyNanos = System.nanoTime() - bulk.getSentNanos();
+        this.httpTime.observe(latencyNanos / 1e9);
+
+        if (status == HttpStatus.SC_OK && "OK".equals(response.getStatusLine().getReasonPhrase())) {
+            this.okBatches.inc();
+        } else {
+            BatchHandler.elasticsearchBatchResult.labels(
+                    this.pipeline,
+                    String.valueOf(status),
+                    response.getStatusLine().getReasonPhrase()
+            ).inc();
+        }
+
+        if (status != HttpStatus.SC_OK) {
+            throw new Exception("Bad response: " + response.getStatusLine().getStatusCode());
+        }
 
-                    final String bulkItem = new String(this.schema.encode(msg.getValue()));
-                    bulkRequestBody.append(actionMetadata);
-                    bulkRequestBody.append(bulkItem);
-                    bulkRequestBody.append("\n");
+        final Consumer<T> consumer = bulk.getConsumer();
+        final ArrayList<MessageId> itemIds = bulk.getItemIds();
+        final long parseNanos = System.nanoTime();
+        /* create items all come back 201 when there are no errors, index, update and delete ones may be 200 or 201 */
+        final BulkResult result = BulkResponseParser.parse(response.getEntity().getContent(), this.ordered);
+        Stages.observe(this.parseTime, parseNanos);
+        this.tracer.parsed(bulk.getTrace(), status, result.size(), result.hasErrors(), latencyNanos);
+
+        try (Histogram.Timer ignored = this.ackTime.startTimer()) {
+            if (!result.hasErrors()) {
+                if (this.sizer != null) {
+                    this.sizer.onBulk(latencyNanos, 0);
+                }
+                this.dispatcher.onResponse(latencyNanos, false);
+                if (!this.ordered) {
+                    this.createdEvents.inc(itemIds.size());
+                } else {
+                    final ResultCounts counts = new ResultCounts();
+                    for (int i = 0; i < result.size(); ++i) {
+                        counts.add(result.status(i), null);
+                    }
+                    counts.flush(this.pipeline);
+                }
+                this.remember(bulk, 0, itemIds.size());
+                if (this.ackStage != null) {
+                    this.ackStage.ack(consumer, bulk.getTicket(), itemIds);
+                } else {
+                    consumer.acknowledge(itemIds);
                 }
+                this.ok.inc(itemIds.size());
+                this.tracer.acked(bulk.getTrace(), itemIds.size(), 0, 0);
+                return;
+            }
 
-                final HttpEntity entity = new NStringEntity(bulkRequestBody.toString(), ContentType.APPLICATION_JSON);
-                final Request request = new Request("PUT", this.endpoint);
-                request.setEntity(entity);
-
-                final Response response;
-                response = this.producer.performRequest(request);
-                final int status = response.getStatusLine().getStatusCode();
-
-                BatchHandler.elasticsearchBatchResult.labels(
-                        String.valueOf(status),
-                        response.getStatusLine().getReasonPhrase()
-                ).inc();
-
-                if (status == HttpStatus.SC_OK) {
-                    final JsonParser parser = this.mapper.jsonProvider().createParser(response.getEntity().getContent());
-                    final BulkResponse bResp = BulkResponse._DESERIALIZER.deserialize(parser, this.mapper);
-
-                    try (Summary.Timer ignored1 = BatchHandler.ackingTime.startTimer()) {
-                        boolean hasErrors = false;
-                        for (BulkResponseItem item : bResp.items()) {
-                            if (!hasErrors && !BatchHandler.okRule.test(item)) {
-                                hasErrors = true;
-                            }
-                            BatchHandler.elasticsearchEventsResult.labels(
-                                    String.valueOf(item.status()),
-                                    item.error() == null ? "" : item.error().type()
-                            ).inc();
-                        }
+            if (result.size() != itemIds.size()) {
+                throw new Exception("Bad response: " + result.size() + " items for " + itemIds.size() + " requested");
+            }
 
-                        if (!hasErrors && !bResp.errors()) {
-                            this.consumer.acknowledge(event.getMessages());
-                            BatchHandler.eventsOk.inc(event.getMessages().size());
-                        } else {
-                            BatchHandler.unrolledBatches.inc();
-                            int nullid = 0;
-                            for (BulkResponseItem item : bResp.items()) {
-                                MessageId id;
-                                if (idMap.containsKey(item.id())) {
-                                    id = idMap.get(item.id());
-                                } else {
-                                    id = nullIDsList.get(nullid);
-                                    ++nullid;
-                                }
-
-                                if (BatchHandler.okRule.test(item)) {
-                                    this.consumer.acknowledge(id);
-                                    BatchHandler.eventsOk.inc();
-                                } else {
-                                    this.consumer.negativeAcknowledge(id);
-                                    MessageId idB = Id.messageIdBatchFix(id);
-                                    if (!id.equals(idB)) {
-                                        this.consumer.negativeAcknowledge(idB);
-                                    }
-                                    BatchHandler.eventsKo.inc();
-                                }
-                            }
+            this.unrolled.inc();
+            int rejected = 0;
+            int[] retriable = null;
+            int nRetriable = 0;
+            int nOk = 0;
+            final ResultCounts counts = new ResultCounts();
+            for (int i = 0; i < result.size(); ++i) {
+                final String errorType = result.errorType(i);
+                counts.add(result.status(i), errorType);
+
+                final MessageId id = itemIds.get(i);
+                if (BatchHandler.isOk(errorType)) {
+                    this.remember(bulk, i, i + 1);
+                    this.ack(consumer, bulk.getTicket(), id);
+                    ++nOk;
+                } else {
+                    if (result.status(i) == BatchHandler.SC_TOO_MANY_REQUESTS) {
+                        ++rejected;
+                    }
+                    if (this.retryQueue != null && BatchHandler.isRetriable(result.status(i), errorType)) {
+                        if (retriable == null) {
+                            retriable = new int[result.size() - i];
                         }
+                        retriable[nRetriable++] = i;
+                    } else {
+                        this.nack(bulk, id);
                     }
-                } else {
-                    throw new Exception("Bad response: " + response.getStatusLine().getStatusCode());
                 }
             }
-        } finally {
-            event.clear();
+            this.ok.inc(nOk);
+            counts.flush(this.pipeline);
+            final boolean retried = nRetriable > 0 && this.retry(bulk, retriable, nRetriable);
+            if (nRetriable > 0 && !retried) {
+                for (int i = 0; i < nRetriable; ++i) {
+                    this.nack(bulk, itemIds.get(retriable[i]));
+                }
+            }
+            this.tracer.acked(bulk.getTrace(), nOk, itemIds.size() - nOk - (retried ? nRetriable : 0), retried ? nRetriable : 0);
+            if (this.sizer != null) {
+                this.sizer.onBulk(latencyNanos, rejected);
+            }
+            this.dispatcher.onResponse(latencyNanos, rejected > 0);
         }
     }
 }
@@ -1,7 +1,8 @@
 package io.xboshy.pulsar;
 
 import io.xboshy.pulsar.impl.MessagesImpl;
-import io.prometheus.client.Summary;
+import io.xboshy.pulsar.utils.Buckets;
+import io.prometheus.client.Histogram;
 import org.apache.pulsar.client.api.BatchReceivePolicy;
 import org.apache.pulsar.client.api.Consumer;
 import org.apache.pulsar.client.api.Message;
@@ -11,32 +12,35 @@ import java.util.concurrent.TimeUnit;
 public class BatchReceiver<T> {
     final Consumer<T> consumer;
     final BatchReceivePolicy batchReceivePolicy;
-    private static final Summary messageWaitTime = Summary.build()
+    private final Histogram.Child messageWait;
+    private static final Histogram messageWaitTime = Histogram.build()
             .name("message_wait_time")
             .help("message_wait_time")
-            .quantile(0.50, 0.005)
-            .quantile(0.80, 0.005)
-            .quantile(0.90, 0.005)
-            .quantile(0.95, 0.005)
-            .quantile(0.99, 0.005)
+            .labelNames("pipeline")
+            .buckets(Buckets.SECONDS)
             .register();
 
-    public BatchReceiver(Consumer<T> consumer, BatchReceivePolicy batchReceivePolicy) {
+    public BatchReceiver(String pipeline, Consumer<T> consumer, BatchReceivePolicy batchReceivePolicy) {
         this.consumer = consumer;
         this.batchReceivePolicy = batchReceivePolicy;
+        this.messageWait = BatchReceiver.messageWaitTime.labels(pipeline);
     }
 
     public MessagesImpl<T> batchReceive(final Consumer<T> consumer, final MessagesImpl<T> messages) throws Exception {
         final long timeoutConf = this.batchReceivePolicy.getTimeoutMs();
         final MessagesImpl<T> overflowMessages = new MessagesImpl<>(
-                this.batchReceivePolicy.getMaxNumMessages(),
-                this.batchReceivePolicy.getMaxNumBytes()
+                messages.getMaxNumberOfMessages(),
+                messages.getMaxSizeOfMessages()
         );
 
         Message<T> msg;
         if (messages.size() == 0) {
-            try (final Summary.Timer ignored = BatchReceiver.messageWaitTime.startTimer()) {
-                msg = consumer.receive();
+            /* bounded wait so the caller can check for shutdown */
+            try (final Histogram.Timer ignored = this.messageWait.startTimer()) {
+                msg = consumer.receive((int) timeoutConf, TimeUnit.MILLISECONDS);
+            }
+            if (msg == null) {
+                return overflowMessages;
             }
             messages.add(msg);
         }
@@ -46,7 +50,7 @@ public class BatchReceiver<T> {
         while (!full) {
             final int delta = (int) (age >= timeoutConf ? 0 : timeoutConf - age);
 
-            try (final Summary.Timer ignored = BatchReceiver.messageWaitTime.startTimer()) {
+            try (final Histogram.Timer ignored = this.messageWait.startTimer()) {
                 msg = consumer.receive(delta, TimeUnit.MILLISECONDS);
             }
             if (msg == null) {
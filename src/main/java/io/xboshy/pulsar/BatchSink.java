@@ -0,0 +1,19 @@
+package io.xboshy.pulsar;
+
+import org.apache.pulsar.client.api.Consumer;
+import org.apache.pulsar.client.api.Messages;
+
+/* Where receivers hand their batches over to the workers */
+public interface BatchSink<T> {
+    /* blocks until a worker slot is free, returns its sequence */
+    long claim() throws Exception;
+
+    /* a free sequence, -1 when every worker is busy */
+    long tryClaim();
+
+    /* label of the metrics measuring the handoff */
+    String getProfile();
+
+    /* must be called once for every claimed sequence, msgs may be null or empty, trace is 0 unless it is sampled */
+    void publish(long sequence, Consumer<T> consumer, Messages<T> msgs, AckStage.Ticket<T> ticket, long trace);
+}
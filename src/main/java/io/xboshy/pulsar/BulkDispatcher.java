@@ -0,0 +1,140 @@
+package io.xboshy.pulsar;
+
+import io.prometheus.client.Gauge;
+import org.elasticsearch.client.Request;
+import org.elasticsearch.client.Response;
+import org.elasticsearch.client.ResponseListener;
+import org.elasticsearch.client.RestClient;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+public class BulkDispatcher {
+    private final RestClient producer;
+    private final RestClient[] nodeProducers;
+    private final ConcurrencyLimiter limiter;
+    private final Tuning tuning;
+    private final Semaphore window;
+    private final int windowSize;
+    private final Gauge.Child inflight;
+    private static final Gauge inflightRequests = Gauge.build()
+            .name("inflight_bulk_requests")
+            .help("inflight_bulk_requests")
+            .labelNames("pipeline")
+            .register();
+
+    public BulkDispatcher(final RestClient producer, final int windowSize) {
+        this("", producer, null, windowSize, null, null);
+    }
+
+    /* nodeProducers[i] only talks to the i-th configured host, for bulks routed to the node holding their primaries;
+       a limiter further bounds the requests in flight, sync or async. With tuning, requests take its timeouts
+       rather than the client's */
+    public BulkDispatcher(final String pipeline, final RestClient producer, final RestClient[] nodeProducers, final int windowSize, final ConcurrencyLimiter limiter, final Tuning tuning) {
+        this.producer = producer;
+        this.nodeProducers = nodeProducers;
+        this.limiter = limiter;
+        this.tuning = tuning;
+        this.windowSize = windowSize;
+        this.window = new Semaphore(windowSize);
+        this.inflight = BulkDispatcher.inflightRequests.labels(pipeline);
+    }
+
+    public Response perform(final Request request) throws Exception {
+        return this.perform(-1, request);
+    }
+
+    public Response perform(final int node, final Request request) throws Exception {
+        this.setOptions(request);
+        if (this.limiter == null) {
+            return this.producer(node).performRequest(request);
+        }
+
+        this.limiter.acquire();
+        try {
+            return this.producer(node).performRequest(request);
+        } finally {
+            this.limiter.release();
+        }
+    }
+
+    /* round trip of a completed bulk, dropped when elasticsearch rejected all or part of it */
+    public void onResponse(final long latencyNanos, final boolean dropped) {
+        if (this.limiter != null) {
+            this.limiter.onSample(latencyNanos, dropped);
+        }
+    }
+
+    public void performAsync(final Request request, final ResponseListener listener) throws InterruptedException {
+        this.performAsync(-1, request, listener);
+    }
+
+    /* blocks the caller while the window is full, the listener always frees its slot */
+    public void performAsync(final int node, final Request request, final ResponseListener listener) throws InterruptedException {
+        this.setOptions(request);
+        this.window.acquire();
+        if (this.limiter != null) {
+            try {
+                this.limiter.acquire();
+            } catch (InterruptedException e) {
+                this.window.release();
+                throw e;
+            }
+        }
+        this.inflight.inc();
+        try {
+            this.producer(node).performRequestAsync(request, new ResponseListener() {
+                @Override
+                public void onSuccess(Response response) {
+                    try {
+                        listener.onSuccess(response);
+                    } finally {
+                        BulkDispatcher.this.releaseSlot();
+                    }
+                }
+
+                @Override
+                public void onFailure(Exception e) {
+                    try {
+                        listener.onFailure(e);
+                    } finally {
+                        BulkDispatcher.this.releaseSlot();
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            this.releaseSlot();
+            throw e;
+        }
+    }
+
+    public boolean awaitIdle(final long timeout, final TimeUnit unit) throws InterruptedException {
+        if (!this.window.tryAcquire(this.windowSize, timeout, unit)) {
+            return false;
+        }
+
+        this.window.release(this.windowSize);
+        return true;
+    }
+
+    private void setOptions(final Request request) {
+        if (this.tuning != null) {
+            request.setOptions(this.tuning.getRequestOptions());
+        }
+    }
+
+    private RestClient producer(final int node) {
+        if (node < 0 || this.nodeProducers == null) {
+            return this.producer;
+        }
+        return this.nodeProducers[node];
+    }
+
+    private void releaseSlot() {
+        if (this.limiter != null) {
+            this.limiter.release();
+        }
+        this.inflight.dec();
+        this.window.release();
+    }
+}
@@ -0,0 +1,176 @@
+package io.xboshy.pulsar;
+
+import io.prometheus.client.Gauge;
+
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/* Vegas style limit on concurrent bulk requests: the limit grows while round trips stay close to the
+   lowest seen and shrinks when they queue up or elasticsearch rejects bulks. Like TCP Vegas it moves
+   at most once per round trip, from the best sample of that window. A fixed limiter stays at its max,
+   which the admin api may move */
+public class ConcurrencyLimiter {
+    /* windows after which the no-load round trip is measured again, so it can follow a slower cluster */
+    private static final int PROBE_WINDOWS = 100;
+
+    private final int minLimit;
+    private final boolean adaptive;
+    private int maxLimit;
+    private final ReentrantLock lock;
+    private final Condition released;
+    private int limit;
+    private int inflight;
+    private long rttNoLoad;
+    private long windows;
+    private long windowStart;
+    private long windowMinRtt;
+    private boolean windowDropped;
+    private int windowMaxInflight;
+    private final Gauge.Child limitGauge;
+    private final Gauge.Child inflightGauge;
+    private static final Gauge concurrencyLimit = Gauge.build()
+            .name("concurrency_limit")
+            .help("concurrency_limit")
+            .labelNames("pipeline")
+            .register();
+    private static final Gauge concurrencyInflight = Gauge.build()
+            .name("concurrency_inflight")
+            .help("concurrency_inflight")
+            .labelNames("pipeline")
+            .register();
+
+    public ConcurrencyLimiter(final String pipeline, final int minLimit, final int maxLimit, final int initialLimit) {
+        this(pipeline, minLimit, maxLimit, initialLimit, true);
+    }
+
+    public ConcurrencyLimiter(final String pipeline, final int minLimit, final int maxLimit, final int initialLimit, final boolean adaptive) {
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.adaptive = adaptive;
+        this.lock = new ReentrantLock();
+        this.released = this.lock.newCondition();
+        this.limit = adaptive ? Math.max(minLimit, Math.min(maxLimit, initialLimit)) : maxLimit;
+        this.inflight = 0;
+        this.rttNoLoad = 0;
+        this.windows = 0;
+        this.resetWindow(System.nanoTime());
+        this.limitGauge = ConcurrencyLimiter.concurrencyLimit.labels(pipeline);
+        this.inflightGauge = ConcurrencyLimiter.concurrencyInflight.labels(pipeline);
+        this.limitGauge.set(this.limit);
+    }
+
+    public void acquire() throws InterruptedException {
+        this.lock.lock();
+        try {
+            while (this.inflight >= this.limit) {
+                this.released.await();
+            }
+            ++this.inflight;
+            this.inflightGauge.inc();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    public void release() {
+        this.lock.lock();
+        try {
+            --this.inflight;
+            this.inflightGauge.dec();
+            this.released.signal();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    public int getLimit() {
+        return this.limit;
+    }
+
+    /* requests in flight above the new max finish, no new one starts until they are below it */
+    public void setMaxLimit(final int maxLimit) {
+        this.lock.lock();
+        try {
+            final int previous = this.limit;
+            this.maxLimit = Math.max(this.minLimit, maxLimit);
+            this.limit = this.adaptive ? Math.min(this.limit, this.maxLimit) : this.maxLimit;
+            this.limitGauge.set(this.limit);
+            if (this.limit > previous) {
+                this.released.signalAll();
+            }
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /* rttNanos of a completed bulk, dropped when elasticsearch rejected all or part of it */
+    public void onSample(final long rttNanos, final boolean dropped) {
+        this.onSample(rttNanos, dropped, System.nanoTime());
+    }
+
+    /* now as System.nanoTime() reads it, given by the tests to close windows when they want */
+    void onSample(final long rttNanos, final boolean dropped, final long now) {
+        if (!this.adaptive) {
+            return;
+        }
+        this.lock.lock();
+        try {
+            this.windowMinRtt = Math.min(this.windowMinRtt, Math.max(rttNanos, 1));
+            this.windowDropped |= dropped;
+            this.windowMaxInflight = Math.max(this.windowMaxInflight, this.inflight);
+            if (now - this.windowStart < Math.max(this.rttNoLoad, this.windowMinRtt)) {
+                return;
+            }
+
+            final int previous = this.limit;
+            this.limit = this.update();
+            this.resetWindow(now);
+            this.limitGauge.set(this.limit);
+            if (this.limit > previous) {
+                this.released.signalAll();
+            }
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    private void resetWindow(final long now) {
+        this.windowStart = now;
+        this.windowMinRtt = Long.MAX_VALUE;
+        this.windowDropped = false;
+        this.windowMaxInflight = 0;
+    }
+
+    private int update() {
+        final long rtt = this.windowMinRtt;
+        if (this.rttNoLoad == 0 || ++this.windows > ConcurrencyLimiter.PROBE_WINDOWS) {
+            this.rttNoLoad = rtt;
+            this.windows = 0;
+        } else if (rtt < this.rttNoLoad) {
+            this.rttNoLoad = rtt;
+        }
+
+        final int log10 = Math.max(1, (int) Math.log10(this.limit));
+        if (this.windowDropped) {
+            return Math.max(this.minLimit, this.limit - Math.max(log10, this.limit / 10));
+        }
+        /* not enough load to tell anything about the limit */
+        if (this.windowMaxInflight * 2 < this.limit) {
+            return this.limit;
+        }
+
+        /* requests queued in elasticsearch rather than being served */
+        final int queueSize = (int) Math.ceil(this.limit * (1.0 - (double) this.rttNoLoad / rtt));
+        final int alpha = 3 * log10;
+        final int beta = 6 * log10;
+        int newLimit = this.limit;
+        if (queueSize <= log10) {
+            newLimit = this.limit + beta;
+        } else if (queueSize < alpha) {
+            newLimit = this.limit + log10;
+        } else if (queueSize > beta) {
+            newLimit = this.limit - log10;
+        }
+        return Math.max(this.minLimit, Math.min(this.maxLimit, newLimit));
+    }
+}
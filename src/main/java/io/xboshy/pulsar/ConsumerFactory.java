@@ -4,20 +4,47 @@ import io.xboshy.pulsar.config.GlobalConfig;
 import io.xboshy.pulsar.config.PulsarClientConfig;
 import io.xboshy.pulsar.config.PulsarConsumerConfig;
 import org.apache.pulsar.client.api.*;
+import org.apache.pulsar.client.impl.PulsarClientImpl;
+import org.apache.pulsar.common.naming.TopicName;
+import org.apache.pulsar.common.schema.SchemaInfo;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 public class ConsumerFactory<T> {
+    /* the default of the pulsar client */
+    private static final int DEFAULT_OPERATION_TIMEOUT = 30000;
+
     private final PulsarClient client;
+    private final int operationTimeoutMs;
 
     public ConsumerFactory(final GlobalConfig globalConfig, final PulsarClientConfig pulsarClientConfig) throws Exception {
+        this.operationTimeoutMs = pulsarClientConfig.getIntValue("operationTimeoutMs", ConsumerFactory.DEFAULT_OPERATION_TIMEOUT);
         this.client = PulsarClient.builder()
                 .loadConf(pulsarClientConfig.getConfig())
                 .build();
     }
 
+    /* for stand-ins overriding getConsumer, without a pulsar client */
+    protected ConsumerFactory() {
+        this.client = null;
+        this.operationTimeoutMs = ConsumerFactory.DEFAULT_OPERATION_TIMEOUT;
+    }
+
     public Consumer<T> getConsumer(GlobalConfig globalConfig, PulsarConsumerConfig pulsarConsumerConfig, Schema<T> schema) throws Exception {
+        return this.getConsumer(globalConfig, pulsarConsumerConfig, schema, 0);
+    }
+
+    public Consumer<T> getConsumer(GlobalConfig globalConfig, PulsarConsumerConfig pulsarConsumerConfig, Schema<T> schema, int receiver) throws Exception {
         final ConsumerBuilder<T> consumerBuilder = this.client.newConsumer(schema)
                 .loadConf(pulsarConsumerConfig.getConfig());
 
+        final String consumerName = pulsarConsumerConfig.getStrValue("consumerName");
+        if (consumerName != null && globalConfig.getReceivers() > 1) {
+            consumerBuilder.consumerName(consumerName + "-" + receiver);
+        }
+
         final BatchReceivePolicy batchReceivePolicy = pulsarConsumerConfig.getBatchReceivePolicy();
         if (batchReceivePolicy != null) {
             consumerBuilder.batchReceivePolicy(batchReceivePolicy);
@@ -31,7 +58,24 @@ public class ConsumerFactory<T> {
         return consumerBuilder.subscribe();
     }
 
+    /* the schema a message was produced with, from the registry of the brokers, within PULSAR_CLIENT_operationTimeoutMs.
+       Failures are pulsar client exceptions so that the pipeline restarts its consumers */
+    public SchemaInfo getSchema(final String topic, final byte[] version) throws Exception {
+        try {
+            return ((PulsarClientImpl) this.client).getLookup().getSchema(TopicName.get(topic), version)
+                    .get(this.operationTimeoutMs, TimeUnit.MILLISECONDS)
+                    .orElse(null);
+        } catch (TimeoutException e) {
+            throw new PulsarClientException.TimeoutException("schema lookup of topic " + topic + " timed out after " + this.operationTimeoutMs + "ms");
+        } catch (ExecutionException e) {
+            throw PulsarClientException.unwrap(e.getCause());
+        }
+    }
+
     public void close() {
+        if (this.client == null) {
+            return;
+        }
         try {
             this.client.close();
         } catch (Exception e) {
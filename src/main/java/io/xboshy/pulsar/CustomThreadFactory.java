@@ -1,5 +1,6 @@
 package io.xboshy.pulsar;
 
+import net.openhft.affinity.Affinity;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
@@ -10,20 +11,40 @@ import java.util.concurrent.atomic.AtomicInteger;
 class CustomThreadFactory implements ThreadFactory {
     private static final Logger logger = LogManager.getLogger(CustomThreadFactory.class);
     private final String name;
+    private final int[] cpus;
     private final AtomicInteger id = new AtomicInteger(0);
 
 
     public CustomThreadFactory(final String name) {
+        this(name, null);
+    }
+
+    /* with cpus, each new thread is pinned to the next cpu of the list, round robin */
+    public CustomThreadFactory(final String name, final int[] cpus) {
         this.name = name == null ? "unamed-thread" : name;
+        this.cpus = cpus;
     }
 
     public Thread newThread(@Nullable final Runnable command) {
-        final String name = this.name + ": " + id.incrementAndGet();
-        String logmsg = String.format("\"step\": \"spawnthread\" , \"threadname\": %s", name);
+        final int id = this.id.incrementAndGet();
+        final String name = this.name + ": " + id;
+
+        Runnable runnable = command;
+        if (this.cpus != null) {
+            final int cpu = this.cpus[(id - 1) % this.cpus.length];
+            CustomThreadFactory.logger.info("\"step\": \"spawnthread\" , \"threadname\": {} , \"cpu\": {}", name, cpu);
+            runnable = () -> {
+                Affinity.setAffinity(cpu);
+                if (command != null) {
+                    command.run();
+                }
+            };
+        } else {
+            CustomThreadFactory.logger.info("\"step\": \"spawnthread\" , \"threadname\": {}", name);
+        }
 
-        final Thread thread = new Thread(command);
+        final Thread thread = new Thread(runnable);
         thread.setName(name);
-        CustomThreadFactory.logger.info(logmsg);
         thread.setDaemon(true);
         return thread;
     }
@@ -0,0 +1,130 @@
+package io.xboshy.pulsar;
+
+import io.xboshy.pulsar.bulk.BulkBuffer;
+import org.apache.pulsar.client.api.Consumer;
+import org.apache.pulsar.client.api.MessageId;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+public class PendingBulk<T> {
+    private final Consumer<T> consumer;
+    private final AckStage.Ticket<T> ticket;
+    private final BulkBuffer buffer;
+    private final int node;
+    private final int attempt;
+    private final long retryBytes;
+    private final ArrayList<MessageId> itemIds;
+    private int[] itemOffsets;
+    private long[] itemKeys;
+    private final long startNanos;
+    private long sentNanos;
+    private long trace;
+
+    public PendingBulk(final Consumer<T> consumer, final BulkBuffer buffer) {
+        this(consumer, null, buffer, -1);
+    }
+
+    public PendingBulk(final Consumer<T> consumer, final AckStage.Ticket<T> ticket, final BulkBuffer buffer, final int node) {
+        this(consumer, ticket, buffer, node, 0, 0);
+    }
+
+    /* retryBytes is what the bulk holds of the retry queue budget */
+    public PendingBulk(final Consumer<T> consumer, final AckStage.Ticket<T> ticket, final BulkBuffer buffer, final int node, final int attempt, final long retryBytes) {
+        this.consumer = consumer;
+        this.ticket = ticket;
+        this.buffer = buffer;
+        this.node = node;
+        this.attempt = attempt;
+        this.retryBytes = retryBytes;
+        this.itemIds = new ArrayList<>();
+        this.itemOffsets = new int[16];
+        this.itemKeys = new long[16];
+        this.startNanos = System.nanoTime();
+    }
+
+    /* arrays of a generic type can only be made raw, the cast is safe as long as they hold PendingBulk<T> only */
+    @SuppressWarnings("unchecked")
+    static <T> PendingBulk<T>[] array(final int length) {
+        return (PendingBulk<T>[]) new PendingBulk<?>[length];
+    }
+
+    public Consumer<T> getConsumer() {
+        return this.consumer;
+    }
+
+    /* the received batch the items come from, null when acks are not cumulative */
+    public AckStage.Ticket<T> getTicket() {
+        return this.ticket;
+    }
+
+    public BulkBuffer getBuffer() {
+        return this.buffer;
+    }
+
+    /* index of the configured host to send the bulk to, -1 to let the client pick one */
+    public int getNode() {
+        return this.node;
+    }
+
+    /* number of earlier sends of these items, 0 for a first send */
+    public int getAttempt() {
+        return this.attempt;
+    }
+
+    public long getRetryBytes() {
+        return this.retryBytes;
+    }
+
+    /* message id of each bulk item, in request order */
+    public ArrayList<MessageId> getItemIds() {
+        return this.itemIds;
+    }
+
+    /* offset is where the item's action line starts in the buffer, key its IndexedIdCache key or 0 */
+    public void addItem(final MessageId id, final int offset, final long key) {
+        final int n = this.itemIds.size();
+        if (n == this.itemOffsets.length) {
+            this.itemOffsets = Arrays.copyOf(this.itemOffsets, n << 1);
+            this.itemKeys = Arrays.copyOf(this.itemKeys, n << 1);
+        }
+        this.itemOffsets[n] = offset;
+        this.itemKeys[n] = key;
+        this.itemIds.add(id);
+    }
+
+    public long itemKey(final int item) {
+        return this.itemKeys[item];
+    }
+
+    public int itemOffset(final int item) {
+        return this.itemOffsets[item];
+    }
+
+    /* bytes of the action and source lines of an item */
+    public int itemLength(final int item) {
+        final int end = item + 1 < this.itemIds.size() ? this.itemOffsets[item + 1] : this.buffer.length();
+        return end - this.itemOffsets[item];
+    }
+
+    public long getStartNanos() {
+        return this.startNanos;
+    }
+
+    public long getSentNanos() {
+        return this.sentNanos;
+    }
+
+    public void markSent() {
+        this.sentNanos = System.nanoTime();
+    }
+
+    /* trace id of the batch the items come from, 0 when it is not sampled */
+    public long getTrace() {
+        return this.trace;
+    }
+
+    public void setTrace(final long trace) {
+        this.trace = trace;
+    }
+}
@@ -0,0 +1,404 @@
+package io.xboshy.pulsar;
+
+import io.xboshy.pulsar.bulk.BulkBufferPool;
+import io.xboshy.pulsar.bulk.IndexedIdCache;
+import io.xboshy.pulsar.config.*;
+import io.xboshy.pulsar.index.IndexWriters;
+import io.xboshy.pulsar.routing.ShardRouter;
+import io.xboshy.pulsar.source.SchemaCache;
+import com.lmax.disruptor.*;
+import com.lmax.disruptor.dsl.Disruptor;
+import com.lmax.disruptor.dsl.ProducerType;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.pulsar.client.api.BatchReceivePolicy;
+import org.apache.pulsar.client.api.Consumer;
+import org.apache.pulsar.client.api.Schema;
+import org.elasticsearch.client.RestClient;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/* One topic to index flow: its consumers, ring buffer, workers and everything between them. The pulsar and
+   elasticsearch clients are handed over by the app, which may run several pipelines on them */
+public class Pipeline {
+    private static final Logger logger = LogManager.getLogger(Pipeline.class);
+    private static final Schema<byte[]> SCHEMA = Schema.BYTES;
+    private static final EventFactory<Batch<byte[]>> EVENT_FACTORY = Batch::new;
+    private final String name;
+    private final GlobalConfig globalConfig;
+    private final PulsarClientConfig pulsarClientConfig;
+    private final PulsarConsumerConfig pulsarConsumerConfig;
+    private final ElasticsearchConfig elasticsearchConfig;
+    private final Supervisor supervisor;
+    private final boolean dynamicIndex;
+    private final Map<String, String> config;
+    /* with the admin api, the limiter and sizer are made in their fixed modes too so that it can move them */
+    private final boolean admin;
+    private final Tuning tuning;
+
+    /* supervisor is shared by the pipelines of the app, any of them failing stops them all */
+    public Pipeline(final String name, final Map<String, String> config, final Supervisor supervisor) throws Exception {
+        this.name = name;
+        this.supervisor = supervisor;
+        this.globalConfig = new GlobalConfig(config);
+        this.pulsarClientConfig = new PulsarClientConfig(config);
+        this.pulsarConsumerConfig = new PulsarConsumerConfig(config);
+        this.elasticsearchConfig = new ElasticsearchConfig(config);
+        this.config = config;
+        this.admin = new PrometheusConfig(config).getAdmin();
+        final BatchReceivePolicy batchReceivePolicy = this.pulsarConsumerConfig.getBatchReceivePolicy();
+        final boolean async = this.globalConfig.getDispatchMode() == GlobalConfig.DispatchModes.ASYNC;
+        this.tuning = new Tuning(
+                this.globalConfig.getConcurrencyLimitMin(),
+                async ? this.globalConfig.getInflightRequests() : this.globalConfig.getInflightBatches(),
+                async ? "GLOBAL_inflightRequests" : "GLOBAL_inflightBatches",
+                this.globalConfig.getConcurrencyLimitMax(),
+                batchReceivePolicy.getMaxNumMessages(),
+                batchReceivePolicy.getMaxNumBytes(),
+                this.elasticsearchConfig
+        );
+
+        if (this.globalConfig.getReceivers() > 1
+                && "Exclusive".equalsIgnoreCase(this.pulsarConsumerConfig.getSubscriptionType())) {
+            throw new Exception("GLOBAL_receivers > 1 needs a Shared, Key_Shared or Failover subscription");
+        }
+        /* a Shared subscription hands the messages of a key to any consumer, in any order */
+        final String subscriptionType = this.pulsarConsumerConfig.getSubscriptionType();
+        if (this.globalConfig.getWriteMode() != GlobalConfig.WriteModes.CREATE
+                && !"Exclusive".equalsIgnoreCase(subscriptionType)
+                && !"Failover".equalsIgnoreCase(subscriptionType)
+                && !"Key_Shared".equalsIgnoreCase(subscriptionType)) {
+            throw new Exception("GLOBAL_writeMode " + this.globalConfig.getWriteMode().name().toLowerCase() + " needs an Exclusive, Failover or Key_Shared subscription");
+        }
+
+        if (this.elasticsearchConfig.getShardRouting() && this.globalConfig.getIdMode() == GlobalConfig.IdModes.NONE) {
+            throw new Exception("ELASTICSEARCH_shardRouting needs a GLOBAL_idMode other than none");
+        }
+        /* also checks the template */
+        this.dynamicIndex = IndexWriters.create(this.elasticsearchConfig.getIndexName(), this.elasticsearchConfig.getIndexTimeZone()) != null;
+        if (this.elasticsearchConfig.getShardRouting() && this.dynamicIndex) {
+            throw new Exception("ELASTICSEARCH_shardRouting needs an ELASTICSEARCH_indexName without placeholders");
+        }
+        if (this.elasticsearchConfig.getShardRouting() && this.elasticsearchConfig.getShardRoutingRefreshInterval() <= 0) {
+            throw new Exception("ELASTICSEARCH_shardRouting.refreshInterval must be > 0");
+        }
+    }
+
+    /* threads of a named pipeline carry its name */
+    static String threadName(final String pipeline, final String name) {
+        return pipeline.isEmpty() ? name : pipeline + "-" + name;
+    }
+
+    public String getName() {
+        return this.name;
+    }
+
+    public boolean getShardRouting() {
+        return this.elasticsearchConfig.getShardRouting();
+    }
+
+    /* bulk requests in flight at most: the workers sending theirs, plus the async window that also carries retries
+       and spilled bulks */
+    public int getMaxInflightRequests() {
+        return this.globalConfig.getInflightBatches() + this.globalConfig.getInflightRequests();
+    }
+
+    /* the variables the pipeline was made from, overrides of a named pipeline applied */
+    public Map<String, String> getConfig() {
+        return this.config;
+    }
+
+    public Tuning getTuning() {
+        return this.tuning;
+    }
+
+    /* nodeProducers is null unless some pipeline routes to shards, returns once the receivers stopped and what was
+       in flight is done or drain.timeout passed. Everything is made again on each run, a disruptor can't be
+       restarted */
+    public void run(final ConsumerFactory<byte[]> consumerFactory, final RestClient producer, final RestClient[] nodeProducers) {
+        final List<Consumer<byte[]>> consumerRefs = new ArrayList<>();
+        Disruptor<Batch<byte[]>> disruptorRef = null;
+        BulkDispatcher dispatcherRef = null;
+        ShardRouter routerRef = null;
+        VirtualThreadSink<byte[]> virtualSinkRef = null;
+        RetryQueue retryQueueRef = null;
+        AckStage<byte[]> ackStageRef = null;
+        SpillBuffer<byte[]> spillRef = null;
+        try {
+            final int nReceivers = this.globalConfig.getReceivers();
+            for (int i = 0; i < nReceivers; ++i) {
+                consumerRefs.add(consumerFactory.getConsumer(this.globalConfig, this.pulsarConsumerConfig, Pipeline.SCHEMA, i));
+            }
+
+            final String indexName = this.elasticsearchConfig.getIndexName();
+            /* with placeholders every action names its index */
+            final String endpoint = this.dynamicIndex ? "/_bulk" : String.format("/%s/_bulk", indexName);
+
+            final boolean vegas = this.globalConfig.getConcurrencyLimit() == GlobalConfig.ConcurrencyLimits.VEGAS;
+            final ConcurrencyLimiter limiter = !vegas && !this.admin ? null : new ConcurrencyLimiter(
+                    this.name,
+                    this.globalConfig.getConcurrencyLimitMin(),
+                    this.tuning.getConcurrency(),
+                    this.globalConfig.getConcurrencyLimitInitial(),
+                    vegas
+            );
+            final BulkDispatcher dispatcher = new BulkDispatcher(
+                    this.name,
+                    producer,
+                    this.elasticsearchConfig.getShardRouting() ? nodeProducers : null,
+                    this.globalConfig.getInflightRequests(),
+                    limiter,
+                    this.admin ? this.tuning : null
+            );
+            dispatcherRef = dispatcher;
+
+            final ExceptionHandler<Batch<byte[]>> exceptionHandler = new ExceptionHandler<>() {
+                @Override
+                public void handleEventException(Throwable e, long l, Batch<byte[]> batch) {
+                    Pipeline.logger.warn("exception caught", e);
+                    e.printStackTrace();
+                    Pipeline.this.supervisor.fail(e);
+                }
+
+                @Override
+                public void handleOnStartException(Throwable e) {
+                    Pipeline.logger.warn("exception caught", e);
+                    e.printStackTrace();
+                    Pipeline.this.supervisor.fail(e);
+                }
+
+                @Override
+                public void handleOnShutdownException(Throwable e) {
+                    Pipeline.logger.warn("exception caught", e);
+                    e.printStackTrace();
+                    Pipeline.this.supervisor.fail(e);
+                }
+            };
+
+            final ShardRouter router = !this.elasticsearchConfig.getShardRouting() ? null : new ShardRouter(
+                    this.name,
+                    producer,
+                    indexName,
+                    this.elasticsearchConfig.getShardRoutingRefreshInterval(),
+                    new CustomThreadFactory(Pipeline.threadName(this.name, "shard-router"))
+            );
+            routerRef = router;
+            if (router != null) {
+                router.start();
+            }
+
+            final BatchReceivePolicy batchReceivePolicy = this.pulsarConsumerConfig.getBatchReceivePolicy();
+            final AdaptiveBatchSizer sizer = !this.globalConfig.getAdaptiveBatchSize() && !this.admin ? null : new AdaptiveBatchSizer(
+                    this.name,
+                    this.globalConfig.getAdaptiveBatchSizeTargetLatency(),
+                    this.globalConfig.getAdaptiveBatchSizeMinNumMessages(),
+                    this.tuning.getMaxNumMessages(),
+                    this.globalConfig.getAdaptiveBatchSizeMinNumBytes(),
+                    this.tuning.getMaxNumBytes(),
+                    this.globalConfig.getAdaptiveBatchSize()
+            );
+            this.tuning.bind(limiter, sizer);
+
+            final RetryQueue retryQueue = this.globalConfig.getRetryMaxAttempts() <= 0 ? null : new RetryQueue(
+                    this.name,
+                    this.globalConfig.getRetryMaxAttempts(),
+                    this.globalConfig.getRetryInitialBackoff(),
+                    this.globalConfig.getRetryMaxBackoff(),
+                    this.globalConfig.getRetryMaxBytes()
+            );
+            retryQueueRef = retryQueue;
+
+            /* cumulative acks need a single consumer per partition */
+            final String subscriptionType = this.pulsarConsumerConfig.getSubscriptionType();
+            final AckStage<byte[]> ackStage = !this.globalConfig.getAckStage() ? null : new AckStage<>(
+                    this.name,
+                    this.globalConfig.getAckStageInterval(),
+                    this.globalConfig.getAckStageHoleTimeout(),
+                    "Exclusive".equalsIgnoreCase(subscriptionType) || "Failover".equalsIgnoreCase(subscriptionType)
+            );
+            ackStageRef = ackStage;
+            if (ackStage != null) {
+                ackStage.start();
+            }
+
+            final IndexedIdCache idCache = this.globalConfig.getDedupCacheSize() <= 0 ? null : new IndexedIdCache(
+                    this.name,
+                    this.globalConfig.getDedupCacheSize(),
+                    this.globalConfig.getDedupCacheWindow()
+            );
+
+            final int nWorkers = this.globalConfig.getInflightBatches();
+            final BulkBufferPool bufferPool = new BulkBufferPool(
+                    nWorkers + this.globalConfig.getInflightRequests(),
+                    batchReceivePolicy.getMaxNumBytes()
+            );
+            final String clusterName = this.pulsarClientConfig.getClusterName();
+            final Tracer tracer = new Tracer(this.name, this.globalConfig.getTraceSampleRate());
+            final SchemaCache schemaCache = this.globalConfig.getSourceMode() == GlobalConfig.SourceModes.SCHEMA ? new SchemaCache(consumerFactory::getSchema) : null;
+            final Callable<BatchHandler<byte[]>> newHandler = () -> new BatchHandler<>(this.name, this.globalConfig.getIdMode(), this.globalConfig.getWriteMode(), Pipeline.SCHEMA, clusterName, endpoint, dispatcher, this.globalConfig.getDispatchMode(), exceptionHandler, bufferPool, this.elasticsearchConfig.getMaxContentLength(), sizer, router, retryQueue, ackStage, idCache, IndexWriters.create(indexName, this.elasticsearchConfig.getIndexTimeZone()), schemaCache == null ? null : schemaCache.newWriter(), tracer);
+            final Callable<WorkHandler<Batch<byte[]>>> handlerFactory = newHandler::call;
+            final BatchSink<byte[]> sink;
+            if (this.globalConfig.getExecutionMode() == GlobalConfig.ExecutionModes.VIRTUAL) {
+                final VirtualThreadSink<byte[]> virtualSink = new VirtualThreadSink<>(this.name, nWorkers, handlerFactory, exceptionHandler);
+                virtualSinkRef = virtualSink;
+                sink = virtualSink;
+            } else {
+                final Disruptor<Batch<byte[]>> disruptor = new Disruptor<>(
+                        Pipeline.EVENT_FACTORY,
+                        this.globalConfig.getRingBuffer(),
+                        new CustomThreadFactory(Pipeline.threadName(this.name, "disruptor-worker"), this.globalConfig.getCpuAffinityWorkers()),
+                        nReceivers > 1 ? ProducerType.MULTI : ProducerType.SINGLE,
+                        App.waitStrategy(this.globalConfig.getLatencyProfile())
+                );
+                if (this.globalConfig.getWriteMode() == GlobalConfig.WriteModes.CREATE) {
+                    final WorkHandler<Batch<byte[]>>[] workers = new WorkHandler[nWorkers];
+                    for (int i = 0; i < nWorkers; ++i) {
+                        workers[i] = handlerFactory.call();
+                    }
+                    disruptor.handleEventsWithWorkerPool(workers);
+                } else {
+                    /* every lane sees every batch, a key always goes to the same one */
+                    final EventHandler<Batch<byte[]>>[] lanes = new EventHandler[nWorkers];
+                    for (int i = 0; i < nWorkers; ++i) {
+                        lanes[i] = newHandler.call().lane(i, nWorkers);
+                    }
+                    disruptor.handleEventsWith(lanes);
+                }
+                disruptor.setDefaultExceptionHandler(exceptionHandler);
+                sink = new RingBufferSink<>(this.name, disruptor.start(), this.globalConfig.getLatencyProfile().name().toLowerCase());
+                disruptorRef = disruptor;
+            }
+
+            final SpillBuffer<byte[]> spill = this.globalConfig.getSpillDir() == null ? null : new SpillBuffer<>(
+                    this.name,
+                    this.globalConfig.getSpillDir(),
+                    this.globalConfig.getSpillSegmentSize(),
+                    this.globalConfig.getSpillMaxSegments(),
+                    newHandler.call(),
+                    bufferPool
+            );
+            spillRef = spill;
+            if (spill != null) {
+                spill.start();
+            }
+
+            final ThreadFactory receiverThreadFactory = new CustomThreadFactory(Pipeline.threadName(this.name, "pulsar-receiver"), this.globalConfig.getCpuAffinityReceivers());
+            final List<Thread> receivers = new ArrayList<>(nReceivers);
+            for (int i = 0; i < nReceivers; ++i) {
+                final Consumer<byte[]> consumer = consumerRefs.get(i);
+                final Receiver<byte[]> loop = sizer == null
+                        ? new Receiver<>(this.name, i, consumer, sink, this.supervisor, ackStage, spill, tracer)
+                        : new Receiver<>(this.name, i, consumer, sink, this.supervisor, new BatchReceiver<>(this.name, consumer, batchReceivePolicy), sizer, ackStage, spill, tracer);
+                final Thread receiver = receiverThreadFactory.newThread(loop);
+                receivers.add(receiver);
+                receiver.start();
+            }
+            this.supervisor.started();
+            for (final Thread receiver : receivers) {
+                receiver.join();
+            }
+        } catch (Exception e) {
+            Pipeline.logger.error("exception caught", e);
+            /* takes the other pipelines down with it */
+            this.supervisor.fail(e);
+        } finally {
+            this.tuning.bind(null, null);
+            /* the receivers stopped, what they handed over has until the deadline to be sent and acked. What is
+               left then is nacked at once rather than left to the consumers closing */
+            final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(this.globalConfig.getDrainTimeout());
+            boolean pending = false;
+            if (spillRef != null) {
+                try {
+                    Pipeline.logger.info("draining spilled bulks...");
+                    spillRef.close(Pipeline.left(deadline), TimeUnit.NANOSECONDS);
+                } catch (Exception e) {
+                    /* skip */
+                }
+            }
+            if (disruptorRef != null) {
+                try {
+                    Pipeline.logger.info("waiting for inflight batches...");
+                    disruptorRef.shutdown(Pipeline.left(deadline), TimeUnit.NANOSECONDS);
+                } catch (TimeoutException e) {
+                    Pipeline.logger.warn("inflight batches still pending");
+                    disruptorRef.halt();
+                    pending = true;
+                }
+            }
+            if (virtualSinkRef != null) {
+                try {
+                    Pipeline.logger.info("waiting for inflight batches...");
+                    if (!virtualSinkRef.awaitIdle(Pipeline.left(deadline), TimeUnit.NANOSECONDS)) {
+                        Pipeline.logger.warn("inflight batches still pending");
+                        pending = true;
+                    }
+                } catch (Exception e) {
+                    /* skip */
+                }
+            }
+            /* a bulk in flight may still queue a retry and a retry sends a bulk again, so both are waited for
+               until neither has anything left. The retry queue is only closed then */
+            if (dispatcherRef != null || retryQueueRef != null) {
+                try {
+                    Pipeline.logger.info("waiting for inflight bulk requests and retries...");
+                    boolean idle;
+                    do {
+                        final boolean dispatched = dispatcherRef == null || dispatcherRef.awaitIdle(Pipeline.left(deadline), TimeUnit.NANOSECONDS);
+                        final boolean retried = retryQueueRef == null || retryQueueRef.awaitIdle(Pipeline.left(deadline), TimeUnit.NANOSECONDS);
+                        idle = dispatched && retried && (dispatcherRef == null || dispatcherRef.awaitIdle(0, TimeUnit.NANOSECONDS));
+                    } while (!idle && Pipeline.left(deadline) > 0);
+                    if (!idle) {
+                        Pipeline.logger.warn("inflight bulk requests or retries still pending");
+                        pending = true;
+                    }
+                } catch (Exception e) {
+                    /* skip */
+                }
+            }
+            if (retryQueueRef != null) {
+                retryQueueRef.close();
+            }
+            if (routerRef != null) {
+                routerRef.close();
+            }
+            if (ackStageRef != null) {
+                try {
+                    Pipeline.logger.info("sending pending acks...");
+                    ackStageRef.close();
+                } catch (Exception e) {
+                    /* skip */
+                }
+            }
+            /* after the acks that made it, as a redelivery takes back every message not acked yet. Late results of
+               what was left may still ack some, they are delivered twice at worst */
+            if (pending) {
+                for (final Consumer<byte[]> consumerRef : consumerRefs) {
+                    try {
+                        Pipeline.logger.warn("nacking what wasn't drained...");
+                        consumerRef.redeliverUnacknowledgedMessages();
+                    } catch (Exception e) {
+                        /* skip */
+                    }
+                }
+            }
+            for (final Consumer<byte[]> consumerRef : consumerRefs) {
+                try {
+                    Pipeline.logger.info("closing consumer...");
+                    consumerRef.close();
+                    Pipeline.logger.info("consumer closed");
+                } catch (Exception e) {
+                    /* skip */
+                }
+            }
+        }
+    }
+
+    private static long left(final long deadline) {
+        return Math.max(0, deadline - System.nanoTime());
+    }
+}
@@ -2,6 +2,7 @@ package io.xboshy.pulsar;
 
 import io.xboshy.pulsar.config.ElasticsearchConfig;
 import io.xboshy.pulsar.config.GlobalConfig;
+import org.apache.http.HttpHost;
 import org.apache.http.auth.AuthScope;
 import org.apache.http.auth.UsernamePasswordCredentials;
 import org.apache.http.client.CredentialsProvider;
@@ -14,17 +15,35 @@ import javax.net.ssl.SSLContext;
 
 public class ProducerFactory {
     private RestClientBuilder builder;
+    private final ElasticsearchConfig elasticsearchConfig;
+    private final CredentialsProvider credentialsProvider;
+    private final SSLContext sslContext;
+    private final int maxConnections;
 
-    public ProducerFactory(final GlobalConfig globalConfig, final ElasticsearchConfig elasticsearchConfig) throws Exception {
-        final CredentialsProvider credentialsProvider = new BasicCredentialsProvider();
-        credentialsProvider.setCredentials(
+    /* maxConnections is what the pipelines sharing the clients can have in flight together. Requests beyond the
+       pool would wait for a connection, within connectionRequestTimeout, rather than reach elasticsearch */
+    public ProducerFactory(final GlobalConfig globalConfig, final ElasticsearchConfig elasticsearchConfig, final int maxConnections) throws Exception {
+        this.elasticsearchConfig = elasticsearchConfig;
+        this.maxConnections = maxConnections;
+        this.credentialsProvider = new BasicCredentialsProvider();
+        this.credentialsProvider.setCredentials(
                 AuthScope.ANY,
                 new UsernamePasswordCredentials(elasticsearchConfig.getUsername(), elasticsearchConfig.getPassword())
         );
 
-        final SSLContext sslContext = elasticsearchConfig.getSslContext();
-        this.builder = RestClient.builder(
-                elasticsearchConfig.getHosts()
+        this.sslContext = elasticsearchConfig.getSslContext();
+        this.builder = this.builder(elasticsearchConfig.getHosts());
+    }
+
+    private RestClientBuilder builder(final HttpHost... hosts) {
+        final ElasticsearchConfig elasticsearchConfig = this.elasticsearchConfig;
+        final CredentialsProvider credentialsProvider = this.credentialsProvider;
+        final SSLContext sslContext = this.sslContext;
+        /* all of them may go to a single host, never less than the client defaults */
+        final int maxConnPerRoute = Math.max(RestClientBuilder.DEFAULT_MAX_CONN_PER_ROUTE, this.maxConnections);
+        final int maxConnTotal = Math.max(RestClientBuilder.DEFAULT_MAX_CONN_TOTAL, this.maxConnections);
+        return RestClient.builder(
+                hosts
         )
                 .setHttpClientConfigCallback(
                         httpClientBuilder -> {
@@ -33,6 +52,8 @@ public class ProducerFactory {
                                         .setDefaultCredentialsProvider(credentialsProvider);
                             }
                             httpClientBuilder
+                                .setMaxConnPerRoute(maxConnPerRoute)
+                                .setMaxConnTotal(maxConnTotal)
                                 .setDefaultIOReactorConfig(
                                         IOReactorConfig.custom()
                                                 .setIoThreadCount(elasticsearchConfig.getIoThreads())
@@ -62,6 +83,16 @@ public class ProducerFactory {
         return this.builder.build();
     }
 
+    /* one client per configured host, each only talking to its own host */
+    public RestClient[] getNodeClients() {
+        final HttpHost[] hosts = this.elasticsearchConfig.getHosts();
+        final RestClient[] clients = new RestClient[hosts.length];
+        for (int i = 0; i < hosts.length; ++i) {
+            clients[i] = this.builder(hosts[i]).build();
+        }
+        return clients;
+    }
+
     public void close() {
         try {
             this.builder = null;
@@ -0,0 +1,153 @@
+package io.xboshy.pulsar;
+
+import io.xboshy.pulsar.impl.MessagesImpl;
+import io.xboshy.pulsar.utils.Buckets;
+import io.prometheus.client.Counter;
+import io.prometheus.client.Histogram;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.pulsar.client.api.Consumer;
+import org.apache.pulsar.client.api.Message;
+import org.apache.pulsar.client.api.Messages;
+
+public class Receiver<T> implements Runnable {
+    private static final Logger logger = LogManager.getLogger(Receiver.class);
+    private final String name;
+    private final Consumer<T> consumer;
+    private final BatchSink<T> sink;
+    private final Supervisor supervisor;
+    private final BatchReceiver<T> batchReceiver;
+    private final AdaptiveBatchSizer sizer;
+    private final AckStage<T> ackStage;
+    private final SpillBuffer<T> spill;
+    private final Tracer tracer;
+    private MessagesImpl<T> overflow;
+    /* of the last batch received */
+    private long trace;
+    private final Counter.Child receivedMessages;
+    private final Counter.Child receivedBatches;
+    private final Histogram.Child dispatchWait;
+    private final Histogram.Child receiveTime;
+    private static final Histogram dispatchWaitTime = Histogram.build()
+            .name("dispatch_wait_time_millis")
+            .help("dispatch_wait_time_millis")
+            .labelNames("pipeline", "profile")
+            .buckets(Buckets.SECONDS)
+            .register();
+    private static final Counter receiverMessages = Counter.build()
+            .name("receiver_messages")
+            .help("receiver_messages")
+            .labelNames("pipeline", "receiver")
+            .register();
+    private static final Counter receiverBatches = Counter.build()
+            .name("receiver_batches")
+            .help("receiver_batches")
+            .labelNames("pipeline", "receiver")
+            .register();
+
+    public Receiver(final String pipeline, final int id, final Consumer<T> consumer, final BatchSink<T> sink, final Supervisor supervisor, final AckStage<T> ackStage, final SpillBuffer<T> spill, final Tracer tracer) {
+        this(pipeline, id, consumer, sink, supervisor, null, null, ackStage, spill, tracer);
+    }
+
+    /* with a sizer, batches are assembled by batchReceiver using the sizer's current limits */
+    public Receiver(final String pipeline, final int id, final Consumer<T> consumer, final BatchSink<T> sink, final Supervisor supervisor, final BatchReceiver<T> batchReceiver, final AdaptiveBatchSizer sizer, final AckStage<T> ackStage, final SpillBuffer<T> spill, final Tracer tracer) {
+        this.name = String.valueOf(id);
+        this.consumer = consumer;
+        this.sink = sink;
+        this.supervisor = supervisor;
+        this.batchReceiver = batchReceiver;
+        this.sizer = sizer;
+        this.ackStage = ackStage;
+        this.spill = spill;
+        this.tracer = tracer;
+        this.overflow = null;
+        this.receivedMessages = Receiver.receiverMessages.labels(pipeline, this.name);
+        this.receivedBatches = Receiver.receiverBatches.labels(pipeline, this.name);
+        this.dispatchWait = Receiver.dispatchWaitTime.labels(pipeline, sink.getProfile());
+        this.receiveTime = Stages.timer(pipeline, Stages.RECEIVE);
+    }
+
+    private Messages<T> receive() throws Exception {
+        if (this.sizer == null) {
+            return this.consumer.batchReceive();
+        }
+
+        final MessagesImpl<T> msgs = new MessagesImpl<>(this.sizer.getMaxNumMessages(), this.sizer.getMaxNumBytes());
+        if (this.overflow != null) {
+            /* at most one message, it always fits an empty batch */
+            for (final Message<T> msg : this.overflow) {
+                msgs.add(msg);
+            }
+        }
+        this.overflow = this.batchReceiver.batchReceive(this.consumer, msgs);
+        return msgs;
+    }
+
+    /* -1 when every worker is busy and the batch should be spilled */
+    private long claim() throws Exception {
+        if (this.spill == null) {
+            return this.sink.claim();
+        }
+
+        final long seq = this.sink.tryClaim();
+        if (seq >= 0 || this.spill.hasRoom()) {
+            return seq;
+        }
+        return this.sink.claim();
+    }
+
+    /* sequence -1 stands for the spill buffer */
+    private Messages<T> receiveBatch(final long seq) throws Exception {
+        Messages<T> msgs = null;
+        this.trace = 0;
+        /* from the claim to a non empty batch */
+        final long startNanos = System.nanoTime();
+        while ((msgs == null || msgs.size() == 0) && !this.supervisor.isStopping()) {
+            msgs = this.receive();
+        }
+        if (msgs != null) {
+            final long waitNanos = System.nanoTime() - startNanos;
+            this.receiveTime.observe(waitNanos / 1e9);
+            this.trace = this.tracer.begin();
+            this.tracer.received(this.trace, this.name, seq, msgs.size(), waitNanos);
+            this.receivedMessages.inc(msgs.size());
+            this.receivedBatches.inc();
+        }
+        return msgs;
+    }
+
+    /* batches are registered for cumulative acks before any worker can complete them */
+    private AckStage.Ticket<T> register(final Messages<T> msgs) {
+        return this.ackStage == null ? null : this.ackStage.register(this.consumer, msgs);
+    }
+
+    public void run() {
+        try {
+            while (!this.supervisor.isStopping()) {
+                final long seq;
+                try (final Histogram.Timer ignored = this.dispatchWait.startTimer()) {
+                    seq = this.claim();
+                }
+
+                if (seq < 0) {
+                    final Messages<T> msgs = this.receiveBatch(seq);
+                    if (msgs != null && msgs.size() > 0) {
+                        this.spill.offer(this.consumer, this.register(msgs), msgs, this.trace);
+                    }
+                    continue;
+                }
+
+                Messages<T> msgs = null;
+                try {
+                    msgs = this.receiveBatch(seq);
+                } finally {
+                    /* a claimed sequence must always be published, even empty */
+                    this.sink.publish(seq, this.consumer, msgs, this.register(msgs), this.trace);
+                }
+            }
+        } catch (Exception e) {
+            Receiver.logger.error("exception caught", e);
+            this.supervisor.fail(e);
+        }
+    }
+}
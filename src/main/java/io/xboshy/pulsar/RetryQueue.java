@@ -0,0 +1,112 @@
+package io.xboshy.pulsar;
+
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/* Delays the resubmission of failed bulk items with jittered exponential backoff, within a memory budget */
+public class RetryQueue implements AutoCloseable {
+    private final int maxAttempts;
+    private final long initialBackoff;
+    private final long maxBackoff;
+    private final long maxBytes;
+    private final AtomicLong bytes;
+    private final ScheduledExecutorService scheduler;
+    private final Gauge.Child queueBytes;
+    private final Counter.Child overflowItems;
+    private final Counter.Child scheduledItems;
+    private final Counter.Child exhaustedItems;
+    private static final Gauge retryQueueBytes = Gauge.build()
+            .name("retry_queue_bytes")
+            .help("retry_queue_bytes")
+            .labelNames("pipeline")
+            .register();
+    private static final Counter retryItems = Counter.build()
+            .name("retry_items")
+            .help("retry_items")
+            .labelNames("pipeline", "result")
+            .register();
+
+    public RetryQueue(final String pipeline, final int maxAttempts, final long initialBackoff, final long maxBackoff, final long maxBytes) {
+        this.maxAttempts = maxAttempts;
+        this.initialBackoff = initialBackoff;
+        this.maxBackoff = maxBackoff;
+        this.maxBytes = maxBytes;
+        this.bytes = new AtomicLong(0);
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new CustomThreadFactory(Pipeline.threadName(pipeline, "bulk-retry")));
+        this.queueBytes = RetryQueue.retryQueueBytes.labels(pipeline);
+        this.overflowItems = RetryQueue.retryItems.labels(pipeline, "overflow");
+        this.scheduledItems = RetryQueue.retryItems.labels(pipeline, "scheduled");
+        this.exhaustedItems = RetryQueue.retryItems.labels(pipeline, "exhausted");
+    }
+
+    public int getMaxAttempts() {
+        return this.maxAttempts;
+    }
+
+    /* false when the items would not fit in the budget, they are then given back to pulsar */
+    public boolean tryReserve(final long n, final int items) {
+        long current;
+        do {
+            current = this.bytes.get();
+            if (current + n > this.maxBytes) {
+                this.overflowItems.inc(items);
+                return false;
+            }
+        } while (!this.bytes.compareAndSet(current, current + n));
+
+        this.queueBytes.inc(n);
+        this.scheduledItems.inc(items);
+        return true;
+    }
+
+    public void release(final long n) {
+        this.bytes.addAndGet(-n);
+        this.queueBytes.dec(n);
+    }
+
+    public void exhausted(final int items) {
+        this.exhaustedItems.inc(items);
+    }
+
+    /* attempt starts at 1, the delay is drawn uniformly below the capped exponential backoff */
+    public long delay(final int attempt) {
+        final long ceiling = Math.min(this.maxBackoff, this.initialBackoff << Math.min(attempt - 1, 30));
+        return ThreadLocalRandom.current().nextLong(ceiling + 1);
+    }
+
+    /* false once closed, the caller then releases what it reserved and gives the items back to pulsar */
+    public boolean schedule(final int attempt, final Runnable task) {
+        try {
+            this.scheduler.schedule(task, this.delay(attempt), TimeUnit.MILLISECONDS);
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    /* true once no retry is waiting or in flight, the budget is only given back when a retry is done */
+    public boolean awaitIdle(final long timeout, final TimeUnit unit) {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (this.bytes.get() > 0) {
+            if (deadline - System.nanoTime() <= 0) {
+                return false;
+            }
+            LockSupport.parkNanos(1_000_000L);
+        }
+        return true;
+    }
+
+    /* pending retries are dropped, their messages are neither acked nor nacked and get redelivered */
+    @Override
+    public void close() {
+        this.scheduler.shutdownNow();
+    }
+}
@@ -0,0 +1,47 @@
+package io.xboshy.pulsar;
+
+import com.lmax.disruptor.InsufficientCapacityException;
+import com.lmax.disruptor.RingBuffer;
+import io.prometheus.client.Histogram;
+import org.apache.pulsar.client.api.Consumer;
+import org.apache.pulsar.client.api.Messages;
+
+/* Batches go through the Disruptor ring to its WorkHandler pool */
+public class RingBufferSink<T> implements BatchSink<T> {
+    private final RingBuffer<Batch<T>> ringBuffer;
+    private final String profile;
+    private final Histogram.Child handoff;
+
+    public RingBufferSink(final String pipeline, final RingBuffer<Batch<T>> ringBuffer, final String profile) {
+        this.ringBuffer = ringBuffer;
+        this.profile = profile;
+        this.handoff = Batch.handoff(pipeline, profile);
+    }
+
+    @Override
+    public String getProfile() {
+        return this.profile;
+    }
+
+    @Override
+    public long claim() {
+        return this.ringBuffer.next();
+    }
+
+    @Override
+    public long tryClaim() {
+        try {
+            return this.ringBuffer.tryNext();
+        } catch (InsufficientCapacityException e) {
+            return -1;
+        }
+    }
+
+    @Override
+    public void publish(final long sequence, final Consumer<T> consumer, final Messages<T> msgs, final AckStage.Ticket<T> ticket, final long trace) {
+        final Batch<T> batch = this.ringBuffer.get(sequence);
+        batch.setMessages(consumer, msgs, ticket, trace);
+        batch.markPublished(this.handoff);
+        this.ringBuffer.publish(sequence);
+    }
+}
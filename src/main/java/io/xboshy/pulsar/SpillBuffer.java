@@ -0,0 +1,273 @@
+package io.xboshy.pulsar;
+
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+import io.xboshy.pulsar.bulk.BulkBuffer;
+import io.xboshy.pulsar.bulk.BulkBufferPool;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.pulsar.client.api.Consumer;
+import org.apache.pulsar.client.api.Messages;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/* Takes the batches the receivers get while every worker is busy: their bulk bodies are written to memory mapped
+   segment files and sent oldest first by a drainer thread, as fast as the dispatcher lets it. Items are acked once
+   elasticsearch has them, like any other bulk. Only the bodies go to the files, the message ids stay on the heap
+   with the consumer that acks them: nothing has to survive a restart since unacked messages get redelivered */
+public class SpillBuffer<T> implements Runnable, AutoCloseable {
+    private static final Logger logger = LogManager.getLogger(SpillBuffer.class);
+    private static final Gauge spillBytes = Gauge.build()
+            .name("spill_bytes")
+            .help("spill_bytes")
+            .labelNames("pipeline")
+            .register();
+    private static final Counter spilledBulks = Counter.build()
+            .name("spilled_bulks")
+            .help("spilled_bulks")
+            .labelNames("pipeline", "result")
+            .register();
+
+    private final Path dir;
+    private final int segmentSize;
+    private final int maxSegments;
+    /* prepares under the lock, sends from the drainer */
+    private final BatchHandler<T> handler;
+    private final BulkBufferPool bufferPool;
+    private final ArrayDeque<Segment> segments;
+    private final ArrayDeque<Segment> free;
+    private final ArrayDeque<Spilled<T>> spilled;
+    private final Thread drainer;
+    private final Gauge.Child bytes;
+    private final Counter.Child spilledCount;
+    private final Counter.Child drainedCount;
+    private boolean running;
+
+    private static class Segment {
+        private final Path path;
+        private final MappedByteBuffer buffer;
+        private int writePosition;
+        private int pending;
+
+        private Segment(final Path path, final int size) throws IOException {
+            this.path = path;
+            try (final FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                /* the mapping outlives the channel */
+                this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            }
+            this.writePosition = 0;
+            this.pending = 0;
+        }
+
+        private int remaining() {
+            return this.buffer.capacity() - this.writePosition;
+        }
+    }
+
+    /* a bulk whose buffer was given back once its body went to segment */
+    private static class Spilled<T> {
+        private final PendingBulk<T> bulk;
+        private final Segment segment;
+        private final int position;
+        private final int length;
+
+        private Spilled(final PendingBulk<T> bulk, final Segment segment, final int position, final int length) {
+            this.bulk = bulk;
+            this.segment = segment;
+            this.position = position;
+            this.length = length;
+        }
+    }
+
+    public SpillBuffer(final String pipeline, final String dir, final int segmentSize, final int maxSegments, final BatchHandler<T> handler, final BulkBufferPool bufferPool) throws IOException {
+        this.dir = Files.createDirectories(Path.of(dir));
+        this.segmentSize = segmentSize;
+        this.maxSegments = maxSegments;
+        this.handler = handler;
+        this.bufferPool = bufferPool;
+        this.segments = new ArrayDeque<>();
+        this.free = new ArrayDeque<>();
+        this.spilled = new ArrayDeque<>();
+        this.running = true;
+        this.bytes = SpillBuffer.spillBytes.labels(pipeline);
+        this.spilledCount = SpillBuffer.spilledBulks.labels(pipeline, "spilled");
+        this.drainedCount = SpillBuffer.spilledBulks.labels(pipeline, "drained");
+        this.drainer = new CustomThreadFactory(Pipeline.threadName(pipeline, "spill-drainer")).newThread(this);
+    }
+
+    public void start() {
+        this.drainer.start();
+    }
+
+    /* true while a segment is left, a batch may then overshoot the last one */
+    public synchronized boolean hasRoom() {
+        return this.running && this.segments.size() < this.maxSegments;
+    }
+
+    public synchronized void offer(final Consumer<T> consumer, final AckStage.Ticket<T> ticket, final Messages<T> msgs, final long trace) throws Exception {
+        final ArrayList<PendingBulk<T>> bulks;
+        try {
+            bulks = this.handler.prepare(consumer, ticket, msgs, trace);
+        } finally {
+            Batch.release(msgs);
+        }
+        try {
+            for (final PendingBulk<T> bulk : bulks) {
+                this.append(bulk);
+            }
+        } finally {
+            for (final PendingBulk<T> bulk : bulks) {
+                this.bufferPool.release(bulk.getBuffer());
+            }
+        }
+        this.notifyAll();
+    }
+
+    private void append(final PendingBulk<T> bulk) throws IOException {
+        final BulkBuffer body = bulk.getBuffer();
+        final int length = body.length();
+        Segment segment = this.segments.peekLast();
+        if (segment != null && segment.remaining() < length && segment.pending == 0) {
+            /* drained already, only kept to be written to */
+            this.segments.pollLast();
+            this.recycle(segment);
+            segment = null;
+        }
+        if (segment == null || segment.remaining() < length) {
+            segment = this.free.isEmpty() || length > this.segmentSize ? this.newSegment(length) : this.free.poll();
+            this.segments.add(segment);
+        }
+
+        final int position = segment.writePosition;
+        segment.buffer.put(position, body.array(), 0, length);
+        segment.writePosition += length;
+        ++segment.pending;
+        this.spilled.add(new Spilled<>(bulk, segment, position, length));
+        this.bytes.inc(length);
+        this.spilledCount.inc();
+    }
+
+    private Segment newSegment(final int length) throws IOException {
+        final Path path = Files.createTempFile(this.dir, "spill-", ".log");
+        /* a bulk larger than a segment gets one of its own */
+        return new Segment(path, Math.max(this.segmentSize, length));
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                final Spilled<T> next;
+                synchronized (this) {
+                    while (this.spilled.isEmpty() && this.running) {
+                        this.wait();
+                    }
+                    next = this.spilled.peek();
+                    if (next == null) {
+                        return;
+                    }
+                }
+
+                /* the segment is not reused before the record is released */
+                final BulkBuffer buffer = this.bufferPool.acquire();
+                final int offset = buffer.reserve(next.length);
+                next.segment.buffer.get(next.position, buffer.array(), offset, next.length);
+                final PendingBulk<T> bulk = new PendingBulk<>(next.bulk.getConsumer(), next.bulk.getTicket(), buffer, next.bulk.getNode());
+                bulk.setTrace(next.bulk.getTrace());
+                for (int i = 0; i < next.bulk.getItemIds().size(); ++i) {
+                    bulk.addItem(next.bulk.getItemIds().get(i), next.bulk.itemOffset(i), next.bulk.itemKey(i));
+                }
+                this.release(next);
+
+                /* blocks while the dispatcher window is full */
+                this.handler.send(bulk);
+                this.drainedCount.inc();
+            }
+        } catch (InterruptedException e) {
+            /* closing */
+        }
+    }
+
+    private synchronized void release(final Spilled<T> record) {
+        this.spilled.poll();
+        this.bytes.dec(record.length);
+        final Segment segment = record.segment;
+        if (--segment.pending > 0) {
+            return;
+        }
+
+        if (segment != this.segments.peekLast()) {
+            /* drained in order, it is the oldest */
+            this.segments.poll();
+            this.recycle(segment);
+        } else if (this.segments.size() == 1) {
+            segment.writePosition = 0;
+        }
+        this.notifyAll();
+    }
+
+    private void recycle(final Segment segment) {
+        segment.writePosition = 0;
+        if (segment.buffer.capacity() == this.segmentSize) {
+            this.free.add(segment);
+            return;
+        }
+        SpillBuffer.delete(segment);
+    }
+
+    private static void delete(final Segment segment) {
+        try {
+            Files.deleteIfExists(segment.path);
+        } catch (IOException e) {
+            SpillBuffer.logger.warn("can't delete " + segment.path, e);
+        }
+    }
+
+    /* gives the drainer up to timeout to send what is left, then drops the files */
+    public void close(final long timeout, final TimeUnit unit) throws InterruptedException {
+        final boolean dropped;
+        synchronized (this) {
+            final long deadline = System.nanoTime() + unit.toNanos(timeout);
+            long left;
+            while (!this.spilled.isEmpty() && (left = deadline - System.nanoTime()) > 0) {
+                TimeUnit.NANOSECONDS.timedWait(this, left);
+            }
+            dropped = !this.spilled.isEmpty();
+            if (dropped) {
+                SpillBuffer.logger.warn(this.spilled.size() + " spilled bulks dropped, their messages will be redelivered");
+                this.spilled.clear();
+            }
+            this.running = false;
+            this.notifyAll();
+        }
+        if (dropped) {
+            /* it may be waiting for the dispatcher window */
+            this.drainer.interrupt();
+        }
+        this.drainer.join();
+
+        for (final Segment segment : this.segments) {
+            SpillBuffer.delete(segment);
+        }
+        for (final Segment segment : this.free) {
+            SpillBuffer.delete(segment);
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            this.close(0, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
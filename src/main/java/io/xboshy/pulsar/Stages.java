@@ -0,0 +1,28 @@
+package io.xboshy.pulsar;
+
+import io.xboshy.pulsar.utils.Buckets;
+import io.prometheus.client.Histogram;
+
+/* Where the time of a batch goes, one stage_time series per stage: waiting for pulsar, writing the bulk bodies,
+   the _bulk round trip, reading its response and handing the acks over */
+public class Stages {
+    public static final String RECEIVE = "receive";
+    public static final String SERIALIZE = "serialize";
+    public static final String HTTP = "http";
+    public static final String PARSE = "parse";
+    public static final String ACK = "ack";
+    private static final Histogram stageTime = Histogram.build()
+            .name("stage_time")
+            .help("stage_time")
+            .labelNames("pipeline", "stage")
+            .buckets(Buckets.SECONDS)
+            .register();
+
+    public static Histogram.Child timer(final String pipeline, final String stage) {
+        return Stages.stageTime.labels(pipeline, stage);
+    }
+
+    public static void observe(final Histogram.Child timer, final long startNanos) {
+        timer.observe((System.nanoTime() - startNanos) / 1e9);
+    }
+}
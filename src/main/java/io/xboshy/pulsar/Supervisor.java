@@ -0,0 +1,154 @@
+package io.xboshy.pulsar;
+
+import io.xboshy.pulsar.utils.Buckets;
+import io.prometheus.client.Counter;
+import io.prometheus.client.Histogram;
+import org.apache.http.HttpStatus;
+import org.apache.pulsar.client.api.PulsarClientException;
+import org.elasticsearch.client.ResponseException;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/* Stops the pipelines of the app together, on the first failure or when asked to. The app then drains them and,
+   after a failure of the connection to pulsar or elasticsearch, rebuilds what the failure points at and runs them
+   again in the same process */
+public class Supervisor {
+    public enum Causes {
+        /* the consumers are made again, the client too if it was closed */
+        PULSAR,
+        /* the rest clients are made again */
+        ELASTICSEARCH,
+        /* not restarted: bad configuration, refused credentials or requests, bugs */
+        OTHER
+    }
+    private static final int SC_TOO_MANY_REQUESTS = 429;
+    private static final Counter restarts = Counter.build()
+            .name("restarts")
+            .help("restarts")
+            .labelNames("cause")
+            .register();
+    private static final Histogram recoveryTime = Histogram.build()
+            .name("recovery_time")
+            .help("recovery_time")
+            .buckets(Buckets.SECONDS)
+            .register();
+
+    private final AtomicBoolean stopping;
+    private final AtomicReference<Throwable> failure;
+    private volatile boolean stopRequested;
+    /* of the failure being recovered from, 0 once a pipeline receives again */
+    private volatile long failedNanos;
+
+    public Supervisor() {
+        this.stopping = new AtomicBoolean(false);
+        this.failure = new AtomicReference<>();
+        this.stopRequested = false;
+        this.failedNanos = 0;
+    }
+
+    /* read by the receivers before every batch */
+    public boolean isStopping() {
+        return this.stopping.get();
+    }
+
+    /* only the first failure of a run is kept */
+    public void fail(final Throwable e) {
+        if (this.failure.compareAndSet(null, e) && this.failedNanos == 0) {
+            /* from the first failure when restarts fail too */
+            this.failedNanos = System.nanoTime();
+        }
+        this.stopping.set(true);
+    }
+
+    /* for good, no restart follows */
+    public synchronized void stop() {
+        this.stopRequested = true;
+        this.stopping.set(true);
+        this.notifyAll();
+    }
+
+    public boolean isStopRequested() {
+        return this.stopRequested;
+    }
+
+    public Throwable getFailure() {
+        return this.failure.get();
+    }
+
+    /* only lost connections and overloaded servers are worth a restart, the rest fails the same way again */
+    public static Causes cause(final Throwable failure) {
+        /* pulsar client exceptions are IOExceptions too */
+        for (Throwable e = failure; e != null; e = e.getCause()) {
+            if (e instanceof PulsarClientException) {
+                return Supervisor.isPermanent((PulsarClientException) e) ? Causes.OTHER : Causes.PULSAR;
+            }
+        }
+        for (Throwable e = failure; e != null; e = e.getCause()) {
+            if (e instanceof ResponseException) {
+                final int status = ((ResponseException) e).getResponse().getStatusLine().getStatusCode();
+                /* a whole bulk refused, e.g. 400, 401 or 403 */
+                return status == Supervisor.SC_TOO_MANY_REQUESTS || status >= HttpStatus.SC_INTERNAL_SERVER_ERROR ? Causes.ELASTICSEARCH : Causes.OTHER;
+            }
+        }
+        for (Throwable e = failure; e != null; e = e.getCause()) {
+            if (e instanceof IOException) {
+                return Causes.ELASTICSEARCH;
+            }
+        }
+        return Causes.OTHER;
+    }
+
+    /* configuration, credentials or topics the broker refuses */
+    private static boolean isPermanent(final PulsarClientException e) {
+        return e instanceof PulsarClientException.AuthenticationException
+                || e instanceof PulsarClientException.AuthorizationException
+                || e instanceof PulsarClientException.UnsupportedAuthenticationException
+                || e instanceof PulsarClientException.InvalidConfigurationException
+                || e instanceof PulsarClientException.InvalidServiceURL
+                || e instanceof PulsarClientException.InvalidTopicNameException
+                || e instanceof PulsarClientException.TopicDoesNotExistException
+                || e instanceof PulsarClientException.NotFoundException
+                || e instanceof PulsarClientException.IncompatibleSchemaException
+                || e instanceof PulsarClientException.NotSupportedException
+                || e instanceof PulsarClientException.NotAllowedException;
+    }
+
+    /* whether the pulsar client itself is gone and has to be made again */
+    public static boolean isClientClosed(final Throwable failure) {
+        for (Throwable e = failure; e != null; e = e.getCause()) {
+            if (e instanceof PulsarClientException.AlreadyClosedException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /* false when stopped while waiting */
+    public synchronized boolean backoff(final long millis) throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+        long left;
+        while (!this.stopRequested && (left = deadline - System.nanoTime()) > 0) {
+            TimeUnit.NANOSECONDS.timedWait(this, left);
+        }
+        return !this.stopRequested;
+    }
+
+    /* clears the failure for the next run */
+    public synchronized void restarting(final Causes cause) {
+        Supervisor.restarts.labels(cause.name().toLowerCase()).inc();
+        this.failure.set(null);
+        this.stopping.set(this.stopRequested);
+    }
+
+    /* called by the pipelines once they receive, the first one after a failure ends the recovery */
+    public void started() {
+        final long failedNanos = this.failedNanos;
+        if (failedNanos != 0) {
+            this.failedNanos = 0;
+            Supervisor.recoveryTime.observe((System.nanoTime() - failedNanos) / 1e9);
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package io.xboshy.pulsar;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.util.Unbox;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/* Trace events of a sample of the batches, one per stage of their life: received, dispatched to a worker, each
+   bulk sent, its response parsed and its items acked. Events of a batch share its trace id, 0 stands for a batch
+   that is not sampled and costs one branch per stage. Events go through the io.xboshy.pulsar.trace logger with
+   parameters instead of formatted strings, numbers boxed in log4j's thread local buffers, so that with log4j's
+   default garbage free settings emitting them doesn't allocate */
+public class Tracer {
+    private static final Logger logger = LogManager.getLogger("io.xboshy.pulsar.trace");
+
+    private final String pipeline;
+    private final double sampleRate;
+    private final AtomicLong ids;
+
+    /* sampleRate from 0, nothing traced, to 1, every batch */
+    public Tracer(final String pipeline, final double sampleRate) {
+        this.pipeline = pipeline;
+        this.sampleRate = sampleRate;
+        /* ids of a restarted process don't repeat those of the previous one */
+        this.ids = new AtomicLong(System.currentTimeMillis() << 20);
+    }
+
+    /* the trace id of a new batch, 0 when it is not sampled */
+    public long begin() {
+        if (this.sampleRate <= 0 || (this.sampleRate < 1 && ThreadLocalRandom.current().nextDouble() >= this.sampleRate)) {
+            return 0;
+        }
+        return this.ids.incrementAndGet();
+    }
+
+    /* sequence -1 stands for the spill buffer */
+    public void received(final long trace, final String receiver, final long sequence, final int msgs, final long waitNanos) {
+        if (trace != 0) {
+            Tracer.logger.info("{\"trace\": {}, \"pipeline\": \"{}\", \"stage\": \"received\", \"receiver\": {}, \"sequence\": {}, \"msgs\": {}, \"waitMicros\": {}}",
+                    Unbox.box(trace), this.pipeline, receiver, Unbox.box(sequence), Unbox.box(msgs), Unbox.box(waitNanos / 1000));
+        }
+    }
+
+    public void dispatched(final long trace, final int msgs) {
+        if (trace != 0) {
+            Tracer.logger.info("{\"trace\": {}, \"pipeline\": \"{}\", \"stage\": \"dispatched\", \"msgs\": {}}",
+                    Unbox.box(trace), this.pipeline, Unbox.box(msgs));
+        }
+    }
+
+    /* node -1 when the client picks the host */
+    public void sent(final long trace, final int node, final int items, final int bytes, final int attempt) {
+        if (trace != 0) {
+            Tracer.logger.info("{\"trace\": {}, \"pipeline\": \"{}\", \"stage\": \"sent\", \"node\": {}, \"items\": {}, \"bytes\": {}, \"attempt\": {}}",
+                    Unbox.box(trace), this.pipeline, Unbox.box(node), Unbox.box(items), Unbox.box(bytes), Unbox.box(attempt));
+        }
+    }
+
+    public void parsed(final long trace, final int status, final int items, final boolean errors, final long latencyNanos) {
+        if (trace != 0) {
+            Tracer.logger.info("{\"trace\": {}, \"pipeline\": \"{}\", \"stage\": \"parsed\", \"status\": {}, \"items\": {}, \"errors\": {}, \"latencyMicros\": {}}",
+                    Unbox.box(trace), this.pipeline, Unbox.box(status), Unbox.box(items), Unbox.box(errors), Unbox.box(latencyNanos / 1000));
+        }
+    }
+
+    /* ok items are acked, nacked ones get redelivered and retried ones are sent again later */
+    public void acked(final long trace, final int ok, final int nacked, final int retried) {
+        if (trace != 0) {
+            Tracer.logger.info("{\"trace\": {}, \"pipeline\": \"{}\", \"stage\": \"acked\", \"ok\": {}, \"nacked\": {}, \"retried\": {}}",
+                    Unbox.box(trace), this.pipeline, Unbox.box(ok), Unbox.box(nacked), Unbox.box(retried));
+        }
+    }
+}
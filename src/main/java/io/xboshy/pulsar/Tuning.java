@@ -0,0 +1,171 @@
+package io.xboshy.pulsar;
+
+import io.xboshy.pulsar.config.ElasticsearchConfig;
+import org.apache.http.client.config.RequestConfig;
+import org.elasticsearch.client.RequestOptions;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/* The settings of a pipeline the admin api changes while it runs, under the names of the variables they start from.
+   They outlive the runs of the pipeline: each run builds its limiter and sizer from the current values and binds
+   them here, so that a change reaches them at once; the dispatcher reads the request options for every bulk */
+public class Tuning {
+    public static final String CONCURRENCY = "GLOBAL_concurrencyLimit.max";
+    public static final String MAX_NUM_MESSAGES = "PULSAR_CONSUMER_batchReceivePolicy.maxNumMessages";
+    public static final String MAX_NUM_BYTES = "PULSAR_CONSUMER_batchReceivePolicy.maxNumBytes";
+    public static final String SOCKET_TIMEOUT = "ELASTICSEARCH_socketTimeout";
+    public static final String CONNECT_TIMEOUT = "ELASTICSEARCH_connectTimeout";
+    public static final String CONNECTION_REQUEST_TIMEOUT = "ELASTICSEARCH_connectionRequestTimeout";
+    public static final List<String> KEYS = List.of(
+            Tuning.CONCURRENCY,
+            Tuning.MAX_NUM_MESSAGES,
+            Tuning.MAX_NUM_BYTES,
+            Tuning.SOCKET_TIMEOUT,
+            Tuning.CONNECT_TIMEOUT,
+            Tuning.CONNECTION_REQUEST_TIMEOUT
+    );
+
+    private final int minConcurrency;
+    /* what runs bulks, which can't change at runtime, and the variable that sets it */
+    private final int maxConcurrency;
+    private final String maxConcurrencyKey;
+    private final boolean contentCompressionEnabled;
+    private final boolean authenticationEnabled;
+    private int concurrency;
+    private int maxNumMessages;
+    private long maxNumBytes;
+    private int socketTimeout;
+    private int connectTimeout;
+    private int connectionRequestTimeout;
+    private volatile RequestOptions requestOptions;
+    /* of the current run, null between runs */
+    private ConcurrencyLimiter limiter;
+    private AdaptiveBatchSizer sizer;
+
+    public Tuning(final int minConcurrency, final int maxConcurrency, final String maxConcurrencyKey, final int concurrency, final int maxNumMessages, final long maxNumBytes, final ElasticsearchConfig elasticsearchConfig) {
+        this.minConcurrency = minConcurrency;
+        this.maxConcurrency = maxConcurrency;
+        this.maxConcurrencyKey = maxConcurrencyKey;
+        this.contentCompressionEnabled = elasticsearchConfig.getContentCompressionEnabled();
+        this.authenticationEnabled = elasticsearchConfig.hasAuth();
+        this.concurrency = concurrency;
+        this.maxNumMessages = maxNumMessages;
+        this.maxNumBytes = maxNumBytes;
+        this.socketTimeout = elasticsearchConfig.getSocketTimeout();
+        this.connectTimeout = elasticsearchConfig.getConnectTimeout();
+        this.connectionRequestTimeout = elasticsearchConfig.getConnectionRequestTimeout();
+        this.requestOptions = this.buildRequestOptions();
+    }
+
+    public synchronized int getConcurrency() {
+        return this.concurrency;
+    }
+
+    public synchronized int getMaxNumMessages() {
+        return this.maxNumMessages;
+    }
+
+    public synchronized long getMaxNumBytes() {
+        return this.maxNumBytes;
+    }
+
+    /* the timeouts of the rest client, as they are now */
+    public RequestOptions getRequestOptions() {
+        return this.requestOptions;
+    }
+
+    synchronized void bind(final ConcurrencyLimiter limiter, final AdaptiveBatchSizer sizer) {
+        this.limiter = limiter;
+        this.sizer = sizer;
+        if (limiter != null) {
+            limiter.setMaxLimit(this.concurrency);
+        }
+        if (sizer != null) {
+            sizer.setMax(this.maxNumMessages, this.maxNumBytes);
+        }
+    }
+
+    public synchronized Map<String, Object> get() {
+        final Map<String, Object> values = new LinkedHashMap<>();
+        values.put(Tuning.CONCURRENCY, this.concurrency);
+        values.put(Tuning.MAX_NUM_MESSAGES, this.maxNumMessages);
+        values.put(Tuning.MAX_NUM_BYTES, this.maxNumBytes);
+        values.put(Tuning.SOCKET_TIMEOUT, this.socketTimeout);
+        values.put(Tuning.CONNECT_TIMEOUT, this.connectTimeout);
+        values.put(Tuning.CONNECTION_REQUEST_TIMEOUT, this.connectionRequestTimeout);
+        return values;
+    }
+
+    /* throws on the first value that can't be applied, so that callers can check every pipeline before changing any */
+    public synchronized void check(final Map<String, String> changes) throws Exception {
+        int maxNumMessages = this.maxNumMessages;
+        long maxNumBytes = this.maxNumBytes;
+        for (final Map.Entry<String, String> change : changes.entrySet()) {
+            final long value;
+            try {
+                value = Long.parseLong(change.getValue().trim());
+            } catch (NumberFormatException e) {
+                throw new Exception(change.getKey() + " must be a number");
+            }
+            switch (change.getKey()) {
+                case Tuning.CONCURRENCY -> {
+                    if (value < this.minConcurrency || value > Integer.MAX_VALUE) {
+                        throw new Exception(Tuning.CONCURRENCY + " must be at least GLOBAL_concurrencyLimit.min, " + this.minConcurrency);
+                    }
+                    if (value > this.maxConcurrency) {
+                        throw new Exception(Tuning.CONCURRENCY + " can't go above " + this.maxConcurrencyKey + ", " + this.maxConcurrency + ", which can't change at runtime");
+                    }
+                }
+                case Tuning.MAX_NUM_MESSAGES -> {
+                    if (value > Integer.MAX_VALUE) {
+                        throw new Exception(Tuning.MAX_NUM_MESSAGES + " is too large");
+                    }
+                    maxNumMessages = (int) value;
+                }
+                case Tuning.MAX_NUM_BYTES -> maxNumBytes = value;
+                case Tuning.SOCKET_TIMEOUT, Tuning.CONNECT_TIMEOUT, Tuning.CONNECTION_REQUEST_TIMEOUT -> {
+                    if (value < 0 || value > Integer.MAX_VALUE) {
+                        throw new Exception(change.getKey() + " must be 0 (no timeout) or more");
+                    }
+                }
+                default -> throw new Exception(change.getKey() + " can't be changed at runtime, only " + String.join(", ", Tuning.KEYS));
+            }
+        }
+        if (maxNumMessages <= 0 && maxNumBytes <= 0) {
+            throw new Exception("batches need a bound, " + Tuning.MAX_NUM_MESSAGES + " or " + Tuning.MAX_NUM_BYTES + " must be greater than 0");
+        }
+    }
+
+    public synchronized void apply(final Map<String, String> changes) throws Exception {
+        this.check(changes);
+        for (final Map.Entry<String, String> change : changes.entrySet()) {
+            final long value = Long.parseLong(change.getValue().trim());
+            switch (change.getKey()) {
+                case Tuning.CONCURRENCY -> this.concurrency = (int) value;
+                /* unbounded below 1, as in BatchReceivePolicy */
+                case Tuning.MAX_NUM_MESSAGES -> this.maxNumMessages = value < 1 ? -1 : (int) value;
+                case Tuning.MAX_NUM_BYTES -> this.maxNumBytes = value < 1 ? -1 : value;
+                case Tuning.SOCKET_TIMEOUT -> this.socketTimeout = (int) value;
+                case Tuning.CONNECT_TIMEOUT -> this.connectTimeout = (int) value;
+                case Tuning.CONNECTION_REQUEST_TIMEOUT -> this.connectionRequestTimeout = (int) value;
+            }
+        }
+        this.requestOptions = this.buildRequestOptions();
+        this.bind(this.limiter, this.sizer);
+    }
+
+    /* replaces the whole request config of the client, so it repeats what ProducerFactory sets */
+    private RequestOptions buildRequestOptions() {
+        return RequestOptions.DEFAULT.toBuilder()
+                .setRequestConfig(RequestConfig.custom()
+                        .setSocketTimeout(this.socketTimeout)
+                        .setContentCompressionEnabled(this.contentCompressionEnabled)
+                        .setConnectTimeout(this.connectTimeout)
+                        .setConnectionRequestTimeout(this.connectionRequestTimeout)
+                        .setAuthenticationEnabled(this.authenticationEnabled)
+                        .build())
+                .build();
+    }
+}
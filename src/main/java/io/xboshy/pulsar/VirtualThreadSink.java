@@ -0,0 +1,99 @@
+package io.xboshy.pulsar;
+
+import com.lmax.disruptor.ExceptionHandler;
+import com.lmax.disruptor.WorkHandler;
+import io.prometheus.client.Histogram;
+import org.apache.pulsar.client.api.Consumer;
+import org.apache.pulsar.client.api.Messages;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/* Runs each batch on its own virtual thread, a semaphore bounds how many run at once */
+public class VirtualThreadSink<T> implements BatchSink<T> {
+    private final Semaphore permits;
+    private final int maxInflight;
+    private final Callable<WorkHandler<Batch<T>>> handlerFactory;
+    /* handlers keep per-batch scratch state, each runs on one thread at a time */
+    private final ConcurrentLinkedQueue<WorkHandler<Batch<T>>> handlers;
+    private final ExceptionHandler<Batch<T>> exceptionHandler;
+    private final ThreadFactory threadFactory;
+    private final AtomicLong sequence;
+    private final Histogram.Child handoff;
+
+    public VirtualThreadSink(final String pipeline, final int maxInflight, final Callable<WorkHandler<Batch<T>>> handlerFactory, final ExceptionHandler<Batch<T>> exceptionHandler) {
+        this.permits = new Semaphore(maxInflight);
+        this.maxInflight = maxInflight;
+        this.handlerFactory = handlerFactory;
+        this.handlers = new ConcurrentLinkedQueue<>();
+        this.exceptionHandler = exceptionHandler;
+        this.threadFactory = Thread.ofVirtual().name(Pipeline.threadName(pipeline, "batch-worker") + ": ", 0).factory();
+        this.sequence = new AtomicLong(0);
+        this.handoff = Batch.handoff(pipeline, this.getProfile());
+    }
+
+    @Override
+    public String getProfile() {
+        return "virtual";
+    }
+
+    @Override
+    public long claim() throws InterruptedException {
+        this.permits.acquire();
+        return this.sequence.getAndIncrement();
+    }
+
+    @Override
+    public long tryClaim() {
+        return this.permits.tryAcquire() ? this.sequence.getAndIncrement() : -1;
+    }
+
+    @Override
+    public void publish(final long sequence, final Consumer<T> consumer, final Messages<T> msgs, final AckStage.Ticket<T> ticket, final long trace) {
+        if (msgs == null || msgs.size() <= 0) {
+            this.permits.release();
+            return;
+        }
+
+        final Batch<T> batch = new Batch<>();
+        batch.setMessages(consumer, msgs, ticket, trace);
+        batch.markPublished(this.handoff);
+        try {
+            this.threadFactory.newThread(() -> this.run(sequence, batch)).start();
+        } catch (RuntimeException e) {
+            this.permits.release();
+            throw e;
+        }
+    }
+
+    private void run(final long sequence, final Batch<T> batch) {
+        WorkHandler<Batch<T>> handler = null;
+        try {
+            handler = this.handlers.poll();
+            if (handler == null) {
+                handler = this.handlerFactory.call();
+            }
+            handler.onEvent(batch);
+        } catch (Throwable e) {
+            this.exceptionHandler.handleEventException(e, sequence, batch);
+        } finally {
+            if (handler != null) {
+                this.handlers.offer(handler);
+            }
+            this.permits.release();
+        }
+    }
+
+    public boolean awaitIdle(final long timeout, final TimeUnit unit) throws InterruptedException {
+        if (!this.permits.tryAcquire(this.maxInflight, timeout, unit)) {
+            return false;
+        }
+
+        this.permits.release(this.maxInflight);
+        return true;
+    }
+}
@@ -0,0 +1,249 @@
+package io.xboshy.pulsar.bulk;
+
+import io.xboshy.pulsar.id.IdWriter;
+import io.xboshy.pulsar.index.IndexWriter;
+import io.xboshy.pulsar.source.SourceWriter;
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.nio.entity.NByteArrayEntity;
+import org.apache.pulsar.client.api.Message;
+import org.apache.pulsar.client.impl.MessageImpl;
+import org.apache.pulsar.client.impl.TopicMessageImpl;
+import org.apache.pulsar.shade.io.netty.buffer.ByteBuf;
+import org.apache.pulsar.shade.io.netty.buffer.Unpooled;
+
+import java.nio.charset.StandardCharsets;
+
+public class BulkBodyWriter {
+    public enum Actions {
+        CREATE("create"),
+        INDEX("index"),
+        /* the source line wraps the payload as a partial document, inserted when the document is missing */
+        UPDATE("update"),
+        /* without a source line */
+        DELETE("delete");
+
+        private final byte[] idPrefix;
+        private final byte[] noId;
+        private final byte[] indexPrefix;
+
+        Actions(final String name) {
+            this.idPrefix = ("{\"" + name + "\":{\"_id\":\"").getBytes(StandardCharsets.UTF_8);
+            this.noId = ("{\"" + name + "\":{}}\n").getBytes(StandardCharsets.UTF_8);
+            this.indexPrefix = ("{\"" + name + "\":{\"_index\":\"").getBytes(StandardCharsets.UTF_8);
+        }
+    }
+    private static final byte[] ID_SUFFIX = "\"}}\n".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] VERSION_PREFIX = "\",\"version\":".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] VERSION_SUFFIX = ",\"version_type\":\"external\"}}\n".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] ID_AFTER_INDEX = "\",\"_id\":\"".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] DOC_PREFIX = "{\"doc\":".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] DOC_AS_UPSERT_SUFFIX = ",\"doc_as_upsert\":true}".getBytes(StandardCharsets.UTF_8);
+    private static final byte NEWLINE = '\n';
+
+    private final boolean externalVersions;
+    private BulkBuffer buffer;
+    private int idOffset;
+    private int idLength;
+    private int keyOffset;
+    private int keyLength;
+
+    public BulkBodyWriter() {
+        this(false);
+    }
+
+    /* with externalVersions, index and delete actions carry the publish time of their message as an external
+       version, so elasticsearch turns down a write older than the one it has */
+    public BulkBodyWriter(final boolean externalVersions) {
+        this.externalVersions = externalVersions;
+    }
+
+    public void begin(final BulkBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    public BulkBuffer buffer() {
+        return this.buffer;
+    }
+
+    public int mark() {
+        return this.buffer.length();
+    }
+
+    public void rewind(final int mark) {
+        this.buffer.truncate(mark);
+    }
+
+    /* appends everything written since begin() on an empty buffer to target and continues there, returns where it starts in target */
+    public int transferTo(final BulkBuffer target) {
+        final int mark = target.length();
+        target.write(this.buffer.array(), 0, this.buffer.length());
+        this.idOffset += mark;
+        this.keyOffset += mark;
+        this.buffer = target;
+        return mark;
+    }
+
+    /* offset of the id written by the last writeAction, in buffer().array() */
+    public int idOffset() {
+        return this.idOffset;
+    }
+
+    public int idLength() {
+        return this.idLength;
+    }
+
+    /* what identifies the document of the last writeAction: the id, or the index through the id when
+       actions name their index, in buffer().array() */
+    public int keyOffset() {
+        return this.keyOffset;
+    }
+
+    public int keyLength() {
+        return this.keyLength;
+    }
+
+    /* returns false when the action was written without an _id */
+    public boolean writeAction(final IdWriter idWriter, final Message<?> msg) {
+        return this.writeAction(Actions.CREATE, idWriter, msg);
+    }
+
+    public boolean writeAction(final Actions action, final IdWriter idWriter, final Message<?> msg) {
+        final int mark = this.buffer.length();
+        this.buffer.write(action.idPrefix);
+        this.idOffset = this.buffer.length();
+        this.keyOffset = this.idOffset;
+        if (!idWriter.write(msg, this.buffer)) {
+            this.buffer.truncate(mark);
+            this.buffer.write(action.noId);
+            this.idLength = 0;
+            this.keyLength = 0;
+            return false;
+        }
+
+        this.idLength = this.buffer.length() - this.idOffset;
+        this.keyLength = this.idLength;
+        this.writeIdSuffix(action, msg);
+        return true;
+    }
+
+    /* with an _index from indexWriter, or as above when it is null */
+    public boolean writeAction(final IndexWriter indexWriter, final IdWriter idWriter, final Message<?> msg) {
+        return this.writeAction(Actions.CREATE, indexWriter, idWriter, msg);
+    }
+
+    public boolean writeAction(final Actions action, final IndexWriter indexWriter, final IdWriter idWriter, final Message<?> msg) {
+        if (indexWriter == null) {
+            return this.writeAction(action, idWriter, msg);
+        }
+
+        this.buffer.write(action.indexPrefix);
+        this.keyOffset = this.buffer.length();
+        indexWriter.write(msg, this.buffer);
+        final int indexEnd = this.buffer.length();
+        this.buffer.write(BulkBodyWriter.ID_AFTER_INDEX);
+        this.idOffset = this.buffer.length();
+        if (!idWriter.write(msg, this.buffer)) {
+            this.buffer.truncate(indexEnd);
+            this.buffer.write(BulkBodyWriter.ID_SUFFIX);
+            this.idLength = 0;
+            this.keyLength = 0;
+            return false;
+        }
+
+        this.idLength = this.buffer.length() - this.idOffset;
+        this.keyLength = this.buffer.length() - this.keyOffset;
+        this.writeIdSuffix(action, msg);
+        return true;
+    }
+
+    private void writeIdSuffix(final Actions action, final Message<?> msg) {
+        if (!this.externalVersions || (action != Actions.INDEX && action != Actions.DELETE)) {
+            this.buffer.write(BulkBodyWriter.ID_SUFFIX);
+            return;
+        }
+        this.buffer.write(BulkBodyWriter.VERSION_PREFIX);
+        this.buffer.writeDecimal(msg.getPublishTime());
+        this.buffer.write(BulkBodyWriter.VERSION_SUFFIX);
+    }
+
+    public void writeSource(final Message<?> msg) {
+        this.writePayload(msg);
+        this.buffer.write(BulkBodyWriter.NEWLINE);
+    }
+
+    private void writePayload(final Message<?> msg) {
+        final ByteBuf payload = BulkBodyWriter.payload(msg);
+        if (payload != null) {
+            this.buffer.write(payload);
+        }
+    }
+
+    /* through sourceWriter when there is one, the caller rewinds the item if it throws */
+    public void writeSource(final SourceWriter sourceWriter, final Message<?> msg) throws Exception {
+        if (sourceWriter == null) {
+            this.writeSource(msg);
+            return;
+        }
+        sourceWriter.write(msg, this.buffer);
+        this.buffer.write(BulkBodyWriter.NEWLINE);
+    }
+
+    /* the source line action takes, if any */
+    public void writeSource(final Actions action, final SourceWriter sourceWriter, final Message<?> msg) throws Exception {
+        switch (action) {
+            case DELETE -> {
+            }
+            case UPDATE -> {
+                this.buffer.write(BulkBodyWriter.DOC_PREFIX);
+                if (sourceWriter == null) {
+                    this.writePayload(msg);
+                } else {
+                    sourceWriter.write(msg, this.buffer);
+                }
+                this.buffer.write(BulkBodyWriter.DOC_AS_UPSERT_SUFFIX);
+                this.buffer.write(BulkBodyWriter.NEWLINE);
+            }
+            default -> this.writeSource(sourceWriter, msg);
+        }
+    }
+
+    public static HttpEntity toEntity(final BulkBuffer buffer) {
+        return new NByteArrayEntity(buffer.array(), 0, buffer.length(), ContentType.APPLICATION_JSON);
+    }
+
+    /* a message without a value, which deletes its key from a compacted topic */
+    public static boolean isTombstone(final Message<?> msg) {
+        Message<?> m = msg;
+        if (m instanceof TopicMessageImpl<?> topicMessage) {
+            m = topicMessage.getMessage();
+        }
+
+        if (m instanceof MessageImpl<?> messageImpl) {
+            return messageImpl.getMessageBuilder().isNullValue();
+        }
+        return m.getData() == null;
+    }
+
+    /* the payload of msg without copying it when the message is backed by a pooled buffer */
+    public static ByteBuf payload(final Message<?> msg) {
+        Message<?> m = msg;
+        if (m instanceof TopicMessageImpl<?> topicMessage) {
+            m = topicMessage.getMessage();
+        }
+
+        if (m instanceof MessageImpl<?> messageImpl) {
+            if (messageImpl.getMessageBuilder().isNullValue()) {
+                return null;
+            }
+            return messageImpl.getDataBuffer();
+        }
+
+        final byte[] data = m.getData();
+        if (data == null) {
+            return null;
+        }
+
+        return Unpooled.wrappedBuffer(data);
+    }
+}
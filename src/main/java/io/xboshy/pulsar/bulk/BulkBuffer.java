@@ -0,0 +1,166 @@
+package io.xboshy.pulsar.bulk;
+
+import io.xboshy.pulsar.utils.Hex;
+import org.apache.pulsar.shade.io.netty.buffer.ByteBuf;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+public class BulkBuffer {
+    private byte[] buf;
+    private int length;
+
+    public BulkBuffer(final int initialCapacity) {
+        this.buf = new byte[Math.max(initialCapacity, 16)];
+        this.length = 0;
+    }
+
+    public void write(final int b) {
+        this.ensureCapacity(1);
+        this.buf[this.length++] = (byte) b;
+    }
+
+    public void write(final byte[] src) {
+        this.write(src, 0, src.length);
+    }
+
+    public void write(final byte[] src, final int off, final int len) {
+        this.ensureCapacity(len);
+        System.arraycopy(src, off, this.buf, this.length, len);
+        this.length += len;
+    }
+
+    public void write(final ByteBuf src) {
+        final int len = src.readableBytes();
+        this.ensureCapacity(len);
+        src.getBytes(src.readerIndex(), this.buf, this.length, len);
+        this.length += len;
+    }
+
+    /* advances the length by n and returns the offset of the reserved bytes */
+    public int reserve(final int n) {
+        this.ensureCapacity(n);
+        final int offset = this.length;
+        this.length += n;
+        return offset;
+    }
+
+    public void writeDecimal(final long v) {
+        if (v == Long.MIN_VALUE) {
+            this.write(Long.toString(v).getBytes(StandardCharsets.US_ASCII));
+            return;
+        }
+
+        long rest = v;
+        if (rest < 0) {
+            this.write('-');
+            rest = -rest;
+        }
+        int digits = 1;
+        for (long p = 10; digits < 19 && p <= rest; p *= 10) {
+            ++digits;
+        }
+        final int offset = this.reserve(digits);
+        for (int i = offset + digits - 1; i >= offset; --i) {
+            this.buf[i] = (byte) ('0' + rest % 10);
+            rest /= 10;
+        }
+    }
+
+    /* writes the chars of a JSON string value as escaped UTF-8, without the quotes */
+    public void writeJsonString(final String str) {
+        final int n = str.length();
+        for (int i = 0; i < n; ++i) {
+            final char c = str.charAt(i);
+            if (c < 0x80) {
+                if (c == '"' || c == '\\') {
+                    this.write('\\');
+                    this.write(c);
+                } else if (c < 0x20) {
+                    this.write('\\');
+                    this.write('u');
+                    this.write('0');
+                    this.write('0');
+                    this.write(Hex.digit(c >> 4));
+                    this.write(Hex.digit(c));
+                } else {
+                    this.write(c);
+                }
+            } else if (c < 0x800) {
+                this.write(0xc0 | (c >> 6));
+                this.write(0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(str.charAt(i + 1))) {
+                final int cp = Character.toCodePoint(c, str.charAt(++i));
+                this.write(0xf0 | (cp >> 18));
+                this.write(0x80 | ((cp >> 12) & 0x3f));
+                this.write(0x80 | ((cp >> 6) & 0x3f));
+                this.write(0x80 | (cp & 0x3f));
+            } else if (Character.isSurrogate(c)) {
+                this.write('?');
+            } else {
+                this.write(0xe0 | (c >> 12));
+                this.write(0x80 | ((c >> 6) & 0x3f));
+                this.write(0x80 | (c & 0x3f));
+            }
+        }
+    }
+
+    /* writes UTF-8 bytes as the chars of a JSON string value, without the quotes */
+    public void writeJsonUtf8(final byte[] src, final int off, final int len) {
+        this.ensureCapacity(len);
+        final int end = off + len;
+        int from = off;
+        for (int i = off; i < end; ++i) {
+            final int c = src[i] & 0xff;
+            if (c >= 0x20 && c != '"' && c != '\\') {
+                continue;
+            }
+            this.write(src, from, i - from);
+            this.write('\\');
+            if (c >= 0x20) {
+                this.write(c);
+            } else {
+                this.write('u');
+                this.write('0');
+                this.write('0');
+                this.write(Hex.digit(c >> 4));
+                this.write(Hex.digit(c));
+            }
+            from = i + 1;
+        }
+        this.write(src, from, end - from);
+    }
+
+    public byte[] array() {
+        return this.buf;
+    }
+
+    public int length() {
+        return this.length;
+    }
+
+    public int capacity() {
+        return this.buf.length;
+    }
+
+    public void truncate(final int length) {
+        this.length = length;
+    }
+
+    public void reset() {
+        this.length = 0;
+    }
+
+    public void ensureCapacity(final int extra) {
+        final int required = this.length + extra;
+        if (required <= this.buf.length) {
+            return;
+        }
+
+        int newCapacity = this.buf.length << 1;
+        if (newCapacity < required) {
+            newCapacity = required;
+        }
+        this.buf = Arrays.copyOf(this.buf, newCapacity);
+    }
+}
@@ -0,0 +1,32 @@
+package io.xboshy.pulsar.bulk;
+
+import java.util.concurrent.ArrayBlockingQueue;
+
+public class BulkBufferPool {
+    private final ArrayBlockingQueue<BulkBuffer> pool;
+    private final int initialCapacity;
+
+    public BulkBufferPool(final int maxPooled, final int initialCapacity) {
+        this.pool = new ArrayBlockingQueue<>(Math.max(maxPooled, 1));
+        this.initialCapacity = initialCapacity;
+    }
+
+    public BulkBuffer acquire() {
+        final BulkBuffer buffer = this.pool.poll();
+        if (buffer != null) {
+            return buffer;
+        }
+
+        return new BulkBuffer(this.initialCapacity);
+    }
+
+    public void release(final BulkBuffer buffer) {
+        if (buffer == null) {
+            return;
+        }
+
+        buffer.reset();
+        /* buffers beyond the pool size are left to the GC */
+        this.pool.offer(buffer);
+    }
+}
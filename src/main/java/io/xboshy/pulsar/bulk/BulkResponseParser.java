@@ -0,0 +1,91 @@
+package io.xboshy.pulsar.bulk;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+public class BulkResponseParser {
+    /* keeps one entry per item so results line up with the request by position */
+    public static final String FILTER_PATH = "errors,items.*.status,items.*.error.type";
+    private static final JsonFactory FACTORY = new JsonFactory();
+
+    public static BulkResult parse(final InputStream in) throws IOException {
+        return BulkResponseParser.parse(in, false);
+    }
+
+    /* with items the item results are read even when there are no errors */
+    public static BulkResult parse(final InputStream in, final boolean items) throws IOException {
+        final BulkResult result = new BulkResult();
+        try (final JsonParser parser = BulkResponseParser.FACTORY.createParser(in)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("bulk response is not a json object");
+            }
+
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                final String field = parser.currentName();
+                final JsonToken token = parser.nextToken();
+                if ("errors".equals(field)) {
+                    result.setErrors(token == JsonToken.VALUE_TRUE);
+                    if (!result.hasErrors() && !items) {
+                        /* happy path, the items are not needed */
+                        return result;
+                    }
+                } else if ("items".equals(field)) {
+                    BulkResponseParser.parseItems(parser, result);
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        }
+
+        return result;
+    }
+
+    private static void parseItems(final JsonParser parser, final BulkResult result) throws IOException {
+        if (parser.currentToken() != JsonToken.START_ARRAY) {
+            throw new IOException("bulk response items is not a json array");
+        }
+
+        while (parser.nextToken() == JsonToken.START_OBJECT) {
+            int status = 0;
+            String errorType = null;
+            /* { "<action>": { "status": ..., "error": { "type": ... } } } */
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                if (parser.nextToken() != JsonToken.START_OBJECT) {
+                    parser.skipChildren();
+                    continue;
+                }
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    final String field = parser.currentName();
+                    final JsonToken token = parser.nextToken();
+                    if ("status".equals(field)) {
+                        status = parser.getIntValue();
+                    } else if ("error".equals(field) && token == JsonToken.START_OBJECT) {
+                        errorType = BulkResponseParser.parseErrorType(parser);
+                    } else {
+                        parser.skipChildren();
+                    }
+                }
+            }
+            result.add(status, errorType);
+        }
+    }
+
+    private static String parseErrorType(final JsonParser parser) throws IOException {
+        String errorType = "";
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            final String field = parser.currentName();
+            parser.nextToken();
+            if ("type".equals(field)) {
+                errorType = parser.getText();
+            } else {
+                parser.skipChildren();
+            }
+        }
+
+        return errorType;
+    }
+}
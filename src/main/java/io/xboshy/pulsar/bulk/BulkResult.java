@@ -0,0 +1,49 @@
+package io.xboshy.pulsar.bulk;
+
+import java.util.Arrays;
+
+public class BulkResult {
+    private boolean errors;
+    private int size;
+    private int[] statuses;
+    private String[] errorTypes;
+
+    public BulkResult() {
+        this.errors = false;
+        this.size = 0;
+        this.statuses = new int[0];
+        this.errorTypes = new String[0];
+    }
+
+    public boolean hasErrors() {
+        return this.errors;
+    }
+
+    /* number of items read, always 0 when the response had no errors and the items were not asked for */
+    public int size() {
+        return this.size;
+    }
+
+    public int status(final int ordinal) {
+        return this.statuses[ordinal];
+    }
+
+    public String errorType(final int ordinal) {
+        return this.errorTypes[ordinal];
+    }
+
+    void setErrors(final boolean errors) {
+        this.errors = errors;
+    }
+
+    void add(final int status, final String errorType) {
+        if (this.size == this.statuses.length) {
+            final int newCapacity = Math.max(16, this.size << 1);
+            this.statuses = Arrays.copyOf(this.statuses, newCapacity);
+            this.errorTypes = Arrays.copyOf(this.errorTypes, newCapacity);
+        }
+        this.statuses[this.size] = status;
+        this.errorTypes[this.size] = errorType;
+        ++this.size;
+    }
+}
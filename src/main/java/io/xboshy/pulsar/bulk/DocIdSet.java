@@ -0,0 +1,93 @@
+package io.xboshy.pulsar.bulk;
+
+import java.util.Arrays;
+
+/* Set of document ids already written to a bulk, the ids are compared in place in the buffer */
+public class DocIdSet {
+    private BulkBuffer buffer;
+    private int[] table;
+    private int[] offsets;
+    private int[] lengths;
+    private int[] hashes;
+    private int size;
+    private int lastSlot;
+
+    public DocIdSet(final int expectedSize) {
+        int capacity = 16;
+        while (capacity < 2 * expectedSize) {
+            capacity <<= 1;
+        }
+        this.table = new int[capacity];
+        this.offsets = new int[capacity >> 1];
+        this.lengths = new int[capacity >> 1];
+        this.hashes = new int[capacity >> 1];
+        this.size = 0;
+    }
+
+    public void clear(final BulkBuffer buffer) {
+        this.buffer = buffer;
+        if (this.size > 0) {
+            Arrays.fill(this.table, 0);
+            this.size = 0;
+        }
+    }
+
+    /* returns false when an equal id is already in the set */
+    public boolean add(final int offset, final int length) {
+        final byte[] bytes = this.buffer.array();
+        final int hash = DocIdSet.hash(bytes, offset, length);
+        final int mask = this.table.length - 1;
+        int slot = hash & mask;
+        while (this.table[slot] != 0) {
+            final int entry = this.table[slot] - 1;
+            if (this.hashes[entry] == hash
+                    && Arrays.equals(bytes, this.offsets[entry], this.offsets[entry] + this.lengths[entry], bytes, offset, offset + length)) {
+                return false;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        if (this.size == this.offsets.length) {
+            this.grow();
+            return this.add(offset, length);
+        }
+
+        this.offsets[this.size] = offset;
+        this.lengths[this.size] = length;
+        this.hashes[this.size] = hash;
+        this.table[slot] = ++this.size;
+        this.lastSlot = slot;
+        return true;
+    }
+
+    /* forgets the id of the last successful add, nothing probed past it yet */
+    public void removeLast() {
+        this.table[this.lastSlot] = 0;
+        --this.size;
+    }
+
+    private void grow() {
+        final int capacity = this.table.length << 1;
+        this.table = new int[capacity];
+        this.offsets = Arrays.copyOf(this.offsets, capacity >> 1);
+        this.lengths = Arrays.copyOf(this.lengths, capacity >> 1);
+        this.hashes = Arrays.copyOf(this.hashes, capacity >> 1);
+        final int mask = capacity - 1;
+        for (int entry = 0; entry < this.size; ++entry) {
+            int slot = this.hashes[entry] & mask;
+            while (this.table[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            this.table[slot] = entry + 1;
+        }
+    }
+
+    private static int hash(final byte[] bytes, final int offset, final int length) {
+        int h = 0x811c9dc5;
+        for (int i = offset; i < offset + length; ++i) {
+            h = (h ^ bytes[i]) * 0x01000193;
+        }
+
+        return h ^ (h >>> 16);
+    }
+}
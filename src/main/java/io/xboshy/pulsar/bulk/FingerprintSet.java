@@ -0,0 +1,60 @@
+package io.xboshy.pulsar.bulk;
+
+import java.util.Arrays;
+
+/* Set of the documents written by a batch as IndexedIdCache.key fingerprints, which are never 0. Unlike DocIdSet it
+   spans the bulks the batch is split into, at the cost of the same collision odds as the cache */
+public class FingerprintSet {
+    private long[] table;
+    private int size;
+
+    public FingerprintSet(final int expectedSize) {
+        int capacity = 16;
+        while (capacity < 2 * expectedSize) {
+            capacity <<= 1;
+        }
+        this.table = new long[capacity];
+        this.size = 0;
+    }
+
+    public void clear() {
+        if (this.size > 0) {
+            Arrays.fill(this.table, 0);
+            this.size = 0;
+        }
+    }
+
+    /* returns false when key is already in the set */
+    public boolean add(final long key) {
+        final int mask = this.table.length - 1;
+        int slot = (int) (key ^ (key >>> 32)) & mask;
+        while (this.table[slot] != 0) {
+            if (this.table[slot] == key) {
+                return false;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        this.table[slot] = key;
+        if (++this.size > this.table.length >> 1) {
+            this.grow();
+        }
+        return true;
+    }
+
+    private void grow() {
+        final long[] old = this.table;
+        this.table = new long[old.length << 1];
+        final int mask = this.table.length - 1;
+        for (final long key : old) {
+            if (key == 0) {
+                continue;
+            }
+            int slot = (int) (key ^ (key >>> 32)) & mask;
+            while (this.table[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            this.table[slot] = key;
+        }
+    }
+}
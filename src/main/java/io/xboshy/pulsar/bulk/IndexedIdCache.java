@@ -0,0 +1,122 @@
+package io.xboshy.pulsar.bulk;
+
+import io.prometheus.client.Counter;
+import io.xboshy.pulsar.utils.Murmur3;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/* Ids elasticsearch recently confirmed, shared by all workers, kept as 64 bit fingerprints in two generations of
+   lock free open addressing tables. The current generation is retired once it holds size ids or is older than the
+   window, so an id is remembered for one to two windows. A fingerprint collision would skip a new document, at 64
+   bits that is about size / 2^63 per lookup, unlike a bloom filter there are no false positives beyond that */
+public class IndexedIdCache {
+    private static final Counter lookups = Counter.build()
+            .name("dedup_cache")
+            .help("dedup_cache")
+            .labelNames("pipeline", "result")
+            .register();
+
+    private final int size;
+    private final long windowNanos;
+    private final Counter.Child hits;
+    private final Counter.Child misses;
+    private volatile Generation current;
+    private volatile Generation previous;
+
+    private static class Generation {
+        private final AtomicLongArray table;
+        private final AtomicInteger count;
+        private final long startNanos;
+
+        private Generation(final int capacity) {
+            this.table = new AtomicLongArray(capacity);
+            this.count = new AtomicInteger(0);
+            this.startNanos = System.nanoTime();
+        }
+
+        private boolean contains(final long key) {
+            final int mask = this.table.length() - 1;
+            int slot = (int) key & mask;
+            for (int i = 0; i <= mask; ++i, slot = (slot + 1) & mask) {
+                final long k = this.table.get(slot);
+                if (k == key) {
+                    return true;
+                }
+                if (k == 0) {
+                    return false;
+                }
+            }
+            return false;
+        }
+
+        private void add(final long key) {
+            final int mask = this.table.length() - 1;
+            int slot = (int) key & mask;
+            /* bounded as workers racing the rotation may overfill it */
+            for (int i = 0; i <= mask; ++i, slot = (slot + 1) & mask) {
+                final long k = this.table.get(slot);
+                if (k == key) {
+                    return;
+                }
+                if (k == 0 && this.table.compareAndSet(slot, 0, key)) {
+                    this.count.incrementAndGet();
+                    return;
+                }
+                if (this.table.get(slot) == key) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /* size ids per generation, each generation takes 16 to 32 bytes per id */
+    public IndexedIdCache(final String pipeline, final int size, final long windowMillis) {
+        this.size = size;
+        this.windowNanos = windowMillis * 1_000_000L;
+        this.hits = IndexedIdCache.lookups.labels(pipeline, "hit");
+        this.misses = IndexedIdCache.lookups.labels(pipeline, "miss");
+        this.current = new Generation(this.capacity());
+        this.previous = new Generation(this.capacity());
+    }
+
+    private int capacity() {
+        /* at most half full */
+        return Integer.highestOneBit(Math.max(this.size, 8) * 2 - 1) << 1;
+    }
+
+    /* fingerprint of the id at id[off, off + len), never 0 */
+    public static long key(final byte[] id, final int off, final int len) {
+        final long key = Murmur3.hash64(id, off, len);
+        return key == 0 ? 1 : key;
+    }
+
+    public boolean contains(final long key) {
+        if (this.current.contains(key) || this.previous.contains(key)) {
+            this.hits.inc();
+            return true;
+        }
+        this.misses.inc();
+        return false;
+    }
+
+    /* called once elasticsearch has the document */
+    public void add(final long key) {
+        Generation generation = this.current;
+        if (generation.count.get() >= this.size || System.nanoTime() - generation.startNanos > this.windowNanos) {
+            generation = this.rotate(generation);
+        }
+        generation.add(key);
+    }
+
+    private synchronized Generation rotate(final Generation full) {
+        if (this.current != full) {
+            return this.current;
+        }
+
+        /* ids still being added to the retired generation may be lost, they only miss the cache */
+        this.previous = full;
+        this.current = new Generation(this.capacity());
+        return this.current;
+    }
+}
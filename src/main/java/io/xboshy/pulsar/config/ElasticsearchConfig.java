@@ -12,6 +12,7 @@ import java.nio.file.Paths;
 import java.security.KeyStore;
 import java.security.cert.Certificate;
 import java.security.cert.CertificateFactory;
+import java.time.ZoneId;
 import java.util.Map;
 
 public class ElasticsearchConfig extends Config {
@@ -20,10 +21,14 @@ public class ElasticsearchConfig extends Config {
     private String password = null;
     private Integer ioThreads = null;
     private String indexName = null;
+    private ZoneId indexTimeZone = null;
     private Integer socketTimeout = null;
     private Boolean contentCompressionEnabled = null;
     private Integer connectTimeout = null;
     private Integer connectionRequestTimeout = null;
+    private Long maxContentLength = null;
+    private Boolean shardRouting = null;
+    private Integer shardRoutingRefreshInterval = null;
     private String tlsTrustCertsFilePath = null;
     private SSLContext sslContext = null;
 
@@ -87,6 +92,16 @@ public class ElasticsearchConfig extends Config {
         return this.indexName;
     }
 
+    /* zone of the dates in the index name */
+    public ZoneId getIndexTimeZone() {
+        if (this.indexTimeZone != null)
+            return this.indexTimeZone;
+
+        this.indexTimeZone = ZoneId.of(this.getStrValue("indexName.timeZone", "UTC"));
+
+        return this.indexTimeZone;
+    }
+
     public int getSocketTimeout() {
         if (this.socketTimeout != null)
             return this.socketTimeout;
@@ -123,6 +138,35 @@ public class ElasticsearchConfig extends Config {
         return this.connectionRequestTimeout;
     }
 
+    public long getMaxContentLength() {
+        if (this.maxContentLength != null)
+            return this.maxContentLength;
+
+        final String str = this.getStrValue("maxContentLength");
+        /* elasticsearch's http.max_content_length default */
+        this.maxContentLength = str == null ? 104857600L : Long.parseLong(str);
+
+        return this.maxContentLength;
+    }
+
+    public boolean getShardRouting() {
+        if (this.shardRouting != null)
+            return this.shardRouting;
+
+        this.shardRouting = this.getBoolValue("shardRouting", false);
+
+        return this.shardRouting;
+    }
+
+    public int getShardRoutingRefreshInterval() {
+        if (this.shardRoutingRefreshInterval != null)
+            return this.shardRoutingRefreshInterval;
+
+        this.shardRoutingRefreshInterval = this.getIntValue("shardRouting.refreshInterval", 30000);
+
+        return this.shardRoutingRefreshInterval;
+    }
+
     public String getTlsTrustCertsFilePath() {
         if (this.tlsTrustCertsFilePath != null)
             return this.tlsTrustCertsFilePath;
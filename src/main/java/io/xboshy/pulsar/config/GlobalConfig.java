@@ -1,29 +1,243 @@
 package io.xboshy.pulsar.config;
 
+import java.util.ArrayList;
 import java.util.Map;
 
 public class GlobalConfig extends Config {
     public enum IdModes {
         NONE,
         MSGID,
+        MSGIDFIXED,
         HASH,
+        HASH128,
         KEY,
-        KEYHASH
+        KEYHASH,
+        KEYHASH128
+    }
+    public enum DispatchModes {
+        SYNC,
+        ASYNC
+    }
+    public enum ExecutionModes {
+        DISRUPTOR,
+        VIRTUAL
+    }
+    public enum ConcurrencyLimits {
+        FIXED,
+        VEGAS
+    }
+    public enum SourceModes {
+        BYTES,
+        SCHEMA
+    }
+    public enum WriteModes {
+        CREATE,
+        INDEX,
+        UPDATE
+    }
+    public enum LatencyProfiles {
+        BLOCKING,
+        SLEEPING,
+        YIELDING,
+        BUSYSPIN,
+        PHASED
     }
     final private Integer inflightBatches;
     final private Integer ringBuffer;
+    final private Integer receivers;
     final private IdModes idMode;
+    final private DispatchModes dispatchMode;
+    final private ExecutionModes executionMode;
+    final private LatencyProfiles latencyProfile;
+    final private int[] cpuAffinityReceivers;
+    final private int[] cpuAffinityWorkers;
+    final private ConcurrencyLimits concurrencyLimit;
+    final private Integer concurrencyLimitMin;
+    final private Integer concurrencyLimitMax;
+    final private Integer concurrencyLimitInitial;
+    final private Integer retryMaxAttempts;
+    final private Integer retryInitialBackoff;
+    final private Integer retryMaxBackoff;
+    final private Long retryMaxBytes;
+    final private Integer inflightRequests;
+    final private Boolean ackStage;
+    final private Integer dedupCacheSize;
+    final private String spillDir;
+    final private Integer spillSegmentSize;
+    final private Integer spillMaxSegments;
+    final private Integer dedupCacheWindow;
+    final private Integer ackStageInterval;
+    final private Integer ackStageHoleTimeout;
+    final private Boolean adaptiveBatchSize;
+    final private Integer adaptiveBatchSizeTargetLatency;
+    final private Integer adaptiveBatchSizeMinNumMessages;
+    final private Integer adaptiveBatchSizeMinNumBytes;
+    final private SourceModes sourceMode;
+    final private Double traceSampleRate;
+    final private Integer drainTimeout;
+    final private Integer restartMaxAttempts;
+    final private Integer restartInitialBackoff;
+    final private Integer restartMaxBackoff;
+    final private WriteModes writeMode;
     public GlobalConfig(Map<String, String> config) throws Exception {
         super(config);
         this.inflightBatches = this.getIntValue("inflightBatches", 1);
         this.ringBuffer = this.getIntValue("ringBuffer", 2);
+        this.receivers = this.getIntValue("receivers", 1);
 
         String idModeStr = this.getStrValue("idMode", "none").toUpperCase();
         this.idMode = IdModes.valueOf(idModeStr);
 
+        String dispatchModeStr = this.getStrValue("dispatchMode", "sync").toUpperCase();
+        this.dispatchMode = DispatchModes.valueOf(dispatchModeStr);
+        this.inflightRequests = this.getIntValue("inflightRequests", this.inflightBatches);
+
+        String executionModeStr = this.getStrValue("executionMode", "disruptor").toUpperCase();
+        this.executionMode = ExecutionModes.valueOf(executionModeStr);
+
+        String latencyProfileStr = this.getStrValue("latencyProfile", "blocking").toUpperCase();
+        this.latencyProfile = LatencyProfiles.valueOf(latencyProfileStr);
+        this.cpuAffinityReceivers = this.parseCpus("cpuAffinity.receivers");
+        this.cpuAffinityWorkers = this.parseCpus("cpuAffinity.workers");
+
+        String concurrencyLimitStr = this.getStrValue("concurrencyLimit", "fixed").toUpperCase();
+        this.concurrencyLimit = ConcurrencyLimits.valueOf(concurrencyLimitStr);
+        this.concurrencyLimitMin = this.getIntValue("concurrencyLimit.min", 1);
+        this.concurrencyLimitMax = this.getIntValue("concurrencyLimit.max", Math.max(this.inflightBatches, this.inflightRequests));
+        this.concurrencyLimitInitial = this.getIntValue("concurrencyLimit.initial", this.concurrencyLimitMin);
+
+        this.retryMaxAttempts = this.getIntValue("retry.maxAttempts", 3);
+        this.retryInitialBackoff = this.getIntValue("retry.initialBackoff", 100);
+        this.retryMaxBackoff = this.getIntValue("retry.maxBackoff", 10000);
+        final String retryMaxBytesStr = this.getStrValue("retry.maxBytes");
+        this.retryMaxBytes = retryMaxBytesStr == null ? 67108864L : Long.parseLong(retryMaxBytesStr);
+
+        this.ackStage = this.getBoolValue("ackStage", false);
+        this.ackStageInterval = this.getIntValue("ackStage.interval", 10);
+        this.ackStageHoleTimeout = this.getIntValue("ackStage.holeTimeout", 600000);
+
+        this.dedupCacheSize = this.getIntValue("dedupCache.size", 0);
+        this.dedupCacheWindow = this.getIntValue("dedupCache.window", 600000);
+
+        this.spillDir = this.getStrValue("spill.dir");
+        this.spillSegmentSize = this.getIntValue("spill.segmentSize", 67108864);
+        this.spillMaxSegments = this.getIntValue("spill.maxSegments", 4);
+
+        this.adaptiveBatchSize = this.getBoolValue("adaptiveBatchSize", false);
+        this.adaptiveBatchSizeTargetLatency = this.getIntValue("adaptiveBatchSize.targetLatency", 1000);
+        this.adaptiveBatchSizeMinNumMessages = this.getIntValue("adaptiveBatchSize.minNumMessages", 10);
+        this.adaptiveBatchSizeMinNumBytes = this.getIntValue("adaptiveBatchSize.minNumBytes", 65536);
+
+        String sourceModeStr = this.getStrValue("sourceMode", "bytes").toUpperCase();
+        this.sourceMode = SourceModes.valueOf(sourceModeStr);
+
+        final String traceSampleRateStr = this.getStrValue("trace.sampleRate");
+        this.traceSampleRate = traceSampleRateStr == null ? 0.0 : Double.parseDouble(traceSampleRateStr);
+
+        this.drainTimeout = this.getIntValue("drain.timeout", 30000);
+        this.restartMaxAttempts = this.getIntValue("restart.maxAttempts", 5);
+        this.restartInitialBackoff = this.getIntValue("restart.initialBackoff", 1000);
+        this.restartMaxBackoff = this.getIntValue("restart.maxBackoff", 60000);
+
+        String writeModeStr = this.getStrValue("writeMode", "create").toUpperCase();
+        this.writeMode = WriteModes.valueOf(writeModeStr);
+
         if (!isPowerOfTwo(this.ringBuffer)) {
             throw new Exception(this.getPrefix() + "ringBuffer must be a power of 2");
         }
+        if (this.receivers < 1) {
+            throw new Exception(this.getPrefix() + "receivers must be greater than 0");
+        }
+        if (this.inflightBatches < 1) {
+            throw new Exception(this.getPrefix() + "inflightBatches must be greater than 0");
+        }
+        if (this.inflightRequests < 1) {
+            throw new Exception(this.getPrefix() + "inflightRequests must be greater than 0");
+        }
+        if (this.concurrencyLimitMin < 1 || this.concurrencyLimitMax < this.concurrencyLimitMin) {
+            throw new Exception(this.getPrefix() + "concurrencyLimit.min must be greater than 0 and not above concurrencyLimit.max");
+        }
+        if (this.retryMaxAttempts < 0) {
+            throw new Exception(this.getPrefix() + "retry.maxAttempts must not be negative");
+        }
+        if (this.retryInitialBackoff < 1 || this.retryMaxBackoff < this.retryInitialBackoff) {
+            throw new Exception(this.getPrefix() + "retry.initialBackoff must be greater than 0 and not above retry.maxBackoff");
+        }
+        if (this.retryMaxBytes < 1) {
+            throw new Exception(this.getPrefix() + "retry.maxBytes must be greater than 0");
+        }
+        if (this.ackStageInterval < 1) {
+            throw new Exception(this.getPrefix() + "ackStage.interval must be greater than 0");
+        }
+        if (this.ackStageHoleTimeout < 1) {
+            throw new Exception(this.getPrefix() + "ackStage.holeTimeout must be greater than 0");
+        }
+        if (this.dedupCacheSize < 0) {
+            throw new Exception(this.getPrefix() + "dedupCache.size must not be negative");
+        }
+        if (this.dedupCacheSize > 0 && this.idMode == IdModes.NONE) {
+            throw new Exception(this.getPrefix() + "dedupCache.size needs an idMode other than none");
+        }
+        if (this.dedupCacheWindow < 1) {
+            throw new Exception(this.getPrefix() + "dedupCache.window must be greater than 0");
+        }
+        if (this.spillSegmentSize < 1 || this.spillMaxSegments < 1) {
+            throw new Exception(this.getPrefix() + "spill.segmentSize and spill.maxSegments must be greater than 0");
+        }
+        if (!(this.traceSampleRate >= 0 && this.traceSampleRate <= 1)) {
+            throw new Exception(this.getPrefix() + "trace.sampleRate must be between 0 and 1");
+        }
+        if (this.drainTimeout < 0) {
+            throw new Exception(this.getPrefix() + "drain.timeout must not be negative");
+        }
+        if (this.restartMaxAttempts < 0) {
+            throw new Exception(this.getPrefix() + "restart.maxAttempts must not be negative");
+        }
+        if (this.restartInitialBackoff < 1 || this.restartMaxBackoff < this.restartInitialBackoff) {
+            throw new Exception(this.getPrefix() + "restart.initialBackoff must be greater than 0 and not above restart.maxBackoff");
+        }
+        if (this.cpuAffinityWorkers != null && this.executionMode == ExecutionModes.VIRTUAL) {
+            throw new Exception(this.getPrefix() + "cpuAffinity.workers can't pin virtual threads");
+        }
+        if (this.writeMode != WriteModes.CREATE) {
+            /* what keeps the writes of a key in order: one lane per key, each waiting for its bulks and retries */
+            if (this.idMode != IdModes.KEY) {
+                throw new Exception(this.getPrefix() + "writeMode " + writeModeStr.toLowerCase() + " needs idMode key");
+            }
+            if (this.executionMode != ExecutionModes.DISRUPTOR || this.dispatchMode != DispatchModes.SYNC) {
+                throw new Exception(this.getPrefix() + "writeMode " + writeModeStr.toLowerCase() + " needs executionMode disruptor and dispatchMode sync");
+            }
+            if (this.dedupCacheSize > 0 || this.spillDir != null) {
+                throw new Exception(this.getPrefix() + "writeMode " + writeModeStr.toLowerCase() + " can't be used with dedupCache.size or spill.dir");
+            }
+        }
+    }
+
+    /* "0,2,4-7" style cpu lists, null when unset */
+    private int[] parseCpus(final String property) throws Exception {
+        final String str = this.getStrValue(property);
+        if (str == null || str.isBlank()) {
+            return null;
+        }
+
+        final ArrayList<Integer> cpus = new ArrayList<>();
+        try {
+            for (final String part : str.split(",")) {
+                final String[] range = part.trim().split("-");
+                final int from = Integer.parseInt(range[0].trim());
+                final int to = range.length > 1 ? Integer.parseInt(range[1].trim()) : from;
+                if (range.length > 2 || from < 0 || to < from) {
+                    throw new NumberFormatException(part);
+                }
+                for (int cpu = from; cpu <= to; ++cpu) {
+                    cpus.add(cpu);
+                }
+            }
+        } catch (NumberFormatException e) {
+            throw new Exception(this.getPrefix() + property + " must be a list of cpus like 0,2,4-7");
+        }
+
+        return cpus.stream().mapToInt(Integer::intValue).toArray();
     }
 
     private boolean isPowerOfTwo(int n) {
@@ -43,7 +257,144 @@ public class GlobalConfig extends Config {
         return this.ringBuffer;
     }
 
+    public int getReceivers() {
+        return this.receivers;
+    }
+
     public IdModes getIdMode() {
         return this.idMode;
     }
+
+    public WriteModes getWriteMode() {
+        return this.writeMode;
+    }
+
+    public DispatchModes getDispatchMode() {
+        return this.dispatchMode;
+    }
+
+    public ExecutionModes getExecutionMode() {
+        return this.executionMode;
+    }
+
+    public LatencyProfiles getLatencyProfile() {
+        return this.latencyProfile;
+    }
+
+    public int[] getCpuAffinityReceivers() {
+        return this.cpuAffinityReceivers;
+    }
+
+    public int[] getCpuAffinityWorkers() {
+        return this.cpuAffinityWorkers;
+    }
+
+    public ConcurrencyLimits getConcurrencyLimit() {
+        return this.concurrencyLimit;
+    }
+
+    public int getConcurrencyLimitMin() {
+        return this.concurrencyLimitMin;
+    }
+
+    public int getConcurrencyLimitMax() {
+        return this.concurrencyLimitMax;
+    }
+
+    public int getConcurrencyLimitInitial() {
+        return this.concurrencyLimitInitial;
+    }
+
+    public int getRetryMaxAttempts() {
+        return this.retryMaxAttempts;
+    }
+
+    public int getRetryInitialBackoff() {
+        return this.retryInitialBackoff;
+    }
+
+    public int getRetryMaxBackoff() {
+        return this.retryMaxBackoff;
+    }
+
+    public long getRetryMaxBytes() {
+        return this.retryMaxBytes;
+    }
+
+    public int getInflightRequests() {
+        return this.inflightRequests;
+    }
+
+    public boolean getAckStage() {
+        return this.ackStage;
+    }
+
+    public int getAckStageInterval() {
+        return this.ackStageInterval;
+    }
+
+    public int getAckStageHoleTimeout() {
+        return this.ackStageHoleTimeout;
+    }
+
+    public int getDedupCacheSize() {
+        return this.dedupCacheSize;
+    }
+
+    public int getDedupCacheWindow() {
+        return this.dedupCacheWindow;
+    }
+
+    /* null when spilling is off */
+    public String getSpillDir() {
+        return this.spillDir;
+    }
+
+    public int getSpillSegmentSize() {
+        return this.spillSegmentSize;
+    }
+
+    public int getSpillMaxSegments() {
+        return this.spillMaxSegments;
+    }
+
+    public boolean getAdaptiveBatchSize() {
+        return this.adaptiveBatchSize;
+    }
+
+    public int getAdaptiveBatchSizeTargetLatency() {
+        return this.adaptiveBatchSizeTargetLatency;
+    }
+
+    public int getAdaptiveBatchSizeMinNumMessages() {
+        return this.adaptiveBatchSizeMinNumMessages;
+    }
+
+    public int getAdaptiveBatchSizeMinNumBytes() {
+        return this.adaptiveBatchSizeMinNumBytes;
+    }
+
+    public SourceModes getSourceMode() {
+        return this.sourceMode;
+    }
+
+    public double getTraceSampleRate() {
+        return this.traceSampleRate;
+    }
+
+    public int getDrainTimeout() {
+        return this.drainTimeout;
+    }
+
+    public int getRestartMaxAttempts() {
+        return this.restartMaxAttempts;
+    }
+
+    public int getRestartInitialBackoff() {
+        return this.restartInitialBackoff;
+    }
+
+    public int getRestartMaxBackoff() {
+        return this.restartMaxBackoff;
+    }
 }
@@ -0,0 +1,89 @@
+package io.xboshy.pulsar.config;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/* Pipelines run side by side in one process, named in PIPELINES. Each one reads the base configuration overlaid with
+   the variables prefixed by PIPELINE_<name>_, e.g. PIPELINE_orders_PULSAR_CONSUMER_topicNames. The pulsar client and
+   the elasticsearch clients are shared, so their settings can't be overridden */
+public class PipelinesConfig {
+    private static final String NAMES = "PIPELINES";
+    private static final String PREFIX = "PIPELINE_";
+    /* elasticsearch settings that don't shape the shared clients */
+    private static final Set<String> ELASTICSEARCH_KEYS = Set.of(
+            "indexName",
+            "indexName.timeZone",
+            "maxContentLength",
+            "shardRouting",
+            "shardRouting.refreshInterval"
+    );
+
+    private final Map<String, String> config;
+    private final List<String> names;
+
+    public PipelinesConfig(final Map<String, String> config) throws Exception {
+        this.config = config;
+        this.names = new ArrayList<>();
+
+        final String namesStr = config.get(PipelinesConfig.NAMES);
+        if (namesStr == null || namesStr.isBlank()) {
+            /* the base configuration as the single, unnamed pipeline */
+            this.names.add("");
+            return;
+        }
+
+        for (final String name : namesStr.split(",")) {
+            final String trimmed = name.trim();
+            if (!trimmed.matches("[A-Za-z0-9_]+")) {
+                throw new Exception(PipelinesConfig.NAMES + " names must be made of letters, digits and _: '" + trimmed + "'");
+            }
+            if (this.names.contains(trimmed)) {
+                throw new Exception(PipelinesConfig.NAMES + " lists " + trimmed + " twice");
+            }
+            this.names.add(trimmed);
+        }
+
+        for (final String key : config.keySet()) {
+            if (!key.startsWith(PipelinesConfig.PREFIX)) {
+                continue;
+            }
+            for (final String name : this.names) {
+                final String prefix = PipelinesConfig.PREFIX + name + "_";
+                if (key.startsWith(prefix) && PipelinesConfig.isShared(key.substring(prefix.length()))) {
+                    throw new Exception(key + " can't be set per pipeline, the clients are shared");
+                }
+            }
+        }
+    }
+
+    private static boolean isShared(final String key) {
+        /* restarts rebuild the shared clients, for all pipelines at once */
+        if (key.startsWith("PULSAR_CLIENT_") || key.startsWith("PROMETHEUS_") || key.startsWith("GLOBAL_restart.")) {
+            return true;
+        }
+        return key.startsWith("ELASTICSEARCH_") && !PipelinesConfig.ELASTICSEARCH_KEYS.contains(key.substring("ELASTICSEARCH_".length()));
+    }
+
+    /* the empty name stands for the single pipeline of a process without PIPELINES */
+    public List<String> getNames() {
+        return this.names;
+    }
+
+    public Map<String, String> getConfig(final String name) {
+        if (name.isEmpty()) {
+            return this.config;
+        }
+
+        final String prefix = PipelinesConfig.PREFIX + name + "_";
+        final Map<String, String> merged = new HashMap<>(this.config);
+        for (final Map.Entry<String, String> entry : this.config.entrySet()) {
+            if (entry.getKey().startsWith(prefix)) {
+                merged.put(entry.getKey().substring(prefix.length()), entry.getValue());
+            }
+        }
+        return merged;
+    }
+}
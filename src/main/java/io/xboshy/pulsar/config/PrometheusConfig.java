@@ -4,6 +4,8 @@ import java.util.Map;
 
 public class PrometheusConfig extends Config {
     private Integer port = null;
+    private Boolean admin = null;
+    private String adminToken = null;
     public PrometheusConfig(final Map<String, String> config) {
         super(config);
     }
@@ -21,4 +23,24 @@ public class PrometheusConfig extends Config {
 
         return this.port;
     }
+
+    /* serves the admin api next to the metrics */
+    public boolean getAdmin() {
+        if (this.admin != null)
+            return this.admin;
+
+        this.admin = this.getBoolValue("admin", false);
+
+        return this.admin;
+    }
+
+    /* the bearer token of the admin api, null to only answer requests from the host itself */
+    public String getAdminToken() {
+        if (this.adminToken != null)
+            return this.adminToken;
+
+        this.adminToken = this.getStrValue("admin.token");
+
+        return this.adminToken;
+    }
 }
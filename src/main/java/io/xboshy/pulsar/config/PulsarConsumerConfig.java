@@ -85,6 +85,11 @@ public class PulsarConsumerConfig extends Config {
         return null;
     }
 
+    /* unset means Exclusive, as in the pulsar client */
+    public String getSubscriptionType() {
+        return this.getStrValue("subscriptionType", "Exclusive");
+    }
+
     public BatchReceivePolicy getBatchReceivePolicy() {
         if (this.batchReceivePolicyBuilder != null)
             return this.batchReceivePolicyBuilder.build();
@@ -0,0 +1,10 @@
+package io.xboshy.pulsar.id;
+
+import io.xboshy.pulsar.bulk.BulkBuffer;
+import org.apache.pulsar.client.api.Message;
+
+@FunctionalInterface
+public interface IdWriter {
+    /* appends the JSON-safe document id of msg to out, returns false when the message gets no id */
+    boolean write(Message<?> msg, BulkBuffer out);
+}
@@ -0,0 +1,158 @@
+package io.xboshy.pulsar.id;
+
+import io.xboshy.pulsar.bulk.BulkBodyWriter;
+import io.xboshy.pulsar.bulk.BulkBuffer;
+import io.xboshy.pulsar.config.GlobalConfig;
+import io.xboshy.pulsar.utils.Base64Encoder;
+import io.xboshy.pulsar.utils.Hashutils;
+import io.xboshy.pulsar.utils.Hex;
+import io.xboshy.pulsar.utils.Murmur3;
+import org.apache.pulsar.client.api.Message;
+import org.apache.pulsar.client.api.MessageIdAdv;
+import org.apache.pulsar.shade.io.netty.buffer.ByteBuf;
+
+import java.security.MessageDigest;
+
+/* Id writers keep scratch state, every worker needs its own instance */
+public class IdWriters {
+    private static final int SHA1_LENGTH = 20;
+    /* ledger, entry, partition, batch index and publish time */
+    private static final int FIXED_MSGID_LENGTH = 8 + 8 + 4 + 4 + 8;
+
+    public static IdWriter create(final GlobalConfig.IdModes idMode) throws Exception {
+        return switch (idMode) {
+            case NONE -> (msg, out) -> false;
+            case MSGID -> (msg, out) -> {
+                final byte[] msgId = msg.getMessageId().toByteArray();
+                final Base64Encoder base64 = Base64Encoder.STANDARD;
+                final int offset = out.reserve(base64.encodedLength(msgId.length));
+                base64.encode(msgId, 0, msgId.length, out.array(), offset);
+                out.write('-');
+                out.writeDecimal(msg.getPublishTime());
+                return true;
+            };
+            case MSGIDFIXED -> {
+                final byte[] scratch = new byte[IdWriters.FIXED_MSGID_LENGTH];
+                yield (msg, out) -> {
+                    final MessageIdAdv msgId = (MessageIdAdv) msg.getMessageId();
+                    IdWriters.putLong(scratch, 0, msgId.getLedgerId());
+                    IdWriters.putLong(scratch, 8, msgId.getEntryId());
+                    IdWriters.putInt(scratch, 16, msgId.getPartitionIndex());
+                    IdWriters.putInt(scratch, 20, msgId.getBatchIndex());
+                    IdWriters.putLong(scratch, 24, msg.getPublishTime());
+                    final Base64Encoder base64 = Base64Encoder.URL;
+                    final int offset = out.reserve(base64.encodedLength(scratch.length));
+                    base64.encode(scratch, 0, scratch.length, out.array(), offset);
+                    return true;
+                };
+            }
+            case HASH -> {
+                final Sha1 sha1 = new Sha1();
+                yield (msg, out) -> {
+                    final ByteBuf payload = BulkBodyWriter.payload(msg);
+                    if (payload != null) {
+                        sha1.writeHex(payload, out);
+                    }
+                    return true;
+                };
+            }
+            case KEY -> (msg, out) -> {
+                final String key = msg.getKey();
+                if (key == null || key.isEmpty()) {
+                    return false;
+                }
+                out.writeJsonString(key);
+                return true;
+            };
+            case KEYHASH -> {
+                final Sha1 sha1 = new Sha1();
+                yield (msg, out) -> {
+                    final String key = msg.getKey();
+                    if (key == null || key.isEmpty()) {
+                        return false;
+                    }
+                    out.writeJsonString(key);
+                    final ByteBuf payload = BulkBodyWriter.payload(msg);
+                    if (payload != null) {
+                        out.write('-');
+                        sha1.writeHex(payload, out);
+                    }
+                    return true;
+                };
+            }
+            case HASH128 -> {
+                final long[] hash = new long[2];
+                yield (msg, out) -> {
+                    final ByteBuf payload = BulkBodyWriter.payload(msg);
+                    if (payload != null) {
+                        IdWriters.writeHash128(payload, hash, out);
+                    }
+                    return true;
+                };
+            }
+            case KEYHASH128 -> {
+                final long[] hash = new long[2];
+                yield (msg, out) -> {
+                    final String key = msg.getKey();
+                    if (key == null || key.isEmpty()) {
+                        return false;
+                    }
+                    out.writeJsonString(key);
+                    final ByteBuf payload = BulkBodyWriter.payload(msg);
+                    if (payload != null) {
+                        out.write('-');
+                        IdWriters.writeHash128(payload, hash, out);
+                    }
+                    return true;
+                };
+            }
+        };
+    }
+
+    private static void writeHash128(final ByteBuf payload, final long[] hash, final BulkBuffer out) {
+        Murmur3.hash128(payload, payload.readerIndex(), payload.readableBytes(), 0L, hash);
+        final int offset = out.reserve(32);
+        /* little-endian bytes, the usual hex form of a murmur3 128 digest */
+        Hex.encode(Long.reverseBytes(hash[0]), out.array(), offset);
+        Hex.encode(Long.reverseBytes(hash[1]), out.array(), offset + 16);
+    }
+
+    private static void putLong(final byte[] dst, final int off, final long v) {
+        IdWriters.putInt(dst, off, (int) (v >>> 32));
+        IdWriters.putInt(dst, off + 4, (int) v);
+    }
+
+    private static void putInt(final byte[] dst, final int off, final int v) {
+        dst[off] = (byte) (v >>> 24);
+        dst[off + 1] = (byte) (v >>> 16);
+        dst[off + 2] = (byte) (v >>> 8);
+        dst[off + 3] = (byte) v;
+    }
+
+    private static class Sha1 {
+        private final MessageDigest md;
+        private final byte[] digest;
+
+        Sha1() throws Exception {
+            this.md = Hashutils.getMessageDigestSHA1();
+            this.digest = new byte[IdWriters.SHA1_LENGTH];
+        }
+
+        void writeHex(final ByteBuf payload, final BulkBuffer out) {
+            this.md.reset();
+            final int len = payload.readableBytes();
+            if (payload.hasArray()) {
+                this.md.update(payload.array(), payload.arrayOffset() + payload.readerIndex(), len);
+            } else {
+                this.md.update(payload.nioBuffer(payload.readerIndex(), len));
+            }
+            try {
+                this.md.digest(this.digest, 0, this.digest.length);
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+            final int offset = out.reserve(2 * this.digest.length);
+            Hex.encode(this.digest, 0, this.digest.length, out.array(), offset);
+        }
+    }
+}
@@ -42,6 +42,14 @@ public class MessagesImpl<T> implements Messages<T> {
         }
     }
 
+    public int getMaxNumberOfMessages() {
+        return this.maxNumberOfMessages;
+    }
+
+    public long getMaxSizeOfMessages() {
+        return this.maxSizeOfMessages;
+    }
+
     public int size() {
         return this.messageList.size();
     }
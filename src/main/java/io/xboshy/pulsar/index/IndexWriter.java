@@ -0,0 +1,10 @@
+package io.xboshy.pulsar.index;
+
+import io.xboshy.pulsar.bulk.BulkBuffer;
+import org.apache.pulsar.client.api.Message;
+
+@FunctionalInterface
+public interface IndexWriter {
+    /* appends the JSON-safe name of the index msg goes to */
+    void write(Message<?> msg, BulkBuffer out);
+}
@@ -0,0 +1,136 @@
+package io.xboshy.pulsar.index;
+
+import io.xboshy.pulsar.bulk.BulkBuffer;
+import org.apache.pulsar.client.api.Message;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Locale;
+
+/* Index names from templates such as "logs-{topic}-{publishTime:yyyy.MM.dd}", placeholders are
+   {topic}, {property:name} or {property:name|default}, {publishTime:pattern} and {eventTime:pattern}.
+   Index writers keep scratch state, every worker needs its own instance */
+public class IndexWriters {
+    private static final String INVALID_CHARS = "\\/*?\"<>| ,#:";
+
+    /* null when the template has no placeholder, the index is then part of the endpoint */
+    public static IndexWriter create(final String template, final ZoneId zone) throws Exception {
+        final ArrayList<IndexWriter> parts = new ArrayList<>();
+        int pos = 0;
+        boolean dynamic = false;
+        while (pos < template.length()) {
+            final int open = template.indexOf('{', pos);
+            if (open < 0) {
+                parts.add(IndexWriters.literal(template.substring(pos)));
+                break;
+            }
+            final int close = template.indexOf('}', open);
+            if (close < 0) {
+                throw new Exception("Bad index template " + template + ": unclosed {");
+            }
+            if (open > pos) {
+                parts.add(IndexWriters.literal(template.substring(pos, open)));
+            }
+            parts.add(IndexWriters.placeholder(template, template.substring(open + 1, close), zone));
+            dynamic = true;
+            pos = close + 1;
+        }
+
+        if (!dynamic) {
+            return null;
+        }
+        final IndexWriter[] writers = parts.toArray(new IndexWriter[0]);
+        return (msg, out) -> {
+            for (final IndexWriter writer : writers) {
+                writer.write(msg, out);
+            }
+        };
+    }
+
+    private static IndexWriter placeholder(final String template, final String placeholder, final ZoneId zone) throws Exception {
+        final int sep = placeholder.indexOf(':');
+        final String name = sep < 0 ? placeholder : placeholder.substring(0, sep);
+        final String arg = sep < 0 ? null : placeholder.substring(sep + 1);
+        return switch (name) {
+            case "topic" -> {
+                final String[] last = new String[1];
+                final byte[][] lastBytes = new byte[1][];
+                yield (msg, out) -> {
+                    final String topic = msg.getTopicName();
+                    if (!topic.equals(last[0])) {
+                        last[0] = topic;
+                        lastBytes[0] = IndexWriters.json(IndexWriters.sanitize(IndexWriters.localName(topic)));
+                    }
+                    out.write(lastBytes[0]);
+                };
+            }
+            case "property" -> {
+                if (arg == null || arg.isEmpty()) {
+                    throw new Exception("Bad index template " + template + ": {property:name} needs a name");
+                }
+                final int defaultSep = arg.indexOf('|');
+                final String property = defaultSep < 0 ? arg : arg.substring(0, defaultSep);
+                final String fallback = defaultSep < 0 ? "" : arg.substring(defaultSep + 1);
+                yield (msg, out) -> {
+                    final String value = msg.getProperty(property);
+                    out.writeJsonString(IndexWriters.sanitize(value == null || value.isEmpty() ? fallback : value));
+                };
+            }
+            case "publishTime", "eventTime" -> {
+                if (arg == null || arg.isEmpty()) {
+                    throw new Exception("Bad index template " + template + ": {" + name + ":pattern} needs a pattern");
+                }
+                final DateTimeFormatter formatter = DateTimeFormatter.ofPattern(arg, Locale.ROOT).withZone(zone);
+                final boolean eventTime = name.equals("eventTime");
+                final long[] lastSecond = {Long.MIN_VALUE};
+                final byte[][] lastBytes = new byte[1][];
+                yield (msg, out) -> {
+                    /* messages without an event time fall back to their publish time */
+                    final long millis = eventTime && msg.getEventTime() > 0 ? msg.getEventTime() : msg.getPublishTime();
+                    final long second = Math.floorDiv(millis, 1000L);
+                    if (second != lastSecond[0]) {
+                        lastSecond[0] = second;
+                        lastBytes[0] = IndexWriters.json(IndexWriters.sanitize(formatter.format(Instant.ofEpochMilli(millis))));
+                    }
+                    out.write(lastBytes[0]);
+                };
+            }
+            default -> throw new Exception("Bad index template " + template + ": unknown placeholder {" + placeholder + "}");
+        };
+    }
+
+    private static IndexWriter literal(final String str) {
+        final byte[] bytes = IndexWriters.json(str);
+        return (msg, out) -> out.write(bytes);
+    }
+
+    /* "persistent://tenant/namespace/name-partition-3" is "name" */
+    static String localName(final String topic) {
+        String name = topic.substring(topic.lastIndexOf('/') + 1);
+        final int partition = name.lastIndexOf("-partition-");
+        if (partition > 0) {
+            name = name.substring(0, partition);
+        }
+        return name;
+    }
+
+    /* elasticsearch index names are lowercase, without \ / * ? " < > | space , # : */
+    static String sanitize(final String str) {
+        final char[] chars = str.toLowerCase(Locale.ROOT).toCharArray();
+        for (int i = 0; i < chars.length; ++i) {
+            if (IndexWriters.INVALID_CHARS.indexOf(chars[i]) >= 0) {
+                chars[i] = '_';
+            }
+        }
+        return new String(chars);
+    }
+
+    private static byte[] json(final String str) {
+        final BulkBuffer buffer = new BulkBuffer(str.length() + 16);
+        buffer.writeJsonString(str);
+        return Arrays.copyOf(buffer.array(), buffer.length());
+    }
+}
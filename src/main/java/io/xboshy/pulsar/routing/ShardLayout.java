@@ -0,0 +1,45 @@
+package io.xboshy.pulsar.routing;
+
+import io.xboshy.pulsar.utils.Murmur3;
+import org.apache.http.HttpHost;
+
+/* Which of the configured hosts holds the primary of each shard of the index, immutable */
+public class ShardLayout {
+    private final int routingNumShards;
+    private final int routingFactor;
+    private final int[] primaryNode;
+    private final HttpHost[] hosts;
+
+    /* primaryNode[shard] indexes hosts, -1 when the primary is not on a configured host */
+    public ShardLayout(final int numShards, final int routingNumShards, final int[] primaryNode, final HttpHost[] hosts) {
+        this.routingNumShards = routingNumShards;
+        this.routingFactor = routingNumShards / numShards;
+        this.primaryNode = primaryNode;
+        this.hosts = hosts;
+    }
+
+    public int size() {
+        return this.hosts.length;
+    }
+
+    public HttpHost host(final int node) {
+        return this.hosts[node];
+    }
+
+    public int shard(final byte[] id, final int off, final int len) {
+        final int hash = Murmur3.hash32Utf16(id, off, len);
+        return Math.floorMod(hash, this.routingNumShards) / this.routingFactor;
+    }
+
+    /* node holding the primary for the JSON-escaped id at id[off, off + len), -1 when it can't be routed */
+    public int node(final byte[] id, final int off, final int len) {
+        for (int i = off; i < off + len; ++i) {
+            /* non-ASCII or escaped ids would need decoding first, leave them to the coordinating node */
+            if (id[i] < 0 || id[i] == '\\') {
+                return -1;
+            }
+        }
+
+        return this.primaryNode[this.shard(id, off, len)];
+    }
+}
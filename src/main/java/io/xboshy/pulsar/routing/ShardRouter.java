@@ -0,0 +1,183 @@
+package io.xboshy.pulsar.routing;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.prometheus.client.Counter;
+import org.apache.http.HttpHost;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.elasticsearch.client.Node;
+import org.elasticsearch.client.Request;
+import org.elasticsearch.client.Response;
+import org.elasticsearch.client.RestClient;
+
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/* Periodically fetches where the primaries of the index live so bulks can be sent straight to them */
+public class ShardRouter implements AutoCloseable {
+    private static final Logger logger = LogManager.getLogger(ShardRouter.class);
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final String STATE_FILTER = String.join(",",
+            "metadata.indices.*.routing_num_shards",
+            "metadata.indices.*.settings.index.number_of_shards",
+            "metadata.indices.*.settings.index.routing_partition_size",
+            "metadata.indices.*.settings.index.mode",
+            "routing_table.indices.*.shards.*.shard",
+            "routing_table.indices.*.shards.*.primary",
+            "routing_table.indices.*.shards.*.state",
+            "routing_table.indices.*.shards.*.node"
+    );
+    private static final Counter refreshes = Counter.build()
+            .name("shard_routing_refreshes")
+            .help("shard_routing_refreshes")
+            .labelNames("pipeline", "result")
+            .register();
+
+    private final RestClient client;
+    private final String indexName;
+    private final long refreshInterval;
+    private final ScheduledExecutorService scheduler;
+    private final String pipeline;
+    private volatile ShardLayout layout;
+
+    public ShardRouter(final String pipeline, final RestClient client, final String indexName, final long refreshInterval, final ThreadFactory threadFactory) {
+        this.pipeline = pipeline;
+        this.client = client;
+        this.indexName = indexName;
+        this.refreshInterval = refreshInterval;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(threadFactory);
+        this.layout = null;
+    }
+
+    public void start() {
+        this.refresh();
+        this.scheduler.scheduleWithFixedDelay(this::refresh, this.refreshInterval, this.refreshInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /* null until the layout is known, bulks are then sent to any node */
+    public ShardLayout getLayout() {
+        return this.layout;
+    }
+
+    public void refresh() {
+        try {
+            this.layout = this.fetch();
+            ShardRouter.refreshes.labels(this.pipeline, this.layout == null ? "unroutable" : "ok").inc();
+        } catch (Exception e) {
+            /* a stale layout only costs an extra hop, keep it */
+            ShardRouter.logger.warn("shard layout refresh failed", e);
+            ShardRouter.refreshes.labels(this.pipeline, "error").inc();
+        }
+    }
+
+    ShardLayout fetch() throws Exception {
+        final Request stateRequest = new Request("GET", "/_cluster/state/metadata,routing_table/" + this.indexName);
+        stateRequest.addParameter("filter_path", ShardRouter.STATE_FILTER);
+        final JsonNode state = this.get(stateRequest);
+
+        final JsonNode indices = state.path("metadata").path("indices");
+        if (indices.size() != 1) {
+            ShardRouter.logger.warn(String.format("\"step\": \"shardrouting\" , \"index\": %s , \"reason\": \"resolves to %d indices\"", this.indexName, indices.size()));
+            return null;
+        }
+
+        final String concreteIndex = indices.fieldNames().next();
+        final JsonNode metadata = indices.path(concreteIndex);
+        final JsonNode settings = metadata.path("settings").path("index");
+        if (settings.path("routing_partition_size").asInt(1) > 1 || settings.hasNonNull("mode") && !"standard".equals(settings.path("mode").asText())) {
+            ShardRouter.logger.warn(String.format("\"step\": \"shardrouting\" , \"index\": %s , \"reason\": \"custom routing\"", concreteIndex));
+            return null;
+        }
+
+        final int numShards = settings.path("number_of_shards").asInt(0);
+        final int routingNumShards = metadata.path("routing_num_shards").asInt(numShards);
+        if (numShards <= 0 || routingNumShards % numShards != 0) {
+            throw new Exception("Bad cluster state for " + concreteIndex + ": number_of_shards " + numShards + ", routing_num_shards " + routingNumShards);
+        }
+
+        final Map<String, Integer> hostByNode = this.hostByNode();
+        final HttpHost[] hosts = this.client.getNodes().stream().map(Node::getHost).toArray(HttpHost[]::new);
+        final int[] primaryNode = new int[numShards];
+        Arrays.fill(primaryNode, -1);
+        final JsonNode shards = state.path("routing_table").path("indices").path(concreteIndex).path("shards");
+        for (final Iterator<JsonNode> itr = shards.elements(); itr.hasNext(); ) {
+            for (final JsonNode copy : itr.next()) {
+                final int shard = copy.path("shard").asInt(-1);
+                if (!copy.path("primary").asBoolean() || shard < 0 || shard >= numShards) {
+                    continue;
+                }
+                if (!"STARTED".equals(copy.path("state").asText()) && !"RELOCATING".equals(copy.path("state").asText())) {
+                    continue;
+                }
+                primaryNode[shard] = hostByNode.getOrDefault(copy.path("node").asText(), -1);
+            }
+        }
+
+        return new ShardLayout(numShards, routingNumShards, primaryNode, hosts);
+    }
+
+    /* maps node ids to the index of the client host matching their http publish address */
+    private Map<String, Integer> hostByNode() throws Exception {
+        final Request nodesRequest = new Request("GET", "/_nodes/http");
+        nodesRequest.addParameter("filter_path", "nodes.*.http.publish_address");
+        final JsonNode nodes = this.get(nodesRequest).path("nodes");
+
+        final List<Node> clientNodes = this.client.getNodes();
+        final Map<String, Integer> hostIndex = new HashMap<>();
+        for (int i = 0; i < clientNodes.size(); ++i) {
+            final HttpHost host = clientNodes.get(i).getHost();
+            hostIndex.putIfAbsent(ShardRouter.address(host.getHostName(), host.getPort()), i);
+        }
+
+        final Map<String, Integer> hostByNode = new HashMap<>();
+        for (final Iterator<Map.Entry<String, JsonNode>> itr = nodes.fields(); itr.hasNext(); ) {
+            final Map.Entry<String, JsonNode> node = itr.next();
+            /* "hostname/ip:port" when the publish host is a name, "ip:port" otherwise */
+            final String publishAddress = node.getValue().path("http").path("publish_address").asText();
+            final int portSep = publishAddress.lastIndexOf(':');
+            if (portSep < 0) {
+                continue;
+            }
+            final int port = Integer.parseInt(publishAddress.substring(portSep + 1));
+            for (final String name : publishAddress.substring(0, portSep).split("/")) {
+                final Integer index = hostIndex.get(ShardRouter.address(name, port));
+                if (!name.isEmpty() && index != null) {
+                    hostByNode.put(node.getKey(), index);
+                    break;
+                }
+            }
+        }
+
+        return hostByNode;
+    }
+
+    private static String address(final String host, final int port) {
+        String name = host.toLowerCase(Locale.ROOT);
+        if (name.startsWith("[") && name.endsWith("]")) {
+            name = name.substring(1, name.length() - 1);
+        }
+        return name + ":" + port;
+    }
+
+    private JsonNode get(final Request request) throws Exception {
+        final Response response = this.client.performRequest(request);
+        try (final InputStream content = response.getEntity().getContent()) {
+            return ShardRouter.MAPPER.readTree(content);
+        }
+    }
+
+    @Override
+    public void close() {
+        this.scheduler.shutdownNow();
+    }
+}
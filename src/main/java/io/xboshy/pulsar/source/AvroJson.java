@@ -0,0 +1,159 @@
+package io.xboshy.pulsar.source;
+
+import io.xboshy.pulsar.bulk.BulkBuffer;
+import org.apache.pulsar.shade.org.apache.avro.Schema;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+
+/* Avro binary to JSON without building records: the schema is compiled once into a tree of nodes that read
+   the datum field by field and write it as they go. Logical types are written as their underlying type */
+class AvroJson implements PayloadWriter {
+    private final PayloadWriter root;
+
+    /* filled once all its fields are compiled, so records can refer to themselves */
+    private static class RecordNode implements PayloadWriter {
+        private byte[][] keys;
+        private PayloadWriter[] fields;
+
+        @Override
+        public void write(final Decoder in, final BulkBuffer out) throws DecodeException {
+            out.write('{');
+            for (int i = 0; i < this.fields.length; ++i) {
+                out.write(this.keys[i]);
+                this.fields[i].write(in, out);
+            }
+            out.write('}');
+        }
+    }
+
+    AvroJson(final byte[] schema) {
+        final Schema parsed = new Schema.Parser().parse(new String(schema, StandardCharsets.UTF_8));
+        this.root = AvroJson.compile(parsed, new HashMap<>());
+    }
+
+    @Override
+    public void write(final Decoder in, final BulkBuffer out) throws DecodeException {
+        this.root.write(in, out);
+    }
+
+    private static PayloadWriter compile(final Schema schema, final HashMap<String, RecordNode> records) {
+        return switch (schema.getType()) {
+            case NULL -> (in, out) -> out.write(JsonValues.NULL);
+            case BOOLEAN -> (in, out) -> JsonValues.writeBoolean(out, in.readByte() != 0);
+            case INT, LONG -> (in, out) -> out.writeDecimal(in.readZigZag());
+            case FLOAT -> (in, out) -> JsonValues.writeFloat(out, Float.intBitsToFloat(in.readFixed32()));
+            case DOUBLE -> (in, out) -> JsonValues.writeDouble(out, Double.longBitsToDouble(in.readFixed64()));
+            case STRING -> (in, out) -> {
+                final int len = in.readLength(in.readZigZag());
+                JsonValues.writeString(out, in.buf, in.pos, len);
+                in.pos += len;
+            };
+            case BYTES -> (in, out) -> {
+                final int len = in.readLength(in.readZigZag());
+                JsonValues.writeBase64(out, in.buf, in.pos, len);
+                in.pos += len;
+            };
+            case FIXED -> {
+                final int size = schema.getFixedSize();
+                yield (in, out) -> {
+                    in.require(size);
+                    JsonValues.writeBase64(out, in.buf, in.pos, size);
+                    in.pos += size;
+                };
+            }
+            case ENUM -> {
+                final List<String> symbols = schema.getEnumSymbols();
+                final byte[][] names = new byte[symbols.size()][];
+                for (int i = 0; i < names.length; ++i) {
+                    names[i] = JsonValues.string(symbols.get(i));
+                }
+                yield (in, out) -> out.write(names[AvroJson.index(in, names.length)]);
+            }
+            case ARRAY -> {
+                final PayloadWriter items = AvroJson.compile(schema.getElementType(), records);
+                yield (in, out) -> {
+                    out.write('[');
+                    boolean first = true;
+                    for (long n = AvroJson.blockCount(in); n > 0; n = AvroJson.blockCount(in)) {
+                        for (long i = 0; i < n; ++i) {
+                            if (!first) {
+                                out.write(',');
+                            }
+                            first = false;
+                            items.write(in, out);
+                        }
+                    }
+                    out.write(']');
+                };
+            }
+            case MAP -> {
+                final PayloadWriter values = AvroJson.compile(schema.getValueType(), records);
+                yield (in, out) -> {
+                    out.write('{');
+                    boolean first = true;
+                    for (long n = AvroJson.blockCount(in); n > 0; n = AvroJson.blockCount(in)) {
+                        for (long i = 0; i < n; ++i) {
+                            if (!first) {
+                                out.write(',');
+                            }
+                            first = false;
+                            final int len = in.readLength(in.readZigZag());
+                            JsonValues.writeString(out, in.buf, in.pos, len);
+                            in.pos += len;
+                            out.write(':');
+                            values.write(in, out);
+                        }
+                    }
+                    out.write('}');
+                };
+            }
+            case UNION -> {
+                final List<Schema> types = schema.getTypes();
+                final PayloadWriter[] branches = new PayloadWriter[types.size()];
+                for (int i = 0; i < branches.length; ++i) {
+                    branches[i] = AvroJson.compile(types.get(i), records);
+                }
+                /* the value alone, not avro's {"type": value} JSON encoding */
+                yield (in, out) -> branches[AvroJson.index(in, branches.length)].write(in, out);
+            }
+            case RECORD -> {
+                final RecordNode known = records.get(schema.getFullName());
+                if (known != null) {
+                    yield known;
+                }
+                final RecordNode record = new RecordNode();
+                records.put(schema.getFullName(), record);
+                final List<Schema.Field> fields = schema.getFields();
+                final byte[][] keys = new byte[fields.size()][];
+                final PayloadWriter[] nodes = new PayloadWriter[fields.size()];
+                for (int i = 0; i < nodes.length; ++i) {
+                    keys[i] = JsonValues.key(fields.get(i).name(), i == 0);
+                    nodes[i] = AvroJson.compile(fields.get(i).schema(), records);
+                }
+                record.keys = keys;
+                record.fields = nodes;
+                yield record;
+            }
+        };
+    }
+
+    private static int index(final Decoder in, final int n) throws DecodeException {
+        final long index = in.readZigZag();
+        if (index < 0 || index >= n) {
+            throw new DecodeException("Bad avro index " + index + " of " + n);
+        }
+        return (int) index;
+    }
+
+    /* items in the next block, a negative count is followed by the block size in bytes */
+    private static long blockCount(final Decoder in) throws DecodeException {
+        final long n = in.readZigZag();
+        if (n < 0) {
+            in.readZigZag();
+            return -n;
+        }
+        return n;
+    }
+}
@@ -0,0 +1,15 @@
+package io.xboshy.pulsar.source;
+
+/* A payload its schema can't read. It fails the same way on every delivery, so only its message is nacked, while
+   any other failure of a SourceWriter, like a schema lookup, stops the pipeline and leaves the batch to redelivery */
+public class DecodeException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    public DecodeException(final String message) {
+        super(message);
+    }
+
+    public DecodeException(final String message, final Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -0,0 +1,100 @@
+package io.xboshy.pulsar.source;
+
+import org.apache.pulsar.shade.io.netty.buffer.ByteBuf;
+
+import java.util.Arrays;
+
+/* Reads a payload copied to a reused array: varints, zigzag and little endian fixed width values, plus
+   scratch space for each nesting level of a protobuf message */
+class Decoder {
+    private static final int MAX_DEPTH = 100;
+    byte[] buf;
+    int pos;
+    int limit;
+    private int[][] frames;
+
+    Decoder() {
+        this.buf = new byte[4096];
+        this.frames = new int[8][];
+    }
+
+    void reset(final ByteBuf payload) {
+        final int len = payload.readableBytes();
+        if (len > this.buf.length) {
+            this.buf = new byte[Math.max(len, this.buf.length << 1)];
+        }
+        payload.getBytes(payload.readerIndex(), this.buf, 0, len);
+        this.pos = 0;
+        this.limit = len;
+    }
+
+    void require(final long n) throws DecodeException {
+        if (n < 0 || n > this.limit - this.pos) {
+            throw new DecodeException("Truncated payload: " + n + " bytes needed at " + this.pos + " of " + this.limit);
+        }
+    }
+
+    int readByte() throws DecodeException {
+        this.require(1);
+        return this.buf[this.pos++] & 0xff;
+    }
+
+    long readVarint() throws DecodeException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            final int b = this.readByte();
+            value |= (long) (b & 0x7f) << shift;
+            if (b < 0x80) {
+                return value;
+            }
+        }
+        throw new DecodeException("Malformed varint at " + this.pos);
+    }
+
+    long readZigZag() throws DecodeException {
+        final long v = this.readVarint();
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    int readFixed32() throws DecodeException {
+        this.require(4);
+        final byte[] b = this.buf;
+        final int p = this.pos;
+        this.pos += 4;
+        return (b[p] & 0xff) | (b[p + 1] & 0xff) << 8 | (b[p + 2] & 0xff) << 16 | (b[p + 3] & 0xff) << 24;
+    }
+
+    long readFixed64() throws DecodeException {
+        return (this.readFixed32() & 0xffffffffL) | (long) this.readFixed32() << 32;
+    }
+
+    /* a length prefix, checked against what is left */
+    int readLength(final long length) throws DecodeException {
+        this.require(length);
+        return (int) length;
+    }
+
+    void skip(final int n) throws DecodeException {
+        this.require(n);
+        this.pos += n;
+    }
+
+    /* scratch ints for nesting level depth, what was written to it is kept when it grows */
+    int[] frame(final int depth, final int size) throws DecodeException {
+        if (depth >= Decoder.MAX_DEPTH) {
+            throw new DecodeException("Payload nested deeper than " + Decoder.MAX_DEPTH);
+        }
+        if (depth >= this.frames.length) {
+            this.frames = Arrays.copyOf(this.frames, Math.max(depth + 1, this.frames.length << 1));
+        }
+        int[] frame = this.frames[depth];
+        if (frame == null) {
+            frame = new int[Math.max(size, 64)];
+            this.frames[depth] = frame;
+        } else if (frame.length < size) {
+            frame = Arrays.copyOf(frame, Math.max(size, frame.length << 1));
+            this.frames[depth] = frame;
+        }
+        return frame;
+    }
+}
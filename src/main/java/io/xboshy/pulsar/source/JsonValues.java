@@ -0,0 +1,81 @@
+package io.xboshy.pulsar.source;
+
+import io.xboshy.pulsar.bulk.BulkBuffer;
+import io.xboshy.pulsar.utils.Base64Encoder;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/* JSON tokens shared by the schema writers */
+class JsonValues {
+    static final byte[] NULL = "null".getBytes(StandardCharsets.US_ASCII);
+    static final byte[] TRUE = "true".getBytes(StandardCharsets.US_ASCII);
+    static final byte[] FALSE = "false".getBytes(StandardCharsets.US_ASCII);
+
+    /* "name": ready to be copied, with a leading comma unless first */
+    static byte[] key(final String name, final boolean first) {
+        final BulkBuffer buffer = new BulkBuffer(name.length() + 8);
+        if (!first) {
+            buffer.write(',');
+        }
+        buffer.write('"');
+        buffer.writeJsonString(name);
+        buffer.write('"');
+        buffer.write(':');
+        return Arrays.copyOf(buffer.array(), buffer.length());
+    }
+
+    /* "str" */
+    static byte[] string(final String str) {
+        final BulkBuffer buffer = new BulkBuffer(str.length() + 8);
+        buffer.write('"');
+        buffer.writeJsonString(str);
+        buffer.write('"');
+        return Arrays.copyOf(buffer.array(), buffer.length());
+    }
+
+    static void writeBoolean(final BulkBuffer out, final boolean v) {
+        out.write(v ? JsonValues.TRUE : JsonValues.FALSE);
+    }
+
+    static void writeUnsigned(final BulkBuffer out, final long v) {
+        if (v >= 0) {
+            out.writeDecimal(v);
+        } else {
+            out.write(Long.toUnsignedString(v).getBytes(StandardCharsets.US_ASCII));
+        }
+    }
+
+    /* JSON has no NaN nor infinities. Whole values keep their ".0" so dynamic mappings don't make the field a long */
+    static void writeDouble(final BulkBuffer out, final double v) {
+        if (Double.isNaN(v) || Double.isInfinite(v)) {
+            out.write(JsonValues.NULL);
+        } else {
+            out.write(Double.toString(v).getBytes(StandardCharsets.US_ASCII));
+        }
+    }
+
+    static void writeFloat(final BulkBuffer out, final float v) {
+        if (Float.isNaN(v) || Float.isInfinite(v)) {
+            out.write(JsonValues.NULL);
+        } else {
+            out.write(Float.toString(v).getBytes(StandardCharsets.US_ASCII));
+        }
+    }
+
+    static void writeString(final BulkBuffer out, final byte[] utf8, final int off, final int len) {
+        out.write('"');
+        out.writeJsonUtf8(utf8, off, len);
+        out.write('"');
+    }
+
+    /* bytes go to elasticsearch as base64, like its binary type expects */
+    static void writeBase64(final BulkBuffer out, final byte[] src, final int off, final int len) {
+        out.write('"');
+        final Base64Encoder encoder = Base64Encoder.STANDARD;
+        final int n = encoder.encodedLength(len);
+        final int at = out.reserve(n);
+        encoder.encode(src, off, len, out.array(), at);
+        out.write('"');
+    }
+}
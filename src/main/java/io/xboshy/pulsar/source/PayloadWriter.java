@@ -0,0 +1,8 @@
+package io.xboshy.pulsar.source;
+
+import io.xboshy.pulsar.bulk.BulkBuffer;
+
+/* One schema version compiled, shared by the workers: all state is in the decoder */
+interface PayloadWriter {
+    void write(Decoder in, BulkBuffer out) throws DecodeException;
+}
@@ -0,0 +1,365 @@
+package io.xboshy.pulsar.source;
+
+import io.xboshy.pulsar.bulk.BulkBuffer;
+import com.google.protobuf.Descriptors;
+import org.apache.pulsar.client.impl.schema.ProtobufNativeSchemaUtils;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/* Protobuf binary to JSON from the descriptors of PROTOBUF_NATIVE schemas, without building messages: fields are
+   scanned into the decoder's scratch, then written in declaration order under their JSON names like JsonFormat
+   does. Absent fields are left out, 64 bit integers stay numbers and groups are not supported */
+class ProtobufJson implements PayloadWriter {
+    private static final int WIRE_VARINT = 0;
+    private static final int WIRE_FIXED64 = 1;
+    private static final int WIRE_LENGTH = 2;
+    private static final int WIRE_FIXED32 = 5;
+    /* ints per field occurrence in a frame: field index, wire type, value start and end */
+    private static final int OCCURRENCE = 4;
+
+    private final MessageNode root;
+
+    private static class FieldNode {
+        private final byte[] key;
+        private final Descriptors.FieldDescriptor.Type type;
+        private final boolean repeated;
+        private final boolean map;
+        private MessageNode message;
+        private int[] enumNumbers;
+        private byte[][] enumNames;
+
+        private FieldNode(final Descriptors.FieldDescriptor field) {
+            this.key = JsonValues.key(field.getJsonName(), true);
+            this.type = field.getType();
+            this.repeated = field.isRepeated();
+            this.map = field.isMapField();
+        }
+
+        private boolean isPackable() {
+            return switch (this.type) {
+                case STRING, BYTES, MESSAGE, GROUP -> false;
+                default -> true;
+            };
+        }
+    }
+
+    private static class MessageNode {
+        /* in declaration order */
+        private FieldNode[] fields;
+        /* sorted field numbers and the index of their field */
+        private int[] numbers;
+        private int[] indexes;
+
+        private int indexOf(final int number) {
+            final int i = Arrays.binarySearch(this.numbers, number);
+            return i < 0 ? -1 : this.indexes[i];
+        }
+    }
+
+    ProtobufJson(final byte[] schema) throws Exception {
+        final Descriptors.Descriptor descriptor = ProtobufNativeSchemaUtils.deserialize(schema);
+        if (descriptor == null) {
+            throw new Exception("Bad PROTOBUF_NATIVE schema");
+        }
+        this.root = ProtobufJson.compile(descriptor, new HashMap<>());
+    }
+
+    @Override
+    public void write(final Decoder in, final BulkBuffer out) throws DecodeException {
+        ProtobufJson.writeMessage(this.root, in, in.limit, 0, out);
+    }
+
+    private static MessageNode compile(final Descriptors.Descriptor descriptor, final HashMap<String, MessageNode> messages) {
+        final MessageNode known = messages.get(descriptor.getFullName());
+        if (known != null) {
+            return known;
+        }
+        final MessageNode message = new MessageNode();
+        messages.put(descriptor.getFullName(), message);
+
+        final List<Descriptors.FieldDescriptor> fields = descriptor.getFields();
+        final FieldNode[] nodes = new FieldNode[fields.size()];
+        final long[] byNumber = new long[fields.size()];
+        for (int i = 0; i < nodes.length; ++i) {
+            final Descriptors.FieldDescriptor field = fields.get(i);
+            final FieldNode node = new FieldNode(field);
+            if (field.getJavaType() == Descriptors.FieldDescriptor.JavaType.MESSAGE) {
+                node.message = ProtobufJson.compile(field.getMessageType(), messages);
+            } else if (field.getJavaType() == Descriptors.FieldDescriptor.JavaType.ENUM) {
+                final List<Descriptors.EnumValueDescriptor> values = field.getEnumType().getValues();
+                final long[] sorted = new long[values.size()];
+                for (int j = 0; j < sorted.length; ++j) {
+                    sorted[j] = (long) values.get(j).getNumber() << 32 | j;
+                }
+                Arrays.sort(sorted);
+                node.enumNumbers = new int[sorted.length];
+                node.enumNames = new byte[sorted.length][];
+                for (int j = 0; j < sorted.length; ++j) {
+                    node.enumNumbers[j] = (int) (sorted[j] >> 32);
+                    node.enumNames[j] = JsonValues.string(values.get((int) sorted[j]).getName());
+                }
+            }
+            nodes[i] = node;
+            byNumber[i] = (long) field.getNumber() << 32 | i;
+        }
+        Arrays.sort(byNumber);
+        message.fields = nodes;
+        message.numbers = new int[nodes.length];
+        message.indexes = new int[nodes.length];
+        for (int i = 0; i < nodes.length; ++i) {
+            message.numbers[i] = (int) (byNumber[i] >> 32);
+            message.indexes[i] = (int) byNumber[i];
+        }
+        return message;
+    }
+
+    /* leaves in.pos at the end of the value, returns where the value starts */
+    private static int skipValue(final Decoder in, final int wire) throws DecodeException {
+        switch (wire) {
+            case ProtobufJson.WIRE_VARINT -> {
+                final int start = in.pos;
+                in.readVarint();
+                return start;
+            }
+            case ProtobufJson.WIRE_FIXED64 -> {
+                final int start = in.pos;
+                in.skip(8);
+                return start;
+            }
+            case ProtobufJson.WIRE_FIXED32 -> {
+                final int start = in.pos;
+                in.skip(4);
+                return start;
+            }
+            case ProtobufJson.WIRE_LENGTH -> {
+                final int len = in.readLength(in.readVarint());
+                final int start = in.pos;
+                in.pos += len;
+                return start;
+            }
+            default -> throw new DecodeException("Unsupported protobuf wire type " + wire);
+        }
+    }
+
+    private static void writeMessage(final MessageNode message, final Decoder in, final int end, final int depth, final BulkBuffer out) throws DecodeException {
+        /* scan: one occurrence per field found, unknown fields are skipped */
+        int n = 0;
+        int[] frame = in.frame(depth, 64);
+        while (in.pos < end) {
+            final long tag = in.readVarint();
+            final int wire = (int) (tag & 7);
+            final int start = ProtobufJson.skipValue(in, wire);
+            final int index = message.indexOf((int) (tag >>> 3));
+            if (index < 0) {
+                continue;
+            }
+            frame = in.frame(depth, (n + 1) * ProtobufJson.OCCURRENCE);
+            final int at = n * ProtobufJson.OCCURRENCE;
+            frame[at] = index;
+            frame[at + 1] = wire;
+            frame[at + 2] = start;
+            frame[at + 3] = in.pos;
+            ++n;
+        }
+        if (in.pos != end) {
+            throw new DecodeException("Protobuf message overruns its length at " + in.pos);
+        }
+
+        /* group the occurrences by field, keeping their order: counts become group ends, then the sorted list */
+        final int nFields = message.fields.length;
+        final int ends = n * ProtobufJson.OCCURRENCE;
+        final int sorted = ends + nFields;
+        frame = in.frame(depth, sorted + n);
+        Arrays.fill(frame, ends, sorted, 0);
+        for (int k = 0; k < n; ++k) {
+            ++frame[ends + frame[k * ProtobufJson.OCCURRENCE]];
+        }
+        for (int f = 1; f < nFields; ++f) {
+            frame[ends + f] += frame[ends + f - 1];
+        }
+        for (int k = n - 1; k >= 0; --k) {
+            frame[sorted + --frame[ends + frame[k * ProtobufJson.OCCURRENCE]]] = k;
+        }
+
+        out.write('{');
+        boolean first = true;
+        for (int f = 0; f < nFields; ++f) {
+            /* after the placement, frame[ends + f] is where the group of field f starts */
+            final int from = frame[ends + f];
+            final int to = f + 1 < nFields ? frame[ends + f + 1] : n;
+            if (from == to) {
+                continue;
+            }
+            if (!first) {
+                out.write(',');
+            }
+            first = false;
+            final FieldNode field = message.fields[f];
+            out.write(field.key);
+            if (field.map) {
+                out.write('{');
+                for (int i = from; i < to; ++i) {
+                    if (i > from) {
+                        out.write(',');
+                    }
+                    final int at = frame[sorted + i] * ProtobufJson.OCCURRENCE;
+                    ProtobufJson.writeMapEntry(field.message, in, frame[at + 2], frame[at + 3], depth, out);
+                }
+                out.write('}');
+            } else if (field.repeated) {
+                out.write('[');
+                boolean firstItem = true;
+                for (int i = from; i < to; ++i) {
+                    final int at = frame[sorted + i] * ProtobufJson.OCCURRENCE;
+                    if (frame[at + 1] == ProtobufJson.WIRE_LENGTH && field.isPackable()) {
+                        in.pos = frame[at + 2];
+                        while (in.pos < frame[at + 3]) {
+                            if (!firstItem) {
+                                out.write(',');
+                            }
+                            firstItem = false;
+                            ProtobufJson.writeScalar(field, in, out);
+                        }
+                        continue;
+                    }
+                    if (!firstItem) {
+                        out.write(',');
+                    }
+                    firstItem = false;
+                    ProtobufJson.writeValue(field, in, frame[at + 1], frame[at + 2], frame[at + 3], depth, out);
+                }
+                out.write(']');
+            } else {
+                /* the last one wins */
+                final int at = frame[sorted + to - 1] * ProtobufJson.OCCURRENCE;
+                ProtobufJson.writeValue(field, in, frame[at + 1], frame[at + 2], frame[at + 3], depth, out);
+            }
+            /* nested messages may have grown it */
+            frame = in.frame(depth, sorted + n);
+        }
+        out.write('}');
+        in.pos = end;
+    }
+
+    private static void writeValue(final FieldNode field, final Decoder in, final int wire, final int start, final int end, final int depth, final BulkBuffer out) throws DecodeException {
+        switch (field.type) {
+            case STRING -> JsonValues.writeString(out, in.buf, start, end - start);
+            case BYTES -> JsonValues.writeBase64(out, in.buf, start, end - start);
+            case MESSAGE -> {
+                in.pos = start;
+                ProtobufJson.writeMessage(field.message, in, end, depth + 1, out);
+            }
+            case GROUP -> throw new DecodeException("Protobuf groups are not supported");
+            default -> {
+                if (wire == ProtobufJson.WIRE_LENGTH) {
+                    throw new DecodeException("Packed value for a single " + field.type + " field");
+                }
+                in.pos = start;
+                ProtobufJson.writeScalar(field, in, out);
+            }
+        }
+    }
+
+    private static void writeScalar(final FieldNode field, final Decoder in, final BulkBuffer out) throws DecodeException {
+        switch (field.type) {
+            case INT32 -> out.writeDecimal((int) in.readVarint());
+            case INT64 -> out.writeDecimal(in.readVarint());
+            case UINT32 -> out.writeDecimal(in.readVarint() & 0xffffffffL);
+            case UINT64 -> JsonValues.writeUnsigned(out, in.readVarint());
+            case SINT32, SINT64 -> out.writeDecimal(in.readZigZag());
+            case BOOL -> JsonValues.writeBoolean(out, in.readVarint() != 0);
+            case ENUM -> {
+                final int number = (int) in.readVarint();
+                final int i = Arrays.binarySearch(field.enumNumbers, number);
+                if (i >= 0) {
+                    out.write(field.enumNames[i]);
+                } else {
+                    /* a value newer than the schema */
+                    out.writeDecimal(number);
+                }
+            }
+            case FIXED32 -> out.writeDecimal(in.readFixed32() & 0xffffffffL);
+            case SFIXED32 -> out.writeDecimal(in.readFixed32());
+            case FLOAT -> JsonValues.writeFloat(out, Float.intBitsToFloat(in.readFixed32()));
+            case FIXED64 -> JsonValues.writeUnsigned(out, in.readFixed64());
+            case SFIXED64 -> out.writeDecimal(in.readFixed64());
+            case DOUBLE -> JsonValues.writeDouble(out, Double.longBitsToDouble(in.readFixed64()));
+            default -> throw new DecodeException("Unexpected scalar type " + field.type);
+        }
+    }
+
+    /* a map entry is a message with the key as field 1 and the value as field 2, JSON keys are strings */
+    private static void writeMapEntry(final MessageNode entry, final Decoder in, final int start, final int end, final int depth, final BulkBuffer out) throws DecodeException {
+        int keyWire = -1;
+        int keyStart = 0;
+        int keyEnd = 0;
+        int valueWire = -1;
+        int valueStart = 0;
+        int valueEnd = 0;
+        in.pos = start;
+        while (in.pos < end) {
+            final long tag = in.readVarint();
+            final int wire = (int) (tag & 7);
+            final int at = ProtobufJson.skipValue(in, wire);
+            final int number = (int) (tag >>> 3);
+            if (number == 1) {
+                keyWire = wire;
+                keyStart = at;
+                keyEnd = in.pos;
+            } else if (number == 2) {
+                valueWire = wire;
+                valueStart = at;
+                valueEnd = in.pos;
+            }
+        }
+
+        final FieldNode key = entry.fields[entry.indexOf(1)];
+        final FieldNode value = entry.fields[entry.indexOf(2)];
+        if (key.type == Descriptors.FieldDescriptor.Type.STRING) {
+            JsonValues.writeString(out, in.buf, keyStart, keyEnd - keyStart);
+        } else {
+            out.write('"');
+            if (keyWire < 0) {
+                ProtobufJson.writeDefault(key, out);
+            } else {
+                in.pos = keyStart;
+                ProtobufJson.writeScalar(key, in, out);
+            }
+            out.write('"');
+        }
+        out.write(':');
+        if (valueWire < 0) {
+            ProtobufJson.writeDefault(value, out);
+        } else {
+            ProtobufJson.writeValue(value, in, valueWire, valueStart, valueEnd, depth, out);
+        }
+        in.pos = end;
+    }
+
+    /* what an absent map key or value stands for */
+    private static void writeDefault(final FieldNode field, final BulkBuffer out) {
+        switch (field.type) {
+            case STRING, BYTES -> {
+                out.write('"');
+                out.write('"');
+            }
+            case MESSAGE, GROUP -> {
+                out.write('{');
+                out.write('}');
+            }
+            case BOOL -> JsonValues.writeBoolean(out, false);
+            case FLOAT, DOUBLE -> JsonValues.writeDouble(out, 0.0);
+            case ENUM -> {
+                final int i = Arrays.binarySearch(field.enumNumbers, 0);
+                if (i >= 0) {
+                    out.write(field.enumNames[i]);
+                } else {
+                    out.writeDecimal(0);
+                }
+            }
+            default -> out.writeDecimal(0);
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package io.xboshy.pulsar.source;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.pulsar.common.naming.TopicName;
+import org.apache.pulsar.common.schema.SchemaInfo;
+
+import java.util.HexFormat;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+/* The writers of the schema versions seen so far, shared by the workers of a pipeline. Versions never change once
+   registered so they are kept for the life of the process, fetched from the registry the first time a message
+   carries them. The partitions of a topic share their schemas */
+public class SchemaCache {
+    private static final Logger logger = LogManager.getLogger(SchemaCache.class);
+
+    private final SchemaLookup lookup;
+    /* empty when the payload is JSON already */
+    private final ConcurrentHashMap<String, Optional<PayloadWriter>> writers;
+
+    public SchemaCache(final SchemaLookup lookup) {
+        this.lookup = lookup;
+        this.writers = new ConcurrentHashMap<>();
+    }
+
+    /* a writer to be owned by one worker */
+    public SourceWriter newWriter() {
+        return new SchemaSourceWriter(this);
+    }
+
+    /* null when the payload is copied as it is */
+    PayloadWriter get(final String topic, final byte[] version) throws Exception {
+        final String partitioned = TopicName.get(topic).getPartitionedTopicName();
+        final String key = partitioned + "@" + HexFormat.of().formatHex(version);
+        Optional<PayloadWriter> writer = this.writers.get(key);
+        if (writer == null) {
+            /* workers racing on a new version may compile it twice, the first one is kept. Failed lookups are not
+               remembered, the pipeline stops and the next run tries again */
+            final Optional<PayloadWriter> compiled = this.compile(partitioned, version);
+            writer = this.writers.putIfAbsent(key, compiled);
+            if (writer == null) {
+                writer = compiled;
+            }
+        }
+        return writer.orElse(null);
+    }
+
+    /* versions that can't be read are remembered as writers failing every payload, so the registry isn't asked
+       again for each of their messages */
+    private Optional<PayloadWriter> compile(final String topic, final byte[] version) throws Exception {
+        final String hex = HexFormat.of().formatHex(version);
+        final SchemaInfo info = this.lookup.lookup(topic, version);
+        if (info == null) {
+            SchemaCache.logger.warn("no schema version " + hex + " for topic " + topic);
+            return Optional.of(SchemaCache.failing("no schema version " + hex + " for topic " + topic));
+        }
+        final PayloadWriter writer;
+        try {
+            writer = switch (info.getType()) {
+                case AVRO -> new AvroJson(info.getSchema());
+                case PROTOBUF_NATIVE -> new ProtobufJson(info.getSchema());
+                case JSON, BYTES, STRING, NONE -> null;
+                default -> SchemaCache.failing("schema type " + info.getType() + " of topic " + topic + " is not supported");
+            };
+        } catch (Exception e) {
+            SchemaCache.logger.warn("schema " + info.getType() + " version " + hex + " of topic " + topic + " can't be compiled", e);
+            return Optional.of(SchemaCache.failing("schema " + info.getType() + " version " + hex + " of topic " + topic + " can't be compiled: " + e.getMessage()));
+        }
+        SchemaCache.logger.info("schema " + info.getType() + " version " + hex + " of topic " + topic + " loaded");
+        return Optional.ofNullable(writer);
+    }
+
+    private static PayloadWriter failing(final String error) {
+        return (in, out) -> {
+            throw new DecodeException(error);
+        };
+    }
+}
@@ -0,0 +1,9 @@
+package io.xboshy.pulsar.source;
+
+import org.apache.pulsar.common.schema.SchemaInfo;
+
+@FunctionalInterface
+public interface SchemaLookup {
+    /* the schema a message of topic was produced with, null when the registry doesn't know the version */
+    SchemaInfo lookup(String topic, byte[] version) throws Exception;
+}
@@ -0,0 +1,54 @@
+package io.xboshy.pulsar.source;
+
+import io.xboshy.pulsar.bulk.BulkBodyWriter;
+import io.xboshy.pulsar.bulk.BulkBuffer;
+import org.apache.pulsar.client.api.Message;
+import org.apache.pulsar.shade.io.netty.buffer.ByteBuf;
+
+import java.util.Arrays;
+
+/* Writes the payload of a message as JSON through the writer of its schema version, payloads without a version
+   are copied as they are. One per worker: the decoder is reused and the last version looked up is remembered as
+   batches mostly come from a single topic */
+class SchemaSourceWriter implements SourceWriter {
+    private final SchemaCache cache;
+    private final Decoder decoder;
+    private String lastTopic;
+    private byte[] lastVersion;
+    private PayloadWriter lastWriter;
+
+    SchemaSourceWriter(final SchemaCache cache) {
+        this.cache = cache;
+        this.decoder = new Decoder();
+    }
+
+    @Override
+    public void write(final Message<?> msg, final BulkBuffer out) throws Exception {
+        final ByteBuf payload = BulkBodyWriter.payload(msg);
+        if (payload == null) {
+            return;
+        }
+
+        final byte[] version = msg.getSchemaVersion();
+        final PayloadWriter writer = version == null ? null : this.writer(msg.getTopicName(), version);
+        if (writer == null) {
+            out.write(payload);
+            return;
+        }
+
+        this.decoder.reset(payload);
+        writer.write(this.decoder, out);
+        if (this.decoder.pos != this.decoder.limit) {
+            throw new DecodeException("Payload has " + (this.decoder.limit - this.decoder.pos) + " bytes past its end");
+        }
+    }
+
+    private PayloadWriter writer(final String topic, final byte[] version) throws Exception {
+        if (!topic.equals(this.lastTopic) || !Arrays.equals(version, this.lastVersion)) {
+            this.lastWriter = this.cache.get(topic, version);
+            this.lastTopic = topic;
+            this.lastVersion = version;
+        }
+        return this.lastWriter;
+    }
+}
@@ -0,0 +1,11 @@
+package io.xboshy.pulsar.source;
+
+import io.xboshy.pulsar.bulk.BulkBuffer;
+import org.apache.pulsar.client.api.Message;
+
+@FunctionalInterface
+public interface SourceWriter {
+    /* appends the document of msg to out as JSON, throws DecodeException when the payload can't be read and
+       other exceptions when it can't tell yet, e.g. the schema lookup failed */
+    void write(Message<?> msg, BulkBuffer out) throws Exception;
+}
@@ -0,0 +1,68 @@
+package io.xboshy.pulsar.utils;
+
+import java.nio.charset.StandardCharsets;
+
+/* Table based base64 that encodes into a caller owned array */
+public class Base64Encoder {
+    /* same output as java.util.Base64.getEncoder() */
+    public static final Base64Encoder STANDARD = new Base64Encoder(
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/",
+            true
+    );
+    /* same output as java.util.Base64.getUrlEncoder().withoutPadding() */
+    public static final Base64Encoder URL = new Base64Encoder(
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_",
+            false
+    );
+
+    private final byte[] table;
+    private final boolean padding;
+
+    private Base64Encoder(final String alphabet, final boolean padding) {
+        this.table = alphabet.getBytes(StandardCharsets.US_ASCII);
+        this.padding = padding;
+    }
+
+    public int encodedLength(final int len) {
+        if (this.padding) {
+            return 4 * ((len + 2) / 3);
+        }
+
+        return (len / 3) * 4 + (len % 3 == 0 ? 0 : len % 3 + 1);
+    }
+
+    /* writes encodedLength(len) bytes at dst[dstOff] */
+    public void encode(final byte[] src, final int srcOff, final int len, final byte[] dst, final int dstOff) {
+        final byte[] t = this.table;
+        final int end = srcOff + len - len % 3;
+        int i = srcOff;
+        int j = dstOff;
+        while (i < end) {
+            final int bits = (src[i++] & 0xff) << 16 | (src[i++] & 0xff) << 8 | (src[i++] & 0xff);
+            dst[j++] = t[bits >>> 18];
+            dst[j++] = t[(bits >>> 12) & 0x3f];
+            dst[j++] = t[(bits >>> 6) & 0x3f];
+            dst[j++] = t[bits & 0x3f];
+        }
+
+        final int rest = len % 3;
+        if (rest == 1) {
+            final int b0 = src[i] & 0xff;
+            dst[j++] = t[b0 >>> 2];
+            dst[j++] = t[(b0 << 4) & 0x3f];
+            if (this.padding) {
+                dst[j++] = '=';
+                dst[j] = '=';
+            }
+        } else if (rest == 2) {
+            final int b0 = src[i] & 0xff;
+            final int b1 = src[i + 1] & 0xff;
+            dst[j++] = t[b0 >>> 2];
+            dst[j++] = t[(b0 << 4 | b1 >>> 4) & 0x3f];
+            dst[j++] = t[(b1 << 2) & 0x3f];
+            if (this.padding) {
+                dst[j] = '=';
+            }
+        }
+    }
+}
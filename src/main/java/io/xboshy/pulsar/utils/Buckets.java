@@ -0,0 +1,20 @@
+package io.xboshy.pulsar.utils;
+
+/* Histogram bucket bounds shared by the timings, growing by a quarter so that histogram_quantile reads any quantile
+   within 25% of its value, and the series of every process and pipeline can be summed */
+public class Buckets {
+    /* 50us to about 100s */
+    public static final double[] SECONDS = Buckets.exponential(0.00005, 1.25, 66);
+    /* 1us to about 8s */
+    public static final double[] MICROS = Buckets.exponential(1, 1.25, 72);
+
+    private static double[] exponential(final double start, final double factor, final int count) {
+        final double[] bounds = new double[count];
+        double bound = start;
+        for (int i = 0; i < count; ++i) {
+            bounds[i] = bound;
+            bound *= factor;
+        }
+        return bounds;
+    }
+}
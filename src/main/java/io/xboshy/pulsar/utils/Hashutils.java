@@ -1,7 +1,7 @@
 package io.xboshy.pulsar.utils;
 
+import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
-import java.util.Formatter;
 
 public class Hashutils {
     public static MessageDigest getMessageDigestSHA1() throws Exception {
@@ -13,11 +13,9 @@ public class Hashutils {
         return byteArray2Hex(md.digest(arr));
     }
 
-    private static String byteArray2Hex(final byte[] hash) {
-        Formatter formatter = new Formatter();
-        for (byte b : hash) {
-            formatter.format("%02x", b);
-        }
-        return formatter.toString();
+    public static String byteArray2Hex(final byte[] hash) {
+        final byte[] hex = new byte[2 * hash.length];
+        Hex.encode(hash, 0, hash.length, hex, 0);
+        return new String(hex, StandardCharsets.US_ASCII);
     }
 }
@@ -0,0 +1,28 @@
+package io.xboshy.pulsar.utils;
+
+import java.nio.charset.StandardCharsets;
+
+public class Hex {
+    private static final byte[] DIGITS = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+    /* writes 2 * len lowercase hex digits at dst[dstOff] */
+    public static void encode(final byte[] src, final int srcOff, final int len, final byte[] dst, final int dstOff) {
+        int j = dstOff;
+        for (int i = srcOff; i < srcOff + len; ++i) {
+            final int b = src[i] & 0xff;
+            dst[j++] = Hex.DIGITS[b >>> 4];
+            dst[j++] = Hex.DIGITS[b & 0xf];
+        }
+    }
+
+    /* writes 16 lowercase hex digits of v, most significant first */
+    public static void encode(final long v, final byte[] dst, final int dstOff) {
+        for (int i = 0; i < 16; ++i) {
+            dst[dstOff + i] = Hex.DIGITS[(int) (v >>> (60 - 4 * i)) & 0xf];
+        }
+    }
+
+    public static byte digit(final int nibble) {
+        return Hex.DIGITS[nibble & 0xf];
+    }
+}
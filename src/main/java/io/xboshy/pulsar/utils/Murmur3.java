@@ -0,0 +1,186 @@
+package io.xboshy.pulsar.utils;
+
+import org.apache.pulsar.shade.io.netty.buffer.ByteBuf;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+
+/* MurmurHash3 x64 128, reads the bytes in place so nothing is copied or allocated */
+public class Murmur3 {
+    private static final long C1 = 0x87c37b91114253d5L;
+    private static final long C2 = 0x4cf5ad432745937fL;
+    private static final VarHandle LONG_LE = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+    /* stores h1 in out[0] and h2 in out[1] */
+    @SuppressWarnings("fallthrough")
+    public static void hash128(final ByteBuf buf, final int index, final int len, final long seed, final long[] out) {
+        long h1 = seed;
+        long h2 = seed;
+        final int blocks = len >>> 4;
+        int pos = index;
+        for (int i = 0; i < blocks; ++i) {
+            long k1 = buf.getLongLE(pos);
+            long k2 = buf.getLongLE(pos + 8);
+            pos += 16;
+
+            k1 *= Murmur3.C1;
+            k1 = Long.rotateLeft(k1, 31);
+            k1 *= Murmur3.C2;
+            h1 ^= k1;
+            h1 = Long.rotateLeft(h1, 27);
+            h1 += h2;
+            h1 = h1 * 5 + 0x52dce729;
+
+            k2 *= Murmur3.C2;
+            k2 = Long.rotateLeft(k2, 33);
+            k2 *= Murmur3.C1;
+            h2 ^= k2;
+            h2 = Long.rotateLeft(h2, 31);
+            h2 += h1;
+            h2 = h2 * 5 + 0x38495ab5;
+        }
+
+        long k1 = 0;
+        long k2 = 0;
+        switch (len & 15) {
+            case 15: k2 ^= (long) (buf.getByte(pos + 14) & 0xff) << 48;
+            case 14: k2 ^= (long) (buf.getByte(pos + 13) & 0xff) << 40;
+            case 13: k2 ^= (long) (buf.getByte(pos + 12) & 0xff) << 32;
+            case 12: k2 ^= (long) (buf.getByte(pos + 11) & 0xff) << 24;
+            case 11: k2 ^= (long) (buf.getByte(pos + 10) & 0xff) << 16;
+            case 10: k2 ^= (long) (buf.getByte(pos + 9) & 0xff) << 8;
+            case 9:
+                k2 ^= buf.getByte(pos + 8) & 0xff;
+                k2 *= Murmur3.C2;
+                k2 = Long.rotateLeft(k2, 33);
+                k2 *= Murmur3.C1;
+                h2 ^= k2;
+            case 8: k1 ^= (long) (buf.getByte(pos + 7) & 0xff) << 56;
+            case 7: k1 ^= (long) (buf.getByte(pos + 6) & 0xff) << 48;
+            case 6: k1 ^= (long) (buf.getByte(pos + 5) & 0xff) << 40;
+            case 5: k1 ^= (long) (buf.getByte(pos + 4) & 0xff) << 32;
+            case 4: k1 ^= (long) (buf.getByte(pos + 3) & 0xff) << 24;
+            case 3: k1 ^= (long) (buf.getByte(pos + 2) & 0xff) << 16;
+            case 2: k1 ^= (long) (buf.getByte(pos + 1) & 0xff) << 8;
+            case 1:
+                k1 ^= buf.getByte(pos) & 0xff;
+                k1 *= Murmur3.C1;
+                k1 = Long.rotateLeft(k1, 31);
+                k1 *= Murmur3.C2;
+                h1 ^= k1;
+        }
+
+        h1 ^= len;
+        h2 ^= len;
+        h1 += h2;
+        h2 += h1;
+        h1 = Murmur3.fmix64(h1);
+        h2 = Murmur3.fmix64(h2);
+        h1 += h2;
+        h2 += h1;
+
+        out[0] = h1;
+        out[1] = h2;
+    }
+
+    /* first half of MurmurHash3 x64 128 with seed 0 over bytes[off, off + len) */
+    public static long hash64(final byte[] bytes, final int off, final int len) {
+        long h1 = 0;
+        long h2 = 0;
+        final int blocks = len >>> 4;
+        int pos = off;
+        for (int i = 0; i < blocks; ++i) {
+            long k1 = (long) Murmur3.LONG_LE.get(bytes, pos);
+            long k2 = (long) Murmur3.LONG_LE.get(bytes, pos + 8);
+            pos += 16;
+
+            h1 ^= Murmur3.mixK1(k1);
+            h1 = Long.rotateLeft(h1, 27);
+            h1 += h2;
+            h1 = h1 * 5 + 0x52dce729;
+
+            h2 ^= Murmur3.mixK2(k2);
+            h2 = Long.rotateLeft(h2, 31);
+            h2 += h1;
+            h2 = h2 * 5 + 0x38495ab5;
+        }
+
+        long k1 = 0;
+        long k2 = 0;
+        final int tail = len & 15;
+        for (int i = tail - 1; i >= 8; --i) {
+            k2 ^= (long) (bytes[pos + i] & 0xff) << ((i - 8) << 3);
+        }
+        for (int i = Math.min(tail, 8) - 1; i >= 0; --i) {
+            k1 ^= (long) (bytes[pos + i] & 0xff) << (i << 3);
+        }
+        if (tail > 8) {
+            h2 ^= Murmur3.mixK2(k2);
+        }
+        if (tail > 0) {
+            h1 ^= Murmur3.mixK1(k1);
+        }
+
+        h1 ^= len;
+        h2 ^= len;
+        h1 += h2;
+        h2 += h1;
+        h1 = Murmur3.fmix64(h1);
+        h2 = Murmur3.fmix64(h2);
+        return h1 + h2;
+    }
+
+    private static long mixK1(long k1) {
+        k1 *= Murmur3.C1;
+        k1 = Long.rotateLeft(k1, 31);
+        return k1 * Murmur3.C2;
+    }
+
+    private static long mixK2(long k2) {
+        k2 *= Murmur3.C2;
+        k2 = Long.rotateLeft(k2, 33);
+        return k2 * Murmur3.C1;
+    }
+
+    /* MurmurHash3 x86 32 with seed 0 over the UTF-16LE code units of an ASCII string, as elasticsearch hashes _id for routing */
+    public static int hash32Utf16(final byte[] ascii, final int off, final int len) {
+        int h1 = 0;
+        final int end = off + (len & ~1);
+        for (int i = off; i < end; i += 2) {
+            /* two chars per 4 byte block, their high bytes are 0 */
+            int k1 = (ascii[i] & 0xff) | (ascii[i + 1] & 0xff) << 16;
+            k1 *= 0xcc9e2d51;
+            k1 = Integer.rotateLeft(k1, 15);
+            k1 *= 0x1b873593;
+            h1 ^= k1;
+            h1 = Integer.rotateLeft(h1, 13);
+            h1 = h1 * 5 + 0xe6546b64;
+        }
+
+        if ((len & 1) != 0) {
+            int k1 = ascii[end] & 0xff;
+            k1 *= 0xcc9e2d51;
+            k1 = Integer.rotateLeft(k1, 15);
+            k1 *= 0x1b873593;
+            h1 ^= k1;
+        }
+
+        h1 ^= len << 1;
+        h1 ^= h1 >>> 16;
+        h1 *= 0x85ebca6b;
+        h1 ^= h1 >>> 13;
+        h1 *= 0xc2b2ae35;
+        h1 ^= h1 >>> 16;
+        return h1;
+    }
+
+    private static long fmix64(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+}
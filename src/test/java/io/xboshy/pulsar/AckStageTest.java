@@ -0,0 +1,103 @@
+package io.xboshy.pulsar;
+
+import org.apache.pulsar.client.api.Consumer;
+import org.apache.pulsar.client.api.Message;
+import org.apache.pulsar.client.api.Schema;
+import org.apache.pulsar.client.impl.BatchMessageIdImpl;
+import org.apache.pulsar.client.impl.MessageIdImpl;
+import org.apache.pulsar.client.impl.MessageImpl;
+import org.apache.pulsar.common.api.proto.MessageMetadata;
+import org.apache.pulsar.shade.io.netty.buffer.Unpooled;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/* rounds are run on the test thread, the stage thread is never started */
+class AckStageTest {
+    private final RecordingConsumer recording = new RecordingConsumer();
+    private final Consumer<byte[]> consumer = this.recording.consumer;
+
+    private static Message<byte[]> message(final int partition, final int seq) {
+        final MessageMetadata metadata = new MessageMetadata()
+                .setProducerName("test")
+                .setSequenceId(seq)
+                .setPublishTime(1690000000000L + seq);
+        return MessageImpl.create(TestMessages.TOPIC, new MessageIdImpl(42L, seq, partition), metadata, Unpooled.wrappedBuffer(new byte[0]), Optional.empty(), null, Schema.BYTES, 0, false, -1L);
+    }
+
+    @SafeVarargs
+    private AckStage.Ticket<byte[]> receive(final AckStage<byte[]> stage, final Message<byte[]>... msgs) throws Exception {
+        return stage.register(this.consumer, TestMessages.batch(msgs));
+    }
+
+    @Test
+    void aNackHoldsCumulativeAcksBackUntilItsRedeliveryIsAcked() throws Exception {
+        final AckStage<byte[]> stage = new AckStage<>("test", 10, 60000, true);
+        final AckStage.Ticket<byte[]> first = this.receive(stage, TestMessages.message(0, "a", "{}"), TestMessages.message(1, "b", "{}"), TestMessages.message(2, "c", "{}"));
+        stage.ack(this.consumer, first, TestMessages.id(0));
+        stage.nacked(this.consumer, first, TestMessages.id(1));
+        stage.ack(this.consumer, first, TestMessages.id(2));
+        final AckStage.Ticket<byte[]> second = this.receive(stage, TestMessages.message(3, "d", "{}"));
+        stage.ack(this.consumer, second, TestMessages.id(3));
+        stage.round();
+
+        assertEquals(List.of(), this.recording.cumulative);
+        assertEquals(List.of(TestMessages.id(0), TestMessages.id(2), TestMessages.id(3)), this.recording.acked);
+
+        final AckStage.Ticket<byte[]> redelivery = this.receive(stage, TestMessages.message(1, "b", "{}"), TestMessages.message(4, "e", "{}"));
+        stage.ack(this.consumer, redelivery, List.of(TestMessages.id(1), TestMessages.id(4)));
+        stage.round();
+
+        assertEquals(List.of(TestMessages.id(4)), this.recording.cumulative);
+    }
+
+    @Test
+    void aNackedIdThatNeverComesBackStopsHoldingAcksBack() throws Exception {
+        final AckStage<byte[]> stage = new AckStage<>("test", 10, 1, true);
+        final AckStage.Ticket<byte[]> first = this.receive(stage, TestMessages.message(0, "a", "{}"), TestMessages.message(1, "b", "{}"));
+        stage.nacked(this.consumer, first, TestMessages.id(0));
+        stage.ack(this.consumer, first, TestMessages.id(1));
+        stage.round();
+
+        assertEquals(List.of(), this.recording.cumulative);
+
+        /* dead lettered, never redelivered */
+        Thread.sleep(5);
+        final AckStage.Ticket<byte[]> second = this.receive(stage, TestMessages.message(2, "c", "{}"));
+        stage.ack(this.consumer, second, TestMessages.id(2));
+        stage.round();
+
+        assertEquals(List.of(TestMessages.id(2)), this.recording.cumulative);
+        assertEquals(List.of(TestMessages.id(1)), this.recording.acked);
+    }
+
+    @Test
+    void aHoleOnlyHoldsItsPartitionBack() throws Exception {
+        final AckStage<byte[]> stage = new AckStage<>("test", 10, 60000, true);
+        final AckStage.Ticket<byte[]> ticket = this.receive(stage, AckStageTest.message(0, 0), AckStageTest.message(0, 1), AckStageTest.message(1, 2), AckStageTest.message(1, 3));
+        stage.ack(this.consumer, ticket, List.of(new MessageIdImpl(42L, 0, 0), new MessageIdImpl(42L, 2, 1), new MessageIdImpl(42L, 3, 1)));
+        stage.nacked(this.consumer, ticket, new MessageIdImpl(42L, 1, 0));
+        stage.round();
+
+        assertEquals(List.of(new MessageIdImpl(42L, 3, 1)), this.recording.cumulative);
+        assertEquals(List.of(new MessageIdImpl(42L, 0, 0)), this.recording.acked);
+    }
+
+    @Test
+    void evictedEntriesAreAckedIndexByIndex() {
+        final AckStage<byte[]> stage = new AckStage<>("test", 10, 60000, false, 1);
+        stage.ack(this.consumer, null, new BatchMessageIdImpl(42L, 7, -1, 0, 2, null));
+        stage.ack(this.consumer, null, new BatchMessageIdImpl(42L, 8, -1, 1, 2, null));
+        stage.round();
+
+        assertEquals(List.of(new BatchMessageIdImpl(42L, 7, -1, 0, 2, null)), this.recording.acked);
+
+        stage.ack(this.consumer, null, new BatchMessageIdImpl(42L, 8, -1, 0, 2, null));
+        stage.round();
+
+        assertEquals(List.of(new BatchMessageIdImpl(42L, 7, -1, 0, 2, null), new MessageIdImpl(42L, 8, -1)), this.recording.acked);
+    }
+}
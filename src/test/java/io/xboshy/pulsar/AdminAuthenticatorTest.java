@@ -0,0 +1,61 @@
+package io.xboshy.pulsar;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class AdminAuthenticatorTest {
+    private final HttpClient client = HttpClient.newHttpClient();
+    private HttpServer server;
+
+    @AfterEach
+    void tearDown() {
+        this.server.stop(0);
+    }
+
+    private void serve(final String token) throws Exception {
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 4);
+        this.server.createContext("/admin", exchange -> {
+            try (exchange) {
+                exchange.sendResponseHeaders(204, -1);
+            }
+        }).setAuthenticator(new AdminAuthenticator(token));
+        this.server.start();
+    }
+
+    private HttpResponse<Void> get(final String authorization) throws Exception {
+        final HttpRequest.Builder request = HttpRequest.newBuilder(URI.create("http://127.0.0.1:" + this.server.getAddress().getPort() + "/admin/config"));
+        if (authorization != null) {
+            request.header("Authorization", authorization);
+        }
+        return this.client.send(request.build(), HttpResponse.BodyHandlers.discarding());
+    }
+
+    @Test
+    void tokenIsRequired() throws Exception {
+        this.serve("s3cret");
+
+        final HttpResponse<Void> missing = this.get(null);
+        assertEquals(401, missing.statusCode());
+        assertEquals("Bearer", missing.headers().firstValue("WWW-Authenticate").orElse(null));
+        assertEquals(401, this.get("Bearer wrong").statusCode());
+        assertEquals(401, this.get("Basic czNjcmV0").statusCode());
+        assertEquals(204, this.get("Bearer s3cret").statusCode());
+        assertEquals(204, this.get("bearer s3cret").statusCode());
+    }
+
+    @Test
+    void withoutATokenLoopbackIsLetIn() throws Exception {
+        this.serve(null);
+
+        assertEquals(204, this.get(null).statusCode());
+    }
+}
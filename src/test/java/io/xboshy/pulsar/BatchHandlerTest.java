@@ -0,0 +1,293 @@
+package io.xboshy.pulsar;
+
+import io.xboshy.pulsar.bulk.BulkBodyWriter;
+import io.xboshy.pulsar.bulk.BulkBufferPool;
+import io.xboshy.pulsar.config.GlobalConfig;
+import io.xboshy.pulsar.source.DecodeException;
+import io.xboshy.pulsar.source.SourceWriter;
+import com.lmax.disruptor.ExceptionHandler;
+import io.prometheus.client.CollectorRegistry;
+import org.apache.pulsar.client.api.Message;
+import org.apache.pulsar.client.api.PulsarClientException;
+import org.apache.pulsar.client.api.Schema;
+import org.elasticsearch.client.ResponseException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BatchHandlerTest {
+    private MockElasticsearch es;
+    private RecordingConsumer consumer;
+    private final List<Throwable> failures = new CopyOnWriteArrayList<>();
+
+    @BeforeEach
+    void setUp() throws Exception {
+        this.es = new MockElasticsearch();
+        this.consumer = new RecordingConsumer();
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        this.es.close();
+    }
+
+    private BatchHandler<byte[]> handler(final GlobalConfig.IdModes idMode, final GlobalConfig.WriteModes writeMode) throws Exception {
+        return this.handler(idMode, writeMode, null);
+    }
+
+    private BatchHandler<byte[]> handler(final GlobalConfig.IdModes idMode, final GlobalConfig.WriteModes writeMode, final SourceWriter sourceWriter) throws Exception {
+        return this.handler(idMode, writeMode, sourceWriter, null);
+    }
+
+    private BatchHandler<byte[]> handler(final GlobalConfig.IdModes idMode, final GlobalConfig.WriteModes writeMode, final SourceWriter sourceWriter, final RetryQueue retryQueue) throws Exception {
+        final ExceptionHandler<Batch<byte[]>> exceptionHandler = new ExceptionHandler<>() {
+            @Override
+            public void handleEventException(final Throwable ex, final long sequence, final Batch<byte[]> event) {
+                BatchHandlerTest.this.failures.add(ex);
+            }
+
+            @Override
+            public void handleOnStartException(final Throwable ex) {
+            }
+
+            @Override
+            public void handleOnShutdownException(final Throwable ex) {
+            }
+        };
+        return new BatchHandler<>("test", idMode, writeMode, Schema.BYTES, "test", "/test/_bulk",
+                new BulkDispatcher(this.es.getClient(), 4), GlobalConfig.DispatchModes.SYNC, exceptionHandler,
+                new BulkBufferPool(4, 1024), 1024 * 1024, null, null, retryQueue, null, null, null, sourceWriter, new Tracer("test", 0));
+    }
+
+    /* the counters are shared by all tests, they compare before and after */
+    private static double events(final int status, final String reason) {
+        final Double value = CollectorRegistry.defaultRegistry.getSampleValue("elasticsearch_events_total",
+                new String[]{"pipeline", "status", "reason"}, new String[]{"test", String.valueOf(status), reason});
+        return value == null ? 0 : value;
+    }
+
+    @SafeVarargs
+    private void handle(final BatchHandler<byte[]> handler, final Message<byte[]>... msgs) throws Exception {
+        final Batch<byte[]> batch = new Batch<>();
+        batch.setMessages(this.consumer.consumer, TestMessages.batch(msgs), null, 0);
+        handler.onEvent(batch);
+    }
+
+    @Test
+    void bulkWithoutErrorsAcksEveryItem() throws Exception {
+        final double created = BatchHandlerTest.events(201, "");
+        this.handle(this.handler(GlobalConfig.IdModes.KEY, GlobalConfig.WriteModes.CREATE),
+                TestMessages.message(0, "k0", "{\"a\":0}"),
+                TestMessages.message(1, "k1", "{\"a\":1}"),
+                TestMessages.message(2, "k2", "{\"a\":2}"));
+
+        assertEquals(1, this.es.requests.size());
+        assertEquals("""
+                {"create":{"_id":"k0"}}
+                {"a":0}
+                {"create":{"_id":"k1"}}
+                {"a":1}
+                {"create":{"_id":"k2"}}
+                {"a":2}
+                """, this.es.requests.get(0));
+        assertEquals(List.of(TestMessages.id(0), TestMessages.id(1), TestMessages.id(2)), this.consumer.acked);
+        assertTrue(this.consumer.nacked.isEmpty());
+        assertEquals(created + 3, BatchHandlerTest.events(201, ""));
+    }
+
+    @Test
+    void itemErrorsAreNackedAndConflictsAcked() throws Exception {
+        this.es.reply(200, """
+                {"errors":true,"items":[
+                {"create":{"status":201}},
+                {"create":{"status":409,"error":{"type":"version_conflict_engine_exception"}}},
+                {"create":{"status":400,"error":{"type":"mapper_parsing_exception"}}}]}""");
+        this.handle(this.handler(GlobalConfig.IdModes.KEY, GlobalConfig.WriteModes.CREATE),
+                TestMessages.message(0, "k0", "{\"a\":0}"),
+                TestMessages.message(1, "k1", "{\"a\":1}"),
+                TestMessages.message(2, "k2", "{\"a\":2}"));
+
+        assertEquals(List.of(TestMessages.id(0), TestMessages.id(1)), this.consumer.acked);
+        assertEquals(List.of(TestMessages.id(2)), this.consumer.nacked);
+    }
+
+    @Test
+    void rejectedBulkIsNackedWithoutRetryQueue() throws Exception {
+        this.es.reply(429, "{\"error\":{\"type\":\"es_rejected_execution_exception\"},\"status\":429}");
+        this.handle(this.handler(GlobalConfig.IdModes.KEY, GlobalConfig.WriteModes.CREATE),
+                TestMessages.message(0, "k0", "{\"a\":0}"),
+                TestMessages.message(1, "k1", "{\"a\":1}"));
+
+        assertTrue(this.consumer.acked.isEmpty());
+        assertEquals(List.of(TestMessages.id(0), TestMessages.id(1)), this.consumer.nacked);
+    }
+
+    @Test
+    void badRequestFailsTheBatch() throws Exception {
+        this.es.reply(400, "{\"error\":{\"type\":\"illegal_argument_exception\"},\"status\":400}");
+        final BatchHandler<byte[]> handler = this.handler(GlobalConfig.IdModes.KEY, GlobalConfig.WriteModes.CREATE);
+
+        assertThrows(ResponseException.class, () -> this.handle(handler, TestMessages.message(0, "k0", "{\"a\":0}")));
+        assertTrue(this.consumer.acked.isEmpty());
+    }
+
+    @Test
+    void duplicateIdsOfABatchAreSentOnce() throws Exception {
+        this.handle(this.handler(GlobalConfig.IdModes.KEY, GlobalConfig.WriteModes.CREATE),
+                TestMessages.message(0, "k0", "{\"a\":0}"),
+                TestMessages.message(1, "k0", "{\"a\":1}"));
+
+        assertEquals("""
+                {"create":{"_id":"k0"}}
+                {"a":0}
+                """, this.es.requests.get(0));
+        assertEquals(2, this.consumer.acked.size());
+        assertTrue(this.failures.isEmpty());
+    }
+
+    @Test
+    void undecodablePayloadsAreNacked() throws Exception {
+        final SourceWriter sourceWriter = (msg, out) -> {
+            if (msg.getKey().equals("bad")) {
+                throw new DecodeException("bad payload");
+            }
+            out.write(BulkBodyWriter.payload(msg));
+        };
+        this.handle(this.handler(GlobalConfig.IdModes.KEY, GlobalConfig.WriteModes.CREATE, sourceWriter),
+                TestMessages.message(0, "k0", "{\"a\":0}"),
+                TestMessages.message(1, "bad", "{\"a\":1}"));
+
+        assertEquals("""
+                {"create":{"_id":"k0"}}
+                {"a":0}
+                """, this.es.requests.get(0));
+        assertEquals(List.of(TestMessages.id(0)), this.consumer.acked);
+        assertEquals(List.of(TestMessages.id(1)), this.consumer.nacked);
+    }
+
+    @Test
+    void failedSchemaLookupsFailTheBatch() throws Exception {
+        final SourceWriter sourceWriter = (msg, out) -> {
+            throw new PulsarClientException.TimeoutException("lookup timed out");
+        };
+        final BatchHandler<byte[]> handler = this.handler(GlobalConfig.IdModes.KEY, GlobalConfig.WriteModes.CREATE, sourceWriter);
+
+        assertThrows(PulsarClientException.TimeoutException.class, () -> this.handle(handler, TestMessages.message(0, "k0", "{\"a\":0}")));
+        assertTrue(this.es.requests.isEmpty());
+        assertTrue(this.consumer.acked.isEmpty());
+        assertTrue(this.consumer.nacked.isEmpty());
+    }
+
+    @Test
+    void updatesOfADocumentAreAllSentInOrder() throws Exception {
+        final double ok = BatchHandlerTest.events(200, "");
+        final double created = BatchHandlerTest.events(201, "");
+        this.es.reply(200, "{\"errors\":false,\"items\":[{\"update\":{\"status\":201}},{\"update\":{\"status\":200}}]}");
+        this.es.reply(200, "{\"errors\":false,\"items\":[{\"update\":{\"status\":200}}]}");
+        this.handle(this.handler(GlobalConfig.IdModes.KEY, GlobalConfig.WriteModes.UPDATE),
+                TestMessages.message(0, "k0", "{\"a\":1}"),
+                TestMessages.message(1, "k1", "{\"c\":3}"),
+                TestMessages.message(2, "k0", "{\"b\":2}"));
+
+        /* the second write of k0 waits for the bulk of the first one */
+        assertEquals(List.of("""
+                {"update":{"_id":"k0"}}
+                {"doc":{"a":1},"doc_as_upsert":true}
+                {"update":{"_id":"k1"}}
+                {"doc":{"c":3},"doc_as_upsert":true}
+                """, """
+                {"update":{"_id":"k0"}}
+                {"doc":{"b":2},"doc_as_upsert":true}
+                """), this.es.requests);
+        assertEquals(3, this.consumer.acked.size());
+        assertTrue(this.failures.isEmpty());
+        /* upserts of documents that existed are not counted as created */
+        assertEquals(ok + 2, BatchHandlerTest.events(200, ""));
+        assertEquals(created + 1, BatchHandlerTest.events(201, ""));
+    }
+
+    @Test
+    void updateAfterADeleteIsNotCompacted() throws Exception {
+        final double ok = BatchHandlerTest.events(200, "");
+        final double created = BatchHandlerTest.events(201, "");
+        this.es.reply(200, "{\"errors\":false,\"items\":[{\"delete\":{\"status\":200}}]}");
+        this.es.reply(200, "{\"errors\":false,\"items\":[{\"update\":{\"status\":201}}]}");
+        this.handle(this.handler(GlobalConfig.IdModes.KEY, GlobalConfig.WriteModes.UPDATE),
+                TestMessages.message(0, "k0", null),
+                TestMessages.message(1, "k0", "{\"x\":1}"));
+
+        assertEquals(List.of("""
+                {"delete":{"_id":"k0"}}
+                """, """
+                {"update":{"_id":"k0"}}
+                {"doc":{"x":1},"doc_as_upsert":true}
+                """), this.es.requests);
+        assertEquals(List.of(TestMessages.id(0), TestMessages.id(1)), this.consumer.acked);
+        assertEquals(ok + 1, BatchHandlerTest.events(200, ""));
+        assertEquals(created + 1, BatchHandlerTest.events(201, ""));
+    }
+
+    @Test
+    void indexKeepsTheLastWriteWithItsPublishTimeAsVersion() throws Exception {
+        final double ok = BatchHandlerTest.events(200, "");
+        final double created = BatchHandlerTest.events(201, "");
+        this.es.reply(200, "{\"errors\":false,\"items\":[{\"index\":{\"status\":201}},{\"delete\":{\"status\":200}}]}");
+        this.handle(this.handler(GlobalConfig.IdModes.KEY, GlobalConfig.WriteModes.INDEX),
+                TestMessages.message(0, "k0", "{\"a\":1}"),
+                TestMessages.message(1, "k0", null),
+                TestMessages.message(2, "k1", null),
+                TestMessages.message(3, "k1", "{\"x\":1}"));
+
+        assertEquals(List.of("""
+                {"index":{"_id":"k1","version":1690000000003,"version_type":"external"}}
+                {"x":1}
+                {"delete":{"_id":"k0","version":1690000000001,"version_type":"external"}}
+                """), this.es.requests);
+        assertEquals(4, this.consumer.acked.size());
+        assertEquals(ok + 1, BatchHandlerTest.events(200, ""));
+        assertEquals(created + 1, BatchHandlerTest.events(201, ""));
+    }
+
+    @Test
+    void staleIndexWritesAreAcked() throws Exception {
+        final double conflicts = BatchHandlerTest.events(409, "version_conflict_engine_exception");
+        final double created = BatchHandlerTest.events(201, "");
+        this.es.reply(200, """
+                {"errors":true,"items":[
+                {"index":{"status":409,"error":{"type":"version_conflict_engine_exception"}}}]}""");
+        this.handle(this.handler(GlobalConfig.IdModes.KEY, GlobalConfig.WriteModes.INDEX),
+                TestMessages.message(0, "k0", "{\"a\":1}"));
+
+        assertEquals(List.of(TestMessages.id(0)), this.consumer.acked);
+        assertTrue(this.consumer.nacked.isEmpty());
+        assertEquals(conflicts + 1, BatchHandlerTest.events(409, "version_conflict_engine_exception"));
+        assertEquals(created, BatchHandlerTest.events(201, ""));
+    }
+
+    @Test
+    void retriesAfterTheQueueClosedAreNacked() throws Exception {
+        this.es.reply(200, """
+                {"errors":true,"items":[
+                {"create":{"status":201}},
+                {"create":{"status":429,"error":{"type":"es_rejected_execution_exception"}}}]}""");
+        final RetryQueue retryQueue = new RetryQueue("test", 3, 1, 10, 1024 * 1024);
+        retryQueue.close();
+        this.handle(this.handler(GlobalConfig.IdModes.KEY, GlobalConfig.WriteModes.CREATE, null, retryQueue),
+                TestMessages.message(0, "k0", "{\"a\":0}"),
+                TestMessages.message(1, "k1", "{\"a\":1}"));
+
+        assertEquals(List.of(TestMessages.id(0)), this.consumer.acked);
+        assertEquals(List.of(TestMessages.id(1)), this.consumer.nacked);
+        /* nothing left reserved */
+        assertTrue(retryQueue.awaitIdle(0, TimeUnit.MILLISECONDS));
+        assertTrue(this.failures.isEmpty());
+    }
+}
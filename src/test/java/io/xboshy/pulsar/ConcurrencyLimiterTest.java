@@ -0,0 +1,155 @@
+package io.xboshy.pulsar;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ConcurrencyLimiterTest {
+    private static final long MS = 1_000_000L;
+
+    /* each sample closes a window of its own, the clock moves on by more than any round trip */
+    private long now = System.nanoTime();
+
+    private int window(final ConcurrencyLimiter limiter, final long rttNanos, final boolean dropped) {
+        this.now += TimeUnit.SECONDS.toNanos(1);
+        limiter.onSample(rttNanos, dropped, this.now);
+        return limiter.getLimit();
+    }
+
+    /* enough requests in flight for the windows to count */
+    private static void load(final ConcurrencyLimiter limiter, final int n) throws InterruptedException {
+        for (int i = 0; i < n; ++i) {
+            limiter.acquire();
+        }
+    }
+
+    @Test
+    void growsWhileRoundTripsStayAtNoLoad() throws InterruptedException {
+        final ConcurrencyLimiter limiter = new ConcurrencyLimiter("test", 1, 100, 20);
+        ConcurrencyLimiterTest.load(limiter, 20);
+
+        /* no queue: + 6 * log10(limit) */
+        assertEquals(26, this.window(limiter, MS, false));
+        assertEquals(32, this.window(limiter, MS, false));
+    }
+
+    @Test
+    void staysWithoutLoad() throws InterruptedException {
+        final ConcurrencyLimiter limiter = new ConcurrencyLimiter("test", 1, 100, 20);
+        ConcurrencyLimiterTest.load(limiter, 9);
+
+        assertEquals(20, this.window(limiter, MS, false));
+    }
+
+    @Test
+    void shrinksWhenRequestsQueue() throws InterruptedException {
+        final ConcurrencyLimiter limiter = new ConcurrencyLimiter("test", 1, 100, 20);
+        ConcurrencyLimiterTest.load(limiter, 20);
+
+        assertEquals(26, this.window(limiter, MS, false));
+        /* 10 times the no-load round trip, most of the limit is queued: - log10(limit) */
+        assertEquals(25, this.window(limiter, 10 * MS, false));
+    }
+
+    @Test
+    void shrinksMoreOnRejections() throws InterruptedException {
+        final ConcurrencyLimiter limiter = new ConcurrencyLimiter("test", 1, 100, 50);
+
+        /* - limit / 10, with or without load */
+        assertEquals(45, this.window(limiter, MS, true));
+        assertEquals(41, this.window(limiter, MS, true));
+    }
+
+    @Test
+    void measuresNoLoadAgainAfterProbeWindows() throws InterruptedException {
+        final ConcurrencyLimiter limiter = new ConcurrencyLimiter("test", 1, 1000, 500);
+        ConcurrencyLimiterTest.load(limiter, 500);
+
+        int limit = this.window(limiter, MS, false);
+        /* a cluster that got 10 times slower looks loaded until its round trip becomes the no-load one */
+        for (int i = 0; i < 100; ++i) {
+            final int previous = limit;
+            limit = this.window(limiter, 10 * MS, false);
+            assertTrue(limit < previous, "window " + i);
+        }
+        final int previous = limit;
+        assertTrue(this.window(limiter, 10 * MS, false) > previous);
+    }
+
+    @Test
+    void staysWithinMinAndMax() throws InterruptedException {
+        final ConcurrencyLimiter limiter = new ConcurrencyLimiter("test", 5, 12, 10);
+        ConcurrencyLimiterTest.load(limiter, 10);
+
+        assertEquals(12, this.window(limiter, MS, false));
+        for (int i = 0; i < 20; ++i) {
+            this.window(limiter, MS, true);
+        }
+        assertEquals(5, limiter.getLimit());
+
+        assertEquals(5, new ConcurrencyLimiter("test", 5, 12, 1).getLimit());
+        assertEquals(12, new ConcurrencyLimiter("test", 5, 12, 100).getLimit());
+        limiter.setMaxLimit(2);
+        assertEquals(5, limiter.getLimit());
+    }
+
+    @Test
+    void fixedLimiterIgnoresSamples() {
+        final ConcurrencyLimiter limiter = new ConcurrencyLimiter("test", 1, 8, 2, false);
+
+        assertEquals(8, limiter.getLimit());
+        assertEquals(8, this.window(limiter, MS, true));
+        limiter.setMaxLimit(4);
+        assertEquals(4, limiter.getLimit());
+    }
+
+    @Test
+    void releaseWakesBlockedCallers() throws InterruptedException {
+        final ConcurrencyLimiter limiter = new ConcurrencyLimiter("test", 1, 1, 1, false);
+        limiter.acquire();
+
+        final CountDownLatch acquired = new CountDownLatch(1);
+        final Thread waiter = Thread.ofPlatform().start(() -> {
+            try {
+                limiter.acquire();
+                acquired.countDown();
+            } catch (InterruptedException ignored) {
+            }
+        });
+        assertFalse(acquired.await(100, TimeUnit.MILLISECONDS));
+
+        limiter.release();
+        assertTrue(acquired.await(5, TimeUnit.SECONDS));
+        waiter.join();
+    }
+
+    @Test
+    void higherMaxWakesBlockedCallers() throws InterruptedException {
+        final ConcurrencyLimiter limiter = new ConcurrencyLimiter("test", 1, 1, 1, false);
+        limiter.acquire();
+
+        final CountDownLatch acquired = new CountDownLatch(2);
+        final Thread[] waiters = new Thread[2];
+        for (int i = 0; i < waiters.length; ++i) {
+            waiters[i] = Thread.ofPlatform().start(() -> {
+                try {
+                    limiter.acquire();
+                    acquired.countDown();
+                } catch (InterruptedException ignored) {
+                }
+            });
+        }
+        assertFalse(acquired.await(100, TimeUnit.MILLISECONDS));
+
+        limiter.setMaxLimit(3);
+        assertTrue(acquired.await(5, TimeUnit.SECONDS));
+        for (final Thread waiter : waiters) {
+            waiter.join();
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package io.xboshy.pulsar;
+
+import com.sun.net.httpserver.HttpServer;
+import org.apache.http.HttpHost;
+import org.elasticsearch.client.RestClient;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/* Answers the _bulk requests it gets with the responses queued by the test, in order, and keeps their bodies */
+public class MockElasticsearch implements AutoCloseable {
+    public record Reply(int status, String body) {
+    }
+
+    public final List<String> requests = new CopyOnWriteArrayList<>();
+    private final ConcurrentLinkedQueue<Reply> replies = new ConcurrentLinkedQueue<>();
+    private final HttpServer server;
+    private final RestClient client;
+
+    public MockElasticsearch() throws IOException {
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 16);
+        this.server.createContext("/", exchange -> {
+            try (exchange) {
+                this.requests.add(new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8));
+                final Reply reply = this.replies.poll();
+                final byte[] body = (reply == null ? "{\"errors\":false}" : reply.body()).getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "application/json");
+                exchange.sendResponseHeaders(reply == null ? 200 : reply.status(), body.length);
+                exchange.getResponseBody().write(body);
+            }
+        });
+        this.server.start();
+        this.client = RestClient.builder(new HttpHost("127.0.0.1", this.server.getAddress().getPort(), "http")).build();
+    }
+
+    public MockElasticsearch reply(final int status, final String body) {
+        this.replies.add(new Reply(status, body));
+        return this;
+    }
+
+    public RestClient getClient() {
+        return this.client;
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.client.close();
+        this.server.stop(0);
+    }
+}
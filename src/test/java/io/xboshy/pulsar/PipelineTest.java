@@ -0,0 +1,57 @@
+package io.xboshy.pulsar;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertDoesNotThrow;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class PipelineTest {
+    private static Pipeline pipeline(final String writeMode, final String subscriptionType) throws Exception {
+        final Map<String, String> config = new HashMap<>(Map.of(
+                "GLOBAL_writeMode", writeMode,
+                "GLOBAL_idMode", "key",
+                "PULSAR_CONSUMER_topicNames", TestMessages.TOPIC,
+                "ELASTICSEARCH_indexName", "test"
+        ));
+        if (subscriptionType != null) {
+            config.put("PULSAR_CONSUMER_subscriptionType", subscriptionType);
+        }
+        return new Pipeline("", config, new Supervisor());
+    }
+
+    @Test
+    void orderedWriteModesNeedKeysInOrder() {
+        for (final String writeMode : new String[]{"index", "update"}) {
+            assertDoesNotThrow(() -> PipelineTest.pipeline(writeMode, null));
+            assertDoesNotThrow(() -> PipelineTest.pipeline(writeMode, "Exclusive"));
+            assertDoesNotThrow(() -> PipelineTest.pipeline(writeMode, "Failover"));
+            assertDoesNotThrow(() -> PipelineTest.pipeline(writeMode, "Key_Shared"));
+            final Exception e = assertThrows(Exception.class, () -> PipelineTest.pipeline(writeMode, "Shared"));
+            assertEquals("GLOBAL_writeMode " + writeMode + " needs an Exclusive, Failover or Key_Shared subscription", e.getMessage());
+        }
+        assertDoesNotThrow(() -> PipelineTest.pipeline("create", "Shared"));
+    }
+
+    @Test
+    void concurrencyIsNotTunedAboveWhatRunsBulks() throws Exception {
+        final Map<String, String> config = new HashMap<>(Map.of(
+                "GLOBAL_inflightBatches", "4",
+                "GLOBAL_inflightRequests", "8",
+                "PULSAR_CONSUMER_topicNames", TestMessages.TOPIC,
+                "ELASTICSEARCH_indexName", "test"
+        ));
+        final Tuning sync = new Pipeline("", config, new Supervisor()).getTuning();
+        assertDoesNotThrow(() -> sync.check(Map.of(Tuning.CONCURRENCY, "4")));
+        final Exception e = assertThrows(Exception.class, () -> sync.check(Map.of(Tuning.CONCURRENCY, "5")));
+        assertEquals("GLOBAL_concurrencyLimit.max can't go above GLOBAL_inflightBatches, 4, which can't change at runtime", e.getMessage());
+
+        config.put("GLOBAL_dispatchMode", "async");
+        final Tuning async = new Pipeline("", config, new Supervisor()).getTuning();
+        assertDoesNotThrow(() -> async.check(Map.of(Tuning.CONCURRENCY, "8")));
+        assertThrows(Exception.class, () -> async.check(Map.of(Tuning.CONCURRENCY, "9")));
+    }
+}
@@ -0,0 +1,65 @@
+package io.xboshy.pulsar;
+
+import org.apache.pulsar.client.api.Consumer;
+import org.apache.pulsar.client.api.MessageId;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/* A consumer that only records what is acked and nacked, the rest throws so a new call shows up in the tests */
+public class RecordingConsumer implements InvocationHandler {
+    public final List<MessageId> acked = new CopyOnWriteArrayList<>();
+    public final List<MessageId> nacked = new CopyOnWriteArrayList<>();
+    public final List<MessageId> cumulative = new CopyOnWriteArrayList<>();
+    public final Consumer<byte[]> consumer;
+
+    @SuppressWarnings("unchecked")
+    public RecordingConsumer() {
+        this.consumer = (Consumer<byte[]>) Proxy.newProxyInstance(
+                Consumer.class.getClassLoader(),
+                new Class<?>[]{Consumer.class},
+                this
+        );
+    }
+
+    @Override
+    public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+        return switch (method.getName()) {
+            case "acknowledge" -> {
+                this.ack(args[0]);
+                yield null;
+            }
+            case "acknowledgeAsync" -> {
+                this.ack(args[0]);
+                yield CompletableFuture.completedFuture(null);
+            }
+            case "acknowledgeCumulativeAsync" -> {
+                this.cumulative.add((MessageId) args[0]);
+                yield CompletableFuture.completedFuture(null);
+            }
+            case "negativeAcknowledge" -> {
+                this.nacked.add((MessageId) args[0]);
+                yield null;
+            }
+            case "getTopic" -> TestMessages.TOPIC;
+            case "toString" -> "recording";
+            case "hashCode" -> System.identityHashCode(proxy);
+            case "equals" -> proxy == args[0];
+            default -> throw new UnsupportedOperationException(method.getName());
+        };
+    }
+
+    private void ack(final Object arg) {
+        if (arg instanceof MessageId id) {
+            this.acked.add(id);
+        } else {
+            for (final Object id : (List<?>) arg) {
+                this.acked.add((MessageId) id);
+            }
+        }
+    }
+}
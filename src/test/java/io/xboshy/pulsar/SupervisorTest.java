@@ -0,0 +1,43 @@
+package io.xboshy.pulsar;
+
+import org.apache.pulsar.client.api.PulsarClientException;
+import org.elasticsearch.client.Request;
+import org.elasticsearch.client.ResponseException;
+import org.junit.jupiter.api.Test;
+
+import java.net.ConnectException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class SupervisorTest {
+    private static ResponseException bulkFailure(final int status) throws Exception {
+        try (final MockElasticsearch es = new MockElasticsearch()) {
+            es.reply(status, "{\"status\":" + status + "}");
+            return assertThrows(ResponseException.class, () -> es.getClient().performRequest(new Request("POST", "/_bulk")));
+        }
+    }
+
+    @Test
+    void connectivityFailuresAreRestarted() throws Exception {
+        assertEquals(Supervisor.Causes.PULSAR, Supervisor.cause(new PulsarClientException.ConnectException("down")));
+        assertEquals(Supervisor.Causes.PULSAR, Supervisor.cause(new Exception(new PulsarClientException.TimeoutException("slow"))));
+        assertEquals(Supervisor.Causes.PULSAR, Supervisor.cause(new PulsarClientException.AlreadyClosedException("closed")));
+        assertEquals(Supervisor.Causes.ELASTICSEARCH, Supervisor.cause(new ConnectException("refused")));
+        assertEquals(Supervisor.Causes.ELASTICSEARCH, Supervisor.cause(SupervisorTest.bulkFailure(503)));
+        assertEquals(Supervisor.Causes.ELASTICSEARCH, Supervisor.cause(SupervisorTest.bulkFailure(429)));
+    }
+
+    @Test
+    void failuresARestartWouldRepeatAreNot() throws Exception {
+        assertEquals(Supervisor.Causes.OTHER, Supervisor.cause(new PulsarClientException.AuthenticationException("who")));
+        assertEquals(Supervisor.Causes.OTHER, Supervisor.cause(new PulsarClientException.AuthorizationException("no")));
+        assertEquals(Supervisor.Causes.OTHER, Supervisor.cause(new Exception(new PulsarClientException.InvalidConfigurationException("bad"))));
+        assertEquals(Supervisor.Causes.OTHER, Supervisor.cause(new PulsarClientException.TopicDoesNotExistException("gone")));
+        assertEquals(Supervisor.Causes.OTHER, Supervisor.cause(SupervisorTest.bulkFailure(400)));
+        assertEquals(Supervisor.Causes.OTHER, Supervisor.cause(SupervisorTest.bulkFailure(401)));
+        assertEquals(Supervisor.Causes.OTHER, Supervisor.cause(SupervisorTest.bulkFailure(403)));
+        assertEquals(Supervisor.Causes.OTHER, Supervisor.cause(new Exception("GLOBAL_idMode: bad value")));
+        assertEquals(Supervisor.Causes.OTHER, Supervisor.cause(new IllegalStateException("bug")));
+    }
+}
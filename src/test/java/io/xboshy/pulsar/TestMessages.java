@@ -0,0 +1,55 @@
+package io.xboshy.pulsar;
+
+import io.xboshy.pulsar.impl.MessagesImpl;
+import org.apache.pulsar.client.api.Message;
+import org.apache.pulsar.client.api.MessageId;
+import org.apache.pulsar.client.api.Schema;
+import org.apache.pulsar.client.impl.MessageIdImpl;
+import org.apache.pulsar.client.impl.MessageImpl;
+import org.apache.pulsar.common.api.proto.MessageMetadata;
+import org.apache.pulsar.shade.io.netty.buffer.Unpooled;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Optional;
+
+/* Consumer-side messages as the pulsar client hands them over, without a broker */
+public class TestMessages {
+    public static final String TOPIC = "persistent://public/default/test";
+
+    public static MessageId id(final int seq) {
+        return new MessageIdImpl(42L, seq, -1);
+    }
+
+    /* a null json is a tombstone */
+    public static Message<byte[]> message(final int seq, final String key, final String json) {
+        return TestMessages.message(seq, key, json == null ? null : json.getBytes(StandardCharsets.UTF_8), null);
+    }
+
+    /* produced with schemaVersion when not null */
+    public static Message<byte[]> message(final int seq, final String key, final byte[] value, final byte[] schemaVersion) {
+        final MessageMetadata metadata = new MessageMetadata()
+                .setProducerName("test")
+                .setSequenceId(seq)
+                .setPublishTime(1690000000000L + seq);
+        if (key != null) {
+            metadata.setPartitionKey(key);
+        }
+        if (value == null) {
+            metadata.setNullValue(true);
+        }
+        if (schemaVersion != null) {
+            metadata.setSchemaVersion(schemaVersion);
+        }
+        final byte[] payload = value == null ? new byte[0] : value;
+        return MessageImpl.create(TestMessages.TOPIC, (MessageIdImpl) TestMessages.id(seq), metadata, Unpooled.wrappedBuffer(payload), Optional.empty(), null, Schema.BYTES, 0, false, -1L);
+    }
+
+    @SafeVarargs
+    public static MessagesImpl<byte[]> batch(final Message<byte[]>... msgs) throws Exception {
+        final MessagesImpl<byte[]> batch = new MessagesImpl<>(msgs.length, 0L);
+        for (final Message<byte[]> msg : msgs) {
+            batch.add(msg);
+        }
+        return batch;
+    }
+}
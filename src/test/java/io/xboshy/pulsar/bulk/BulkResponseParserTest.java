@@ -0,0 +1,93 @@
+package io.xboshy.pulsar.bulk;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BulkResponseParserTest {
+    private static BulkResult parse(final String json) throws IOException {
+        return BulkResponseParser.parse(new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Test
+    void noErrorsSkipsTheItems() throws IOException {
+        final BulkResult result = BulkResponseParserTest.parse("{\"errors\":false,\"items\":[{\"create\":{\"status\":201}}]}");
+
+        assertFalse(result.hasErrors());
+        assertEquals(0, result.size());
+    }
+
+    @Test
+    void itemsAreReadWithoutErrorsWhenAskedFor() throws IOException {
+        final BulkResult result = BulkResponseParser.parse(new ByteArrayInputStream(
+                "{\"errors\":false,\"items\":[{\"index\":{\"status\":200}},{\"delete\":{\"status\":404}}]}".getBytes(StandardCharsets.UTF_8)), true);
+
+        assertFalse(result.hasErrors());
+        assertEquals(2, result.size());
+        assertEquals(200, result.status(0));
+        assertEquals(404, result.status(1));
+        assertNull(result.errorType(1));
+    }
+
+    @Test
+    void filteredItemsLineUpWithTheRequest() throws IOException {
+        final BulkResult result = BulkResponseParserTest.parse("""
+                {"errors":true,"items":[
+                {"create":{"status":201}},
+                {"index":{"status":429,"error":{"type":"es_rejected_execution_exception"}}},
+                {"delete":{"status":404}},
+                {"update":{"status":400,"error":{"type":"document_missing_exception"}}}]}""");
+
+        assertTrue(result.hasErrors());
+        assertEquals(4, result.size());
+        assertEquals(201, result.status(0));
+        assertNull(result.errorType(0));
+        assertEquals(429, result.status(1));
+        assertEquals("es_rejected_execution_exception", result.errorType(1));
+        assertEquals(404, result.status(2));
+        assertNull(result.errorType(2));
+        assertEquals(400, result.status(3));
+        assertEquals("document_missing_exception", result.errorType(3));
+    }
+
+    @Test
+    void unfilteredItemsSkipTheOtherFields() throws IOException {
+        final BulkResult result = BulkResponseParserTest.parse("""
+                {"took":3,"errors":true,"items":[
+                {"create":{"_index":"i","_id":"a","_version":1,"result":"created","_shards":{"total":2,"successful":1,"failed":0},"status":201}},
+                {"create":{"_index":"i","_id":"b","status":409,"error":{"type":"version_conflict_engine_exception","reason":"[b]: version conflict","caused_by":{"type":"x"}}}}]}""");
+
+        assertEquals(2, result.size());
+        assertEquals(201, result.status(0));
+        assertNull(result.errorType(0));
+        assertEquals(409, result.status(1));
+        assertEquals("version_conflict_engine_exception", result.errorType(1));
+    }
+
+    @Test
+    void manyItemsGrowTheResult() throws IOException {
+        final StringBuilder json = new StringBuilder("{\"errors\":true,\"items\":[");
+        for (int i = 0; i < 100; ++i) {
+            json.append(i == 0 ? "" : ",").append("{\"create\":{\"status\":").append(200 + i).append("}}");
+        }
+        final BulkResult result = BulkResponseParserTest.parse(json.append("]}").toString());
+
+        assertEquals(100, result.size());
+        assertEquals(299, result.status(99));
+    }
+
+    @Test
+    void malformedResponsesThrow() {
+        assertThrows(IOException.class, () -> BulkResponseParserTest.parse("[]"));
+        assertThrows(IOException.class, () -> BulkResponseParserTest.parse("{\"errors\":true,\"items\":{}}"));
+        assertThrows(IOException.class, () -> BulkResponseParserTest.parse("{\"errors\":true,\"items\":[{\"create\":"));
+    }
+}
@@ -0,0 +1,141 @@
+package io.xboshy.pulsar.source;
+
+import io.xboshy.pulsar.bulk.BulkBuffer;
+import org.apache.pulsar.shade.io.netty.buffer.Unpooled;
+import org.apache.pulsar.shade.org.apache.avro.Schema;
+import org.apache.pulsar.shade.org.apache.avro.generic.GenericData;
+import org.apache.pulsar.shade.org.apache.avro.generic.GenericDatumWriter;
+import org.apache.pulsar.shade.org.apache.avro.generic.GenericRecord;
+import org.apache.pulsar.shade.org.apache.avro.io.BinaryEncoder;
+import org.apache.pulsar.shade.org.apache.avro.io.EncoderFactory;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class AvroJsonTest {
+    private static final String SCHEMA = """
+            {"type":"record","name":"Event","namespace":"test","fields":[
+              {"name":"id","type":"long"},
+              {"name":"name","type":"string"},
+              {"name":"at","type":{"type":"long","logicalType":"timestamp-millis"}},
+              {"name":"day","type":{"type":"int","logicalType":"date"}},
+              {"name":"price","type":{"type":"bytes","logicalType":"decimal","precision":9,"scale":2}},
+              {"name":"uuid","type":{"type":"string","logicalType":"uuid"}},
+              {"name":"note","type":["null","string"],"default":null},
+              {"name":"score","type":["null","double"]},
+              {"name":"ok","type":"boolean"},
+              {"name":"ratio","type":"float"},
+              {"name":"tags","type":{"type":"array","items":"string"}},
+              {"name":"counts","type":{"type":"map","values":"int"}},
+              {"name":"kind","type":{"type":"enum","name":"Kind","symbols":["A","B"]}},
+              {"name":"hash","type":{"type":"fixed","name":"Hash","size":4}},
+              {"name":"inner","type":{"type":"record","name":"Inner","fields":[
+                {"name":"x","type":"int"},
+                {"name":"next","type":["null","Inner"]}]}}]}""";
+
+    private static byte[] encode(final Schema schema, final GenericRecord record) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final BinaryEncoder encoder = EncoderFactory.get().binaryEncoder(bytes, null);
+        new GenericDatumWriter<GenericRecord>(schema).write(record, encoder);
+        encoder.flush();
+        return bytes.toByteArray();
+    }
+
+    static String decode(final PayloadWriter writer, final byte[] payload) throws DecodeException {
+        final Decoder in = new Decoder();
+        in.reset(Unpooled.wrappedBuffer(payload));
+        final BulkBuffer out = new BulkBuffer(64);
+        writer.write(in, out);
+        assertEquals(in.limit, in.pos, "bytes left");
+        return new String(out.array(), 0, out.length(), StandardCharsets.UTF_8);
+    }
+
+    private static GenericRecord event(final Schema schema) {
+        final Schema innerSchema = schema.getField("inner").schema();
+        final GenericRecord last = new GenericData.Record(innerSchema);
+        last.put("x", 2);
+        last.put("next", null);
+        final GenericRecord inner = new GenericData.Record(innerSchema);
+        inner.put("x", 1);
+        inner.put("next", last);
+
+        final Map<String, Integer> counts = new LinkedHashMap<>();
+        counts.put("x", 1);
+        counts.put("y", -2);
+
+        final GenericRecord event = new GenericData.Record(schema);
+        event.put("id", 42L);
+        event.put("name", "n\"é");
+        event.put("at", 1690000000000L);
+        event.put("day", 19000);
+        /* 123.45 unscaled, big endian two's complement */
+        event.put("price", ByteBuffer.wrap(new byte[]{0x30, 0x39}));
+        event.put("uuid", "0b9a6f3e-4d6c-4a4e-9a43-1c8b2c9d5e11");
+        event.put("note", null);
+        event.put("score", 2.5);
+        event.put("ok", true);
+        event.put("ratio", 0.5f);
+        event.put("tags", List.of("a", "b"));
+        event.put("counts", counts);
+        event.put("kind", new GenericData.EnumSymbol(schema.getField("kind").schema(), "B"));
+        event.put("hash", new GenericData.Fixed(schema.getField("hash").schema(), new byte[]{1, 2, 3, 4}));
+        event.put("inner", inner);
+        return event;
+    }
+
+    @Test
+    void roundTrip() throws Exception {
+        final Schema schema = new Schema.Parser().parse(AvroJsonTest.SCHEMA);
+        final AvroJson writer = new AvroJson(AvroJsonTest.SCHEMA.getBytes(StandardCharsets.UTF_8));
+
+        /* logical types as their underlying type, union values without their branch name */
+        assertEquals("{\"id\":42,\"name\":\"n\\\"é\",\"at\":1690000000000,\"day\":19000,\"price\":\"MDk=\","
+                        + "\"uuid\":\"0b9a6f3e-4d6c-4a4e-9a43-1c8b2c9d5e11\",\"note\":null,\"score\":2.5,\"ok\":true,"
+                        + "\"ratio\":0.5,\"tags\":[\"a\",\"b\"],\"counts\":{\"x\":1,\"y\":-2},\"kind\":\"B\",\"hash\":\"AQIDBA==\","
+                        + "\"inner\":{\"x\":1,\"next\":{\"x\":2,\"next\":null}}}",
+                AvroJsonTest.decode(writer, AvroJsonTest.encode(schema, AvroJsonTest.event(schema))));
+    }
+
+    @Test
+    void emptyCollectionsAndBlocksWithSizes() throws Exception {
+        final String schema = "{\"type\":\"record\",\"name\":\"R\",\"fields\":["
+                + "{\"name\":\"a\",\"type\":{\"type\":\"array\",\"items\":\"int\"}},"
+                + "{\"name\":\"m\",\"type\":{\"type\":\"map\",\"values\":\"string\"}}]}";
+        final AvroJson writer = new AvroJson(schema.getBytes(StandardCharsets.UTF_8));
+
+        assertEquals("{\"a\":[],\"m\":{}}", AvroJsonTest.decode(writer, new byte[]{0, 0}));
+        /* a block of -2 items, 2 bytes long, then the end: what writers that can skip blocks emit */
+        assertEquals("{\"a\":[1,2],\"m\":{}}", AvroJsonTest.decode(writer, new byte[]{3, 4, 2, 4, 0, 0}));
+    }
+
+    @Test
+    void malformedPayloadsThrow() throws Exception {
+        final Schema schema = new Schema.Parser().parse(AvroJsonTest.SCHEMA);
+        final AvroJson writer = new AvroJson(AvroJsonTest.SCHEMA.getBytes(StandardCharsets.UTF_8));
+        final byte[] payload = AvroJsonTest.encode(schema, AvroJsonTest.event(schema));
+
+        assertThrows(DecodeException.class, () -> AvroJsonTest.decode(writer, Arrays.copyOf(payload, payload.length - 1)));
+        assertThrows(DecodeException.class, () -> AvroJsonTest.decode(writer, new byte[0]));
+
+        final AvroJson union = new AvroJson("{\"type\":\"record\",\"name\":\"U\",\"fields\":[{\"name\":\"u\",\"type\":[\"null\",\"int\"]}]}".getBytes(StandardCharsets.UTF_8));
+        /* branch 5 of 2 */
+        assertThrows(DecodeException.class, () -> AvroJsonTest.decode(union, new byte[]{10}));
+
+        final AvroJson string = new AvroJson("{\"type\":\"record\",\"name\":\"S\",\"fields\":[{\"name\":\"s\",\"type\":\"string\"}]}".getBytes(StandardCharsets.UTF_8));
+        /* length -1, then 100 with 1 byte left */
+        assertThrows(DecodeException.class, () -> AvroJsonTest.decode(string, new byte[]{1}));
+        assertThrows(DecodeException.class, () -> AvroJsonTest.decode(string, new byte[]{(byte) 200, 1, 'a'}));
+        /* a varint that never ends */
+        assertThrows(DecodeException.class, () -> AvroJsonTest.decode(string, new byte[]{(byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff}));
+    }
+}
@@ -0,0 +1,189 @@
+package io.xboshy.pulsar.source;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.DescriptorProtos.DescriptorProto;
+import com.google.protobuf.DescriptorProtos.EnumDescriptorProto;
+import com.google.protobuf.DescriptorProtos.EnumValueDescriptorProto;
+import com.google.protobuf.DescriptorProtos.FieldDescriptorProto;
+import com.google.protobuf.DescriptorProtos.FileDescriptorProto;
+import com.google.protobuf.DescriptorProtos.MessageOptions;
+import com.google.protobuf.Descriptors;
+import com.google.protobuf.DynamicMessage;
+import org.apache.pulsar.client.impl.schema.ProtobufNativeSchemaUtils;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class ProtobufJsonTest {
+    private static Descriptors.Descriptor outer;
+    private static Descriptors.Descriptor inner;
+    private static ProtobufJson writer;
+
+    private static FieldDescriptorProto field(final String name, final int number, final FieldDescriptorProto.Type type) {
+        return FieldDescriptorProto.newBuilder()
+                .setName(name)
+                .setNumber(number)
+                .setType(type)
+                .setLabel(FieldDescriptorProto.Label.LABEL_OPTIONAL)
+                .build();
+    }
+
+    private static FieldDescriptorProto repeated(final String name, final int number, final FieldDescriptorProto.Type type) {
+        return ProtobufJsonTest.field(name, number, type).toBuilder().setLabel(FieldDescriptorProto.Label.LABEL_REPEATED).build();
+    }
+
+    private static FieldDescriptorProto named(final FieldDescriptorProto field, final String typeName) {
+        return field.toBuilder().setTypeName(typeName).build();
+    }
+
+    private static DescriptorProto entry(final String name, final FieldDescriptorProto.Type key, final FieldDescriptorProto value) {
+        return DescriptorProto.newBuilder()
+                .setName(name)
+                .addField(ProtobufJsonTest.field("key", 1, key))
+                .addField(value)
+                .setOptions(MessageOptions.newBuilder().setMapEntry(true))
+                .build();
+    }
+
+    @BeforeAll
+    static void compile() throws Exception {
+        final FileDescriptorProto file = FileDescriptorProto.newBuilder()
+                .setName("test.proto")
+                .setPackage("test")
+                .setSyntax("proto3")
+                .addEnumType(EnumDescriptorProto.newBuilder()
+                        .setName("Color")
+                        .addValue(EnumValueDescriptorProto.newBuilder().setName("RED").setNumber(0))
+                        .addValue(EnumValueDescriptorProto.newBuilder().setName("GREEN").setNumber(1)))
+                .addMessageType(DescriptorProto.newBuilder()
+                        .setName("Inner")
+                        .addField(ProtobufJsonTest.field("name", 1, FieldDescriptorProto.Type.TYPE_STRING))
+                        .addField(ProtobufJsonTest.field("n", 2, FieldDescriptorProto.Type.TYPE_INT32)))
+                .addMessageType(DescriptorProto.newBuilder()
+                        .setName("Outer")
+                        .addField(ProtobufJsonTest.field("id", 1, FieldDescriptorProto.Type.TYPE_INT64))
+                        .addField(ProtobufJsonTest.field("text", 2, FieldDescriptorProto.Type.TYPE_STRING))
+                        .addField(ProtobufJsonTest.repeated("nums", 3, FieldDescriptorProto.Type.TYPE_INT32))
+                        .addField(ProtobufJsonTest.repeated("tags", 4, FieldDescriptorProto.Type.TYPE_STRING))
+                        .addField(ProtobufJsonTest.named(ProtobufJsonTest.field("inner", 5, FieldDescriptorProto.Type.TYPE_MESSAGE), ".test.Inner"))
+                        .addField(ProtobufJsonTest.named(ProtobufJsonTest.repeated("items", 6, FieldDescriptorProto.Type.TYPE_MESSAGE), ".test.Inner"))
+                        .addField(ProtobufJsonTest.named(ProtobufJsonTest.repeated("counts", 7, FieldDescriptorProto.Type.TYPE_MESSAGE), ".test.Outer.CountsEntry"))
+                        .addField(ProtobufJsonTest.named(ProtobufJsonTest.field("color", 8, FieldDescriptorProto.Type.TYPE_ENUM), ".test.Color"))
+                        .addField(ProtobufJsonTest.field("flag", 9, FieldDescriptorProto.Type.TYPE_BOOL))
+                        .addField(ProtobufJsonTest.field("ratio", 10, FieldDescriptorProto.Type.TYPE_DOUBLE))
+                        .addField(ProtobufJsonTest.field("blob", 11, FieldDescriptorProto.Type.TYPE_BYTES))
+                        .addField(ProtobufJsonTest.field("delta", 12, FieldDescriptorProto.Type.TYPE_SINT32))
+                        .addField(ProtobufJsonTest.field("big", 13, FieldDescriptorProto.Type.TYPE_UINT64))
+                        .addField(ProtobufJsonTest.named(ProtobufJsonTest.repeated("by_id", 14, FieldDescriptorProto.Type.TYPE_MESSAGE), ".test.Outer.ByIdEntry"))
+                        .addNestedType(ProtobufJsonTest.entry("CountsEntry", FieldDescriptorProto.Type.TYPE_STRING,
+                                ProtobufJsonTest.field("value", 2, FieldDescriptorProto.Type.TYPE_INT64)))
+                        .addNestedType(ProtobufJsonTest.entry("ByIdEntry", FieldDescriptorProto.Type.TYPE_INT32,
+                                ProtobufJsonTest.named(ProtobufJsonTest.field("value", 2, FieldDescriptorProto.Type.TYPE_MESSAGE), ".test.Inner"))))
+                .build();
+        final Descriptors.FileDescriptor descriptor = Descriptors.FileDescriptor.buildFrom(file, new Descriptors.FileDescriptor[0]);
+        ProtobufJsonTest.outer = descriptor.findMessageTypeByName("Outer");
+        ProtobufJsonTest.inner = descriptor.findMessageTypeByName("Inner");
+        ProtobufJsonTest.writer = new ProtobufJson(ProtobufNativeSchemaUtils.serialize(ProtobufJsonTest.outer));
+    }
+
+    private static Descriptors.FieldDescriptor fd(final Descriptors.Descriptor descriptor, final String name) {
+        return descriptor.findFieldByName(name);
+    }
+
+    private static DynamicMessage inner(final String name, final int n) {
+        final DynamicMessage.Builder builder = DynamicMessage.newBuilder(ProtobufJsonTest.inner);
+        if (name != null) {
+            builder.setField(ProtobufJsonTest.fd(ProtobufJsonTest.inner, "name"), name);
+        }
+        if (n != 0) {
+            builder.setField(ProtobufJsonTest.fd(ProtobufJsonTest.inner, "n"), n);
+        }
+        return builder.build();
+    }
+
+    private static DynamicMessage entry(final String field, final Object key, final Object value) {
+        final Descriptors.Descriptor entry = ProtobufJsonTest.fd(ProtobufJsonTest.outer, field).getMessageType();
+        return DynamicMessage.newBuilder(entry)
+                .setField(ProtobufJsonTest.fd(entry, "key"), key)
+                .setField(ProtobufJsonTest.fd(entry, "value"), value)
+                .build();
+    }
+
+    private static byte[] outer() {
+        final Descriptors.Descriptor o = ProtobufJsonTest.outer;
+        return DynamicMessage.newBuilder(o)
+                .setField(ProtobufJsonTest.fd(o, "id"), 42L)
+                .setField(ProtobufJsonTest.fd(o, "text"), "hi")
+                .addRepeatedField(ProtobufJsonTest.fd(o, "nums"), 1)
+                .addRepeatedField(ProtobufJsonTest.fd(o, "nums"), -2)
+                .addRepeatedField(ProtobufJsonTest.fd(o, "nums"), 300)
+                .addRepeatedField(ProtobufJsonTest.fd(o, "tags"), "a")
+                .addRepeatedField(ProtobufJsonTest.fd(o, "tags"), "b")
+                .setField(ProtobufJsonTest.fd(o, "inner"), ProtobufJsonTest.inner("in", 7))
+                .addRepeatedField(ProtobufJsonTest.fd(o, "items"), ProtobufJsonTest.inner("i1", 0))
+                .addRepeatedField(ProtobufJsonTest.fd(o, "items"), ProtobufJsonTest.inner(null, 2))
+                .addRepeatedField(ProtobufJsonTest.fd(o, "counts"), ProtobufJsonTest.entry("counts", "a", 1L))
+                .addRepeatedField(ProtobufJsonTest.fd(o, "counts"), ProtobufJsonTest.entry("counts", "b", -5L))
+                .setField(ProtobufJsonTest.fd(o, "color"), ProtobufJsonTest.fd(o, "color").getEnumType().findValueByName("GREEN"))
+                .setField(ProtobufJsonTest.fd(o, "flag"), true)
+                .setField(ProtobufJsonTest.fd(o, "ratio"), 0.25)
+                .setField(ProtobufJsonTest.fd(o, "blob"), ByteString.copyFrom(new byte[]{1, 2}))
+                .setField(ProtobufJsonTest.fd(o, "delta"), -3)
+                .setField(ProtobufJsonTest.fd(o, "big"), -1L)
+                .addRepeatedField(ProtobufJsonTest.fd(o, "by_id"), ProtobufJsonTest.entry("by_id", 1, ProtobufJsonTest.inner("one", 0)))
+                .addRepeatedField(ProtobufJsonTest.fd(o, "by_id"), ProtobufJsonTest.entry("by_id", 2, ProtobufJsonTest.inner(null, 0)))
+                .build()
+                .toByteArray();
+    }
+
+    @Test
+    void roundTrip() throws Exception {
+        /* declaration order under JSON names, packed repeated scalars, maps as objects, uint64 unsigned */
+        assertEquals("{\"id\":42,\"text\":\"hi\",\"nums\":[1,-2,300],\"tags\":[\"a\",\"b\"],\"inner\":{\"name\":\"in\",\"n\":7},"
+                        + "\"items\":[{\"name\":\"i1\"},{\"n\":2}],\"counts\":{\"a\":1,\"b\":-5},\"color\":\"GREEN\",\"flag\":true,"
+                        + "\"ratio\":0.25,\"blob\":\"AQI=\",\"delta\":-3,\"big\":18446744073709551615,"
+                        + "\"byId\":{\"1\":{\"name\":\"one\"},\"2\":{}}}",
+                AvroJsonTest.decode(ProtobufJsonTest.writer, ProtobufJsonTest.outer()));
+    }
+
+    @Test
+    void absentFieldsAreLeftOut() throws Exception {
+        assertEquals("{}", AvroJsonTest.decode(ProtobufJsonTest.writer, new byte[0]));
+    }
+
+    @Test
+    void unknownFieldsAreSkippedAndTheLastOccurrenceWins() throws Exception {
+        final byte[] payload = {
+                /* field 20, varint 5, unknown to the schema */
+                (byte) 0xa0, 0x01, 0x05,
+                /* id = 1 then id = 7 */
+                0x08, 0x01, 0x08, 0x07,
+                /* color 9, newer than the schema */
+                0x40, 0x09
+        };
+        assertEquals("{\"id\":7,\"color\":9}", AvroJsonTest.decode(ProtobufJsonTest.writer, payload));
+    }
+
+    @Test
+    void unpackedRepeatedScalars() throws Exception {
+        /* nums = 1, 2 as two varint fields, as proto2 writers do */
+        assertEquals("{\"nums\":[1,2]}", AvroJsonTest.decode(ProtobufJsonTest.writer, new byte[]{0x18, 0x01, 0x18, 0x02}));
+    }
+
+    @Test
+    void malformedPayloadsThrow() {
+        final byte[] payload = ProtobufJsonTest.outer();
+
+        assertThrows(DecodeException.class, () -> AvroJsonTest.decode(ProtobufJsonTest.writer, Arrays.copyOf(payload, payload.length - 1)));
+        /* wire type 3, a group */
+        assertThrows(DecodeException.class, () -> AvroJsonTest.decode(ProtobufJsonTest.writer, new byte[]{0x0b}));
+        /* inner claims 5 bytes, 1 is left */
+        assertThrows(DecodeException.class, () -> AvroJsonTest.decode(ProtobufJsonTest.writer, new byte[]{0x2a, 0x05, 0x00}));
+        /* a packed value for the single id */
+        assertThrows(DecodeException.class, () -> AvroJsonTest.decode(ProtobufJsonTest.writer, new byte[]{0x0a, 0x01, 0x01}));
+    }
+}
@@ -0,0 +1,96 @@
+package io.xboshy.pulsar.source;
+
+import io.xboshy.pulsar.TestMessages;
+import io.xboshy.pulsar.bulk.BulkBuffer;
+import org.apache.pulsar.client.api.PulsarClientException;
+import org.apache.pulsar.common.schema.SchemaInfo;
+import org.apache.pulsar.common.schema.SchemaType;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class SchemaCacheTest {
+    private static final byte[] V1 = {0, 0, 0, 0, 0, 0, 0, 1};
+    private static final String AVRO = "{\"type\":\"record\",\"name\":\"R\",\"fields\":[{\"name\":\"s\",\"type\":\"string\"}]}";
+
+    private static SchemaInfo info(final SchemaType type, final String schema) {
+        return SchemaInfo.builder()
+                .name("test")
+                .type(type)
+                .schema(schema.getBytes(StandardCharsets.UTF_8))
+                .build();
+    }
+
+    private static String write(final SourceWriter writer, final int seq, final byte[] value, final byte[] version) throws Exception {
+        final BulkBuffer out = new BulkBuffer(64);
+        writer.write(TestMessages.message(seq, "k", value, version), out);
+        return new String(out.array(), 0, out.length(), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    void decodesThroughTheVersionOfTheMessage() throws Exception {
+        final AtomicInteger lookups = new AtomicInteger();
+        final SourceWriter writer = new SchemaCache((topic, version) -> {
+            lookups.incrementAndGet();
+            return SchemaCacheTest.info(SchemaType.AVRO, SchemaCacheTest.AVRO);
+        }).newWriter();
+
+        assertEquals("{\"s\":\"ab\"}", SchemaCacheTest.write(writer, 0, new byte[]{4, 'a', 'b'}, SchemaCacheTest.V1));
+        assertEquals("{\"s\":\"\"}", SchemaCacheTest.write(writer, 1, new byte[]{0}, SchemaCacheTest.V1));
+        /* no version, copied as it is */
+        assertEquals("{\"raw\":1}", SchemaCacheTest.write(writer, 2, "{\"raw\":1}".getBytes(StandardCharsets.UTF_8), null));
+        assertEquals(1, lookups.get());
+    }
+
+    @Test
+    void jsonIsCopied() throws Exception {
+        final SourceWriter writer = new SchemaCache((topic, version) -> SchemaCacheTest.info(SchemaType.JSON, SchemaCacheTest.AVRO)).newWriter();
+
+        assertEquals("{\"a\":1}", SchemaCacheTest.write(writer, 0, "{\"a\":1}".getBytes(StandardCharsets.UTF_8), SchemaCacheTest.V1));
+    }
+
+    @Test
+    void unreadablePayloadsAreDecodeExceptions() throws Exception {
+        final SourceWriter writer = new SchemaCache((topic, version) -> SchemaCacheTest.info(SchemaType.AVRO, SchemaCacheTest.AVRO)).newWriter();
+
+        /* a string of 2 bytes with 1 left, then one byte past the record */
+        assertThrows(DecodeException.class, () -> SchemaCacheTest.write(writer, 0, new byte[]{4, 'a'}, SchemaCacheTest.V1));
+        assertThrows(DecodeException.class, () -> SchemaCacheTest.write(writer, 1, new byte[]{0, 0}, SchemaCacheTest.V1));
+    }
+
+    @Test
+    void unreadableVersionsAreRememberedAsDecodeExceptions() throws Exception {
+        final AtomicInteger lookups = new AtomicInteger();
+        final SourceWriter writer = new SchemaCache((topic, version) -> switch (lookups.incrementAndGet()) {
+            case 1 -> null;
+            case 2 -> SchemaCacheTest.info(SchemaType.AVRO, "{not a schema");
+            default -> SchemaCacheTest.info(SchemaType.KEY_VALUE, "");
+        }).newWriter();
+
+        for (int version = 1; version <= 3; version++) {
+            final byte[] v = {0, 0, 0, 0, 0, 0, 0, (byte) version};
+            assertThrows(DecodeException.class, () -> SchemaCacheTest.write(writer, 0, new byte[]{0}, v));
+            assertThrows(DecodeException.class, () -> SchemaCacheTest.write(writer, 1, new byte[]{0}, v));
+        }
+        assertEquals(3, lookups.get());
+    }
+
+    @Test
+    void failedLookupsAreNotDecodeExceptionsNorRemembered() throws Exception {
+        final AtomicInteger lookups = new AtomicInteger();
+        final SourceWriter writer = new SchemaCache((topic, version) -> {
+            if (lookups.incrementAndGet() == 1) {
+                throw new PulsarClientException.TimeoutException("lookup timed out");
+            }
+            return SchemaCacheTest.info(SchemaType.AVRO, SchemaCacheTest.AVRO);
+        }).newWriter();
+
+        assertThrows(PulsarClientException.TimeoutException.class, () -> SchemaCacheTest.write(writer, 0, new byte[]{0}, SchemaCacheTest.V1));
+        assertEquals("{\"s\":\"\"}", SchemaCacheTest.write(writer, 1, new byte[]{0}, SchemaCacheTest.V1));
+        assertEquals(2, lookups.get());
+    }
+}
@@ -0,0 +1,66 @@
+package io.xboshy.pulsar.utils;
+
+import org.apache.pulsar.shade.io.netty.buffer.ByteBuf;
+import org.apache.pulsar.shade.io.netty.buffer.Unpooled;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/* reference values of the MurmurHash3 x64 128 and x86 32 implementations in guava and elasticsearch */
+class Murmur3Test {
+    private static void assertHash128(final long seed, final long h1, final long h2, final String input) {
+        final byte[] bytes = input.getBytes(StandardCharsets.UTF_8);
+        /* at an offset, the hash reads in place */
+        final ByteBuf buf = Unpooled.buffer(bytes.length + 3);
+        buf.writeBytes(new byte[3]).writeBytes(bytes);
+        final long[] out = new long[2];
+        Murmur3.hash128(buf, 3, bytes.length, seed, out);
+
+        assertEquals(h1, out[0], input);
+        assertEquals(h2, out[1], input);
+        if (seed == 0) {
+            final byte[] padded = new byte[bytes.length + 5];
+            System.arraycopy(bytes, 0, padded, 5, bytes.length);
+            assertEquals(h1, Murmur3.hash64(padded, 5, bytes.length), input);
+        }
+    }
+
+    private static void assertHash32Utf16(final int hash, final String input) {
+        final byte[] ascii = input.getBytes(StandardCharsets.US_ASCII);
+        assertEquals(hash, Murmur3.hash32Utf16(ascii, 0, ascii.length), input);
+    }
+
+    @Test
+    void hash128() {
+        /* every tail length from 0 to 15 and more than one block */
+        Murmur3Test.assertHash128(0, 0x0000000000000000L, 0x0000000000000000L, "");
+        Murmur3Test.assertHash128(0, 0x85555565f6597889L, 0xe6b53a48510e895aL, "a");
+        Murmur3Test.assertHash128(0, 0x629942693e10f867L, 0x92db0b82baeb5347L, "hell");
+        Murmur3Test.assertHash128(0, 0xcbd8a7b341bd9b02L, 0x5b1e906a48ae1d19L, "hello");
+        Murmur3Test.assertHash128(0, 0x7552fd5459fe5513L, 0x536b5526a1675925L, "hello w");
+        Murmur3Test.assertHash128(0, 0x944cd9aa8b8e849dL, 0x6b2a284a57d12bbaL, "hello wor");
+        Murmur3Test.assertHash128(0, 0x4be06d94cf4ad1a7L, 0x87c35b5c63a708daL, "0123456789abcdef");
+        Murmur3Test.assertHash128(0, 0x8e32612daa45f9deL, 0x0800f4c206c372eeL, "0123456789abcdefg");
+        Murmur3Test.assertHash128(0, 0xe34bbc7bbc071b6cL, 0x7a433ca9c49a9347L, "The quick brown fox jumps over the lazy dog");
+    }
+
+    @Test
+    void hash128Seeded() {
+        Murmur3Test.assertHash128(42, 0xf02aa77dfa1b8523L, 0xd1016610da11cbb9L, "");
+        Murmur3Test.assertHash128(42, 0xc4b8b3c960af6f08L, 0x2334b875b0efbc7aL, "hello");
+        Murmur3Test.assertHash128(42, 0xd7144105f707cb7cL, 0x4981b28d2f17a7dbL, "0123456789abcdefg");
+        Murmur3Test.assertHash128(42, 0x740dcf93fe0bd5d7L, 0xc4546cf4ec705c8fL, "The quick brown fox jumps over the lazy dog");
+    }
+
+    @Test
+    void hash32Utf16() {
+        Murmur3Test.assertHash32Utf16(0x00000000, "");
+        Murmur3Test.assertHash32Utf16(0x5a0cb7c3, "hell");
+        Murmur3Test.assertHash32Utf16(0xd7c31989, "hello");
+        Murmur3Test.assertHash32Utf16(0x22ab2984, "hello w");
+        Murmur3Test.assertHash32Utf16(0xe7744d61, "hello wor");
+        Murmur3Test.assertHash32Utf16(0xe07db09c, "The quick brown fox jumps over the lazy dog");
+    }
+}